@@ -0,0 +1,322 @@
+package fliphash;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
+
+/**
+ * Assigns large key sets to resources in parallel, for planning data movement when the number
+ * of resources changes.
+ * <p>
+ * Keys are read from a {@link Spliterator.OfLong}, which is split recursively on a
+ * {@link ForkJoinPool} into about {@value #TASKS_PER_THREAD} tasks per worker thread, each of
+ * at least {@value #MIN_TASK_SIZE} keys. Every leaf task copies its keys into fixed-size chunks
+ * and maps each chunk with the batch API of {@link FlipHashEngine}, so the keys share no state
+ * until the per-task results are merged on the way back up. The result is the same as calling
+ * {@link FlipHashEngine#fliphash(long, long)} of the same engine per key.
+ * </p>
+ * <p>
+ * The key source must split well for the work to spread across cores: arrays,
+ * {@code LongStream.range} and sized collections do, while iterator-backed sources only split
+ * into small batches.
+ * </p>
+ */
+public final class BulkAssigner {
+
+    /** Number of keys mapped per batch call inside a leaf task. */
+    private static final int CHUNK_SIZE = 1 << 12;
+
+    /** Smallest number of keys a task is split down to. */
+    private static final long MIN_TASK_SIZE = 1 << 16;
+
+    /** Number of tasks created per worker thread, so idle workers can steal. */
+    private static final int TASKS_PER_THREAD = 8;
+
+    private final FlipHashEngine engine;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an assigner that uses the default engine and the common pool.
+     */
+    public BulkAssigner() {
+        this(FlipHashEngine.getDefault(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an assigner.
+     *
+     * @param engine the engine that maps keys to buckets.
+     * @param pool   the pool the assignment runs on.
+     */
+    public BulkAssigner(FlipHashEngine engine, ForkJoinPool pool) {
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    /**
+     * Counts how many keys are assigned to each resource.
+     *
+     * @param keys     the key source; consumed by this call.
+     * @param resource the resources to assign to.
+     * @return the number of keys assigned to bucket {@code i} at index {@code i}.
+     * @throws IllegalArgumentException if the resource count is not positive or too large to
+     *                                  hold one counter per bucket.
+     */
+    public long[] countPerBucket(Spliterator.OfLong keys, FlipHash.Resource resource) {
+        int numResources = checkCount(resource.getCount());
+        return pool.invoke(new AssignTask(keys, numResources, 0, false, splitSize(keys))).before;
+    }
+
+    /**
+     * Assigns every key for both the current and the next resource count and reports the keys
+     * that change bucket.
+     *
+     * @param keys            the key source; consumed by this call.
+     * @param current         the resources before the change.
+     * @param next            the resources after the change.
+     * @param collectMovedKeys whether to keep the moved keys; when false only their number is
+     *                         reported, which keeps memory flat for very large key sets.
+     * @return the counts per bucket before and after the change, and the moved keys.
+     * @throws IllegalArgumentException if either resource count is not positive or too large to
+     *                                  hold one counter per bucket.
+     */
+    public Plan plan(Spliterator.OfLong keys, FlipHash.Resource current, FlipHash.Resource next,
+                     boolean collectMovedKeys) {
+        int numBefore = checkCount(current.getCount());
+        int numAfter = checkCount(next.getCount());
+        Partial result = pool.invoke(
+                new AssignTask(keys, numBefore, numAfter, collectMovedKeys, splitSize(keys)));
+        long[] movedKeys = collectMovedKeys
+                ? Arrays.copyOf(result.movedKeys, result.movedCount) : null;
+        return new Plan(result.before, result.after, result.movedTotal, movedKeys);
+    }
+
+    /**
+     * Returns the task size the key source is split down to.
+     *
+     * @param keys the key source.
+     * @return the largest number of keys a leaf task should hold.
+     */
+    private long splitSize(Spliterator.OfLong keys) {
+        long estimate = keys.estimateSize();
+        if (estimate == Long.MAX_VALUE) {
+            return MIN_TASK_SIZE;
+        }
+        return Math.max(MIN_TASK_SIZE, estimate / ((long) pool.getParallelism() * TASKS_PER_THREAD));
+    }
+
+    /**
+     * Checks that a resource count can be used as the length of a counter array.
+     *
+     * @param count the resource count.
+     * @return the count as an {@code int}.
+     * @throws IllegalArgumentException if the count is out of range.
+     */
+    private static int checkCount(long count) {
+        if (count < 1 || count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Resource count out of range: " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Outcome of a bulk assignment between two resource counts.
+     */
+    public static final class Plan {
+        private final long[] countsBefore;
+        private final long[] countsAfter;
+        private final long movedCount;
+        private final long[] movedKeys;
+
+        private Plan(long[] countsBefore, long[] countsAfter, long movedCount, long[] movedKeys) {
+            this.countsBefore = countsBefore;
+            this.countsAfter = countsAfter;
+            this.movedCount = movedCount;
+            this.movedKeys = movedKeys;
+        }
+
+        /**
+         * Returns the number of keys per bucket for the current resource count.
+         *
+         * @return the counts, indexed by bucket.
+         */
+        public long[] getCountsBefore() {
+            return countsBefore;
+        }
+
+        /**
+         * Returns the number of keys per bucket for the next resource count.
+         *
+         * @return the counts, indexed by bucket.
+         */
+        public long[] getCountsAfter() {
+            return countsAfter;
+        }
+
+        /**
+         * Returns the number of keys whose bucket changes.
+         *
+         * @return the moved key count.
+         */
+        public long getMovedCount() {
+            return movedCount;
+        }
+
+        /**
+         * Returns the keys whose bucket changes, in the encounter order of the key source.
+         *
+         * @return the moved keys, or {@code null} if they were not collected.
+         */
+        public long[] getMovedKeys() {
+            return movedKeys;
+        }
+    }
+
+    /**
+     * Counts and moved keys of one task, merged pairwise as tasks complete.
+     */
+    private static final class Partial {
+        final long[] before;
+        final long[] after;
+        long movedTotal;
+        long[] movedKeys;
+        int movedCount;
+
+        Partial(int numBefore, int numAfter, boolean collectMovedKeys) {
+            before = new long[numBefore];
+            after = numAfter > 0 ? new long[numAfter] : null;
+            movedKeys = collectMovedKeys ? new long[16] : null;
+        }
+
+        void addMoved(long key) {
+            movedTotal++;
+            if (movedKeys != null) {
+                if (movedCount == movedKeys.length) {
+                    movedKeys = Arrays.copyOf(movedKeys, grow(movedCount, 1));
+                }
+                movedKeys[movedCount++] = key;
+            }
+        }
+
+        /**
+         * Adds the results of the task that follows this one in encounter order.
+         *
+         * @param other the later partial result.
+         * @return this partial result.
+         */
+        Partial merge(Partial other) {
+            for (int i = 0; i < before.length; i++) {
+                before[i] += other.before[i];
+            }
+            if (after != null) {
+                for (int i = 0; i < after.length; i++) {
+                    after[i] += other.after[i];
+                }
+            }
+            movedTotal += other.movedTotal;
+            if (movedKeys != null && other.movedCount > 0) {
+                if (movedKeys.length - movedCount < other.movedCount) {
+                    movedKeys = Arrays.copyOf(movedKeys, grow(movedCount, other.movedCount));
+                }
+                System.arraycopy(other.movedKeys, 0, movedKeys, movedCount, other.movedCount);
+                movedCount += other.movedCount;
+            }
+            return this;
+        }
+
+        private static int grow(int size, int extra) {
+            long needed = (long) size + extra;
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many moved keys to collect: " + needed);
+            }
+            return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, (long) size * 2));
+        }
+    }
+
+    /**
+     * Splits the key source and assigns the keys of each leaf in batches.
+     */
+    private final class AssignTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator.OfLong keys;
+        private final int numBefore;
+        private final int numAfter;
+        private final boolean collectMovedKeys;
+        private final long splitSize;
+
+        AssignTask(Spliterator.OfLong keys, int numBefore, int numAfter, boolean collectMovedKeys,
+                   long splitSize) {
+            this.keys = keys;
+            this.numBefore = numBefore;
+            this.numAfter = numAfter;
+            this.collectMovedKeys = collectMovedKeys;
+            this.splitSize = splitSize;
+        }
+
+        @Override
+        protected Partial compute() {
+            Spliterator.OfLong prefix;
+            if (keys.estimateSize() > splitSize && (prefix = keys.trySplit()) != null) {
+                AssignTask left = new AssignTask(prefix, numBefore, numAfter, collectMovedKeys,
+                        splitSize);
+                left.fork();
+                Partial right = new AssignTask(keys, numBefore, numAfter, collectMovedKeys,
+                        splitSize).compute();
+                return left.join().merge(right);
+            }
+            Leaf leaf = new Leaf(new Partial(numBefore, numAfter, collectMovedKeys));
+            keys.forEachRemaining(leaf);
+            leaf.flush();
+            return leaf.partial;
+        }
+
+        /**
+         * Buffers the keys of a leaf task and maps them one chunk at a time.
+         */
+        private final class Leaf implements LongConsumer {
+            final Partial partial;
+            final long[] chunk = new long[CHUNK_SIZE];
+            final long[] bucketsBefore = new long[CHUNK_SIZE];
+            final long[] bucketsAfter = numAfter > 0 ? new long[CHUNK_SIZE] : null;
+            int size;
+
+            Leaf(Partial partial) {
+                this.partial = partial;
+            }
+
+            @Override
+            public void accept(long key) {
+                chunk[size++] = key;
+                if (size == CHUNK_SIZE) {
+                    flush();
+                }
+            }
+
+            void flush() {
+                if (size == 0) {
+                    return;
+                }
+                long[] input = size == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, size);
+                engine.fliphash(input, numBefore, bucketsBefore);
+                long[] before = partial.before;
+                for (int i = 0; i < size; i++) {
+                    before[(int) bucketsBefore[i]]++;
+                }
+                if (bucketsAfter != null) {
+                    engine.fliphash(input, numAfter, bucketsAfter);
+                    long[] after = partial.after;
+                    for (int i = 0; i < size; i++) {
+                        after[(int) bucketsAfter[i]]++;
+                        if (bucketsAfter[i] != bucketsBefore[i]) {
+                            partial.addMoved(input[i]);
+                        }
+                    }
+                }
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package fliphash;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run one blocking handler per connection in the load balancer and
+ * backend servers.
+ * <p>
+ * The thread mode is chosen with {@code -Dfliphash.threads}:
+ * </p>
+ * <ul>
+ *   <li>{@code platform} (default) - a cached pool of platform threads, one per active
+ *       connection;</li>
+ *   <li>{@code virtual} - one virtual thread per connection, so blocking on a socket does not
+ *       hold an operating-system thread. Virtual threads need Java 21 or later; on older
+ *       runtimes the platform mode is used and a warning is printed.</li>
+ * </ul>
+ * <p>
+ * The virtual-thread executor is looked up by reflection so the code still compiles and runs
+ * on Java 17.
+ * </p>
+ */
+public final class ConnectionExecutors {
+
+    /**
+     * Ways of running connection handlers.
+     */
+    public enum ThreadMode {
+        /** One platform thread per active connection. */
+        PLATFORM,
+        /** One virtual thread per connection. */
+        VIRTUAL
+    }
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * Returns the thread mode selected with {@code -Dfliphash.threads}.
+     *
+     * @return the configured thread mode.
+     * @throws IllegalArgumentException if the property has an unknown value.
+     */
+    public static ThreadMode configuredMode() {
+        return ThreadMode.valueOf(System.getProperty("fliphash.threads", "platform").trim().toUpperCase());
+    }
+
+    /**
+     * Returns whether this runtime supports virtual threads.
+     *
+     * @return true on Java 21 or later.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return virtualThreadFactory() != null;
+    }
+
+    /**
+     * Creates an executor for connection handlers in the configured thread mode.
+     *
+     * @param name prefix for the names of the threads.
+     * @return the executor.
+     */
+    public static ExecutorService newConnectionExecutor(String name) {
+        return newConnectionExecutor(name, configuredMode());
+    }
+
+    /**
+     * Creates an executor for connection handlers.
+     *
+     * @param name prefix for the names of the threads.
+     * @param mode the requested thread mode.
+     * @return the executor; uses platform threads if virtual threads are unavailable.
+     */
+    public static ExecutorService newConnectionExecutor(String name, ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL) {
+            Method factory = virtualThreadFactory();
+            if (factory != null) {
+                try {
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Virtual threads could not be started: " + e);
+                }
+            } else {
+                System.err.println("Virtual threads need Java 21 or later; using platform threads for "
+                        + name + ".");
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = task -> new Thread(task, name + "-" + counter.incrementAndGet());
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor}.
+     *
+     * @return the factory method, or null if this runtime has none.
+     */
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package fliphash;
+
+import fliphash.xxh3Java.hashing.HashValue128;
+import fliphash.xxh3Java.hashing.Hasher128;
+import fliphash.xxh3Java.hashing.Hasher64;
+import fliphash.xxh3Java.hashing.Hashing;
+import fliphash.xxh3Java.hashing.XXH3_64;
+
+/**
+ * Hash-once FlipHash variant.
+ * <p>
+ * The key is hashed a single time into a 128-bit digest, and every seeded draw the FlipHash
+ * algorithm needs is derived from that digest with a SplitMix64-style mixer. The cost of a
+ * lookup therefore no longer grows with the key length times the number of draws. Bucket
+ * assignments differ from {@link FlipHashEngine}, but the uniformity and minimal-disruption
+ * properties are the same as long as the mixed draws behave like independent hashes.
+ * </p>
+ * <p>
+ * Instances are immutable and can be shared freely between threads.
+ * </p>
+ */
+public final class DigestFlipHashEngine implements FlipHashFunction {
+
+    /** Number of rehash attempts made before falling back to the lower power of two. */
+    private static final int MAX_RETRIES = 64;
+
+    /** Weyl increment used to spread seeds, as in SplitMix64. */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /** Shared engine backed by XXH3-128. */
+    private static final DigestFlipHashEngine DEFAULT_INSTANCE = new DigestFlipHashEngine();
+
+    private final Hasher128 digestHasher;
+    private final Hasher64 hiHasher;
+    private final Hasher64 loHasher;
+
+    /**
+     * Creates an engine that digests keys with XXH3-128.
+     */
+    public DigestFlipHashEngine() {
+        this(Hashing.xxh3_128());
+    }
+
+    /**
+     * Creates an engine that digests character keys with the given 128-bit hasher.
+     *
+     * @param digestHasher the 128-bit hasher, for example XXH3-128 or Murmur3-128.
+     */
+    public DigestFlipHashEngine(Hasher128 digestHasher) {
+        this.digestHasher = digestHasher;
+        this.hiHasher = XXH3_64.create(GOLDEN_GAMMA);
+        this.loHasher = XXH3_64.create(0);
+    }
+
+    /**
+     * Returns the shared XXH3-128 engine.
+     *
+     * @return the default engine.
+     */
+    public static DigestFlipHashEngine getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    @Override
+    public long fliphash(CharSequence key, long numResources) {
+        HashValue128 digest = digestHasher.hashCharsTo128Bits(key);
+        return fliphashDigest(digest.getMostSignificantBits(), digest.getLeastSignificantBits(), numResources);
+    }
+
+    @Override
+    public long fliphash(byte[] key, long numResources) {
+        HashValue128 digest = digestHasher.hashBytesTo128Bits(key);
+        return fliphashDigest(digest.getMostSignificantBits(), digest.getLeastSignificantBits(), numResources);
+    }
+
+    @Override
+    public long fliphash(long key, long numResources) {
+        return fliphashDigest(hiHasher.hashLongToLong(key), loHasher.hashLongToLong(key), numResources);
+    }
+
+    @Override
+    public long fliphash(long hi, long lo, long numResources) {
+        return fliphashDigest(hiHasher.hashLongLongToLong(hi, lo), loHasher.hashLongLongToLong(hi, lo), numResources);
+    }
+
+    /**
+     * Maps a key digest consistently to a bucket in {@code [0, numResources)}.
+     *
+     * @param h1           the upper half of the key digest.
+     * @param h2           the lower half of the key digest.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    public static long fliphashDigest(long h1, long h2, long numResources) {
+        int r = FlipHashEngine.bitLength(numResources);
+        long d = fliphashPow2(h1, h2, r);
+        if (d < numResources) {
+            return d;
+        }
+        long rNegative1 = 1L << (r - 1);
+        long mask = (1L << r) - 1;
+        for (int i = 1; i <= MAX_RETRIES; i++) {
+            long e = draw(h1, h2, r - 1, i) & mask;
+            if (e < rNegative1) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return fliphashPow2(h1, h2, r - 1);
+    }
+
+    private static long fliphashPow2(long h1, long h2, int twoPower) {
+        long a = draw(h1, h2, 0, 0) & ((1L << twoPower) - 1);
+        int b = FlipHashEngine.highestBit(a);
+        long c = draw(h1, h2, b, 0) & ((1L << b) - 1);
+        return a ^ c;
+    }
+
+    /**
+     * Derives the draw for seed {@code (a, b)} from a key digest.
+     * <p>
+     * The seed selects a position in a SplitMix64 sequence started at {@code h1}; the finalizer
+     * output is then combined with {@code h2} so both halves of the digest matter.
+     * </p>
+     *
+     * @param h1 the upper half of the key digest.
+     * @param h2 the lower half of the key digest.
+     * @param a  the level.
+     * @param b  the attempt.
+     * @return a 64-bit pseudo-random draw.
+     */
+    static long draw(long h1, long h2, int a, int b) {
+        long z = h1 + (FlipHashEngine.createSeed(a, b) + 1) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31) ^ h2;
+    }
+}
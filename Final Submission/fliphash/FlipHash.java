@@ -7,8 +7,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.Scanner;
-import fliphash.xxh3Java.hashing.Hasher64;
-import fliphash.xxh3Java.hashing.XXH3_64;
 
 /**
  * Implements the FlipHash algorithm using a simulated xxHash3-based approach.
@@ -102,46 +100,12 @@ public class FlipHash {
         }
     }
 
-    /**
-     * Computes a seeding value based on two short values.
-     *
-     * @param a the first short.
-     * @param b the second short.
-     * @return a combined seed value.
-     */
-    private static long createSeed(short a, short b) {
-        return a + (b << 16);
-    }
-
-    /**
-     * Computes the fliphash value using a power-of-two range.
-     * <p>
-     * This method simulates part of the xxHash3 algorithm using the given twoPower value.
-     * </p>
-     *
-     * @param key      the input key.
-     * @param twoPower the power to which 2 is raised.
-     * @return the computed hash value.
-     */
-    private static long fliphashPow2(String key, int twoPower) {
-        Hasher64 xxh3 = XXH3_64.create(createSeed((short) 0, (short) 0));
-        long a = xxh3.hashCharsToLong(key) & ((1L << twoPower) - 1);
-
-        long temp = a;
-        int b = 0;
-        while (temp > 1) {
-            temp >>= 1;
-            b++;
-        }
-        xxh3 = XXH3_64.create(createSeed((short) b, (short) 0));
-        long c = xxh3.hashCharsToLong(key) & ((1L << b) - 1);
-        return a + c;
-    }
-
     /**
      * Computes the general fliphash value given an input key and a resource.
      * <p>
-     * This method maps the hash value to the available resources.
+     * This method maps the hash value to the available resources using the shared
+     * {@link FlipHashEngine}, so no hasher instances are created per call, and it returns the
+     * engine's buckets, which always lie in {@code [0, resource.getCount())}.
      * </p>
      *
      * @param key      the input key.
@@ -149,31 +113,7 @@ public class FlipHash {
      * @return the final hash value mapped to the resource range.
      */
     public static long fliphashGeneral(String key, Resource resource) {
-        long numResources = resource.getCount();
-        int r = 0;
-        for (long temp = numResources; temp > 0; temp >>= 1) {
-            r++;
-        }
-        long d = fliphashPow2(key, r);
-        if (d < numResources) {
-            return d;
-        } else {
-            long rNegative1 = 1L << (r - 1);
-            long e;
-            Hasher64 xxh3;
-            // Attempt multiple rehashes if the value is not in range.
-            for (int i = 0; i < 64; i++) {
-                xxh3 = XXH3_64.create(createSeed((short) (r - 1), (short) i));
-                e = xxh3.hashCharsToLong(key) & ((1L << r) - 1);
-
-                if (e < rNegative1) {
-                    return fliphashPow2(key, r - 1);
-                } else if (e < numResources) {
-                    return e;
-                }
-            }
-            return fliphashPow2(key, r - 1);
-        }
+        return FlipHashEngine.getDefault().fliphash(key, resource.getCount());
     }
 
     /**
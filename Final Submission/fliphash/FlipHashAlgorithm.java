@@ -0,0 +1,41 @@
+package fliphash;
+
+/**
+ * The FlipHash variants that can be selected at runtime.
+ */
+public enum FlipHashAlgorithm {
+
+    /** Paper algorithm: every {@code (level, attempt)} draw rehashes the key with its own seed. */
+    RESEEDING {
+        @Override
+        public FlipHashFunction function() {
+            return FlipHashEngine.getDefault();
+        }
+    },
+
+    /** Hashes the key once to 128 bits and derives every draw from that digest. */
+    HASH_ONCE {
+        @Override
+        public FlipHashFunction function() {
+            return DigestFlipHashEngine.getDefault();
+        }
+    };
+
+    /**
+     * Returns the shared function implementing this variant.
+     *
+     * @return the FlipHash function.
+     */
+    public abstract FlipHashFunction function();
+
+    /**
+     * Looks up a variant by name, ignoring case and accepting {@code -} for {@code _}.
+     *
+     * @param name the variant name, for example {@code "hash-once"}.
+     * @return the matching variant.
+     * @throws IllegalArgumentException if no variant has that name.
+     */
+    public static FlipHashAlgorithm fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -52,10 +52,13 @@ public class FlipHashClient {
                 socket.shutdownOutput();
                 System.out.println("JAR file sent successfully.");
                 
-                // Read and print additional lines of response from the server.
-                String responseLine;
-                while ((responseLine = in.readLine()) != null) {
-                    System.out.println("Server response: " + responseLine);
+                // Print the job output as it arrives; the server closes the connection at its end.
+                System.out.println("Server response:");
+                char[] output = new char[BUFFER_SIZE];
+                int charsRead;
+                while ((charsRead = in.read(output)) != -1) {
+                    System.out.print(new String(output, 0, charsRead));
+                    System.out.flush();
                 }
                 // Successful transfer; break out of retry loop.
                 break;
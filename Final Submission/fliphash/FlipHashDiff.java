@@ -0,0 +1,148 @@
+package fliphash;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Streams the keys that change bucket when the number of resources changes.
+ * <p>
+ * Unlike computing both assignments and comparing them, the diff looks each key up only under
+ * the larger resource count, in chunks, and skips the second hash of keys whose first draw
+ * keeps them below the smaller count; see
+ * {@link FlipHashEngine#movedKeys(long[], long, long, long[], int[])}. Only the keys that move
+ * are looked up under the other count as well, to report where they come from and go to. The
+ * diff holds one chunk of keys at a time, so key sets of any size are diffed in constant
+ * memory.
+ * </p>
+ */
+public final class FlipHashDiff {
+
+    /** Number of keys diffed per batch call. */
+    private static final int CHUNK_SIZE = 1 << 12;
+
+    /**
+     * Receives the keys that change bucket.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called once for every key that moves, in the encounter order of the key source.
+         *
+         * @param key        the key.
+         * @param fromBucket the bucket of the key before the change.
+         * @param toBucket   the bucket of the key after the change.
+         */
+        void moved(long key, long fromBucket, long toBucket);
+    }
+
+    private final FlipHashEngine engine;
+    private final long numBefore;
+    private final long numAfter;
+
+    /**
+     * Creates a diff between two resource counts using the default engine.
+     *
+     * @param before the resources before the change.
+     * @param after  the resources after the change.
+     * @throws IllegalArgumentException if either resource count is not positive.
+     */
+    public FlipHashDiff(FlipHash.Resource before, FlipHash.Resource after) {
+        this(FlipHashEngine.getDefault(), before, after);
+    }
+
+    /**
+     * Creates a diff between two resource counts.
+     *
+     * @param engine the engine that maps keys to buckets.
+     * @param before the resources before the change.
+     * @param after  the resources after the change.
+     * @throws IllegalArgumentException if either resource count is not positive.
+     */
+    public FlipHashDiff(FlipHashEngine engine, FlipHash.Resource before, FlipHash.Resource after) {
+        FlipHashEngine.bitLength(before.getCount());
+        FlipHashEngine.bitLength(after.getCount());
+        this.engine = engine;
+        this.numBefore = before.getCount();
+        this.numAfter = after.getCount();
+    }
+
+    /**
+     * Returns whether a key changes bucket.
+     *
+     * @param key the key.
+     * @return true if the key moves.
+     */
+    public boolean isMoved(long key) {
+        return engine.isMoved(key, numBefore, numAfter);
+    }
+
+    /**
+     * Reports every key of the source that changes bucket.
+     *
+     * @param keys     the key source; consumed by this call.
+     * @param listener receives the moved keys.
+     * @return the number of moved keys.
+     */
+    public long diff(Spliterator.OfLong keys, Listener listener) {
+        Chunk chunk = new Chunk(listener);
+        keys.forEachRemaining(chunk);
+        chunk.flush();
+        return chunk.movedCount;
+    }
+
+    /**
+     * Counts the keys of the source that change bucket.
+     *
+     * @param keys the key source; consumed by this call.
+     * @return the number of moved keys.
+     */
+    public long count(Spliterator.OfLong keys) {
+        return diff(keys, null);
+    }
+
+    /**
+     * Buffers keys and diffs them one chunk at a time.
+     */
+    private final class Chunk implements LongConsumer {
+        final Listener listener;
+        final long[] keys = new long[CHUNK_SIZE];
+        final long[] buckets = new long[CHUNK_SIZE];
+        final int[] moved = new int[CHUNK_SIZE];
+        int size;
+        long movedCount;
+
+        Chunk(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void accept(long key) {
+            keys[size++] = key;
+            if (size == CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (size == 0) {
+                return;
+            }
+            long[] input = size == CHUNK_SIZE ? keys : Arrays.copyOf(keys, size);
+            int count = engine.movedKeys(input, numBefore, numAfter, buckets, moved);
+            movedCount += count;
+            if (listener != null) {
+                for (int j = 0; j < count; j++) {
+                    int i = moved[j];
+                    long key = input[i];
+                    if (numAfter > numBefore) {
+                        listener.moved(key, engine.fliphash(key, numBefore), buckets[i]);
+                    } else {
+                        listener.moved(key, buckets[i], engine.fliphash(key, numAfter));
+                    }
+                }
+            }
+            size = 0;
+        }
+    }
+}
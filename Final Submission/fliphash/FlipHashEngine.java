@@ -0,0 +1,577 @@
+package fliphash;
+
+import fliphash.xxh3Java.hashing.Hasher64;
+
+/**
+ * Reusable, allocation-free FlipHash lookup engine.
+ * <p>
+ * FlipHash only ever hashes a key with seeds of the form {@code seed(a, b) = a + (b << 16)},
+ * where {@code a} is a bit width below 64 and {@code b} is an attempt index of at most 64.
+ * Attempt 0 belongs to the power-of-two step and attempts 1 to 64 to the rehash loop, so the
+ * two never reuse a draw. The engine builds every one of those seeded hashers once at
+ * construction, so a lookup is reduced to array reads and hash calls and does not create any
+ * objects.
+ * </p>
+ * <p>
+ * Instances are immutable and can be shared freely between threads.
+ * </p>
+ */
+public final class FlipHashEngine implements FlipHashFunction {
+
+    /** Number of bit widths a 64-bit draw can be masked to. */
+    private static final int MAX_BITS = 64;
+
+    /** Number of rehash attempts made before falling back to the lower power of two. */
+    private static final int MAX_RETRIES = 64;
+
+    /** Largest power of two for which the vector kernel is exact. */
+    private static final int MAX_VECTOR_BITS = 53;
+
+    /** Keys used to check the vector kernel against the scalar path before enabling it. */
+    private static final int VECTOR_SELF_CHECK_KEYS = 1024;
+
+    /** Shared engine backed by the hash function selected with {@code -Dfliphash.hasher}. */
+    private static final FlipHashEngine DEFAULT_INSTANCE =
+            new FlipHashEngine(HashBackend.fromName(System.getProperty("fliphash.hasher", "xxh3-64")));
+
+    /** SIMD kernel for XXH3-64 long-key batches, or {@code null} if the Vector API is absent. */
+    private static final FlipHashPow2Kernel VECTOR_KERNEL = loadVectorKernel();
+
+    /** Seeded hashers indexed by {@code [a][b]}. */
+    private final Hasher64[][] hashers;
+
+    /** Whether the hashers are the XXH3-64 ones the vector kernel reproduces. */
+    private final boolean xxh3Hashers;
+
+    /**
+     * Creates an engine that precomputes all XXH3-64 hashers FlipHash can use.
+     */
+    public FlipHashEngine() {
+        this(HashBackend.XXH3_64);
+    }
+
+    /**
+     * Creates an engine that precomputes all hashers FlipHash can use with the given hash
+     * function.
+     * <p>
+     * Long and 128-bit keys are hashed with {@code hashLongToLong} and
+     * {@code hashLongLongToLong}. Of the bundled backends only {@link HashBackend#XXH3_64}
+     * implements those directly; the others fall back to a hash stream, which allocates a few
+     * hundred bytes per draw, so with them only string and byte keys are allocation-free.
+     * </p>
+     *
+     * @param hasherFactory creates a hasher for each seed.
+     */
+    public FlipHashEngine(HasherFactory hasherFactory) {
+        xxh3Hashers = hasherFactory == HashBackend.XXH3_64;
+        hashers = new Hasher64[MAX_BITS][MAX_RETRIES + 1];
+        for (int a = 0; a < MAX_BITS; a++) {
+            for (int b = 0; b <= MAX_RETRIES; b++) {
+                hashers[a][b] = hasherFactory.create(createSeed(a, b));
+            }
+        }
+    }
+
+    /**
+     * Returns the shared engine. It uses the {@link HashBackend} named by
+     * {@code -Dfliphash.hasher} (see {@link HashBackend#fromName(String)}), XXH3-64 by default.
+     * Every process that must map keys alike needs the same setting.
+     *
+     * @return the default engine.
+     */
+    public static FlipHashEngine getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Returns whether long-key batches of XXH3-64 engines run on the Vector API kernel.
+     *
+     * @return true if the vector kernel is loaded.
+     */
+    public static boolean isVectorKernelEnabled() {
+        return VECTOR_KERNEL != null;
+    }
+
+    /**
+     * Loads the Vector API kernel if the {@code jdk.incubator.vector} module is present and
+     * the kernel was not disabled with {@code -Dfliphash.vector=false}.
+     * <p>
+     * The kernel is only enabled after it reproduces the scalar power-of-two step for a set of
+     * sample keys, so a mismatch falls back to scalar code instead of misrouting.
+     * </p>
+     *
+     * @return the kernel, or {@code null} if it is unavailable.
+     */
+    private static FlipHashPow2Kernel loadVectorKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("fliphash.vector", "true"))
+                || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+        FlipHashPow2Kernel kernel;
+        try {
+            kernel = (FlipHashPow2Kernel) Class.forName("fliphash.vector.VectorFlipHashKernel")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+        FlipHashEngine reference = DEFAULT_INSTANCE.xxh3Hashers ? DEFAULT_INSTANCE : new FlipHashEngine();
+        long[] keys = new long[VECTOR_SELF_CHECK_KEYS];
+        long[] buckets = new long[VECTOR_SELF_CHECK_KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 0x9E3779B97F4A7C15L;
+        }
+        for (int twoPower = 0; twoPower <= MAX_VECTOR_BITS; twoPower++) {
+            kernel.fliphashPow2(keys, keys.length, twoPower, buckets);
+            for (int i = 0; i < keys.length; i++) {
+                if (buckets[i] != reference.fliphashPow2(keys[i], twoPower)) {
+                    return null;
+                }
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Computes a seeding value based on two small values.
+     *
+     * @param a the first value.
+     * @param b the second value.
+     * @return a combined seed value.
+     */
+    static long createSeed(int a, int b) {
+        return a + (b << 16);
+    }
+
+    /**
+     * Maps a key consistently to a bucket in {@code [0, numResources)}.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    @Override
+    public long fliphash(CharSequence key, long numResources) {
+        int r = bitLength(numResources);
+        long d = fliphashPow2(key, r);
+        return d < numResources ? d : resolve(key, numResources, r);
+    }
+
+    /**
+     * Maps a key consistently to a bucket in {@code [0, 2^twoPower)}.
+     *
+     * @param key      the input key.
+     * @param twoPower the power to which 2 is raised.
+     * @return the bucket index.
+     */
+    private long fliphashPow2(CharSequence key, int twoPower) {
+        long a = hashers[0][0].hashCharsToLong(key) & ((1L << twoPower) - 1);
+        int b = highestBit(a);
+        long c = hashers[b][0].hashCharsToLong(key) & ((1L << b) - 1);
+        // Keep the highest bit of a and flip the bits below it, so the result stays in [2^b, 2^(b+1)).
+        return a ^ c;
+    }
+
+    /**
+     * Finds the bucket of a key whose power-of-two draw fell outside {@code [0, numResources)}.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets.
+     * @param r            the bit length of {@code numResources}.
+     * @return the bucket index.
+     */
+    private long resolve(CharSequence key, long numResources, int r) {
+        long rNegative1 = 1L << (r - 1);
+        long mask = (1L << r) - 1;
+        Hasher64[] retryHashers = hashers[r - 1];
+        // Attempt multiple rehashes if the value is not in range. Attempt 0 of level r - 1 is
+        // the draw fliphashPow2 already used to flip the low bits of d, so start at 1.
+        for (int i = 1; i <= MAX_RETRIES; i++) {
+            long e = retryHashers[i].hashCharsToLong(key) & mask;
+            if (e < rNegative1) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return fliphashPow2(key, r - 1);
+    }
+
+    /**
+     * Maps a byte key consistently to a bucket in {@code [0, numResources)}.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    @Override
+    public long fliphash(byte[] key, long numResources) {
+        int r = bitLength(numResources);
+        long d = fliphashPow2(key, r);
+        return d < numResources ? d : resolve(key, numResources, r);
+    }
+
+    private long fliphashPow2(byte[] key, int twoPower) {
+        long a = hashers[0][0].hashBytesToLong(key) & ((1L << twoPower) - 1);
+        int b = highestBit(a);
+        long c = hashers[b][0].hashBytesToLong(key) & ((1L << b) - 1);
+        return a ^ c;
+    }
+
+    private long resolve(byte[] key, long numResources, int r) {
+        long rNegative1 = 1L << (r - 1);
+        long mask = (1L << r) - 1;
+        Hasher64[] retryHashers = hashers[r - 1];
+        for (int i = 1; i <= MAX_RETRIES; i++) {
+            long e = retryHashers[i].hashBytesToLong(key) & mask;
+            if (e < rNegative1) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return fliphashPow2(key, r - 1);
+    }
+
+    /**
+     * Maps a 64-bit key consistently to a bucket in {@code [0, numResources)}.
+     * <p>
+     * The key is hashed directly as eight bytes, so numeric identifiers and IPv4 addresses can
+     * be routed without building a string.
+     * </p>
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    @Override
+    public long fliphash(long key, long numResources) {
+        int r = bitLength(numResources);
+        long d = fliphashPow2(key, r);
+        return d < numResources ? d : resolve(key, numResources, r);
+    }
+
+    private long fliphashPow2(long key, int twoPower) {
+        long a = hashers[0][0].hashLongToLong(key) & ((1L << twoPower) - 1);
+        int b = highestBit(a);
+        long c = hashers[b][0].hashLongToLong(key) & ((1L << b) - 1);
+        return a ^ c;
+    }
+
+    private long resolve(long key, long numResources, int r) {
+        long rNegative1 = 1L << (r - 1);
+        long mask = (1L << r) - 1;
+        Hasher64[] retryHashers = hashers[r - 1];
+        for (int i = 1; i <= MAX_RETRIES; i++) {
+            long e = retryHashers[i].hashLongToLong(key) & mask;
+            if (e < rNegative1) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return fliphashPow2(key, r - 1);
+    }
+
+    /**
+     * Returns whether a 64-bit key changes bucket when the number of resources changes.
+     * <p>
+     * FlipHash only moves keys into added buckets or out of removed ones, so a key moves exactly
+     * when its bucket under the larger count is at or above the smaller count, and a single
+     * lookup suffices.
+     * </p>
+     *
+     * @param key       the input key.
+     * @param numBefore the number of buckets before the change, at least one.
+     * @param numAfter  the number of buckets after the change, at least one.
+     * @return true if {@code fliphash(key, numBefore) != fliphash(key, numAfter)}.
+     * @throws IllegalArgumentException if either count is not positive.
+     */
+    public boolean isMoved(long key, long numBefore, long numAfter) {
+        long smaller = Math.min(numBefore, numAfter);
+        bitLength(smaller);
+        return fliphash(key, Math.max(numBefore, numAfter)) >= smaller;
+    }
+
+    /**
+     * Maps a 128-bit key, such as an IPv6 address, consistently to a bucket in
+     * {@code [0, numResources)}.
+     *
+     * @param hi           the upper 64 bits of the key.
+     * @param lo           the lower 64 bits of the key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    @Override
+    public long fliphash(long hi, long lo, long numResources) {
+        int r = bitLength(numResources);
+        long d = fliphashPow2(hi, lo, r);
+        return d < numResources ? d : resolve(hi, lo, numResources, r);
+    }
+
+    private long fliphashPow2(long hi, long lo, int twoPower) {
+        long a = hashers[0][0].hashLongLongToLong(hi, lo) & ((1L << twoPower) - 1);
+        int b = highestBit(a);
+        long c = hashers[b][0].hashLongLongToLong(hi, lo) & ((1L << b) - 1);
+        return a ^ c;
+    }
+
+    private long resolve(long hi, long lo, long numResources, int r) {
+        long rNegative1 = 1L << (r - 1);
+        long mask = (1L << r) - 1;
+        Hasher64[] retryHashers = hashers[r - 1];
+        for (int i = 1; i <= MAX_RETRIES; i++) {
+            long e = retryHashers[i].hashLongLongToLong(hi, lo) & mask;
+            if (e < rNegative1) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return fliphashPow2(hi, lo, r - 1);
+    }
+
+    /**
+     * Maps a batch of 64-bit keys to buckets in {@code [0, numResources)}.
+     * <p>
+     * Produces the same buckets as calling {@link #fliphash(long, long)} per key. The batch is
+     * processed in passes: first the power-of-two draw for every key, then its bit flip, and
+     * finally the scalar retry loop for the few keys whose draw fell out of range. The first two
+     * passes are straight-line loops without data-dependent exits, which lets the JIT unroll
+     * them and overlap the hash computations of neighbouring keys. For XXH3-64 engines the
+     * first two passes run on the Vector API when it is available; see
+     * {@link #isVectorKernelEnabled()}.
+     * </p>
+     *
+     * @param keys         the input keys.
+     * @param numResources the number of buckets, at least one.
+     * @param buckets      receives the bucket of {@code keys[i]} at index {@code i}; must be at
+     *                     least as long as {@code keys}.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    public void fliphash(long[] keys, long numResources, long[] buckets) {
+        int length = checkBatch(keys.length, buckets.length);
+        int r = bitLength(numResources);
+        if (xxh3Hashers && VECTOR_KERNEL != null && r <= MAX_VECTOR_BITS) {
+            VECTOR_KERNEL.fliphashPow2(keys, length, r, buckets);
+        } else {
+            long mask = (1L << r) - 1;
+            Hasher64 first = hashers[0][0];
+            for (int i = 0; i < length; i++) {
+                buckets[i] = first.hashLongToLong(keys[i]) & mask;
+            }
+            for (int i = 0; i < length; i++) {
+                long a = buckets[i];
+                int b = highestBit(a);
+                buckets[i] = a ^ (hashers[b][0].hashLongToLong(keys[i]) & ((1L << b) - 1));
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (buckets[i] >= numResources) {
+                buckets[i] = resolve(keys[i], numResources, r);
+            }
+        }
+    }
+
+    /**
+     * Maps a batch of 64-bit keys to buckets in {@code [0, numResources)}, writing
+     * {@code int} results.
+     *
+     * @param keys         the input keys.
+     * @param numResources the number of buckets, at least one.
+     * @param buckets      receives the bucket of {@code keys[i]} at index {@code i}; must be at
+     *                     least as long as {@code keys}.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     * @see #fliphash(long[], long, long[])
+     */
+    public void fliphash(long[] keys, int numResources, int[] buckets) {
+        int length = checkBatch(keys.length, buckets.length);
+        int r = bitLength(numResources);
+        int mask = (int) ((1L << r) - 1);
+        Hasher64 first = hashers[0][0];
+        for (int i = 0; i < length; i++) {
+            buckets[i] = (int) first.hashLongToLong(keys[i]) & mask;
+        }
+        for (int i = 0; i < length; i++) {
+            int a = buckets[i];
+            int b = highestBit(a);
+            buckets[i] = a ^ ((int) hashers[b][0].hashLongToLong(keys[i]) & ((1 << b) - 1));
+        }
+        for (int i = 0; i < length; i++) {
+            if (buckets[i] >= numResources) {
+                buckets[i] = (int) resolve(keys[i], numResources, r);
+            }
+        }
+    }
+
+    /**
+     * Maps a batch of byte keys to buckets in {@code [0, numResources)}.
+     *
+     * @param keys         the input keys.
+     * @param numResources the number of buckets, at least one.
+     * @param buckets      receives the bucket of {@code keys[i]} at index {@code i}; must be at
+     *                     least as long as {@code keys}.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     * @see #fliphash(long[], long, long[])
+     */
+    public void fliphash(byte[][] keys, long numResources, long[] buckets) {
+        int length = checkBatch(keys.length, buckets.length);
+        int r = bitLength(numResources);
+        long mask = (1L << r) - 1;
+        Hasher64 first = hashers[0][0];
+        for (int i = 0; i < length; i++) {
+            buckets[i] = first.hashBytesToLong(keys[i]) & mask;
+        }
+        for (int i = 0; i < length; i++) {
+            long a = buckets[i];
+            int b = highestBit(a);
+            buckets[i] = a ^ (hashers[b][0].hashBytesToLong(keys[i]) & ((1L << b) - 1));
+        }
+        for (int i = 0; i < length; i++) {
+            if (buckets[i] >= numResources) {
+                buckets[i] = resolve(keys[i], numResources, r);
+            }
+        }
+    }
+
+    /**
+     * Maps a batch of character keys to buckets in {@code [0, numResources)}.
+     *
+     * @param keys         the input keys.
+     * @param numResources the number of buckets, at least one.
+     * @param buckets      receives the bucket of {@code keys[i]} at index {@code i}; must be at
+     *                     least as long as {@code keys}.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     * @see #fliphash(long[], long, long[])
+     */
+    public void fliphash(CharSequence[] keys, long numResources, long[] buckets) {
+        int length = checkBatch(keys.length, buckets.length);
+        int r = bitLength(numResources);
+        long mask = (1L << r) - 1;
+        Hasher64 first = hashers[0][0];
+        for (int i = 0; i < length; i++) {
+            buckets[i] = first.hashCharsToLong(keys[i]) & mask;
+        }
+        for (int i = 0; i < length; i++) {
+            long a = buckets[i];
+            int b = highestBit(a);
+            buckets[i] = a ^ (hashers[b][0].hashCharsToLong(keys[i]) & ((1L << b) - 1));
+        }
+        for (int i = 0; i < length; i++) {
+            if (buckets[i] >= numResources) {
+                buckets[i] = resolve(keys[i], numResources, r);
+            }
+        }
+    }
+
+    /**
+     * Finds the keys of a batch that change bucket when the number of resources changes.
+     * <p>
+     * Uses the same rule as {@link #isMoved(long, long, long)}, but skips most of the work for
+     * keys that cannot move. The bit flip keeps the highest set bit of the first draw {@code a},
+     * so the power-of-two bucket stays below {@code a | (2^highestBit(a) - 1)}; when that is
+     * below the smaller count the key keeps its bucket and its second hash is never computed.
+     * Candidates are collected without branching, so the skip costs no mispredictions. For
+     * XXH3-64 engines with the vector kernel loaded, hashing every key on the kernel is cheaper
+     * than skipping and is used instead.
+     * </p>
+     *
+     * @param keys      the input keys.
+     * @param numBefore the number of buckets before the change, at least one.
+     * @param numAfter  the number of buckets after the change, at least one.
+     * @param buckets   scratch space, at least as long as {@code keys}; on return holds the
+     *                  bucket under the larger count at every moved index.
+     * @param moved     receives the indices of the moved keys in ascending order; must be at
+     *                  least as long as {@code keys}.
+     * @return the number of moved keys.
+     * @throws IllegalArgumentException if either count is not positive.
+     */
+    public int movedKeys(long[] keys, long numBefore, long numAfter, long[] buckets, int[] moved) {
+        int length = checkBatch(keys.length, Math.min(buckets.length, moved.length));
+        long smaller = Math.min(numBefore, numAfter);
+        long larger = Math.max(numBefore, numAfter);
+        bitLength(smaller);
+        int r = bitLength(larger);
+        int count = 0;
+        if (xxh3Hashers && VECTOR_KERNEL != null && r <= MAX_VECTOR_BITS) {
+            VECTOR_KERNEL.fliphashPow2(keys, length, r, buckets);
+            for (int i = 0; i < length; i++) {
+                long d = buckets[i];
+                if (d >= larger) {
+                    d = resolve(keys[i], larger, r);
+                    buckets[i] = d;
+                }
+                moved[count] = i;
+                count += d >= smaller ? 1 : 0;
+            }
+            return count;
+        }
+        long mask = (1L << r) - 1;
+        Hasher64 first = hashers[0][0];
+        for (int i = 0; i < length; i++) {
+            long a = first.hashLongToLong(keys[i]) & mask;
+            buckets[i] = a;
+            moved[count] = i;
+            count += (a | ((1L << highestBit(a)) - 1)) >= smaller ? 1 : 0;
+        }
+        int candidates = count;
+        count = 0;
+        for (int j = 0; j < candidates; j++) {
+            int i = moved[j];
+            long a = buckets[i];
+            int b = highestBit(a);
+            long d = a ^ (hashers[b][0].hashLongToLong(keys[i]) & ((1L << b) - 1));
+            if (d >= larger) {
+                d = resolve(keys[i], larger, r);
+            }
+            buckets[i] = d;
+            moved[count] = i;
+            count += d >= smaller ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Checks that a batch output array can hold one result per key.
+     *
+     * @param numKeys    the number of keys.
+     * @param numBuckets the length of the output array.
+     * @return the number of keys.
+     * @throws IllegalArgumentException if the output array is too short.
+     */
+    private static int checkBatch(int numKeys, int numBuckets) {
+        if (numBuckets < numKeys) {
+            throw new IllegalArgumentException(
+                    "Output holds " + numBuckets + " buckets but " + numKeys + " keys were given");
+        }
+        return numKeys;
+    }
+
+    /**
+     * Returns the number of bits needed to represent the resource count.
+     *
+     * @param numResources the number of buckets.
+     * @return the bit length of {@code numResources}.
+     * @throws IllegalArgumentException if {@code numResources} is not positive.
+     */
+    static int bitLength(long numResources) {
+        if (numResources < 1) {
+            throw new IllegalArgumentException("Number of resources must be positive: " + numResources);
+        }
+        return 64 - Long.numberOfLeadingZeros(numResources);
+    }
+
+    /**
+     * Returns the position of the highest set bit, treating 0 like 1.
+     *
+     * @param value a non-negative value.
+     * @return {@code floor(log2(max(value, 1)))}.
+     */
+    static int highestBit(long value) {
+        return 63 - Long.numberOfLeadingZeros(value | 1);
+    }
+}
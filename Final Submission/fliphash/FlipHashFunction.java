@@ -0,0 +1,49 @@
+package fliphash;
+
+/**
+ * A consistent range-hashing function that maps keys to buckets {@code [0, numResources)}.
+ * <p>
+ * Implementations must return the same bucket for the same key and resource count, spread keys
+ * uniformly over the buckets, and move only the keys of the last bucket when the resource count
+ * shrinks by one.
+ * </p>
+ */
+public interface FlipHashFunction {
+
+    /**
+     * Maps a character key to a bucket.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     */
+    long fliphash(CharSequence key, long numResources);
+
+    /**
+     * Maps a byte key to a bucket.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     */
+    long fliphash(byte[] key, long numResources);
+
+    /**
+     * Maps a 64-bit key to a bucket.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     */
+    long fliphash(long key, long numResources);
+
+    /**
+     * Maps a 128-bit key to a bucket.
+     *
+     * @param hi           the upper 64 bits of the key.
+     * @param lo           the lower 64 bits of the key.
+     * @param numResources the number of buckets, at least one.
+     * @return the bucket index.
+     */
+    long fliphash(long hi, long lo, long numResources);
+}
@@ -0,0 +1,22 @@
+package fliphash;
+
+/**
+ * Computes the power-of-two FlipHash step for a batch of 64-bit keys.
+ * <p>
+ * Implementations must produce exactly the same values as the scalar XXH3-64 path of
+ * {@link FlipHashEngine}; the engine resolves out-of-range results afterwards.
+ * </p>
+ */
+public interface FlipHashPow2Kernel {
+
+    /**
+     * Writes the bucket in {@code [0, 2^twoPower)} of {@code keys[i]} to {@code buckets[i]} for
+     * every {@code i < length}.
+     *
+     * @param keys     the input keys.
+     * @param length   the number of keys to process.
+     * @param twoPower the power to which 2 is raised, at most 53.
+     * @param buckets  receives the power-of-two buckets.
+     */
+    void fliphashPow2(long[] keys, int length, int twoPower, long[] buckets);
+}
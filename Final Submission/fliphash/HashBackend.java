@@ -0,0 +1,85 @@
+package fliphash;
+
+import fliphash.xxh3Java.hashing.Hasher64;
+import fliphash.xxh3Java.hashing.Hashing;
+
+/**
+ * The seedable 64-bit hash functions bundled with FlipHash.
+ * <p>
+ * The shared {@link FlipHashEngine} uses the one named by {@code -Dfliphash.hasher}, XXH3-64 by
+ * default. Only XXH3-64 hashes long keys without allocating; the others hash them through a
+ * hash stream (see {@link FlipHashEngine#FlipHashEngine(HasherFactory)}).
+ * </p>
+ */
+public enum HashBackend implements HasherFactory {
+
+    XXH3_64 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.xxh3_64(seed);
+        }
+    },
+
+    KOMIHASH_4_3 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.komihash4_3(seed);
+        }
+    },
+
+    KOMIHASH_5_0 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.komihash5_0(seed);
+        }
+    },
+
+    WYHASH_FINAL_3 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.wyhashFinal3(seed);
+        }
+    },
+
+    WYHASH_FINAL_4 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.wyhashFinal4(seed);
+        }
+    },
+
+    FARMHASH_NA {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.farmHashNa(seed);
+        }
+    },
+
+    FARMHASH_UO {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.farmHashUo(seed);
+        }
+    },
+
+    POLYMURHASH_2_0 {
+        @Override
+        public Hasher64 create(long seed) {
+            return Hashing.polymurHash2_0(POLYMUR_TWEAK, seed);
+        }
+    };
+
+    /** Fixed tweak for PolymurHash; FlipHash only varies the seed. */
+    private static final long POLYMUR_TWEAK = 0L;
+
+    /**
+     * Looks up a backend by name, ignoring case and accepting {@code -} for {@code _}.
+     *
+     * @param name the backend name, for example {@code "komihash-5-0"}.
+     * @return the matching backend.
+     * @throws IllegalArgumentException if no backend has that name.
+     */
+    public static HashBackend fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,22 @@
+package fliphash;
+
+import fliphash.xxh3Java.hashing.Hasher64;
+
+/**
+ * Strategy that creates the seeded 64-bit hashers FlipHash draws from.
+ * <p>
+ * {@link FlipHashEngine} calls the factory once per seed at construction, so the factory itself
+ * does not need to be fast.
+ * </p>
+ */
+@FunctionalInterface
+public interface HasherFactory {
+
+    /**
+     * Creates a hasher for the given seed.
+     *
+     * @param seed the seed value.
+     * @return a hasher whose output depends on the seed.
+     */
+    Hasher64 create(long seed);
+}
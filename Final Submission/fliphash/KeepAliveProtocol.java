@@ -0,0 +1,20 @@
+package fliphash;
+
+/**
+ * Keep-alive protocol between the load balancer's connection pool and the backends.
+ * <p>
+ * A connection that starts with the {@value #INITIAL_MESSAGE} initial message (written with
+ * {@code writeUTF}, like the other initial messages) carries several requests one after the
+ * other. Each request is framed like a single request: the file name, the file size and the
+ * file bytes. Each response is a series of chunks, each an {@code int} length followed by that
+ * many bytes, ended by a zero length. Either side may close the connection between requests.
+ * </p>
+ */
+public final class KeepAliveProtocol {
+
+    /** Initial message that switches a backend connection to this protocol. */
+    public static final String INITIAL_MESSAGE = "keep-alive";
+
+    private KeepAliveProtocol() {
+    }
+}
@@ -0,0 +1,257 @@
+package LoadBalancer;
+
+import fliphash.KeepAliveProtocol;
+import fliphash.TerminalDisplayManager;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps connections to backends open so requests do not pay a TCP handshake each.
+ * <p>
+ * Every pooled connection starts with the {@value KeepAliveProtocol#INITIAL_MESSAGE} initial
+ * message, after which the backend serves requests on it one after the other (see
+ * {@link KeepAliveProtocol}). At most a fixed number of connections, idle or in
+ * use, are open to each backend; callers beyond that wait for one to be released. Idle
+ * connections are closed after a timeout by a background sweep, and are checked for a close
+ * by the backend before they are handed out.
+ * </p>
+ */
+public class BackendConnectionPool {
+
+    private final int maxPerBackend;
+    private final long idleTimeoutNanos;
+    private final long acquireTimeoutMillis;
+    private final Map<BackendManager.BackendInfo, BackendPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Starts the idle sweep on a daemon thread.
+     *
+     * @param maxPerBackend        the most open connections per backend.
+     * @param idleTimeoutMillis    how long a connection may stay idle before it is closed.
+     * @param acquireTimeoutMillis how long to wait for a connection when the limit is reached.
+     */
+    public BackendConnectionPool(int maxPerBackend, long idleTimeoutMillis, long acquireTimeoutMillis) {
+        this.maxPerBackend = maxPerBackend;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        Thread sweeper = new Thread(() -> sweepPeriodically(Math.max(idleTimeoutMillis / 2, 100)),
+                "backend-pool-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Borrows a connection to a backend, opening one if no idle connection is left.
+     *
+     * @param backend the backend.
+     * @return a blocking channel in keep-alive mode; must be given back with
+     *         {@link #release(BackendManager.BackendInfo, SocketChannel, boolean)}.
+     * @throws PoolExhaustedException if no connection is free in time.
+     * @throws IOException            if the backend cannot be reached.
+     */
+    public SocketChannel acquire(BackendManager.BackendInfo backend) throws IOException {
+        BackendPool pool;
+        while (true) {
+            pool = pools.computeIfAbsent(backend, b -> new BackendPool());
+            try {
+                if (!pool.permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new PoolExhaustedException("No free connection to backend " + backend);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for backend " + backend);
+            }
+            if (pools.get(backend) == pool) {
+                break;
+            }
+            // The sweep dropped the pool meanwhile; a held permit keeps the next one in place.
+            pool.permits.release();
+        }
+        try {
+            SocketChannel channel;
+            while ((channel = pool.pollIdle()) != null) {
+                if (isOpen(channel)) {
+                    return channel;
+                }
+                closeQuietly(channel);
+            }
+            return open(backend);
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back.
+     *
+     * @param backend  the backend the connection belongs to.
+     * @param channel  the connection.
+     * @param reusable whether the last request completed cleanly; otherwise the connection is
+     *                 closed, as its position in the stream is unknown.
+     */
+    public void release(BackendManager.BackendInfo backend, SocketChannel channel, boolean reusable) {
+        BackendPool pool = pools.get(backend);
+        if (reusable && pool != null && BackendManager.getRoutingTable().contains(backend)) {
+            pool.offerIdle(channel);
+        } else {
+            closeQuietly(channel);
+        }
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    private SocketChannel open(BackendManager.BackendInfo backend) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(backend.host, backend.port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            DataOutputStream dos = new DataOutputStream(channel.socket().getOutputStream());
+            dos.writeUTF(KeepAliveProtocol.INITIAL_MESSAGE);
+            dos.flush();
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that the backend has not closed an idle connection, without blocking.
+     *
+     * @param channel an idle blocking channel.
+     * @return true if the connection can be used.
+     */
+    private static boolean isOpen(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            // An idle connection has nothing to read; -1 means closed, data means out of sync.
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void sweepPeriodically(long intervalMillis) {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Map.Entry<BackendManager.BackendInfo, BackendPool> entry : pools.entrySet()) {
+                BackendPool pool = entry.getValue();
+                boolean registered = BackendManager.getRoutingTable().contains(entry.getKey());
+                int closed = pool.closeIdle(now - idleTimeoutNanos, !registered);
+                if (closed > 0 && !registered) {
+                    TerminalDisplayManager.addLog("Closed " + closed + " pooled connections to removed backend "
+                            + entry.getKey());
+                }
+                // Drop the pool of a removed backend once no connection is borrowed from it.
+                if (!registered && pool.permits.tryAcquire(maxPerBackend)) {
+                    pools.remove(entry.getKey(), pool);
+                    pool.closeIdle(now, true);
+                    pool.permits.release(maxPerBackend);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore cleanup exceptions.
+        }
+    }
+
+    /**
+     * Thrown when every connection to a backend stays busy for the whole acquire timeout.
+     */
+    public static class PoolExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         *
+         * @param message the detail message.
+         */
+        public PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Idle connections and open-connection permits of one backend.
+     * <p>
+     * Guarded by a {@link ReentrantLock} rather than {@code synchronized}, so virtual threads
+     * waiting for it are not pinned.
+     * </p>
+     */
+    private final class BackendPool {
+        final Semaphore permits = new Semaphore(maxPerBackend);
+        private final ReentrantLock lock = new ReentrantLock();
+        /** Idle connections, most recently used first, with the time they became idle. */
+        private final ArrayDeque<SocketChannel> idle = new ArrayDeque<>();
+        private final ArrayDeque<Long> idleSince = new ArrayDeque<>();
+
+        SocketChannel pollIdle() {
+            lock.lock();
+            try {
+                idleSince.pollFirst();
+                return idle.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void offerIdle(SocketChannel channel) {
+            lock.lock();
+            try {
+                idle.addFirst(channel);
+                idleSince.addFirst(System.nanoTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes the connections that became idle before the given time.
+         *
+         * @param idleBefore the cut-off {@link System#nanoTime()} value.
+         * @param all        whether to close every idle connection regardless of age.
+         * @return the number of closed connections.
+         */
+        int closeIdle(long idleBefore, boolean all) {
+            lock.lock();
+            try {
+                int closed = 0;
+                // The oldest connections are at the end of the deques.
+                Iterator<SocketChannel> channels = idle.descendingIterator();
+                Iterator<Long> times = idleSince.descendingIterator();
+                while (channels.hasNext() && (times.next() - idleBefore < 0 || all)) {
+                    closeQuietly(channels.next());
+                    channels.remove();
+                    times.remove();
+                    closed++;
+                }
+                return closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,28 +1,298 @@
 package LoadBalancer;
 
 import fliphash.TerminalDisplayManager;
-import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.SplittableRandom;
 
 /**
  * Periodically checks the health of registered backend servers.
+ * <p>
+ * All backends are probed in parallel from one thread with one {@link Selector}: a probe
+ * connects without blocking, sends the {@code health check} message and expects the backend's
+ * {@code OK}, and fails if that takes longer than the probe timeout. How long a sweep takes
+ * therefore does not depend on the number of backends or on how many of them hang.
+ * </p>
+ * <p>
+ * Each backend has its own schedule. A healthy backend is probed at an interval that starts
+ * at {@code lb.health.intervalMs} and grows after every success up to
+ * {@code lb.health.maxIntervalMs}, with random jitter so probes do not synchronize. A failed
+ * probe makes the backend suspect: it is probed again after the short
+ * {@code lb.health.suspectIntervalMs}, and removed after {@code lb.health.failures} failures
+ * in a row. A dead backend is thus removed within {@link #getDetectionBoundMillis()}, however
+ * many backends there are. See {@link LoadBalancerConfig} for the settings.
+ * </p>
  */
 public class BackendHealthChecker implements Runnable {
 
+    private static final byte[] REQUEST = utf("health check");
+    private static final byte[] RESPONSE = utf("OK");
+
+    /** Intervals are spread uniformly over +/- this fraction. */
+    private static final double JITTER = 0.2;
+
+    /** Growth of a healthy backend's interval after each successful probe. */
+    private static final double BACKOFF = 1.5;
+
+    /** Longest wait before the routing table is checked for new backends. */
+    private static final long MEMBERSHIP_POLL_NANOS = 100_000_000L;
+
+    private final long intervalNanos;
+    private final long maxIntervalNanos;
+    private final long suspectIntervalNanos;
+    private final long timeoutNanos;
+    private final int failureThreshold;
+
+    private final SplittableRandom random = new SplittableRandom();
+    private final Map<BackendManager.BackendInfo, Target> targets = new HashMap<>();
+    // Targets by the time of their next event: the next probe, or the deadline of a running one.
+    private final PriorityQueue<Target> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+    private long tableVersion = -1;
+
+    /**
+     * Constructor with the default settings.
+     */
+    public BackendHealthChecker() {
+        this(new LoadBalancerConfig(new Properties()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param config the probe intervals, timeout and failure threshold.
+     */
+    public BackendHealthChecker(LoadBalancerConfig config) {
+        this.intervalNanos = config.getHealthIntervalMillis() * 1_000_000L;
+        this.maxIntervalNanos = config.getHealthMaxIntervalMillis() * 1_000_000L;
+        this.suspectIntervalNanos = config.getHealthSuspectIntervalMillis() * 1_000_000L;
+        this.timeoutNanos = config.getHealthTimeoutMillis() * 1_000_000L;
+        this.failureThreshold = config.getHealthFailures();
+    }
+
+    /**
+     * Returns the longest time between a backend dying and its removal: the longest jittered
+     * interval and probe timeout, plus a suspect interval and probe timeout for every further
+     * failure needed.
+     *
+     * @return the detection bound in milliseconds.
+     */
+    public long getDetectionBoundMillis() {
+        double bound = maxIntervalNanos * (1 + JITTER) + timeoutNanos
+                + (failureThreshold - 1) * (suspectIntervalNanos * (1 + JITTER) + timeoutNanos);
+        return (long) Math.ceil(bound / 1_000_000);
+    }
+
     @Override
     public void run() {
-        while (true) {
+        try (Selector selector = Selector.open()) {
+            TerminalDisplayManager.addLog("Health checker started; dead backends are removed within "
+                    + getDetectionBoundMillis() + " ms");
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                syncMembership(now);
+                while (!schedule.isEmpty() && schedule.peek().due - now <= 0) {
+                    Target target = schedule.poll();
+                    if (target.channel != null) {
+                        target.fail(now, "no response within " + timeoutNanos / 1_000_000 + " ms");
+                    } else {
+                        target.start(selector, now);
+                    }
+                }
+                long wait = MEMBERSHIP_POLL_NANOS;
+                if (!schedule.isEmpty()) {
+                    wait = Math.min(wait, schedule.peek().due - now);
+                }
+                selector.select(Math.max(1, wait / 1_000_000));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Target) key.attachment()).handle(key, System.nanoTime());
+                }
+            }
+        } catch (IOException e) {
+            TerminalDisplayManager.addLog("Backend health check error: " + e.getMessage());
+        }
+        for (Target target : targets.values()) {
+            target.closeChannel();
+        }
+    }
+
+    /**
+     * Starts tracking new backends and stops tracking removed ones. The first probe of a new
+     * backend is placed at random within one interval, so backends registered together are
+     * not probed together.
+     */
+    private void syncMembership(long now) {
+        RoutingTable table = BackendManager.getRoutingTable();
+        if (table.getVersion() == tableVersion) {
+            return;
+        }
+        tableVersion = table.getVersion();
+        for (BackendManager.BackendInfo backend : table.asList()) {
+            if (!targets.containsKey(backend)) {
+                Target target = new Target(backend);
+                target.due = now + (long) (random.nextDouble() * intervalNanos);
+                targets.put(backend, target);
+                schedule.add(target);
+            }
+        }
+        Iterator<Target> iterator = targets.values().iterator();
+        while (iterator.hasNext()) {
+            Target target = iterator.next();
+            if (!table.contains(target.backend)) {
+                target.closeChannel();
+                schedule.remove(target);
+                iterator.remove();
+            }
+        }
+    }
+
+    private long jittered(long nanos) {
+        return (long) (nanos * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+    }
+
+    /**
+     * Health state and running probe of one backend.
+     */
+    private final class Target {
+        final BackendManager.BackendInfo backend;
+        final InetSocketAddress address;
+        long due;
+        long interval = intervalNanos;
+        int failures;
+        SocketChannel channel;
+        ByteBuffer request;
+        ByteBuffer response;
+
+        Target(BackendManager.BackendInfo backend) {
+            this.backend = backend;
+            this.address = new InetSocketAddress(backend.host, backend.port);
+        }
+
+        /**
+         * Starts a probe; it is failed if it is still running at its deadline.
+         */
+        void start(Selector selector, long now) {
+            due = now + timeoutNanos;
+            schedule.add(this);
             try {
-                TimeUnit.SECONDS.sleep(3);
-            } catch (InterruptedException e) {
-                TerminalDisplayManager.addLog("Backend health check interrupted: " + e.getMessage());
-                break;
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                request = ByteBuffer.wrap(REQUEST);
+                response = ByteBuffer.allocate(RESPONSE.length);
+                boolean connected = channel.connect(address);
+                channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                fail(now, e.getMessage());
+            }
+        }
+
+        /**
+         * Advances the probe on a ready key.
+         */
+        void handle(SelectionKey key, long now) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                if (key.isWritable()) {
+                    channel.write(request);
+                    if (!request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+                if (key.isReadable()) {
+                    if (channel.read(response) < 0) {
+                        fail(now, "connection closed");
+                    } else if (!response.hasRemaining()) {
+                        if (Arrays.equals(response.array(), RESPONSE)) {
+                            succeed(now);
+                        } else {
+                            fail(now, "unexpected response");
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                fail(now, e.getMessage());
+            }
+        }
+
+        void succeed(long now) {
+            finish();
+            if (failures > 0) {
+                TerminalDisplayManager.addLog("Backend " + backend + " healthy again");
+                failures = 0;
+                interval = intervalNanos;
+            } else {
+                interval = Math.min(maxIntervalNanos, (long) (interval * BACKOFF));
             }
-            for (BackendManager.BackendInfo backend : BackendManager.getBackends()) {
-                if (!BackendManager.isBackendActive(backend)) {
-                    BackendManager.removeBackend(backend);
-                    TerminalDisplayManager.addLog("Backend removed (inactive): " + backend);
+            due = now + jittered(interval);
+            schedule.add(this);
+        }
+
+        void fail(long now, String reason) {
+            finish();
+            failures++;
+            if (failures >= failureThreshold) {
+                targets.remove(backend);
+                if (BackendManager.removeBackend(backend)) {
+                    TerminalDisplayManager.addLog("Backend removed (inactive): " + backend + " (" + reason + ")");
                 }
+                return;
             }
+            TerminalDisplayManager.addLog("Backend " + backend + " suspected: " + reason);
+            due = now + jittered(suspectIntervalNanos);
+            schedule.add(this);
+        }
+
+        /**
+         * Ends the running probe and takes the target off the schedule.
+         */
+        void finish() {
+            closeChannel();
+            schedule.remove(this);
+        }
+
+        void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Ignore cleanup exceptions.
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes a message the way {@link DataOutputStream#writeUTF(String)} does.
+     */
+    private static byte[] utf(String message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return bytes.toByteArray();
     }
 }
@@ -6,46 +6,209 @@ import java.net.Socket;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages the list of backend servers.
+ * <p>
+ * The backends are kept in an immutable {@link MembershipState}, which holds the
+ * {@link RoutingTable} and the ejected backends. Every membership change is a
+ * {@link MembershipChange} that builds a new state, published with a compare-and-set, so
+ * readers never lock and always see a consistent snapshot.
+ * </p>
+ * <p>
+ * Each backend has a weight, its number of routing slots. A weight set in the configuration
+ * ({@code lb.weights}) is fixed; other backends start at weight 1 and follow the capacity they
+ * report with their metrics.
+ * </p>
+ * <p>
+ * A backend ejected by the {@link OutlierDetector} is out of the table until it is readmitted;
+ * registrations and metrics reports do not add it back meanwhile.
+ * </p>
+ * <p>
+ * With several load balancers, an {@link EpochLog} is installed: changes are then proposed to
+ * the log, which replicates them to the other load balancers and publishes the state they
+ * all converge on.
+ * </p>
  */
 public class BackendManager {
 
-    // Thread-safe list to store backend servers.
-    private static final List<BackendInfo> backendServers = new CopyOnWriteArrayList<>();
+    // The current backends and ejections; replaced as a whole on every change.
+    private static final AtomicReference<MembershipState> state = new AtomicReference<>(MembershipState.EMPTY);
+
+    // Weights fixed by the configuration; they override reported capacity.
+    private static volatile Map<BackendInfo, Integer> configuredWeights = Map.of();
+
+    // Replicates changes between load balancers; null for a single load balancer.
+    private static volatile EpochLog epochLog;
+
+    /**
+     * Sets the configured backend weights, applied when a backend registers. Backends already
+     * registered are reweighted.
+     *
+     * @param weights the weight of each configured backend, in {@code [1, RoutingTable.MAX_WEIGHT]}.
+     */
+    public static void setConfiguredWeights(Map<BackendInfo, Integer> weights) {
+        configuredWeights = Map.copyOf(weights);
+        for (Map.Entry<BackendInfo, Integer> entry : configuredWeights.entrySet()) {
+            if (getRoutingTable().contains(entry.getKey())) {
+                setWeight(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Sends all later changes through an epoch log shared with other load balancers. Call it
+     * before any backend is registered; the log's state replaces the local one.
+     *
+     * @param log the epoch log.
+     */
+    public static void setEpochLog(EpochLog log) {
+        epochLog = log;
+        log.publishState();
+    }
 
     /**
-     * Adds a new backend to the list.
+     * Adds a new backend to the list, with its configured weight or weight 1. An ejected
+     * backend is not added.
      *
      * @param backend the backend to add.
      */
     public static void addBackend(BackendInfo backend) {
-        if (!backendServers.contains(backend)) {
-            backendServers.add(backend);
-            TerminalDisplayManager.addLog("Registered backend: " + backend);
+        int weight = configuredWeights.getOrDefault(backend, 1);
+        if (update(MembershipChange.of(MembershipChange.Type.ADD, backend, weight))) {
+            TerminalDisplayManager.addLog("Registered backend: " + backend + " (weight " + weight + ")");
+        }
+    }
+
+    /**
+     * Sets the weight of a registered backend from the capacity it reports, unless its weight
+     * is configured. The capacity is clamped to {@code [1, RoutingTable.MAX_WEIGHT]}.
+     *
+     * @param backend  the backend.
+     * @param capacity the reported capacity.
+     */
+    public static void reportCapacity(BackendInfo backend, int capacity) {
+        if (!configuredWeights.containsKey(backend)) {
+            setWeight(backend, Math.max(1, Math.min(RoutingTable.MAX_WEIGHT, capacity)));
+        }
+    }
+
+    /**
+     * Sets the weight of a registered backend; unregistered backends are ignored.
+     */
+    private static void setWeight(BackendInfo backend, int weight) {
+        if (update(MembershipChange.of(MembershipChange.Type.WEIGHT, backend, weight))) {
+            TerminalDisplayManager.addLog("Backend weight changed: " + backend + " (weight " + weight + ")");
         }
     }
 
     /**
-     * Removes a backend from the list.
+     * Removes a backend from the list, or from the ejected backends if it is ejected.
      *
      * @param backend the backend to remove.
+     * @return true if the backend was registered or ejected and is now removed.
+     */
+    public static boolean removeBackend(BackendInfo backend) {
+        return update(MembershipChange.of(MembershipChange.Type.REMOVE, backend, 0));
+    }
+
+    /**
+     * Takes a backend out of the list until {@link #readmitBackend(BackendInfo)} is called.
+     *
+     * @param backend the backend to eject.
+     * @return true if the backend was registered and is now ejected.
+     */
+    public static boolean ejectBackend(BackendInfo backend) {
+        return update(MembershipChange.of(MembershipChange.Type.EJECT, backend, 0));
+    }
+
+    /**
+     * Returns an ejected backend to the list with the weight it had.
+     *
+     * @param backend the ejected backend.
+     */
+    public static void readmitBackend(BackendInfo backend) {
+        if (update(MembershipChange.of(MembershipChange.Type.READMIT, backend, 0))) {
+            TerminalDisplayManager.addLog("Registered backend: " + backend
+                    + " (weight " + getRoutingTable().getWeight(backend) + ")");
+        }
+    }
+
+    /**
+     * Returns whether a backend is ejected.
+     *
+     * @param backend the backend.
+     * @return true if the backend is ejected.
+     */
+    public static boolean isEjected(BackendInfo backend) {
+        return state.get().isEjected(backend);
+    }
+
+    /**
+     * Returns the ejected backends.
+     *
+     * @return an unmodifiable snapshot of the ejected backends and the weights they had.
+     */
+    public static Map<BackendInfo, Integer> getEjected() {
+        return state.get().getEjected();
+    }
+
+    /**
+     * Returns the current routing table. Route a request with a single call, so the backend
+     * count and the chosen backend come from the same snapshot.
+     *
+     * @return the current snapshot of the registered backends.
+     */
+    public static RoutingTable getRoutingTable() {
+        return state.get().getTable();
+    }
+
+    /**
+     * Applies a change locally, or proposes it to the epoch log.
+     *
+     * @return true if the change altered the membership.
+     */
+    private static boolean update(MembershipChange change) {
+        EpochLog log = epochLog;
+        if (log != null) {
+            return log.propose(change);
+        }
+        MembershipState current;
+        MembershipState updated;
+        do {
+            current = state.get();
+            updated = current.apply(change);
+        } while (updated != current && !state.compareAndSet(current, updated));
+        if (updated == current) {
+            return false;
+        }
+        InFlightRequests.retainBackends(updated.getTable());
+        return true;
+    }
+
+    /**
+     * Publishes the state replayed by the epoch log. Called by the log only, one call at a
+     * time. A replay can produce a lower table version than the current one, so the table is
+     * renumbered to keep versions increasing.
+     *
+     * @param replayed the state the log's entries give.
      */
-    public static void removeBackend(BackendInfo backend) {
-        backendServers.remove(backend);
-        TerminalDisplayManager.addLog("Backend removed: " + backend);
+    static void publish(MembershipState replayed) {
+        long current = state.get().getTable().getVersion();
+        state.set(replayed.withVersion(Math.max(replayed.getTable().getVersion(), current + 1)));
+        InFlightRequests.retainBackends(replayed.getTable());
     }
 
     /**
      * Returns the current list of registered backends.
      *
-     * @return a thread-safe list of BackendInfo.
+     * @return an unmodifiable snapshot of the backends.
      */
     public static List<BackendInfo> getBackends() {
-        return backendServers;
+        return getRoutingTable().asList();
     }
 
     /**
@@ -89,7 +252,8 @@ public class BackendManager {
 
         @Override
         public int hashCode() {
-            return Objects.hash(host, port);
+            // Computed without the varargs array of Objects.hash, as it is called per request.
+            return 31 * Objects.hashCode(host) + port;
         }
 
         @Override
@@ -0,0 +1,49 @@
+package LoadBalancer;
+
+import java.net.InetAddress;
+
+/**
+ * Chooses the backend for a client connection.
+ * <p>
+ * Implementations route against the {@link RoutingTable} they are given, so the choice always
+ * belongs to one membership snapshot. They are called concurrently from every client handler
+ * and must be thread-safe.
+ * </p>
+ */
+public interface BackendSelector {
+
+    /**
+     * Selects the backend for a client.
+     *
+     * @param client the client address.
+     * @param table  the routing table, with at least one backend.
+     * @return the backend.
+     */
+    BackendManager.BackendInfo select(InetAddress client, RoutingTable table);
+
+    /**
+     * Creates the selector chosen by the configuration.
+     *
+     * @param config the load balancer configuration.
+     * @return the selector.
+     */
+    static BackendSelector fromConfig(LoadBalancerConfig config) {
+        BackendSelector selector;
+        switch (config.getRouting()) {
+            case BOUNDED:
+                selector = new BoundedLoadSelector(config.getBoundedLoadFactor(), MetricsReceiver::getReportedClientCount);
+                break;
+            case TWO_CHOICES:
+                selector = new TwoChoicesSelector(InFlightRequests::get);
+                break;
+            default:
+                selector = FlipHashSelector.INSTANCE;
+                break;
+        }
+        if (config.getHotKeyReplicas() > 1) {
+            HotKeyDetector detector = new HotKeyDetector(config.getHotKeyThreshold(), config.getHotKeyDecayMillis());
+            selector = new HotKeySelector(selector, detector, config.getHotKeyReplicas());
+        }
+        return selector;
+    }
+}
@@ -0,0 +1,78 @@
+package LoadBalancer;
+
+import java.net.InetAddress;
+import java.util.function.ToIntFunction;
+
+/**
+ * Consistent hashing with bounded loads on top of FlipHash.
+ * <p>
+ * Each backend may hold at most {@code ceil(factor * (totalLoad + 1) * weight / totalWeight)}
+ * requests, its weighted share of the current load (counting the new request) times the load
+ * factor. A client goes to its FlipHash backend unless that backend is at its bound; it then
+ * overflows along a deterministic probe sequence that reseeds FlipHash with the client key
+ * (see {@link FlipHashSelector#probe(byte[], RoutingTable, int)}), so clients of a hot backend
+ * spread over the others instead of all moving to the same neighbour, and a client overflows
+ * to the same backend every time the hot spot recurs. With a factor above 1 some backend is
+ * always below its bound; if none of the probes finds one, the least loaded probe relative to
+ * its weight is used.
+ * </p>
+ * <p>
+ * Loads come from a function supplied by the caller, such as the client counts the backends
+ * report with their metrics.
+ * </p>
+ */
+public final class BoundedLoadSelector implements BackendSelector {
+
+    /** Most candidates tried before falling back to the least loaded one. */
+    private static final int MAX_PROBES = 16;
+
+    private final double factor;
+    private final ToIntFunction<BackendManager.BackendInfo> load;
+
+    /**
+     * Constructor.
+     *
+     * @param factor the load factor, greater than 1.
+     * @param load   the current load of a backend, never negative.
+     * @throws IllegalArgumentException if the factor is not greater than 1.
+     */
+    public BoundedLoadSelector(double factor, ToIntFunction<BackendManager.BackendInfo> load) {
+        if (!(factor > 1)) {
+            throw new IllegalArgumentException("Invalid load factor: " + factor);
+        }
+        this.factor = factor;
+        this.load = load;
+    }
+
+    @Override
+    public BackendManager.BackendInfo select(InetAddress client, RoutingTable table) {
+        long totalLoad = 0;
+        for (BackendManager.BackendInfo backend : table.asList()) {
+            totalLoad += load.applyAsInt(backend);
+        }
+        // Bound per unit of weight.
+        double bound = factor * (totalLoad + 1) / table.getTotalWeight();
+        byte[] address = client.getAddress();
+        BackendManager.BackendInfo leastLoaded = null;
+        double leastRatio = Double.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            BackendManager.BackendInfo candidate = FlipHashSelector.probe(address, table, probe);
+            int weight = table.getWeight(candidate);
+            int candidateLoad = load.applyAsInt(candidate);
+            if (candidateLoad < Math.ceil(bound * weight)) {
+                return candidate;
+            }
+            double ratio = candidateLoad / (double) weight;
+            if (ratio < leastRatio) {
+                leastRatio = ratio;
+                leastLoaded = candidate;
+            }
+        }
+        return leastLoaded;
+    }
+
+    @Override
+    public String toString() {
+        return "bounded loads (factor " + factor + ")";
+    }
+}
@@ -0,0 +1,154 @@
+package LoadBalancer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies data between channels without passing it through the Java heap.
+ * <p>
+ * When one side is a {@link FileChannel} the copy is delegated to
+ * {@link FileChannel#transferTo} or {@link FileChannel#transferFrom}, which the operating
+ * system can perform without user-space copies. Otherwise the data moves through a pooled
+ * direct buffer, which channels read into and write from directly; a heap array would be
+ * copied into a temporary direct buffer by the JDK on every call.
+ * </p>
+ * <p>
+ * The buffer adapts to the traffic: it doubles, up to {@value #MAX_BUFFER_SIZE} bytes, while
+ * reads keep filling it, and halves again after a run of small reads. Short messages therefore
+ * tie up little memory while bulk uploads are moved in few system calls.
+ * </p>
+ */
+public final class ChannelForwarder {
+
+    /** Smallest forwarding buffer. */
+    static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+    /** Largest forwarding buffer. */
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /** Most bytes moved per {@code transferTo}/{@code transferFrom} call. */
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    /** Consecutive reads below a quarter of the buffer after which it is halved. */
+    private static final int SHRINK_AFTER_SMALL_READS = 8;
+
+    /** Number of buffers of each size kept for reuse. */
+    private static final int POOLED_PER_SIZE = 64;
+
+    /** Buffer pools indexed by size class; class {@code i} holds {@code MIN << i} bytes. */
+    private static final DirectBufferPool[] POOLS = createPools();
+
+    private ChannelForwarder() {
+    }
+
+    /**
+     * Copies everything from the source to the target until the source reaches end of stream.
+     *
+     * @param in  the source channel.
+     * @param out the target channel.
+     * @return the number of bytes copied.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static long forward(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        return forward(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copies up to {@code maxBytes} bytes from the source to the target, stopping early if the
+     * source reaches end of stream. Both channels must be in blocking mode.
+     *
+     * @param in       the source channel.
+     * @param out      the target channel.
+     * @param maxBytes the most bytes to copy.
+     * @return the number of bytes copied.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static long forward(ReadableByteChannel in, WritableByteChannel out, long maxBytes) throws IOException {
+        if (in instanceof FileChannel) {
+            return transferTo((FileChannel) in, out, maxBytes);
+        }
+        if (out instanceof FileChannel) {
+            return transferFrom(in, (FileChannel) out, maxBytes);
+        }
+        int sizeClass = 0;
+        ByteBuffer buffer = POOLS[sizeClass].acquire();
+        long total = 0;
+        int smallReads = 0;
+        try {
+            while (total < maxBytes) {
+                buffer.clear();
+                if (maxBytes - total < buffer.capacity()) {
+                    buffer.limit((int) (maxBytes - total));
+                }
+                int bytesRead = in.read(buffer);
+                if (bytesRead < 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                total += bytesRead;
+
+                int newClass = sizeClass;
+                if (bytesRead == buffer.capacity()) {
+                    smallReads = 0;
+                    newClass = Math.min(sizeClass + 1, POOLS.length - 1);
+                } else if (bytesRead < buffer.capacity() / 4 && ++smallReads >= SHRINK_AFTER_SMALL_READS) {
+                    smallReads = 0;
+                    newClass = Math.max(sizeClass - 1, 0);
+                }
+                if (newClass != sizeClass) {
+                    POOLS[sizeClass].release(buffer);
+                    sizeClass = newClass;
+                    buffer = POOLS[sizeClass].acquire();
+                }
+            }
+        } finally {
+            POOLS[sizeClass].release(buffer);
+        }
+        return total;
+    }
+
+    private static long transferTo(FileChannel in, WritableByteChannel out, long maxBytes) throws IOException {
+        long position = in.position();
+        long end = Math.min(in.size(), position + Math.min(maxBytes, Long.MAX_VALUE - position));
+        while (position < end) {
+            long transferred = in.transferTo(position, Math.min(end - position, TRANSFER_CHUNK), out);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        long total = position - in.position();
+        in.position(position);
+        return total;
+    }
+
+    private static long transferFrom(ReadableByteChannel in, FileChannel out, long maxBytes) throws IOException {
+        long position = out.position();
+        long total = 0;
+        while (total < maxBytes) {
+            // Returns 0 only at end of stream, as the source is blocking.
+            long transferred = out.transferFrom(in, position + total, Math.min(maxBytes - total, TRANSFER_CHUNK));
+            if (transferred <= 0) {
+                break;
+            }
+            total += transferred;
+        }
+        out.position(position + total);
+        return total;
+    }
+
+    private static DirectBufferPool[] createPools() {
+        int classes = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+        DirectBufferPool[] pools = new DirectBufferPool[classes];
+        for (int i = 0; i < classes; i++) {
+            pools[i] = new DirectBufferPool(MIN_BUFFER_SIZE << i, POOLED_PER_SIZE);
+        }
+        return pools;
+    }
+}
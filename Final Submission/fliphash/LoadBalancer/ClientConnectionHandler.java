@@ -1,20 +1,62 @@
 package LoadBalancer;
 
+import fliphash.ConnectionExecutors;
 import fliphash.TerminalDisplayManager;
-import fliphash.FlipHash;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles client connections by forwarding them to an appropriate backend.
+ * <p>
+ * Each connection is handled by a blocking task on the executor from
+ * {@link ConnectionExecutors}, which runs on platform or virtual threads. Both sockets are
+ * blocking channels, so the upload and the response are copied by {@link ChannelForwarder}
+ * through direct buffers rather than heap arrays.
+ * </p>
+ * <p>
+ * With {@code lb.pool=true} requests reuse keep-alive backend connections from a
+ * {@link BackendConnectionPool}. The handler then reads the client's request header (file
+ * name and size), forwards exactly that many bytes and relays the chunked response up to its
+ * end marker, so the backend connection is left at a request boundary and can serve the next
+ * request. Clients see the same bytes in every mode: the job output as it is produced, ended
+ * by the end of the connection.
+ * </p>
+ * <p>
+ * With {@code lb.mux=true} all requests to a backend share one {@link MuxBackendConnection},
+ * each in its own stream. The handler again reads the request header and then moves the file
+ * and the response through the stream, with the same bytes reaching the client.
+ * </p>
+ * <p>
+ * Every request is reported to an {@link OutlierDetector}, which ejects backends that fail or
+ * slow down, so a single failed connect no longer removes a backend. With pooled or
+ * multiplexed connections only connect failures and completed requests are reported, as a
+ * failed request there cannot be told apart from a failed client.
+ * </p>
  */
 public class ClientConnectionHandler implements Runnable {
 
     private final int clientPort;
+    private final int acceptBacklog;
+    private final BackendSelector selector;
+    private final BackendConnectionPool pool;
+    private final Map<BackendManager.BackendInfo, MuxBackendConnection> muxConnections;
+    // Table version whose departed backends' mux connections were last dropped.
+    private final AtomicLong muxPrunedVersion = new AtomicLong(-1);
+    private final OutlierDetector outliers;
 
     /**
      * Constructor.
@@ -22,77 +64,139 @@ public class ClientConnectionHandler implements Runnable {
      * @param clientPort the port on which to accept client connections.
      */
     public ClientConnectionHandler(int clientPort) {
+        this(clientPort, 50);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clientPort    the port on which to accept client connections.
+     * @param acceptBacklog the length of the queue of connections waiting to be accepted.
+     */
+    public ClientConnectionHandler(int clientPort, int acceptBacklog) {
+        this.clientPort = clientPort;
+        this.acceptBacklog = acceptBacklog;
+        this.selector = FlipHashSelector.INSTANCE;
+        this.pool = null;
+        this.muxConnections = null;
+        this.outliers = new OutlierDetector(new LoadBalancerConfig(new Properties()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param clientPort the port on which to accept client connections.
+     * @param config     the accept backlog, routing and backend connection settings.
+     */
+    public ClientConnectionHandler(int clientPort, LoadBalancerConfig config) {
         this.clientPort = clientPort;
+        this.acceptBacklog = config.getAcceptBacklog();
+        this.selector = BackendSelector.fromConfig(config);
+        this.pool = config.isPoolEnabled()
+                ? new BackendConnectionPool(config.getPoolMaxPerBackend(), config.getPoolIdleTimeoutMillis(),
+                        config.getPoolAcquireTimeoutMillis())
+                : null;
+        this.muxConnections = config.isMuxEnabled() ? new ConcurrentHashMap<>() : null;
+        this.outliers = new OutlierDetector(config);
     }
 
     @Override
     public void run() {
-        try (ServerSocket clientSocket = new ServerSocket(clientPort)) {
+        ExecutorService executor = ConnectionExecutors.newConnectionExecutor("lb-client");
+        Thread detector = new Thread(outliers, "outlier-detector");
+        detector.setDaemon(true);
+        detector.start();
+        try (ServerSocketChannel clientSocket = ServerSocketChannel.open()) {
+            clientSocket.bind(new InetSocketAddress(clientPort), acceptBacklog);
             TerminalDisplayManager.addLog("Load Balancer listening for clients on port " + clientPort);
             while (true) {
-                Socket client = clientSocket.accept();
-                new Thread(() -> handleClient(client)).start();
+                SocketChannel client = clientSocket.accept();
+                executor.execute(() -> handleClient(client));
             }
         } catch (IOException e) {
             TerminalDisplayManager.addLog("Client listener error: " + e.getMessage());
+        } finally {
+            executor.shutdown();
         }
     }
 
     /**
      * Handles an individual client connection.
      *
-     * @param client the client socket.
+     * @param client the client channel.
      */
-    private void handleClient(Socket client) {
-        Socket backendSocket = null;
+    private void handleClient(SocketChannel client) {
+        SocketChannel backendSocket = null;
+        BackendChannel backendChannel = null;
+        BackendManager.BackendInfo backend = null;
         try {
-            // Use the client's IP as key for fliphash.
-            String clientKey = client.getInetAddress().getHostAddress();
+            // The client's IP is the fliphash key; its text form is only used for logging.
+            InetAddress clientAddress = client.socket().getInetAddress();
+            String clientKey = clientAddress.getHostAddress();
+            // Route against one snapshot, which membership changes cannot alter.
+            RoutingTable table = BackendManager.getRoutingTable();
+            if (muxConnections != null) {
+                pruneMuxConnections(table);
+            }
             // Ensure there is at least one backend.
-            if (BackendManager.getBackends().isEmpty()) {
-                PrintWriter writer = new PrintWriter(client.getOutputStream(), true);
+            if (table.isEmpty()) {
+                PrintWriter writer = new PrintWriter(client.socket().getOutputStream(), true);
                 writer.println("No backend server available");
                 client.close();
                 return;
             }
-            // Use FlipHash to select a backend.
-            FlipHash.Resource resource = new FlipHash.Resource(BackendManager.getBackends().size());
-            long hash = FlipHash.fliphashGeneral(clientKey, resource);
-            int index = (int) (hash % BackendManager.getBackends().size());
-            BackendManager.BackendInfo backend = BackendManager.getBackends().get(index);
+            // Use FlipHash, possibly with bounded loads, to select a backend.
+            backend = selector.select(clientAddress, table);
+            InFlightRequests.started(backend);
+            long start = System.nanoTime();
 
             TerminalDisplayManager.addLog("Forwarding client " + clientKey + " to backend " + backend);
 
+            if (pool != null) {
+                forwardPooled(client, backend, start);
+                return;
+            }
+            if (muxConnections != null) {
+                forwardMultiplexed(client, backend, start);
+                return;
+            }
+
             // Connect to the chosen backend.
             try {
-                backendSocket = new Socket(backend.host, backend.port);
+                backendSocket = SocketChannel.open(new InetSocketAddress(backend.host, backend.port));
             } catch (IOException e) {
-                BackendManager.removeBackend(backend);
-                TerminalDisplayManager.addLog("Backend " + backend + " unreachable. Removed from list.");
+                outliers.connectFailed(backend);
+                TerminalDisplayManager.addLog("Backend " + backend + " unreachable: " + e.getMessage());
                 client.close();
                 return;
             }
+            backendChannel = new BackendChannel(backendSocket);
 
             // Acknowledge client.
-            PrintWriter writer = new PrintWriter(client.getOutputStream(), true);
+            PrintWriter writer = new PrintWriter(client.socket().getOutputStream(), true);
             writer.println("OK");
 
-            // Phase 1: Pipe client's request (JAR file upload) to backend.
-            pipeStreams(client.getInputStream(), backendSocket.getOutputStream());
+            // Phase 1: Forward client's request (JAR file upload) to backend.
+            ChannelForwarder.forward(client, backendChannel);
             // Signal backend that request transmission is complete.
             backendSocket.shutdownOutput();
 
-            // Phase 2: Pipe backend's response (execution output) back to client.
-            pipeStreams(backendSocket.getInputStream(), client.getOutputStream());
+            // Phase 2: Forward backend's response (execution output) back to client.
+            ChannelForwarder.forward(backendChannel, client);
+            outliers.requestSucceeded(backend, System.nanoTime() - start);
 
         } catch (Exception e) {
+            if (backendChannel != null && backendChannel.failed) {
+                outliers.requestFailed(backend);
+            }
             TerminalDisplayManager.addLog("Client handling error: " + e.getMessage());
         } finally {
+            if (backend != null) {
+                InFlightRequests.finished(backend);
+            }
             try {
-                if (!client.isClosed()) {
-                    client.close();
-                }
-                if (backendSocket != null && !backendSocket.isClosed()) {
+                client.close();
+                if (backendSocket != null) {
                     backendSocket.close();
                 }
             } catch (IOException ex) {
@@ -102,18 +206,186 @@ public class ClientConnectionHandler implements Runnable {
     }
 
     /**
-     * Pipes data from the input stream to the output stream until EOF.
+     * Forwards one request over a pooled keep-alive backend connection.
+     *
+     * @param client  the client channel.
+     * @param backend the selected backend.
+     * @param start   the {@link System#nanoTime()} at which the request was routed.
+     * @throws IOException if the client or backend connection fails.
+     */
+    private void forwardPooled(SocketChannel client, BackendManager.BackendInfo backend, long start)
+            throws IOException {
+        SocketChannel backendChannel;
+        try {
+            backendChannel = pool.acquire(backend);
+        } catch (BackendConnectionPool.PoolExhaustedException e) {
+            TerminalDisplayManager.addLog(e.getMessage() + "; dropping client.");
+            return;
+        } catch (IOException e) {
+            outliers.connectFailed(backend);
+            TerminalDisplayManager.addLog("Backend " + backend + " unreachable: " + e.getMessage());
+            return;
+        }
+        boolean reusable = false;
+        try {
+            // Acknowledge client.
+            PrintWriter writer = new PrintWriter(client.socket().getOutputStream(), true);
+            writer.println("OK");
+
+            // Relay the request header, then exactly the announced number of file bytes.
+            DataInputStream clientIn = new DataInputStream(client.socket().getInputStream());
+            String fileName = clientIn.readUTF();
+            long fileSize = clientIn.readLong();
+            DataOutputStream backendOut = new DataOutputStream(
+                    new BufferedOutputStream(backendChannel.socket().getOutputStream(), 512));
+            backendOut.writeUTF(fileName);
+            backendOut.writeLong(fileSize);
+            backendOut.flush();
+            if (ChannelForwarder.forward(client, backendChannel, fileSize) < fileSize) {
+                throw new IOException("Client upload ended early");
+            }
+
+            // Relay the response chunks as they arrive, without the chunk lengths; an empty
+            // chunk ends the response.
+            DataInputStream backendIn = new DataInputStream(backendChannel.socket().getInputStream());
+            int chunkLength;
+            while ((chunkLength = backendIn.readInt()) > 0) {
+                if (ChannelForwarder.forward(backendChannel, client, chunkLength) < chunkLength) {
+                    throw new IOException("Backend response ended early");
+                }
+            }
+            reusable = true;
+            outliers.requestSucceeded(backend, System.nanoTime() - start);
+        } finally {
+            pool.release(backend, backendChannel, reusable);
+        }
+    }
+
+    /**
+     * Forwards one request as a stream on the shared connection to the backend.
      *
-     * @param in  the input stream
-     * @param out the output stream
-     * @throws IOException if an I/O error occurs
+     * @param client  the client channel.
+     * @param backend the selected backend.
+     * @param start   the {@link System#nanoTime()} at which the request was routed.
+     * @throws IOException if the client connection or the stream fails.
      */
-    private void pipeStreams(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[4096];
-        int bytesRead;
-        while ((bytesRead = in.read(buffer)) != -1) {
-            out.write(buffer, 0, bytesRead);
+    private void forwardMultiplexed(SocketChannel client, BackendManager.BackendInfo backend, long start)
+            throws IOException {
+        MuxBackendConnection connection;
+        try {
+            connection = muxConnection(backend);
+        } catch (IOException e) {
+            outliers.connectFailed(backend);
+            TerminalDisplayManager.addLog("Backend " + backend + " unreachable: " + e.getMessage());
+            return;
+        }
+        // Acknowledge client.
+        PrintWriter writer = new PrintWriter(client.socket().getOutputStream(), true);
+        writer.println("OK");
+
+        DataInputStream clientIn = new DataInputStream(client.socket().getInputStream());
+        String fileName = clientIn.readUTF();
+        long fileSize = clientIn.readLong();
+        MuxBackendConnection.Stream stream = connection.openStream(fileName, fileSize);
+        boolean completed = false;
+        try {
+            stream.upload(client, fileSize);
+            stream.relayResponse(client);
+            completed = true;
+            outliers.requestSucceeded(backend, System.nanoTime() - start);
+        } finally {
+            if (!completed) {
+                stream.reset("Client request failed");
+            }
+        }
+    }
+
+    /**
+     * Returns the shared connection to a backend, replacing it if it has failed.
+     *
+     * @param backend the backend.
+     * @return an open connection.
+     * @throws IOException if the backend cannot be reached.
+     */
+    private MuxBackendConnection muxConnection(BackendManager.BackendInfo backend) throws IOException {
+        MuxBackendConnection connection = muxConnections.get(backend);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        // Connect outside the map, so a slow backend holds no lock; a connection made by a
+        // thread that loses the race to install it is closed.
+        MuxBackendConnection created = MuxBackendConnection.connect(backend);
+        while (true) {
+            MuxBackendConnection current = muxConnections.get(backend);
+            if (current != null && current.isOpen()) {
+                created.close();
+                return current;
+            }
+            if (current == null ? muxConnections.putIfAbsent(backend, created) == null
+                    : muxConnections.replace(backend, current, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Drops the shared connections to backends that left the routing table, once per table
+     * version. Their requests in progress finish before the connections close.
+     *
+     * @param table the current routing table.
+     */
+    private void pruneMuxConnections(RoutingTable table) {
+        long pruned = muxPrunedVersion.get();
+        if (table.getVersion() <= pruned || !muxPrunedVersion.compareAndSet(pruned, table.getVersion())) {
+            return;
+        }
+        for (Map.Entry<BackendManager.BackendInfo, MuxBackendConnection> entry : muxConnections.entrySet()) {
+            if (!table.contains(entry.getKey()) && muxConnections.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().closeWhenIdle();
+            }
+        }
+    }
+
+    /**
+     * Backend channel that remembers whether reading or writing it failed, so a failed
+     * request can be blamed on the backend rather than the client.
+     */
+    private static final class BackendChannel implements ByteChannel {
+        private final SocketChannel channel;
+        boolean failed;
+
+        BackendChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            try {
+                return channel.read(buffer);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            try {
+                return channel.write(buffer);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
         }
-        out.flush();
     }
 }
@@ -0,0 +1,72 @@
+package LoadBalancer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct byte buffers.
+ * <p>
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so the
+ * forwarding code borrows them from here instead of allocating one per connection. Buffers
+ * are handed out cleared; at most a fixed number of returned buffers are kept.
+ * </p>
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize the capacity of each buffer.
+     * @param maxPooled  the most returned buffers kept for reuse.
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Borrows a cleared buffer, allocating one if the pool is empty.
+     *
+     * @return the buffer.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer the buffer, or null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffer.clear();
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffers handed out.
+     *
+     * @return the buffer size.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,596 @@
+package LoadBalancer;
+
+import fliphash.TerminalDisplayManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replicates backend membership changes between load balancers, so they all build the same
+ * routing table.
+ * <p>
+ * A {@link RoutingTable} depends on the order of the changes that built it, not only on the
+ * backends it ends with: a new backend takes the lowest tombstone free at the time. Load
+ * balancers that apply the same registrations in different orders route a client to
+ * different backends. With this log, each load balancer proposes its
+ * {@link MembershipChange}s instead of applying them, and its {@link MembershipState} is the
+ * replay of the whole log in one total order, the same on every load balancer.
+ * </p>
+ * <p>
+ * Every entry carries an epoch and the origin id of the load balancer that proposed it, and
+ * entries are ordered by epoch, then origin id. The epoch is a hybrid logical clock: at least
+ * the wall-clock time in milliseconds, and above every epoch the proposer has seen, so an
+ * entry orders after everything its proposer knew. Entries proposed concurrently are ordered
+ * by the same rule everywhere; one that arrives after a later entry is inserted in its place
+ * and the log is replayed.
+ * </p>
+ * <p>
+ * Every sync interval, and at once after a local proposal, the log runs a round with each
+ * peer over TCP: both sides send their status and the entries the other lacks. An entry is
+ * final once every peer has it and no peer can still propose one that orders before it; final
+ * entries are folded into a checkpoint and dropped. A load balancer that restarts gets a new
+ * origin id and receives the checkpoint from a peer. Proposals made before its first round
+ * take effect locally at once, but enter the log only after that round, so they order after
+ * everything already folded; proposing never waits for the network. While a peer is
+ * unreachable the others keep replicating, but nothing is folded, so the log grows by the
+ * changes made meanwhile.
+ * </p>
+ */
+public final class EpochLog implements Runnable {
+
+    /** Default interval between rounds with each peer. */
+    public static final long DEFAULT_SYNC_MILLIS = 100;
+
+    /** Time allowed to connect to a peer and for each of its replies. */
+    static final int TIMEOUT_MILLIS = 1000;
+
+    /** Most entries or slots accepted in one message. */
+    private static final int MAX_COUNT = 1 << 20;
+
+    private final ServerSocket server;
+    private final List<InetSocketAddress> peers;
+    private final long syncNanos;
+    private final long originId;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a round is requested.
+    private final Condition changed = lock.newCondition();
+    // Peers that failed their last round; used by the sync thread only.
+    private final Set<InetSocketAddress> unreachable = new HashSet<>();
+
+    // The highest epoch seen.
+    private long clock;
+    // The folded entries, and how many of each origin's entries they are.
+    private MembershipState checkpoint = MembershipState.EMPTY;
+    private final Map<Long, Integer> checkpointFrontier = new HashMap<>();
+    // Entries after the checkpoint in log order, and how many entries of each origin were received.
+    private final TreeSet<Entry> entries = new TreeSet<>();
+    private final Map<Long, Integer> frontier = new HashMap<>();
+    // Changes proposed before the first round, to be appended after it.
+    private final List<MembershipChange> pending = new ArrayList<>();
+    // The checkpoint with all entries applied, then the pending changes.
+    private MembershipState state = MembershipState.EMPTY;
+    // The last status received from each peer in a round this log started.
+    private final Map<InetSocketAddress, Status> peerStatus = new HashMap<>();
+    private boolean syncRequested;
+    private boolean synced;
+
+    /**
+     * Constructor; binds the log's TCP port. Call {@link #run()} on a thread of its own and
+     * install the log with {@link BackendManager#setEpochLog(EpochLog)}.
+     *
+     * @param port       the port peers connect to; 0 picks a free port.
+     * @param peers      the logs of the other load balancers. This load balancer's own address
+     *                   may be listed; it is recognised and skipped.
+     * @param syncMillis the interval between rounds with each peer.
+     * @throws IOException if the port cannot be bound.
+     */
+    public EpochLog(int port, List<InetSocketAddress> peers, long syncMillis) throws IOException {
+        this.server = new ServerSocket(port);
+        this.peers = new ArrayList<>(peers);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.originId = ThreadLocalRandom.current().nextLong();
+        this.synced = peers.isEmpty();
+    }
+
+    /**
+     * Returns the port peers connect to.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the id that orders this load balancer's entries among concurrent ones; new on
+     * every start.
+     *
+     * @return the origin id.
+     */
+    public long getOriginId() {
+        return originId;
+    }
+
+    @Override
+    public void run() {
+        Thread acceptor = new Thread(this::serve, "epoch-log-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        TerminalDisplayManager.addLog("Epoch log " + Long.toHexString(originId) + " on port " + getPort()
+                + ", peers " + peers);
+        while (true) {
+            for (InetSocketAddress peer : new ArrayList<>(peers)) {
+                sync(peer);
+            }
+            lock.lock();
+            try {
+                if (!synced) {
+                    synced = true;
+                    appendPending();
+                }
+                fold();
+                long wait = syncNanos;
+                while (!syncRequested && wait > 0) {
+                    wait = changed.awaitNanos(wait);
+                }
+                syncRequested = false;
+            } catch (InterruptedException e) {
+                TerminalDisplayManager.addLog("Epoch log interrupted: " + e.getMessage());
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies a change locally and appends it to the log, unless it does not alter the
+     * membership. Before the first round with the peers, the change is only applied locally
+     * and appended after that round; it is dropped then if it no longer alters the membership.
+     * Never waits for the network, so it may be called from request and event threads.
+     *
+     * @param change the change.
+     * @return true if the change altered the membership.
+     */
+    boolean propose(MembershipChange change) {
+        lock.lock();
+        try {
+            MembershipState updated = state.apply(change);
+            if (updated == state) {
+                return false;
+            }
+            if (synced) {
+                append(change);
+            } else {
+                pending.add(change);
+            }
+            state = updated;
+            BackendManager.publish(state);
+            syncRequested = true;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a local change as the last entry of the log. Called with the lock held.
+     */
+    private void append(MembershipChange change) {
+        // Above every epoch seen, so the entry is the last of the log.
+        clock = Math.max(clock + 1, System.currentTimeMillis());
+        entries.add(new Entry(clock, originId, frontier.merge(originId, 1, Integer::sum), change));
+    }
+
+    /**
+     * Appends the changes proposed before the first round that still alter the membership.
+     * Called with the lock held, after the first round.
+     */
+    private void appendPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<MembershipChange> changes = new ArrayList<>(pending);
+        pending.clear();
+        replay();
+        for (MembershipChange change : changes) {
+            MembershipState updated = state.apply(change);
+            if (updated != state) {
+                append(change);
+                state = updated;
+            }
+        }
+        BackendManager.publish(state);
+        syncRequested = true;
+    }
+
+    /**
+     * Publishes the log's current state to {@link BackendManager}.
+     */
+    void publishState() {
+        lock.lock();
+        try {
+            BackendManager.publish(state);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs one round with a peer: sends this log's status, receives the peer's status and the
+     * entries it has that this log lacks, then sends the entries the peer lacks.
+     */
+    private void sync(InetSocketAddress peer) {
+        try (Socket socket = new Socket()) {
+            socket.connect(peer, TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(message(null));
+            out.flush();
+            Status theirs = receive(in);
+            if (theirs.origin == originId) {
+                peers.remove(peer);
+                return;
+            }
+            out.write(message(theirs));
+            out.flush();
+            lock.lock();
+            try {
+                peerStatus.put(peer, theirs);
+            } finally {
+                lock.unlock();
+            }
+            if (unreachable.remove(peer)) {
+                TerminalDisplayManager.addLog("Epoch log peer " + peer + " reachable");
+            }
+        } catch (IOException e) {
+            if (unreachable.add(peer)) {
+                TerminalDisplayManager.addLog("Epoch log peer " + peer + " unreachable: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers the rounds that peers start, one at a time.
+     */
+    private void serve() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Status theirs = receive(in);
+                out.write(message(theirs));
+                out.flush();
+                receive(in);
+            } catch (IOException e) {
+                // The peer went away mid-round, or it was this log itself; rounds are retried.
+            }
+        }
+    }
+
+    /**
+     * Builds a message: this log's status, then, for a peer whose status is known, the
+     * checkpoint if the peer lacks folded entries, and the entries after it the peer lacks.
+     *
+     * @param theirs the peer's status, or null to send the status only.
+     */
+    private byte[] message(Status theirs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        lock.lock();
+        try {
+            out.writeLong(originId);
+            out.writeLong(clock);
+            writeFrontier(out, frontier);
+            writeFrontier(out, checkpointFrontier);
+            boolean sendCheckpoint = theirs != null && !covers(theirs.frontier, checkpointFrontier);
+            out.writeBoolean(sendCheckpoint);
+            if (sendCheckpoint) {
+                writeState(out, checkpoint);
+            }
+            List<Entry> missing = new ArrayList<>();
+            if (theirs != null) {
+                for (Entry entry : entries) {
+                    if (entry.sequence > theirs.frontier.getOrDefault(entry.origin, 0)) {
+                        missing.add(entry);
+                    }
+                }
+            }
+            out.writeInt(missing.size());
+            for (Entry entry : missing) {
+                writeEntry(out, entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a message and merges its checkpoint and entries into the log.
+     *
+     * @return the sender's status.
+     */
+    private Status receive(DataInputStream in) throws IOException {
+        Status theirs = new Status(in.readLong(), in.readLong(), readFrontier(in), readFrontier(in));
+        MembershipState receivedCheckpoint = in.readBoolean() ? readState(in) : null;
+        int count = readCount(in);
+        List<Entry> receivedEntries = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            receivedEntries.add(readEntry(in));
+        }
+        lock.lock();
+        try {
+            clock = Math.max(clock, theirs.clock);
+            MembershipState before = state;
+            boolean replay = receivedCheckpoint != null && adopt(receivedCheckpoint, theirs.checkpointFrontier);
+            for (Entry entry : receivedEntries) {
+                replay |= accept(entry);
+            }
+            if (replay) {
+                replay();
+            }
+            if (state != before) {
+                BackendManager.publish(state);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return theirs;
+    }
+
+    /**
+     * Appends an entry received from a peer, if it is the next one of its origin.
+     *
+     * @return true if the entry orders before others already applied, or changes are pending,
+     *         so the log must be replayed.
+     */
+    private boolean accept(Entry entry) {
+        if (entry.sequence != frontier.getOrDefault(entry.origin, 0) + 1) {
+            // Already received, or a gap that a later round fills in order.
+            return false;
+        }
+        frontier.put(entry.origin, entry.sequence);
+        clock = Math.max(clock, entry.epoch);
+        // The pending changes stay after the entries, which takes a replay.
+        boolean last = pending.isEmpty() && (entries.isEmpty() || entry.compareTo(entries.last()) > 0);
+        entries.add(entry);
+        TerminalDisplayManager.addLog("Epoch log: " + entry.change + " from " + Long.toHexString(entry.origin));
+        if (last) {
+            state = state.apply(entry.change);
+        }
+        return !last;
+    }
+
+    /**
+     * Replaces the checkpoint with a peer's, if the peer has folded more entries.
+     *
+     * @return true if the checkpoint was replaced.
+     */
+    private boolean adopt(MembershipState received, Map<Long, Integer> receivedFrontier) {
+        if (!covers(receivedFrontier, checkpointFrontier) || receivedFrontier.equals(checkpointFrontier)) {
+            return false;
+        }
+        checkpoint = received;
+        checkpointFrontier.clear();
+        checkpointFrontier.putAll(receivedFrontier);
+        for (Map.Entry<Long, Integer> folded : receivedFrontier.entrySet()) {
+            frontier.merge(folded.getKey(), folded.getValue(), Math::max);
+        }
+        entries.removeIf(entry -> entry.sequence <= checkpointFrontier.getOrDefault(entry.origin, 0));
+        TerminalDisplayManager.addLog("Epoch log: checkpoint received, " + entries.size() + " entries after it");
+        return true;
+    }
+
+    private void replay() {
+        MembershipState replayed = checkpoint;
+        for (Entry entry : entries) {
+            replayed = replayed.apply(entry.change);
+        }
+        for (MembershipChange change : pending) {
+            replayed = replayed.apply(change);
+        }
+        state = replayed;
+    }
+
+    /**
+     * Folds the entries that are final into the checkpoint. An entry is final when every peer
+     * has it, this log has everything the peers had, and its epoch is at most every peer's
+     * clock, since a peer's later proposals have higher epochs.
+     */
+    private void fold() {
+        if (peerStatus.size() < peers.size()) {
+            return;
+        }
+        long bound = clock;
+        for (Status status : peerStatus.values()) {
+            if (!covers(frontier, status.frontier)) {
+                return;
+            }
+            bound = Math.min(bound, status.clock);
+        }
+        while (!entries.isEmpty()) {
+            Entry first = entries.first();
+            if (first.epoch > bound) {
+                return;
+            }
+            for (Status status : peerStatus.values()) {
+                if (status.frontier.getOrDefault(first.origin, 0) < first.sequence) {
+                    return;
+                }
+            }
+            entries.pollFirst();
+            checkpoint = checkpoint.apply(first.change);
+            checkpointFrontier.put(first.origin, first.sequence);
+        }
+    }
+
+    /**
+     * Returns whether one frontier has every entry another has.
+     */
+    private static boolean covers(Map<Long, Integer> frontier, Map<Long, Integer> other) {
+        for (Map.Entry<Long, Integer> origin : other.entrySet()) {
+            if (frontier.getOrDefault(origin.getKey(), 0) < origin.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFrontier(DataOutputStream out, Map<Long, Integer> frontier) throws IOException {
+        out.writeInt(frontier.size());
+        for (Map.Entry<Long, Integer> origin : frontier.entrySet()) {
+            out.writeLong(origin.getKey());
+            out.writeInt(origin.getValue());
+        }
+    }
+
+    private static Map<Long, Integer> readFrontier(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        Map<Long, Integer> frontier = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            frontier.put(in.readLong(), in.readInt());
+        }
+        return frontier;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.epoch);
+        out.writeLong(entry.origin);
+        out.writeInt(entry.sequence);
+        out.writeByte(entry.change.getType().ordinal());
+        writeBackend(out, entry.change.getBackend());
+        out.writeInt(entry.change.getWeight());
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        long epoch = in.readLong();
+        long origin = in.readLong();
+        int sequence = in.readInt();
+        int type = in.readUnsignedByte();
+        BackendManager.BackendInfo backend = readBackend(in);
+        int weight = in.readInt();
+        try {
+            return new Entry(epoch, origin, sequence,
+                    MembershipChange.of(MembershipChange.Type.values()[type], backend, weight));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid entry: " + e.getMessage());
+        }
+    }
+
+    private static void writeState(DataOutputStream out, MembershipState state) throws IOException {
+        RoutingTable table = state.getTable();
+        out.writeLong(table.getVersion());
+        out.writeInt(table.getSlotCount());
+        for (int slot = 0; slot < table.getSlotCount(); slot++) {
+            BackendManager.BackendInfo backend = table.getSlot(slot);
+            out.writeBoolean(backend != null);
+            if (backend != null) {
+                writeBackend(out, backend);
+            }
+        }
+        out.writeInt(state.getEjected().size());
+        for (Map.Entry<BackendManager.BackendInfo, Integer> ejected : state.getEjected().entrySet()) {
+            writeBackend(out, ejected.getKey());
+            out.writeInt(ejected.getValue());
+        }
+    }
+
+    private static MembershipState readState(DataInputStream in) throws IOException {
+        long version = in.readLong();
+        BackendManager.BackendInfo[] slots = new BackendManager.BackendInfo[readCount(in)];
+        for (int slot = 0; slot < slots.length; slot++) {
+            slots[slot] = in.readBoolean() ? readBackend(in) : null;
+        }
+        int count = readCount(in);
+        Map<BackendManager.BackendInfo, Integer> ejected = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            ejected.put(readBackend(in), in.readInt());
+        }
+        try {
+            return new MembershipState(RoutingTable.fromSlots(slots, version), ejected);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static void writeBackend(DataOutputStream out, BackendManager.BackendInfo backend) throws IOException {
+        out.writeUTF(backend.host);
+        out.writeInt(backend.port);
+    }
+
+    private static BackendManager.BackendInfo readBackend(DataInputStream in) throws IOException {
+        return new BackendManager.BackendInfo(in.readUTF(), in.readInt());
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * One change in the log.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final long epoch;
+        final long origin;
+        // Position among the entries of its origin, from 1.
+        final int sequence;
+        final MembershipChange change;
+
+        Entry(long epoch, long origin, int sequence, MembershipChange change) {
+            this.epoch = epoch;
+            this.origin = origin;
+            this.sequence = sequence;
+            this.change = change;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (epoch != other.epoch) {
+                return Long.compare(epoch, other.epoch);
+            }
+            return Long.compare(origin, other.origin);
+        }
+    }
+
+    /**
+     * What a peer reported about its log at the start of a message.
+     */
+    private static final class Status {
+        final long origin;
+        final long clock;
+        final Map<Long, Integer> frontier;
+        final Map<Long, Integer> checkpointFrontier;
+
+        Status(long origin, long clock, Map<Long, Integer> frontier, Map<Long, Integer> checkpointFrontier) {
+            this.origin = origin;
+            this.clock = clock;
+            this.frontier = frontier;
+            this.checkpointFrontier = checkpointFrontier;
+        }
+    }
+}
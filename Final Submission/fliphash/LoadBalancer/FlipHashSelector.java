@@ -0,0 +1,105 @@
+package LoadBalancer;
+
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+import java.net.InetAddress;
+
+/**
+ * Routes every client to the backend FlipHash assigns to its address.
+ * <p>
+ * The raw address bytes are hashed as one long (IPv4) or two longs (IPv6), so no string key
+ * is built. A client keeps its backend for as long as membership allows.
+ * </p>
+ */
+public final class FlipHashSelector implements BackendSelector {
+
+    /** The shared instance. */
+    public static final FlipHashSelector INSTANCE = new FlipHashSelector();
+
+    /** FlipHash variant used for routing, selected with {@code -Dfliphash.algorithm}. */
+    static final FlipHashFunction ROUTING_HASH =
+            FlipHashAlgorithm.fromName(System.getProperty("fliphash.algorithm", "reseeding")).function();
+
+    /** Odd constant that separates the keys of successive probes before they are mixed. */
+    private static final long PROBE_SEED = 0xD1B54A32D192ED03L;
+
+    private FlipHashSelector() {
+    }
+
+    @Override
+    public BackendManager.BackendInfo select(InetAddress client, RoutingTable table) {
+        return probe(client.getAddress(), table, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "fliphash";
+    }
+
+    /**
+     * Returns one candidate of a client's deterministic probe sequence. Probe 0 is the
+     * backend FlipHash assigns to the address; later probes replace the key with a MurmurHash3
+     * finalizer of the key and the probe, so they are spread over the backends independently
+     * of each other and of other clients' sequences. The mix differs from the one
+     * {@link RoutingTable} rehashes keys on tombstones with, so a probe rehashed off a
+     * tombstone does not land on the key of a later probe.
+     *
+     * @param address the raw client address, 4 or 16 bytes.
+     * @param table   the routing table, with at least one backend.
+     * @param probe   the position in the sequence.
+     * @return the candidate backend.
+     */
+    public static BackendManager.BackendInfo probe(byte[] address, RoutingTable table, int probe) {
+        if (address.length == 4) {
+            return table.route(ROUTING_HASH, probeKey(readLong(address, 0, 4), probe));
+        }
+        return table.route(ROUTING_HASH, probeKey(readLong(address, 0, 8), probe), readLong(address, 8, 8));
+    }
+
+    /**
+     * Returns the key of a probe, the key itself for probe 0.
+     *
+     * @param key   the client key, or the high half of an IPv6 address.
+     * @param probe the position in the sequence.
+     * @return the probe's key.
+     */
+    private static long probeKey(long key, int probe) {
+        if (probe == 0) {
+            return key;
+        }
+        long z = key ^ (probe * PROBE_SEED);
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Folds a client address into one 64-bit key: the address itself for IPv4, a mix of both
+     * halves for IPv6.
+     *
+     * @param address the raw client address, 4 or 16 bytes.
+     * @return the key.
+     */
+    static long key(byte[] address) {
+        if (address.length == 4) {
+            return readLong(address, 0, 4);
+        }
+        return readLong(address, 0, 8) ^ Long.rotateLeft(readLong(address, 8, 8), 32);
+    }
+
+    /**
+     * Reads up to eight bytes as a big-endian unsigned value.
+     *
+     * @param bytes  the source bytes.
+     * @param offset the first byte to read.
+     * @param length the number of bytes to read.
+     * @return the packed value.
+     */
+    private static long readLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
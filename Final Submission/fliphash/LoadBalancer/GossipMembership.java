@@ -0,0 +1,41 @@
+package LoadBalancer;
+
+import fliphash.TerminalDisplayManager;
+import fliphash.gossip.Member;
+import fliphash.gossip.MembershipListener;
+
+/**
+ * Keeps the registered backends in line with the gossip membership.
+ * <p>
+ * A backend that the cluster sees alive is added to {@link BackendManager}, with its service
+ * port as the backend port, and removed when the cluster declares it dead or it leaves. Other
+ * load balancers in the cluster are only logged.
+ * </p>
+ */
+public class GossipMembership implements MembershipListener {
+
+    @Override
+    public void memberUp(Member member) {
+        if (member.getRole() == Member.Role.BACKEND) {
+            BackendManager.addBackend(backendOf(member));
+        } else {
+            TerminalDisplayManager.addLog("Load balancer joined: " + member);
+        }
+    }
+
+    @Override
+    public void memberDown(Member member) {
+        if (member.getRole() == Member.Role.BACKEND) {
+            BackendManager.BackendInfo backend = backendOf(member);
+            if (BackendManager.removeBackend(backend)) {
+                TerminalDisplayManager.addLog("Backend removed (left the cluster): " + backend);
+            }
+        } else {
+            TerminalDisplayManager.addLog("Load balancer left: " + member);
+        }
+    }
+
+    private static BackendManager.BackendInfo backendOf(Member member) {
+        return new BackendManager.BackendInfo(member.getHost(), member.getServicePort());
+    }
+}
@@ -0,0 +1,207 @@
+package LoadBalancer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streaming heavy-hitter detector for routing keys.
+ * <p>
+ * Every key is counted in a Count-Min sketch, which overestimates a key's count by at most
+ * {@code e / WIDTH} of all requests with high probability, without storing the keys. A key is
+ * hot while its estimate is at least the threshold fraction of all counted requests. The hot
+ * keys, at most {@link #TOP_K} of them, are kept in a small array so checking a key is a short
+ * scan. A hot key stays hot until its estimate falls below half the threshold, so keys near
+ * the threshold do not flip on every request. Counting is lock-free; the lock is only taken
+ * when a key becomes hot or stops being hot, and to decay the counts.
+ * </p>
+ * <p>
+ * All counts are halved every decay interval, so the detector follows the recent traffic: a
+ * key that stops sending requests cools down within a few intervals.
+ * </p>
+ */
+public final class HotKeyDetector {
+
+    /** Most keys that are hot at once. */
+    public static final int TOP_K = 32;
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 11;
+    private static final long[] ROW_SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    /** Requests counted before any key can be hot, so a quiet start does not make keys hot. */
+    private static final long MIN_SAMPLES = 1000;
+
+    /** The decay time is checked once per this many requests (a power of two). */
+    private static final long DECAY_CHECK_INTERVAL = 1024;
+
+    private final double threshold;
+    private final long decayNanos;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final AtomicLong total = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long nextDecay;
+    // The hot keys; replaced as a whole under the lock.
+    private volatile long[] hotKeys = new long[0];
+
+    /**
+     * Constructor.
+     *
+     * @param threshold   the fraction of requests, in {@code (0, 1]}, above which a key is hot.
+     * @param decayMillis the interval at which all counts are halved.
+     * @throws IllegalArgumentException if an argument is out of range.
+     */
+    public HotKeyDetector(double threshold, long decayMillis) {
+        if (!(threshold > 0 && threshold <= 1) || decayMillis <= 0) {
+            throw new IllegalArgumentException("Invalid hot key settings: " + threshold + ", " + decayMillis + " ms");
+        }
+        this.threshold = threshold;
+        this.decayNanos = decayMillis * 1_000_000L;
+        this.nextDecay = System.nanoTime() + decayNanos;
+    }
+
+    /**
+     * Counts a request for a key.
+     *
+     * @param key the routing key.
+     * @return true if the key is hot.
+     */
+    public boolean record(long key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counts.incrementAndGet(row * WIDTH + column(key, row)));
+        }
+        long seen = total.incrementAndGet();
+        if ((seen & (DECAY_CHECK_INTERVAL - 1)) == 0) {
+            long now = System.nanoTime();
+            if (now - nextDecay >= 0) {
+                decay(now);
+            }
+        }
+        boolean wasHot = isHot(key);
+        boolean hot = seen >= MIN_SAMPLES && estimate >= (wasHot ? threshold / 2 : threshold) * seen;
+        if (hot != wasHot) {
+            update(key, hot);
+            // A new hot key is left out when it is cooler than all of the TOP_K hot keys.
+            return isHot(key);
+        }
+        return hot;
+    }
+
+    /**
+     * Returns whether a key is currently hot, without counting it.
+     *
+     * @param key the routing key.
+     * @return true if the key is hot.
+     */
+    public boolean isHot(long key) {
+        for (long hotKey : hotKeys) {
+            if (hotKey == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the hot keys.
+     *
+     * @return a copy of the hot keys, in no particular order.
+     */
+    public long[] getHotKeys() {
+        return hotKeys.clone();
+    }
+
+    /**
+     * Adds a key to the hot keys or removes it. When {@link #TOP_K} keys are already hot, a new
+     * key replaces the coolest one if it is hotter.
+     */
+    private void update(long key, boolean hot) {
+        lock.lock();
+        try {
+            long[] keys = hotKeys;
+            if (hot == isHot(key)) {
+                return;
+            }
+            if (!hot) {
+                hotKeys = without(keys, key);
+            } else if (keys.length < TOP_K) {
+                long[] updated = Arrays.copyOf(keys, keys.length + 1);
+                updated[keys.length] = key;
+                hotKeys = updated;
+            } else {
+                int coolest = 0;
+                for (int i = 1; i < keys.length; i++) {
+                    if (estimate(keys[i]) < estimate(keys[coolest])) {
+                        coolest = i;
+                    }
+                }
+                if (estimate(keys[coolest]) < estimate(key)) {
+                    long[] updated = keys.clone();
+                    updated[coolest] = key;
+                    hotKeys = updated;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Halves all counts and drops the keys that are no longer hot. Only one thread decays;
+     * increments racing with the halving may be lost, which only makes the counts lower.
+     */
+    private void decay(long now) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (now - nextDecay < 0) {
+                return;
+            }
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, counts.get(i) >> 1);
+            }
+            long seen = total.get() >> 1;
+            total.set(seen);
+            long[] keys = hotKeys;
+            for (long key : keys) {
+                if (estimate(key) < threshold / 2 * seen) {
+                    keys = without(keys, key);
+                }
+            }
+            hotKeys = keys;
+            nextDecay = now + decayNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int estimate(long key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counts.get(row * WIDTH + column(key, row)));
+        }
+        return estimate;
+    }
+
+    private static int column(long key, int row) {
+        long z = key ^ ROW_SEEDS[row];
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (z >>> 33) & (WIDTH - 1);
+    }
+
+    private static long[] without(long[] keys, long key) {
+        long[] updated = new long[keys.length - 1];
+        int n = 0;
+        for (long k : keys) {
+            if (k != key) {
+                updated[n++] = k;
+            }
+        }
+        return updated;
+    }
+}
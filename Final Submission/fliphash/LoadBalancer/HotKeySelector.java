@@ -0,0 +1,62 @@
+package LoadBalancer;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads the requests of hot client keys over several backends.
+ * <p>
+ * Every request's key is counted by a {@link HotKeyDetector}. Requests of a hot key, such as
+ * a NAT gateway sending a large share of all traffic, go to one of {@code replicas} candidate
+ * backends picked at random per request: the first probes of the key's reseeded FlipHash
+ * sequence (see {@link FlipHashSelector#probe(byte[], RoutingTable, int)}), the first being
+ * its usual backend. All other requests are routed by the wrapped selector, so affinity is
+ * only given up for the few keys that would otherwise overload one backend.
+ * </p>
+ */
+public final class HotKeySelector implements BackendSelector {
+
+    private final BackendSelector delegate;
+    private final HotKeyDetector detector;
+    private final int replicas;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the selector for keys that are not hot.
+     * @param detector the hot key detector.
+     * @param replicas the number of backends a hot key is spread over, at least 2.
+     * @throws IllegalArgumentException if there are fewer than 2 replicas.
+     */
+    public HotKeySelector(BackendSelector delegate, HotKeyDetector detector, int replicas) {
+        if (replicas < 2) {
+            throw new IllegalArgumentException("Invalid number of hot key replicas: " + replicas);
+        }
+        this.delegate = delegate;
+        this.detector = detector;
+        this.replicas = replicas;
+    }
+
+    @Override
+    public BackendManager.BackendInfo select(InetAddress client, RoutingTable table) {
+        byte[] address = client.getAddress();
+        if (detector.record(FlipHashSelector.key(address))) {
+            return FlipHashSelector.probe(address, table, ThreadLocalRandom.current().nextInt(replicas));
+        }
+        return delegate.select(client, table);
+    }
+
+    /**
+     * Returns the detector counting the keys.
+     *
+     * @return the detector.
+     */
+    public HotKeyDetector getDetector() {
+        return detector;
+    }
+
+    @Override
+    public String toString() {
+        return delegate + " with " + replicas + " replicas per hot key";
+    }
+}
@@ -0,0 +1,95 @@
+package LoadBalancer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests this load balancer is forwarding to each backend.
+ * <p>
+ * Client handlers count a request from the moment it is routed until its connection closes,
+ * so the counts are current, unlike the client counts the backends report every few seconds.
+ * Counting and reading are lock-free: one map lookup and one atomic operation.
+ * </p>
+ * <p>
+ * The counter of a backend is dropped once the backend has left the routing table and has no
+ * request in flight, so membership churn does not leave counters behind. A dropped counter is
+ * first marked retired, so a request routed just before the removal starts a new counter
+ * instead of counting on the dropped one.
+ * </p>
+ */
+public final class InFlightRequests {
+
+    /** Value of a counter that was dropped from the map. */
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    private static final ConcurrentHashMap<BackendManager.BackendInfo, AtomicInteger> counters =
+            new ConcurrentHashMap<>();
+
+    private InFlightRequests() {
+    }
+
+    /**
+     * Counts a request routed to a backend; every call must be matched by
+     * {@link #finished(BackendManager.BackendInfo)}.
+     *
+     * @param backend the backend.
+     */
+    public static void started(BackendManager.BackendInfo backend) {
+        while (true) {
+            AtomicInteger counter = counters.computeIfAbsent(backend, b -> new AtomicInteger());
+            if (counter.getAndUpdate(count -> count == RETIRED ? RETIRED : count + 1) != RETIRED) {
+                return;
+            }
+            // Retired after the lookup; make sure it is gone and count on a new one.
+            counters.remove(backend, counter);
+        }
+    }
+
+    /**
+     * Stops counting a request to a backend.
+     *
+     * @param backend the backend.
+     */
+    public static void finished(BackendManager.BackendInfo backend) {
+        AtomicInteger counter = counters.get(backend);
+        if (counter.decrementAndGet() == 0 && !BackendManager.getRoutingTable().contains(backend)) {
+            retire(backend, counter);
+        }
+    }
+
+    /**
+     * Returns the number of requests being forwarded to a backend.
+     *
+     * @param backend the backend.
+     * @return the in-flight count.
+     */
+    public static int get(BackendManager.BackendInfo backend) {
+        AtomicInteger counter = counters.get(backend);
+        return counter == null ? 0 : Math.max(0, counter.get());
+    }
+
+    /**
+     * Drops the counters of backends that are not in a routing table and have no request in
+     * flight. Called by {@link BackendManager} whenever it publishes a new table; the counters
+     * of backends still busy are dropped by {@link #finished(BackendManager.BackendInfo)}.
+     *
+     * @param table the published routing table.
+     */
+    static void retainBackends(RoutingTable table) {
+        for (Map.Entry<BackendManager.BackendInfo, AtomicInteger> entry : counters.entrySet()) {
+            if (!table.contains(entry.getKey())) {
+                retire(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops a counter if no request is in flight on it.
+     */
+    private static void retire(BackendManager.BackendInfo backend, AtomicInteger counter) {
+        if (counter.compareAndSet(0, RETIRED)) {
+            counters.remove(backend, counter);
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package LoadBalancer;
+
+import fliphash.gossip.SwimNode;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Load balancer settings, read from system properties.
+ * <p>
+ * Supported properties:
+ * </p>
+ * <ul>
+ *   <li>{@code lb.engine} - {@code blocking} (default) for one thread per client connection,
+ *       or {@code nio} for the selector-based {@link NioProxyServer};</li>
+ *   <li>{@code lb.acceptBacklog} - length of the queue of client connections waiting to be
+ *       accepted (defaults to 1024). Connections beyond it are dropped by the kernel, which
+ *       clients only notice as a stalled request;</li>
+ *   <li>{@code lb.nio.threads} - number of NIO event-loop threads (defaults to the number of
+ *       processors);</li>
+ *   <li>{@code lb.nio.bufferSize} - size in bytes of each direct forwarding buffer (defaults
+ *       to 65536);</li>
+ *   <li>{@code lb.nio.pooledBuffers} - most direct buffers kept for reuse (defaults to
+ *       1024);</li>
+ *   <li>{@code lb.pool} - whether the blocking engine keeps pooled keep-alive connections to
+ *       the backends (defaults to false; the backends must support keep-alive);</li>
+ *   <li>{@code lb.pool.maxPerBackend} - most open pooled connections per backend (defaults to
+ *       32);</li>
+ *   <li>{@code lb.pool.idleTimeoutMs} - idle time after which a pooled connection is closed
+ *       (defaults to 30000);</li>
+ *   <li>{@code lb.pool.acquireTimeoutMs} - how long a request waits for a pooled connection
+ *       when all are busy (defaults to 5000);</li>
+ *   <li>{@code lb.mux} - whether the blocking engine multiplexes all requests to a backend
+ *       over one connection with {@link fliphash.MuxProtocol} (defaults to false; the backends
+ *       must support it). Cannot be combined with {@code lb.pool}.</li>
+ *   <li>{@code lb.weights} - fixed routing weights as comma-separated
+ *       {@code host:port=weight} pairs, each weight in {@code [1, 64]}. Other backends are
+ *       weighted by the capacity they report with their metrics.</li>
+ *   <li>{@code lb.routing} - {@code fliphash} (default) to send every client to its FlipHash
+ *       backend, {@code bounded} for {@link BoundedLoadSelector}, which overflows clients of a
+ *       backend above its load bound to other backends, or {@code two-choices} for
+ *       {@link TwoChoicesSelector}, which sends each request to the less busy of two FlipHash
+ *       candidates by this load balancer's in-flight counts;</li>
+ *   <li>{@code lb.boundedLoad.factor} - how far above its weighted share of the load a
+ *       backend may go before clients overflow (defaults to 1.25, must be greater than 1).
+ *       Loads are the client counts the backends report with their metrics.</li>
+ *   <li>{@code lb.hotKeys.replicas} - number of backends the requests of a hot client key are
+ *       spread over (defaults to 1, which turns hot key detection off); see
+ *       {@link HotKeySelector};</li>
+ *   <li>{@code lb.hotKeys.threshold} - fraction of recent requests above which a client key is
+ *       hot (defaults to 0.02);</li>
+ *   <li>{@code lb.hotKeys.decayMs} - interval at which the hot key counts are halved (defaults
+ *       to 10000).</li>
+ *   <li>{@code lb.health.intervalMs} - first probe interval of a healthy backend (defaults to
+ *       1000); see {@link BackendHealthChecker};</li>
+ *   <li>{@code lb.health.maxIntervalMs} - longest probe interval of a backend that keeps
+ *       passing (defaults to 10000, at least {@code lb.health.intervalMs}). Backends that
+ *       fail under traffic are caught sooner by the {@link OutlierDetector};</li>
+ *   <li>{@code lb.health.timeoutMs} - time a probe may take before it fails (defaults to
+ *       500);</li>
+ *   <li>{@code lb.health.suspectIntervalMs} - probe interval of a backend whose last probe
+ *       failed (defaults to 100);</li>
+ *   <li>{@code lb.health.failures} - failed probes in a row after which a backend is removed
+ *       (defaults to 2);</li>
+ *   <li>{@code lb.outlier.consecutiveFailures} - failed requests in a row after which a
+ *       backend is ejected (defaults to 3); see {@link OutlierDetector};</li>
+ *   <li>{@code lb.outlier.stdevFactor} - standard deviations above the other backends'
+ *       failure rate at which a backend is ejected (defaults to 1.9);</li>
+ *   <li>{@code lb.outlier.latencyFactor} - multiple of the median backend latency at which a
+ *       backend is ejected (defaults to 3, must be greater than 1);</li>
+ *   <li>{@code lb.outlier.ejectionMs} - time a backend is first ejected for (defaults to
+ *       5000);</li>
+ *   <li>{@code lb.outlier.maxEjectionMs} - longest ejection (defaults to 300000, at least
+ *       {@code lb.outlier.ejectionMs});</li>
+ *   <li>{@code lb.outlier.maxEjectionPercent} - most backends ejected at once, in percent
+ *       (defaults to 50; one backend may always be ejected);</li>
+ *   <li>{@code lb.gossip.port} - UDP port of the load balancer's {@link SwimNode} (defaults to
+ *       0, which keeps the TCP registration port instead). With gossip, backends join the
+ *       cluster and are added and removed as the cluster sees them, and their metrics no
+ *       longer register them;</li>
+ *   <li>{@code lb.gossip.seeds} - gossip addresses to join through, as comma-separated
+ *       {@code host:port} pairs, such as other load balancers (defaults to none, which starts
+ *       a new cluster);</li>
+ *   <li>{@code lb.gossip.periodMs} - gossip protocol period (defaults to 200);</li>
+ *   <li>{@code lb.peer.port} - TCP port of the load balancer's {@link EpochLog} (defaults to
+ *       0, for a single load balancer). With it, membership changes are replicated to the
+ *       peers, so all load balancers route every client to the same backend;</li>
+ *   <li>{@code lb.peer.addresses} - the epoch logs of the other load balancers, as
+ *       comma-separated {@code host:port} pairs; the list may include this load balancer
+ *       (defaults to none);</li>
+ *   <li>{@code lb.peer.syncMs} - interval between epoch log rounds with each peer (defaults
+ *       to 100).</li>
+ * </ul>
+ */
+public class LoadBalancerConfig {
+
+    /**
+     * Ways of choosing a client's backend.
+     */
+    public enum Routing {
+        /** The backend FlipHash assigns to the client address. */
+        FLIPHASH,
+        /** FlipHash with bounded loads. */
+        BOUNDED,
+        /** The less busy of two FlipHash candidates. */
+        TWO_CHOICES
+    }
+
+    /**
+     * Ways of serving client connections.
+     */
+    public enum Engine {
+        /** One blocking thread per client connection. */
+        BLOCKING,
+        /** Non-blocking proxy on a fixed set of event-loop threads. */
+        NIO
+    }
+
+    private final Engine engine;
+    private final int acceptBacklog;
+    private final int nioThreads;
+    private final int nioBufferSize;
+    private final int nioPooledBuffers;
+    private final boolean poolEnabled;
+    private final int poolMaxPerBackend;
+    private final long poolIdleTimeoutMillis;
+    private final long poolAcquireTimeoutMillis;
+    private final boolean muxEnabled;
+    private final Map<BackendManager.BackendInfo, Integer> backendWeights;
+    private final Routing routing;
+    private final double boundedLoadFactor;
+    private final int hotKeyReplicas;
+    private final double hotKeyThreshold;
+    private final long hotKeyDecayMillis;
+    private final long healthIntervalMillis;
+    private final long healthMaxIntervalMillis;
+    private final long healthTimeoutMillis;
+    private final long healthSuspectIntervalMillis;
+    private final int healthFailures;
+    private final int outlierConsecutiveFailures;
+    private final double outlierStdevFactor;
+    private final double outlierLatencyFactor;
+    private final long outlierEjectionMillis;
+    private final long outlierMaxEjectionMillis;
+    private final int outlierMaxEjectionPercent;
+    private final int gossipPort;
+    private final List<InetSocketAddress> gossipSeeds;
+    private final long gossipPeriodMillis;
+    private final int peerPort;
+    private final List<InetSocketAddress> peerAddresses;
+    private final long peerSyncMillis;
+
+    /**
+     * Reads the configuration from a set of properties; missing keys take their defaults.
+     *
+     * @param properties the properties, using the keys listed above.
+     * @throws IllegalArgumentException if a property has an invalid value.
+     */
+    public LoadBalancerConfig(Properties properties) {
+        engine = Engine.valueOf(properties.getProperty("lb.engine", "blocking").trim().toUpperCase());
+        acceptBacklog = intProperty(properties, "lb.acceptBacklog", 1024, 1);
+        nioThreads = intProperty(properties, "lb.nio.threads", Runtime.getRuntime().availableProcessors(), 1);
+        nioBufferSize = intProperty(properties, "lb.nio.bufferSize", 64 * 1024, 1);
+        nioPooledBuffers = intProperty(properties, "lb.nio.pooledBuffers", 1024, 0);
+        poolEnabled = Boolean.parseBoolean(properties.getProperty("lb.pool", "false").trim());
+        poolMaxPerBackend = intProperty(properties, "lb.pool.maxPerBackend", 32, 1);
+        poolIdleTimeoutMillis = intProperty(properties, "lb.pool.idleTimeoutMs", 30_000, 1);
+        poolAcquireTimeoutMillis = intProperty(properties, "lb.pool.acquireTimeoutMs", 5_000, 0);
+        muxEnabled = Boolean.parseBoolean(properties.getProperty("lb.mux", "false").trim());
+        if (poolEnabled && muxEnabled) {
+            throw new IllegalArgumentException("lb.pool and lb.mux cannot both be enabled");
+        }
+        backendWeights = parseWeights(properties.getProperty("lb.weights", ""));
+        routing = Routing.valueOf(properties.getProperty("lb.routing", "fliphash").trim().toUpperCase().replace('-', '_'));
+        boundedLoadFactor = doubleProperty(properties, "lb.boundedLoad.factor", 1.25);
+        if (!(boundedLoadFactor > 1)) {
+            throw new IllegalArgumentException("Invalid value for lb.boundedLoad.factor: " + boundedLoadFactor);
+        }
+        hotKeyReplicas = intProperty(properties, "lb.hotKeys.replicas", 1, 1);
+        hotKeyThreshold = doubleProperty(properties, "lb.hotKeys.threshold", 0.02);
+        if (!(hotKeyThreshold > 0 && hotKeyThreshold <= 1)) {
+            throw new IllegalArgumentException("Invalid value for lb.hotKeys.threshold: " + hotKeyThreshold);
+        }
+        hotKeyDecayMillis = intProperty(properties, "lb.hotKeys.decayMs", 10_000, 1);
+        healthIntervalMillis = intProperty(properties, "lb.health.intervalMs", 1_000, 1);
+        healthMaxIntervalMillis = intProperty(properties, "lb.health.maxIntervalMs",
+                Math.max(10_000, (int) healthIntervalMillis), (int) healthIntervalMillis);
+        healthTimeoutMillis = intProperty(properties, "lb.health.timeoutMs", 500, 1);
+        healthSuspectIntervalMillis = intProperty(properties, "lb.health.suspectIntervalMs", 100, 1);
+        healthFailures = intProperty(properties, "lb.health.failures", 2, 1);
+        outlierConsecutiveFailures = intProperty(properties, "lb.outlier.consecutiveFailures", 3, 1);
+        outlierStdevFactor = doubleProperty(properties, "lb.outlier.stdevFactor", 1.9);
+        if (!(outlierStdevFactor >= 0)) {
+            throw new IllegalArgumentException("Invalid value for lb.outlier.stdevFactor: " + outlierStdevFactor);
+        }
+        outlierLatencyFactor = doubleProperty(properties, "lb.outlier.latencyFactor", 3);
+        if (!(outlierLatencyFactor > 1)) {
+            throw new IllegalArgumentException("Invalid value for lb.outlier.latencyFactor: " + outlierLatencyFactor);
+        }
+        outlierEjectionMillis = intProperty(properties, "lb.outlier.ejectionMs", 5_000, 1);
+        outlierMaxEjectionMillis = intProperty(properties, "lb.outlier.maxEjectionMs",
+                Math.max(300_000, (int) outlierEjectionMillis), (int) outlierEjectionMillis);
+        outlierMaxEjectionPercent = intProperty(properties, "lb.outlier.maxEjectionPercent", 50, 0);
+        if (outlierMaxEjectionPercent > 100) {
+            throw new IllegalArgumentException("Invalid value for lb.outlier.maxEjectionPercent: "
+                    + outlierMaxEjectionPercent);
+        }
+        gossipPort = intProperty(properties, "lb.gossip.port", 0, 0);
+        if (gossipPort > 65535) {
+            throw new IllegalArgumentException("Invalid value for lb.gossip.port: " + gossipPort);
+        }
+        String seeds = properties.getProperty("lb.gossip.seeds", "");
+        try {
+            gossipSeeds = List.copyOf(SwimNode.parseAddresses(seeds));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for lb.gossip.seeds: " + seeds);
+        }
+        gossipPeriodMillis = intProperty(properties, "lb.gossip.periodMs", (int) SwimNode.DEFAULT_PERIOD_MILLIS, 1);
+        peerPort = intProperty(properties, "lb.peer.port", 0, 0);
+        if (peerPort > 65535) {
+            throw new IllegalArgumentException("Invalid value for lb.peer.port: " + peerPort);
+        }
+        String peers = properties.getProperty("lb.peer.addresses", "");
+        try {
+            peerAddresses = List.copyOf(SwimNode.parseAddresses(peers));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for lb.peer.addresses: " + peers);
+        }
+        peerSyncMillis = intProperty(properties, "lb.peer.syncMs", (int) EpochLog.DEFAULT_SYNC_MILLIS, 1);
+    }
+
+    /**
+     * Reads the configuration from system properties.
+     *
+     * @return the configuration.
+     * @throws IllegalArgumentException if a property has an invalid value.
+     */
+    public static LoadBalancerConfig fromSystemProperties() {
+        return new LoadBalancerConfig(System.getProperties());
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue, int min) {
+        String value = properties.getProperty(key);
+        int result;
+        try {
+            result = value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+        if (result < min) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+        return result;
+    }
+
+    private static double doubleProperty(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+
+    private static Map<BackendManager.BackendInfo, Integer> parseWeights(String value) {
+        Map<BackendManager.BackendInfo, Integer> weights = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':', equals);
+            try {
+                if (colon <= 0) {
+                    throw new NumberFormatException();
+                }
+                String host = entry.substring(0, colon).trim();
+                int port = Integer.parseInt(entry.substring(colon + 1, equals).trim());
+                int weight = Integer.parseInt(entry.substring(equals + 1).trim());
+                if (host.isEmpty() || weight < 1 || weight > RoutingTable.MAX_WEIGHT) {
+                    throw new NumberFormatException();
+                }
+                weights.put(new BackendManager.BackendInfo(host, port), weight);
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid value for lb.weights: " + entry.trim());
+            }
+        }
+        return Collections.unmodifiableMap(weights);
+    }
+
+    /**
+     * Returns the client connection engine.
+     *
+     * @return the engine.
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the length of the client accept queue.
+     *
+     * @return the backlog.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Returns the number of NIO event-loop threads.
+     *
+     * @return the thread count.
+     */
+    public int getNioThreads() {
+        return nioThreads;
+    }
+
+    /**
+     * Returns the size of each NIO forwarding buffer.
+     *
+     * @return the buffer size in bytes.
+     */
+    public int getNioBufferSize() {
+        return nioBufferSize;
+    }
+
+    /**
+     * Returns the most NIO buffers kept for reuse.
+     *
+     * @return the pool limit.
+     */
+    public int getNioPooledBuffers() {
+        return nioPooledBuffers;
+    }
+
+    /**
+     * Returns whether backend connections are pooled.
+     *
+     * @return true if the connection pool is enabled.
+     */
+    public boolean isPoolEnabled() {
+        return poolEnabled;
+    }
+
+    /**
+     * Returns the most open pooled connections per backend.
+     *
+     * @return the per-backend limit.
+     */
+    public int getPoolMaxPerBackend() {
+        return poolMaxPerBackend;
+    }
+
+    /**
+     * Returns the idle time after which a pooled connection is closed.
+     *
+     * @return the idle timeout in milliseconds.
+     */
+    public long getPoolIdleTimeoutMillis() {
+        return poolIdleTimeoutMillis;
+    }
+
+    /**
+     * Returns how long a request waits for a pooled connection.
+     *
+     * @return the acquire timeout in milliseconds.
+     */
+    public long getPoolAcquireTimeoutMillis() {
+        return poolAcquireTimeoutMillis;
+    }
+
+    /**
+     * Returns whether requests to a backend are multiplexed over one connection.
+     *
+     * @return true if the multiplexed protocol is enabled.
+     */
+    public boolean isMuxEnabled() {
+        return muxEnabled;
+    }
+
+    /**
+     * Returns the configured backend weights.
+     *
+     * @return an unmodifiable map of backends to weights; empty if none are configured.
+     */
+    public Map<BackendManager.BackendInfo, Integer> getBackendWeights() {
+        return backendWeights;
+    }
+
+    /**
+     * Returns how clients are routed to backends.
+     *
+     * @return the routing mode.
+     */
+    public Routing getRouting() {
+        return routing;
+    }
+
+    /**
+     * Returns the load factor of bounded-load routing.
+     *
+     * @return the factor, greater than 1.
+     */
+    public double getBoundedLoadFactor() {
+        return boundedLoadFactor;
+    }
+
+    /**
+     * Returns the number of backends a hot client key is spread over.
+     *
+     * @return the replica count; 1 if hot key detection is off.
+     */
+    public int getHotKeyReplicas() {
+        return hotKeyReplicas;
+    }
+
+    /**
+     * Returns the fraction of recent requests above which a client key is hot.
+     *
+     * @return the threshold in {@code (0, 1]}.
+     */
+    public double getHotKeyThreshold() {
+        return hotKeyThreshold;
+    }
+
+    /**
+     * Returns the interval at which the hot key counts are halved.
+     *
+     * @return the decay interval in milliseconds.
+     */
+    public long getHotKeyDecayMillis() {
+        return hotKeyDecayMillis;
+    }
+
+    /**
+     * Returns the first probe interval of a healthy backend.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getHealthIntervalMillis() {
+        return healthIntervalMillis;
+    }
+
+    /**
+     * Returns the longest probe interval of a healthy backend.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getHealthMaxIntervalMillis() {
+        return healthMaxIntervalMillis;
+    }
+
+    /**
+     * Returns the time a health probe may take.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getHealthTimeoutMillis() {
+        return healthTimeoutMillis;
+    }
+
+    /**
+     * Returns the probe interval of a suspected backend.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getHealthSuspectIntervalMillis() {
+        return healthSuspectIntervalMillis;
+    }
+
+    /**
+     * Returns the number of failed probes in a row after which a backend is removed.
+     *
+     * @return the failure threshold.
+     */
+    public int getHealthFailures() {
+        return healthFailures;
+    }
+
+    /**
+     * Returns the number of failed requests in a row after which a backend is ejected.
+     *
+     * @return the failure threshold.
+     */
+    public int getOutlierConsecutiveFailures() {
+        return outlierConsecutiveFailures;
+    }
+
+    /**
+     * Returns how many standard deviations above the other backends' failure rate a backend
+     * is ejected at.
+     *
+     * @return the factor.
+     */
+    public double getOutlierStdevFactor() {
+        return outlierStdevFactor;
+    }
+
+    /**
+     * Returns the multiple of the median backend latency at which a backend is ejected.
+     *
+     * @return the factor, greater than 1.
+     */
+    public double getOutlierLatencyFactor() {
+        return outlierLatencyFactor;
+    }
+
+    /**
+     * Returns the time a backend is first ejected for.
+     *
+     * @return the ejection time in milliseconds.
+     */
+    public long getOutlierEjectionMillis() {
+        return outlierEjectionMillis;
+    }
+
+    /**
+     * Returns the longest ejection.
+     *
+     * @return the ejection time in milliseconds.
+     */
+    public long getOutlierMaxEjectionMillis() {
+        return outlierMaxEjectionMillis;
+    }
+
+    /**
+     * Returns the most backends ejected at once.
+     *
+     * @return the limit in percent of all backends.
+     */
+    public int getOutlierMaxEjectionPercent() {
+        return outlierMaxEjectionPercent;
+    }
+
+    /**
+     * Returns the UDP port of the gossip membership.
+     *
+     * @return the port, or 0 if gossip is off.
+     */
+    public int getGossipPort() {
+        return gossipPort;
+    }
+
+    /**
+     * Returns the gossip addresses to join through.
+     *
+     * @return an unmodifiable list; empty to start a new cluster.
+     */
+    public List<InetSocketAddress> getGossipSeeds() {
+        return gossipSeeds;
+    }
+
+    /**
+     * Returns the gossip protocol period.
+     *
+     * @return the period in milliseconds.
+     */
+    public long getGossipPeriodMillis() {
+        return gossipPeriodMillis;
+    }
+
+    /**
+     * Returns the TCP port of the epoch log shared with other load balancers.
+     *
+     * @return the port, or 0 for a single load balancer.
+     */
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    /**
+     * Returns the epoch log addresses of the other load balancers.
+     *
+     * @return an unmodifiable list, which may include this load balancer.
+     */
+    public List<InetSocketAddress> getPeerAddresses() {
+        return peerAddresses;
+    }
+
+    /**
+     * Returns the interval between epoch log rounds with each peer.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getPeerSyncMillis() {
+        return peerSyncMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "engine=" + engine.name().toLowerCase()
+                + (engine == Engine.NIO ? ", threads=" + nioThreads + ", bufferSize=" + nioBufferSize
+                        : ", pool=" + (poolEnabled ? "max " + poolMaxPerBackend + " per backend" : "off")
+                                + ", mux=" + (muxEnabled ? "on" : "off"))
+                + (routing == Routing.BOUNDED ? ", routing=bounded loads (factor " + boundedLoadFactor + ")"
+                        : routing == Routing.TWO_CHOICES ? ", routing=two choices" : "")
+                + (hotKeyReplicas > 1 ? ", hot keys=" + hotKeyReplicas + " replicas above " + hotKeyThreshold : "")
+                + (backendWeights.isEmpty() ? "" : ", weights=" + backendWeights)
+                + (gossipPort > 0 ? ", gossip=" + gossipPort : "")
+                + (peerPort > 0 ? ", epoch log=" + peerPort + " with " + peerAddresses.size() + " peers" : "");
+    }
+}
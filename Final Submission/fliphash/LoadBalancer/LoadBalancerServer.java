@@ -1,6 +1,11 @@
 package LoadBalancer;
 
 import fliphash.TerminalDisplayManager;
+import fliphash.gossip.Member;
+import fliphash.gossip.SwimNode;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -8,21 +13,33 @@ import java.util.concurrent.TimeUnit;
  * Main class for the Load Balancer Server.
  * <p>
  * This server listens for backend registrations, client connections, and performance metrics.
- * It also periodically checks the health of registered backend servers.
+ * It also periodically checks the health of registered backend servers. With
+ * {@code lb.gossip.port} set, backends are found through the gossip membership instead of
+ * the registration port. With {@code lb.peer.port} set, several load balancers share their
+ * membership changes through an {@link EpochLog}, so clients can use any of them.
  * </p>
  */
 public class LoadBalancerServer {
 
     public static final int CLIENT_PORT = 5000;      // Port for client connections.
     public static final int REGISTRATION_PORT = 6001;  // Port for backend server registration.
-    public static final int METRICS_PORT = 6003;       // Port for backend metrics.
+    public static final int METRICS_PORT = 6003;       // TCP and UDP port for backend metrics.
     
     /**
      * Main method to start the load balancer.
+     * <p>
+     * The client connection engine is chosen with {@code -Dlb.engine=blocking|nio}; see
+     * {@link LoadBalancerConfig} for all settings. Blocking client and metrics handlers run on
+     * platform or virtual threads, selected with {@code -Dfliphash.threads}; see
+     * {@link fliphash.ConnectionExecutors}.
+     * </p>
      *
      * @param args command line arguments (not used).
      */
     public static void main(String[] args) {
+        LoadBalancerConfig config = LoadBalancerConfig.fromSystemProperties();
+        BackendManager.setConfiguredWeights(config.getBackendWeights());
+
         // Start display updater thread.
         new Thread(() -> {
             while (true) {
@@ -42,10 +59,71 @@ public class LoadBalancerServer {
         // Enter alternate screen for display.
         TerminalDisplayManager.enterAlternateScreen();
 
-        // Start background threads.
-        new Thread(new BackendRegistrationHandler(REGISTRATION_PORT)).start();
-        new Thread(new ClientConnectionHandler(CLIENT_PORT)).start();
+        // Start background threads; the epoch log first, as it replaces the membership.
+        if (config.getPeerPort() > 0) {
+            startEpochLog(config);
+        }
+        if (config.getGossipPort() > 0) {
+            // Backends join through gossip only; their metrics do not register them.
+            MetricsReceiver.setRegistersBackends(false);
+            startGossip(config);
+        } else {
+            new Thread(new BackendRegistrationHandler(REGISTRATION_PORT)).start();
+        }
+        new Thread(createClientHandler(config)).start();
         new Thread(new MetricsReceiver(METRICS_PORT)).start();
-        new Thread(new BackendHealthChecker()).start();
+        new Thread(new BackendHealthChecker(config)).start();
+    }
+
+    /**
+     * Starts replicating membership changes with the other load balancers.
+     *
+     * @param config the epoch log port, peers and sync interval.
+     */
+    static void startEpochLog(LoadBalancerConfig config) {
+        try {
+            EpochLog log = new EpochLog(config.getPeerPort(), config.getPeerAddresses(), config.getPeerSyncMillis());
+            BackendManager.setEpochLog(log);
+            new Thread(log, "epoch-log").start();
+        } catch (IOException e) {
+            TerminalDisplayManager.addLog("Epoch log error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Joins the gossip cluster; the node announces its departure when the JVM shuts down.
+     *
+     * @param config the gossip port, seeds and period.
+     */
+    static void startGossip(LoadBalancerConfig config) {
+        try {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLocalHost(), config.getGossipPort());
+            SwimNode node = new SwimNode(address, Member.Role.LOAD_BALANCER, CLIENT_PORT, config.getGossipSeeds(),
+                    config.getGossipPeriodMillis(), new GossipMembership());
+            new Thread(node, "gossip").start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    node.leave();
+                } catch (InterruptedException ignored) {
+                    // Ignore cleanup exceptions.
+                }
+            }));
+            TerminalDisplayManager.addLog("Gossip membership on " + node.getSelf().getAddress());
+        } catch (IOException e) {
+            TerminalDisplayManager.addLog("Gossip membership error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the client connection engine selected by the configuration.
+     *
+     * @param config the load balancer configuration.
+     * @return the client listener to run.
+     */
+    static Runnable createClientHandler(LoadBalancerConfig config) {
+        if (config.getEngine() == LoadBalancerConfig.Engine.NIO) {
+            return new NioProxyServer(CLIENT_PORT, config);
+        }
+        return new ClientConnectionHandler(CLIENT_PORT, config);
     }
 }
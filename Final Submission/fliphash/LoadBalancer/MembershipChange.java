@@ -0,0 +1,89 @@
+package LoadBalancer;
+
+/**
+ * One change to the backend membership.
+ * <p>
+ * {@link BackendManager} turns each registration, removal, weight change, ejection and
+ * readmission into a change and applies it to the current {@link MembershipState}; with
+ * several load balancers, the {@link EpochLog} replicates the changes so every load balancer
+ * applies the same ones in the same order. Instances are immutable.
+ * </p>
+ */
+public final class MembershipChange {
+
+    /**
+     * Kinds of change.
+     */
+    public enum Type {
+        /** Registers a backend with a weight, unless it is registered or ejected. */
+        ADD,
+        /** Sets the weight of a registered backend. */
+        WEIGHT,
+        /** Removes a backend, registered or ejected. */
+        REMOVE,
+        /** Takes a registered backend out until it is readmitted, keeping its weight. */
+        EJECT,
+        /** Returns an ejected backend with the weight it had. */
+        READMIT
+    }
+
+    private final Type type;
+    private final BackendManager.BackendInfo backend;
+    private final int weight;
+
+    private MembershipChange(Type type, BackendManager.BackendInfo backend, int weight) {
+        this.type = type;
+        this.backend = backend;
+        this.weight = weight;
+    }
+
+    /**
+     * Creates a change of any type.
+     *
+     * @param type    the kind of change.
+     * @param backend the backend it applies to.
+     * @param weight  the weight for {@link Type#ADD} and {@link Type#WEIGHT}, in
+     *                {@code [1, RoutingTable.MAX_WEIGHT]}; ignored otherwise.
+     * @return the change.
+     * @throws IllegalArgumentException if the weight is out of range for the type.
+     */
+    public static MembershipChange of(Type type, BackendManager.BackendInfo backend, int weight) {
+        boolean weighted = type == Type.ADD || type == Type.WEIGHT;
+        if (weighted && (weight < 1 || weight > RoutingTable.MAX_WEIGHT)) {
+            throw new IllegalArgumentException("Invalid weight for " + backend + ": " + weight);
+        }
+        return new MembershipChange(type, backend, weighted ? weight : 0);
+    }
+
+    /**
+     * Returns the kind of change.
+     *
+     * @return the type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the backend the change applies to.
+     *
+     * @return the backend.
+     */
+    public BackendManager.BackendInfo getBackend() {
+        return backend;
+    }
+
+    /**
+     * Returns the weight of an {@link Type#ADD} or {@link Type#WEIGHT} change.
+     *
+     * @return the weight, or 0 for other types.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + " " + backend + (weight > 0 ? " (weight " + weight + ")" : "");
+    }
+}
@@ -0,0 +1,124 @@
+package LoadBalancer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registered backends and the ejected ones, as one immutable value.
+ * <p>
+ * {@link BackendManager} publishes a new state for every {@link MembershipChange}, so a
+ * backend is never both in the routing table and ejected, or in neither while being ejected.
+ * Applying a change is deterministic: the same changes applied in the same order to the same
+ * state always give the same routing table, slot for slot, which the {@link EpochLog} relies
+ * on to keep several load balancers routing alike.
+ * </p>
+ */
+public final class MembershipState {
+
+    /** The state without backends. */
+    public static final MembershipState EMPTY = new MembershipState(RoutingTable.EMPTY, Map.of());
+
+    private final RoutingTable table;
+    private final Map<BackendManager.BackendInfo, Integer> ejected;
+
+    /**
+     * Constructor.
+     *
+     * @param table   the routing table of the registered backends.
+     * @param ejected the weights the ejected backends had; copied.
+     */
+    MembershipState(RoutingTable table, Map<BackendManager.BackendInfo, Integer> ejected) {
+        this.table = table;
+        this.ejected = Map.copyOf(ejected);
+    }
+
+    /**
+     * Returns the routing table of the registered backends.
+     *
+     * @return the table.
+     */
+    public RoutingTable getTable() {
+        return table;
+    }
+
+    /**
+     * Returns whether a backend is ejected.
+     *
+     * @param backend the backend.
+     * @return true if the backend is ejected.
+     */
+    public boolean isEjected(BackendManager.BackendInfo backend) {
+        return ejected.containsKey(backend);
+    }
+
+    /**
+     * Returns the ejected backends.
+     *
+     * @return an unmodifiable map from each ejected backend to the weight it had.
+     */
+    public Map<BackendManager.BackendInfo, Integer> getEjected() {
+        return ejected;
+    }
+
+    /**
+     * Returns the state after a change.
+     *
+     * @param change the change.
+     * @return the new state, or this state if the change does not alter it.
+     */
+    public MembershipState apply(MembershipChange change) {
+        BackendManager.BackendInfo backend = change.getBackend();
+        switch (change.getType()) {
+            case ADD:
+                if (ejected.containsKey(backend) || table.contains(backend)) {
+                    return this;
+                }
+                return new MembershipState(table.withWeight(backend, change.getWeight()), ejected);
+            case WEIGHT:
+                return table.contains(backend) ? withTable(table.withWeight(backend, change.getWeight())) : this;
+            case REMOVE: {
+                if (!ejected.containsKey(backend)) {
+                    return withTable(table.withoutBackend(backend));
+                }
+                // A removed backend is not readmitted when its ejection ends.
+                Map<BackendManager.BackendInfo, Integer> updated = new HashMap<>(ejected);
+                updated.remove(backend);
+                return new MembershipState(table.withoutBackend(backend), updated);
+            }
+            case EJECT: {
+                int weight = table.getWeight(backend);
+                if (weight == 0) {
+                    return this;
+                }
+                Map<BackendManager.BackendInfo, Integer> updated = new HashMap<>(ejected);
+                updated.put(backend, weight);
+                return new MembershipState(table.withoutBackend(backend), updated);
+            }
+            case READMIT: {
+                Integer weight = ejected.get(backend);
+                if (weight == null) {
+                    return this;
+                }
+                Map<BackendManager.BackendInfo, Integer> updated = new HashMap<>(ejected);
+                updated.remove(backend);
+                return new MembershipState(table.contains(backend) ? table : table.withWeight(backend, weight), updated);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown change: " + change);
+        }
+    }
+
+    /**
+     * Returns this state with its routing table renumbered.
+     *
+     * @param version the table version.
+     * @return the renumbered state, or this state if the version is unchanged.
+     */
+    MembershipState withVersion(long version) {
+        return version == table.getVersion() ? this : new MembershipState(table.withVersion(version), ejected);
+    }
+
+    private MembershipState withTable(RoutingTable updated) {
+        return updated == table ? this : new MembershipState(updated, ejected);
+    }
+}
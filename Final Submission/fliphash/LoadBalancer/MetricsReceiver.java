@@ -1,95 +1,461 @@
 package LoadBalancer;
 
+import fliphash.ConnectionExecutors;
+import fliphash.MetricsProtocol;
 import fliphash.TerminalDisplayManager;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Receives performance metrics from backend servers.
+ * <p>
+ * Backends send {@link MetricsProtocol} frames in UDP datagrams to the metrics port, or back to
+ * back over a TCP connection to the same port that they keep open. Backends that still send one
+ * JSON line per TCP connection are understood as well.
+ * </p>
+ * <p>
+ * Once a backend has been seen, ingesting its samples allocates nothing: frames are read into
+ * reused buffers, each sample into one reused {@link MetricsProtocol.Sample}, the backend is
+ * found in an open-addressing table keyed by its address and port, and its latest metrics are
+ * stored in place. Samples older than the latest of the same reporter session are dropped.
+ * Membership is only updated when a reporting backend is missing from the routing table or its
+ * capacity no longer matches its weight. When another source owns membership, such as the
+ * gossip membership, a missing backend is not registered; see
+ * {@link #setRegistersBackends(boolean)}.
+ * </p>
+ * <p>
+ * A reported capacity becomes the backend's routing weight; see
+ * {@link BackendManager#reportCapacity(BackendManager.BackendInfo, int)}.
+ * </p>
  */
 public class MetricsReceiver implements Runnable {
 
+    private static final Pattern BACKEND_ID = Pattern.compile("\"backendId\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern CPU_LOAD = Pattern.compile("\"cpuLoad\"\\s*:\\s*(-?[0-9.]+)");
+    private static final Pattern CPU_TEMP = Pattern.compile("\"cpuTemp\"\\s*:\\s*(-?[0-9.]+)");
+    private static final Pattern MEMORY_USAGE = Pattern.compile("\"memoryUsage\"\\s*:\\s*(-?[0-9.]+)");
+    private static final Pattern CAPACITY = Pattern.compile("\"capacity\"\\s*:\\s*(\\d+)");
+    private static final Pattern CLIENT_COUNT = Pattern.compile("\"clientCount\"\\s*:\\s*(\\d+)");
+
+    /** Receive buffer of the UDP socket, so bursts from many backends are not dropped. */
+    private static final int UDP_RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+
     private final int metricsPort;
-    private static final ConcurrentHashMap<String, String> backendMetrics = new ConcurrentHashMap<>();
+
+    // Latest metrics of each backend, for readers.
+    private static final ConcurrentHashMap<BackendManager.BackendInfo, Reported> reported = new ConcurrentHashMap<>();
+    // Guards the table below and the shared sample; held while a frame or JSON line is applied.
+    private static final ReentrantLock lock = new ReentrantLock();
+    // Open-addressing table of the backends that sent binary samples, by address and port.
+    private static Reported[] table = new Reported[64];
+    private static int tableSize;
+    private static final MetricsProtocol.Sample sample = new MetricsProtocol.Sample();
+    private static final AtomicLong droppedFrames = new AtomicLong();
+    private static final AtomicLong staleSamples = new AtomicLong();
+    private static volatile boolean registersBackends = true;
 
     /**
      * Constructor.
      *
-     * @param metricsPort the port on which to receive metrics.
+     * @param metricsPort the TCP and UDP port on which to receive metrics.
      */
     public MetricsReceiver(int metricsPort) {
         this.metricsPort = metricsPort;
     }
 
+    /**
+     * Sets whether a reporting backend that is not in the routing table is registered. Turn it
+     * off when another source owns membership, so metrics only update the metrics and weights
+     * of the backends already registered.
+     *
+     * @param register true to register reporting backends, the default.
+     */
+    public static void setRegistersBackends(boolean register) {
+        registersBackends = register;
+    }
+
     @Override
     public void run() {
+        new Thread(this::receiveDatagrams, "lb-metrics-udp").start();
+        ExecutorService executor = ConnectionExecutors.newConnectionExecutor("lb-metrics");
         try (ServerSocket metricsSocket = new ServerSocket(metricsPort)) {
             TerminalDisplayManager.addLog("Load Balancer listening for backend metrics on port " + metricsPort);
             while (true) {
                 Socket socket = metricsSocket.accept();
-                new Thread(() -> processMetrics(socket)).start();
+                executor.execute(() -> processMetrics(socket));
             }
         } catch (IOException e) {
             TerminalDisplayManager.addLog("Metrics socket error: " + e.getMessage());
+        } finally {
+            executor.shutdown();
         }
     }
 
     /**
-     * Processes metrics received from a backend.
+     * Receives metrics datagrams, one frame each, until the socket fails.
+     */
+    private void receiveDatagrams() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, UDP_RECEIVE_BUFFER_BYTES);
+            channel.bind(new InetSocketAddress(metricsPort));
+            TerminalDisplayManager.addLog("Load Balancer listening for backend metrics on UDP port " + metricsPort);
+            ByteBuffer datagram = ByteBuffer.allocateDirect(MetricsProtocol.MAX_RECEIVED_FRAME_BYTES);
+            while (true) {
+                datagram.clear();
+                channel.receive(datagram);
+                ingest(datagram.flip());
+            }
+        } catch (IOException e) {
+            TerminalDisplayManager.addLog("Metrics UDP socket error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Processes metrics received from a backend over TCP: binary frames until the backend
+     * closes the connection, or JSON lines from a backend that starts with one.
      *
      * @param socket the socket connected to the backend.
      */
     private void processMetrics(Socket socket) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String metricsLine;
-            while ((metricsLine = reader.readLine()) != null) {
-                // Extract backend id from JSON using regex.
-                String backendId = extractBackendId(metricsLine);
-                if (backendId != null) {
-                    backendMetrics.put(backendId, metricsLine);
-
-                    // Ensure the backend is registered.
-                    String[] parts = backendId.split(":");
-                    if (parts.length == 2) {
-                        String host = parts[0];
-                        int port = Integer.parseInt(parts[1]);
-                        BackendManager.addBackend(new BackendManager.BackendInfo(host, port));
-                    }
-                }
+        try (socket; InputStream in = new BufferedInputStream(socket.getInputStream())) {
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first == '{') {
+                processJsonLines(in);
+            } else if (first >= 0) {
+                processFrames(in, socket);
             }
         } catch (IOException e) {
             TerminalDisplayManager.addLog("Error reading backend metrics: " + e.getMessage());
         }
     }
 
+    private void processFrames(InputStream in, Socket socket) throws IOException {
+        byte[] bytes = new byte[MetricsProtocol.MAX_FRAME_BYTES];
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        while (true) {
+            int header = in.readNBytes(bytes, 0, MetricsProtocol.HEADER_BYTES);
+            if (header == 0) {
+                return;
+            }
+            if (header < MetricsProtocol.HEADER_BYTES) {
+                throw new EOFException("Metrics connection ended inside a frame");
+            }
+            int size = MetricsProtocol.frameBytes(frame.clear().limit(MetricsProtocol.HEADER_BYTES));
+            if (size < 0) {
+                droppedFrames.incrementAndGet();
+                TerminalDisplayManager.addLog("Invalid metrics frame from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            if (size > bytes.length) {
+                bytes = Arrays.copyOf(bytes, size);
+                frame = ByteBuffer.wrap(bytes);
+            }
+            if (in.readNBytes(bytes, MetricsProtocol.HEADER_BYTES, size - MetricsProtocol.HEADER_BYTES)
+                    < size - MetricsProtocol.HEADER_BYTES) {
+                throw new EOFException("Metrics connection ended inside a frame");
+            }
+            ingest(frame.clear().limit(size));
+        }
+    }
+
+    private void processJsonLines(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String metricsLine;
+        while ((metricsLine = reader.readLine()) != null) {
+            Matcher backendId = BACKEND_ID.matcher(metricsLine);
+            if (!backendId.find()) {
+                continue;
+            }
+            String[] parts = backendId.group(1).split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+            BackendManager.BackendInfo backend = new BackendManager.BackendInfo(parts[0], Integer.parseInt(parts[1]));
+            lock.lock();
+            try {
+                Reported metrics = reported.computeIfAbsent(backend, Reported::new);
+                metrics.cpuLoad = parseDecimal(CPU_LOAD, metricsLine);
+                metrics.cpuTemp = parseDecimal(CPU_TEMP, metricsLine);
+                metrics.memoryUsage = parseDecimal(MEMORY_USAGE, metricsLine);
+                Matcher clients = CLIENT_COUNT.matcher(metricsLine);
+                if (clients.find()) {
+                    metrics.clientCount = parseCount(clients.group(1));
+                }
+                Matcher capacity = CAPACITY.matcher(metricsLine);
+                updateMembership(metrics, capacity.find() ? parseCount(capacity.group(1)) : 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies one frame of samples. Allocates nothing unless a sample comes from a backend that
+     * has not reported before or changes the membership.
+     *
+     * @param frame the frame, from its position to its limit; the position is not changed.
+     * @return the number of samples applied, which excludes stale ones; 0 if the frame is
+     *         invalid.
+     */
+    public static int ingest(ByteBuffer frame) {
+        int count = MetricsProtocol.sampleCount(frame);
+        if (count < 0) {
+            droppedFrames.incrementAndGet();
+            return 0;
+        }
+        int sampleBytes = MetricsProtocol.sampleBytes(frame);
+        int offset = frame.position() + MetricsProtocol.HEADER_BYTES;
+        int applied = 0;
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++, offset += sampleBytes) {
+                if (apply(sample.read(frame, offset))) {
+                    applied++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return applied;
+    }
+
+    /**
+     * Stores a sample unless it is stale. Called with the lock held.
+     */
+    private static boolean apply(MetricsProtocol.Sample sample) {
+        Reported metrics = find(sample.getAddressHigh(), sample.getAddressLow(), sample.getPort());
+        if (metrics == null) {
+            metrics = insert(sample);
+            if (metrics == null) {
+                return false;
+            }
+        } else if (metrics.sequenced && sample.getSession() == metrics.session
+                && sample.getSequence() - metrics.sequence <= 0) {
+            staleSamples.incrementAndGet();
+            return false;
+        }
+        metrics.sequenced = true;
+        metrics.session = sample.getSession();
+        metrics.sequence = sample.getSequence();
+        metrics.cpuLoad = sample.getCpuLoad();
+        metrics.cpuTemp = sample.getCpuTemp();
+        metrics.memoryUsage = sample.getMemoryUsage();
+        metrics.clientCount = sample.getClientCount();
+        updateMembership(metrics, sample.getCapacity());
+        return true;
+    }
+
+    /**
+     * Registers a reporting backend that is not in the routing table and not ejected, if
+     * reporting backends are registered, and reports its capacity when it changed or no longer
+     * matches its weight. Called with the lock held.
+     */
+    private static void updateMembership(Reported metrics, int capacity) {
+        BackendManager.BackendInfo backend = metrics.backend;
+        RoutingTable routing = BackendManager.getRoutingTable();
+        boolean changed = false;
+        if (!routing.contains(backend) && !BackendManager.isEjected(backend)) {
+            if (!registersBackends) {
+                metrics.capacity = capacity;
+                return;
+            }
+            BackendManager.addBackend(backend);
+            changed = true;
+        }
+        if (capacity > 0 && (changed || capacity != metrics.capacity
+                || routing.getWeight(backend) != metrics.weight)) {
+            BackendManager.reportCapacity(backend, capacity);
+            changed = true;
+        }
+        if (changed) {
+            metrics.weight = BackendManager.getRoutingTable().getWeight(backend);
+        }
+        metrics.capacity = capacity;
+    }
+
+    /**
+     * Returns the entry of a backend in the table. Called with the lock held.
+     */
+    private static Reported find(long addressHigh, long addressLow, int port) {
+        int mask = table.length - 1;
+        for (int i = slot(addressHigh, addressLow, port) & mask; ; i = (i + 1) & mask) {
+            Reported metrics = table[i];
+            if (metrics == null || (metrics.addressHigh == addressHigh && metrics.addressLow == addressLow
+                    && metrics.port == port)) {
+                return metrics;
+            }
+        }
+    }
+
+    /**
+     * Adds the backend of a sample to the table, growing it at half load. Called with the lock
+     * held.
+     *
+     * @return the backend's entry, or {@code null} if its address is invalid.
+     */
+    private static Reported insert(MetricsProtocol.Sample sample) {
+        String host;
+        try {
+            host = InetAddress.getByAddress(sample.getAddressBytes()).getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+        Reported metrics = reported.computeIfAbsent(new BackendManager.BackendInfo(host, sample.getPort()), Reported::new);
+        metrics.addressHigh = sample.getAddressHigh();
+        metrics.addressLow = sample.getAddressLow();
+        metrics.port = sample.getPort();
+        if (2 * (tableSize + 1) > table.length) {
+            Reported[] old = table;
+            table = new Reported[old.length * 2];
+            for (Reported entry : old) {
+                if (entry != null) {
+                    place(entry);
+                }
+            }
+        }
+        place(metrics);
+        tableSize++;
+        return metrics;
+    }
+
+    private static void place(Reported metrics) {
+        int mask = table.length - 1;
+        int i = slot(metrics.addressHigh, metrics.addressLow, metrics.port) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = metrics;
+    }
+
+    private static int slot(long addressHigh, long addressLow, int port) {
+        long mixed = (addressHigh ^ Long.rotateLeft(addressLow, 23) ^ port) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32);
+    }
+
     /**
      * Returns the current backend metrics.
      *
-     * @return a map of backend IDs to metrics JSON strings.
+     * @return a new map of backend IDs to metrics JSON strings.
      */
     public static Map<String, String> getBackendMetrics() {
-        return backendMetrics;
+        Map<String, String> metrics = new TreeMap<>();
+        for (Reported backend : reported.values()) {
+            metrics.put(backend.backend.toString(), backend.toJson());
+        }
+        return metrics;
     }
 
     /**
-     * Extracts the backendId value from a JSON string.
+     * Returns the client count a backend last reported.
      *
-     * @param json the JSON string.
-     * @return the backendId if found; null otherwise.
+     * @param backend the backend.
+     * @return the number of requests it was serving, or 0 if it has not reported one.
      */
-    private String extractBackendId(String json) {
-        Pattern pattern = Pattern.compile("\"backendId\"\\s*:\\s*\"([^\"]+)\"");
+    public static int getReportedClientCount(BackendManager.BackendInfo backend) {
+        Reported metrics = reported.get(backend);
+        return metrics == null ? 0 : metrics.clientCount;
+    }
+
+    /**
+     * Returns the number of frames dropped because they were malformed or of an unknown version.
+     *
+     * @return the count since startup.
+     */
+    public static long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Returns the number of samples dropped because a later sample of the same reporter
+     * session had arrived.
+     *
+     * @return the count since startup.
+     */
+    public static long getStaleSamples() {
+        return staleSamples.get();
+    }
+
+    /**
+     * Parses a reported decimal, such as a percentage.
+     *
+     * @return the value, or NaN if it is missing or malformed.
+     */
+    private static double parseDecimal(Pattern pattern, String json) {
         Matcher matcher = pattern.matcher(json);
-        if (matcher.find()) {
-            return matcher.group(1);
+        try {
+            return matcher.find() ? Double.parseDouble(matcher.group(1)) : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parses a reported count; values too large for an int are capped.
+     *
+     * @param digits the decimal digits of the count.
+     * @return the count.
+     */
+    private static int parseCount(String digits) {
+        return digits.length() > 9 ? Integer.MAX_VALUE : Integer.parseInt(digits);
+    }
+
+    /**
+     * Latest metrics of one backend. Written with the lock held; the volatile fields are also
+     * read without it.
+     */
+    private static final class Reported {
+        final BackendManager.BackendInfo backend;
+        // Table key, set when the first binary sample arrives.
+        long addressHigh;
+        long addressLow;
+        int port;
+        // Last applied sample, if any came in binary.
+        boolean sequenced;
+        int session;
+        int sequence;
+        // Last reported capacity, and the weight the routing table had after reporting it.
+        int capacity;
+        int weight;
+        volatile double cpuLoad = Double.NaN;
+        volatile double cpuTemp = Double.NaN;
+        volatile double memoryUsage = Double.NaN;
+        volatile int clientCount;
+
+        Reported(BackendManager.BackendInfo backend) {
+            this.backend = backend;
+        }
+
+        String toJson() {
+            return String.format(
+                    "{\"backendId\":\"%s\", \"cpuLoad\":%.2f, \"cpuTemp\":%.2f, \"memoryUsage\":%.2f, \"clientCount\":%d, \"capacity\":%d}",
+                    backend, orZero(cpuLoad), orZero(cpuTemp), orZero(memoryUsage), clientCount, capacity);
+        }
+
+        private static double orZero(double value) {
+            return Double.isNaN(value) ? 0 : value;
         }
-        return null;
     }
 }
@@ -0,0 +1,328 @@
+package LoadBalancer;
+
+import fliphash.MuxProtocol;
+import fliphash.TerminalDisplayManager;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection to a backend that carries many concurrent requests with
+ * {@link MuxProtocol}.
+ * <p>
+ * Client handler threads open a {@link Stream} per request, upload the file into it and relay
+ * the response from it; a reader thread per connection dispatches the backend's frames to the
+ * streams. Received data is queued per stream and only acknowledged once it has been written
+ * to the client, so each stream buffers at most {@value MuxProtocol#INITIAL_WINDOW} bytes
+ * however slow its client is.
+ * </p>
+ */
+public class MuxBackendConnection implements Closeable {
+
+    /** Queued after the last data of a stream. */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /** Queued when a stream is reset or the connection fails. */
+    private static final byte[] FAILED = new byte[0];
+
+    private final BackendManager.BackendInfo backend;
+    private final Socket socket;
+    private final MuxProtocol.FrameWriter writer;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private volatile boolean open = true;
+
+    private MuxBackendConnection(BackendManager.BackendInfo backend, Socket socket) throws IOException {
+        this.backend = backend;
+        this.socket = socket;
+        this.writer = new MuxProtocol.FrameWriter(socket.getOutputStream());
+    }
+
+    /**
+     * Connects to a backend and starts reading its frames on a daemon thread.
+     *
+     * @param backend the backend.
+     * @return the open connection.
+     * @throws IOException if the backend cannot be reached.
+     */
+    public static MuxBackendConnection connect(BackendManager.BackendInfo backend) throws IOException {
+        Socket socket = new Socket(backend.host, backend.port);
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF(MuxProtocol.INITIAL_MESSAGE);
+            dos.flush();
+            MuxBackendConnection connection = new MuxBackendConnection(backend, socket);
+            Thread reader = new Thread(connection::readFrames, "mux-reader-" + backend);
+            reader.setDaemon(true);
+            reader.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a request on this connection.
+     *
+     * @param fileName the name of the uploaded JAR file.
+     * @param fileSize the size of the uploaded JAR file.
+     * @return the stream to upload the file to and read the response from.
+     * @throws IOException if the connection has failed.
+     */
+    public Stream openStream(String fileName, long fileSize) throws IOException {
+        if (!open) {
+            throw new IOException("Connection to backend " + backend + " is closed");
+        }
+        Stream stream = new Stream(nextStreamId.getAndIncrement());
+        streams.put(stream.id, stream);
+        try {
+            send(() -> writer.writeOpen(stream.id, fileName, fileSize));
+        } catch (IOException e) {
+            streams.remove(stream.id);
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Returns whether new streams can be opened.
+     *
+     * @return false once the connection has failed or been closed.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the number of requests in progress on this connection.
+     *
+     * @return the number of open streams.
+     */
+    public int getActiveStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Stops opening streams and closes the connection once the requests in progress have
+     * ended, such as when the backend leaves the routing table.
+     */
+    public void closeWhenIdle() {
+        open = false;
+        closeIfIdle();
+    }
+
+    /**
+     * Closes the connection, failing the streams in progress.
+     */
+    @Override
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore cleanup exceptions.
+        }
+    }
+
+    private void readFrames() {
+        String reason = "Backend " + backend + " closed the connection";
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), MuxProtocol.MAX_PAYLOAD + 16));
+            MuxProtocol.Frame frame;
+            while ((frame = MuxProtocol.readFrame(in)) != null) {
+                Stream stream = streams.get(frame.streamId);
+                if (stream == null) {
+                    // A late frame of a stream this side has already reset.
+                    continue;
+                }
+                switch (frame.type) {
+                    case MuxProtocol.DATA:
+                        stream.received.add(frame.payload);
+                        break;
+                    case MuxProtocol.END:
+                        streams.remove(stream.id);
+                        stream.received.add(END_OF_STREAM);
+                        closeIfIdle();
+                        break;
+                    case MuxProtocol.WINDOW:
+                        stream.sendWindow.grant(frame.windowIncrement());
+                        break;
+                    case MuxProtocol.RESET:
+                        streams.remove(stream.id);
+                        stream.fail("Backend reset the request: " + frame.resetReason());
+                        closeIfIdle();
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + frame.type);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                reason = "Connection to backend " + backend + " failed: " + e.getMessage();
+                TerminalDisplayManager.addLog(reason);
+            }
+        } finally {
+            close();
+            for (Stream stream : streams.values()) {
+                stream.fail(reason);
+            }
+            streams.clear();
+        }
+    }
+
+    /**
+     * Closes a connection that no longer opens streams once its last stream has ended. The
+     * responses already received stay queued for their clients.
+     */
+    private void closeIfIdle() {
+        if (!open && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Writes frames, closing the connection if that fails, since a partly written frame
+     * leaves the connection unusable.
+     */
+    private void send(FrameAction action) throws IOException {
+        try {
+            action.run();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * A frame write.
+     */
+    private interface FrameAction {
+        /**
+         * Writes the frames.
+         *
+         * @throws IOException if the connection fails.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * One request on the connection.
+     */
+    public final class Stream {
+        private final int id;
+        private final MuxProtocol.SendWindow sendWindow = new MuxProtocol.SendWindow();
+        /** DATA payloads not yet written to the client; bounded by the stream window. */
+        private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        private volatile String failure;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Sends the JAR file, as far as the stream window allows, and ends the upload.
+         *
+         * @param in   the client channel, positioned at the first byte of the file.
+         * @param size the number of bytes to send.
+         * @throws IOException if the client upload ends early or the stream fails.
+         */
+        public void upload(ReadableByteChannel in, long size) throws IOException {
+            byte[] chunk = new byte[(int) Math.min(MuxProtocol.MAX_PAYLOAD, Math.max(size, 1))];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(chunk.length, remaining));
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("Client upload ended after " + (size - remaining) + " of " + size + " bytes");
+                }
+                int length = buffer.position();
+                int offset = 0;
+                while (offset < length) {
+                    int granted = sendWindow.acquire(length - offset);
+                    int from = offset;
+                    send(() -> writer.write(id, MuxProtocol.DATA, chunk, from, granted));
+                    offset += granted;
+                }
+                remaining -= length;
+            }
+            send(() -> writer.writeEnd(id));
+        }
+
+        /**
+         * Writes the response to the client as it arrives, returning credit to the backend for
+         * every chunk written.
+         *
+         * @param out the client channel.
+         * @return the number of response bytes written.
+         * @throws IOException if the stream fails or the client connection fails.
+         */
+        public long relayResponse(WritableByteChannel out) throws IOException {
+            long total = 0;
+            while (true) {
+                byte[] chunk;
+                try {
+                    chunk = received.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the backend");
+                }
+                if (chunk == END_OF_STREAM) {
+                    return total;
+                }
+                if (chunk == FAILED) {
+                    throw new IOException(failure);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                total += chunk.length;
+                if (streams.containsKey(id)) {
+                    send(() -> writer.writeWindow(id, chunk.length));
+                }
+            }
+        }
+
+        /**
+         * Aborts the request, telling the backend to drop it. Does nothing if the stream has
+         * already ended.
+         *
+         * @param reason why the request is aborted.
+         */
+        public void reset(String reason) {
+            if (streams.remove(id) == null) {
+                return;
+            }
+            fail(reason);
+            try {
+                send(() -> writer.writeReset(id, reason));
+            } catch (IOException ignored) {
+                // The connection is closed, which aborts the request too.
+            }
+            closeIfIdle();
+        }
+
+        private void fail(String reason) {
+            failure = reason;
+            sendWindow.close(reason);
+            received.add(FAILED);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package LoadBalancer;
+
+import fliphash.TerminalDisplayManager;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking replacement for {@link ClientConnectionHandler}.
+ * <p>
+ * Accepted clients are spread round-robin over a fixed set of event-loop threads, each with its
+ * own {@link Selector}. A connection is routed by a {@link BackendSelector} exactly like in
+ * the blocking handler, and the protocol is the same: the client receives {@code OK} once the
+ * backend connection is up, its upload is forwarded until it shuts down its output, and the
+ * backend's response is forwarded until the backend closes.
+ * </p>
+ * <p>
+ * Each direction has one pooled direct buffer. When a buffer is full the proxy stops reading
+ * from its source until the destination has drained it, so a slow peer holds back the fast one
+ * instead of growing memory.
+ * </p>
+ * <p>
+ * Connect failures, backend connection failures and completed requests are reported to an
+ * {@link OutlierDetector}, as in the blocking handler.
+ * </p>
+ */
+public class NioProxyServer implements Runnable {
+
+    private static final byte[] OK = "OK\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NO_BACKEND = "No backend server available\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int clientPort;
+    private final LoadBalancerConfig config;
+    private final BackendSelector backendSelector;
+    private final DirectBufferPool bufferPool;
+    private final OutlierDetector outliers;
+
+    /**
+     * Constructor.
+     *
+     * @param clientPort the port on which to accept client connections.
+     * @param config     the event-loop, buffer and routing settings.
+     */
+    public NioProxyServer(int clientPort, LoadBalancerConfig config) {
+        this.clientPort = clientPort;
+        this.config = config;
+        this.backendSelector = BackendSelector.fromConfig(config);
+        this.bufferPool = new DirectBufferPool(config.getNioBufferSize(), config.getNioPooledBuffers());
+        this.outliers = new OutlierDetector(config);
+    }
+
+    @Override
+    public void run() {
+        EventLoop[] loops = new EventLoop[config.getNioThreads()];
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(clientPort), config.getAcceptBacklog());
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread thread = new Thread(loops[i], "nio-proxy-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            Thread detector = new Thread(outliers, "outlier-detector");
+            detector.setDaemon(true);
+            detector.start();
+            TerminalDisplayManager.addLog("Load Balancer listening for clients on port " + clientPort
+                    + " (" + config + ")");
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            TerminalDisplayManager.addLog("Client listener error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Selector thread that drives the connections assigned to it.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Hands a newly accepted client to this loop. Safe to call from any thread.
+         *
+         * @param client the client channel.
+         */
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel client;
+                    while ((client = pending.poll()) != null) {
+                        open(client);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        ProxyConnection connection = (ProxyConnection) key.attachment();
+                        try {
+                            connection.handle(key);
+                        } catch (IOException | RuntimeException e) {
+                            TerminalDisplayManager.addLog("Client handling error: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    TerminalDisplayManager.addLog("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Routes a client and starts connecting to its backend.
+         *
+         * @param client the client channel.
+         */
+        private void open(SocketChannel client) {
+            ProxyConnection connection = null;
+            try {
+                Socket socket = client.socket();
+                String clientKey = socket.getInetAddress().getHostAddress();
+                RoutingTable table = BackendManager.getRoutingTable();
+                if (table.isEmpty()) {
+                    // The message is short enough for the socket buffer of a fresh connection.
+                    client.write(ByteBuffer.wrap(NO_BACKEND));
+                    client.close();
+                    return;
+                }
+                BackendManager.BackendInfo backend = backendSelector.select(socket.getInetAddress(), table);
+                TerminalDisplayManager.addLog("Forwarding client " + clientKey + " to backend " + backend);
+
+                client.configureBlocking(false);
+                SocketChannel backendChannel = SocketChannel.open();
+                backendChannel.configureBlocking(false);
+                connection = new ProxyConnection(client, backendChannel, backend);
+                connection.clientKey = client.register(selector, 0, connection);
+                connection.backendKey = backendChannel.register(selector, 0, connection);
+                if (backendChannel.connect(new InetSocketAddress(backend.host, backend.port))) {
+                    connection.connected();
+                } else {
+                    connection.backendKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Runtime exceptions include an unresolvable backend address from connect.
+                TerminalDisplayManager.addLog("Client handling error: " + e.getMessage());
+                if (connection != null) {
+                    connection.close();
+                    return;
+                }
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                    // Ignore cleanup exceptions.
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one proxied client connection.
+     * <p>
+     * Both buffers are kept in fill mode: data waiting to be written sits between 0 and the
+     * position.
+     * </p>
+     */
+    private final class ProxyConnection {
+        private final SocketChannel client;
+        private final SocketChannel backend;
+        private final BackendManager.BackendInfo backendInfo;
+        private final long start = System.nanoTime();
+        private SelectionKey clientKey;
+        private SelectionKey backendKey;
+        private ByteBuffer upstream;
+        private ByteBuffer downstream;
+        private boolean clientEof;
+        private boolean backendOutputShut;
+        private boolean backendEof;
+        private boolean backendFailed;
+        private boolean closed;
+
+        ProxyConnection(SocketChannel client, SocketChannel backend, BackendManager.BackendInfo backendInfo) {
+            this.client = client;
+            this.backend = backend;
+            this.backendInfo = backendInfo;
+            InFlightRequests.started(backendInfo);
+        }
+
+        /**
+         * Called once the backend connection is established.
+         */
+        void connected() {
+            upstream = bufferPool.acquire();
+            downstream = bufferPool.acquire();
+            // Acknowledge the client ahead of any backend output.
+            downstream.put(OK);
+            updateInterest();
+        }
+
+        /**
+         * Processes the ready operations of one of the two channels.
+         *
+         * @param key the ready key.
+         * @throws IOException if either channel fails.
+         */
+        void handle(SelectionKey key) throws IOException {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                try {
+                    backend.finishConnect();
+                } catch (IOException e) {
+                    outliers.connectFailed(backendInfo);
+                    TerminalDisplayManager.addLog("Backend " + backendInfo + " unreachable: " + e.getMessage());
+                    close();
+                    return;
+                }
+                connected();
+                return;
+            }
+            if (key == clientKey) {
+                if (key.isReadable() && client.read(upstream) < 0) {
+                    clientEof = true;
+                }
+                if (key.isWritable()) {
+                    drain(downstream, client);
+                }
+            } else {
+                if (key.isReadable() && readBackend() < 0) {
+                    backendEof = true;
+                }
+                if (key.isWritable()) {
+                    drain(upstream, backend);
+                }
+            }
+            // Forward what was just read without waiting for another select round.
+            drain(upstream, backend);
+            drain(downstream, client);
+            if (clientEof && upstream.position() == 0 && !backendOutputShut) {
+                // Signal backend that request transmission is complete.
+                backend.shutdownOutput();
+                backendOutputShut = true;
+            }
+            if (backendEof && downstream.position() == 0) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private int readBackend() throws IOException {
+            try {
+                return backend.read(downstream);
+            } catch (IOException e) {
+                backendFailed = true;
+                throw e;
+            }
+        }
+
+        private void drain(ByteBuffer buffer, SocketChannel target) throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    target.write(buffer);
+                } catch (IOException e) {
+                    backendFailed |= target == backend;
+                    throw e;
+                }
+                buffer.compact();
+            }
+        }
+
+        /**
+         * Reads from a side only while its buffer has room, and writes to a side only while
+         * data is waiting for it.
+         */
+        private void updateInterest() {
+            int clientOps = 0;
+            int backendOps = 0;
+            if (!clientEof && upstream.hasRemaining()) {
+                clientOps |= SelectionKey.OP_READ;
+            }
+            if (downstream.position() > 0) {
+                clientOps |= SelectionKey.OP_WRITE;
+            }
+            if (!backendEof && downstream.hasRemaining()) {
+                backendOps |= SelectionKey.OP_READ;
+            }
+            if (upstream.position() > 0) {
+                backendOps |= SelectionKey.OP_WRITE;
+            }
+            try {
+                clientKey.interestOps(clientOps);
+                backendKey.interestOps(backendOps);
+            } catch (IllegalStateException e) {
+                // CancelledKeyException: the connection is being closed.
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            InFlightRequests.finished(backendInfo);
+            // Only connected requests are reported here; a failed connect was reported already.
+            if (upstream != null) {
+                if (backendFailed) {
+                    outliers.requestFailed(backendInfo);
+                } else if (backendEof) {
+                    outliers.requestSucceeded(backendInfo, System.nanoTime() - start);
+                }
+            }
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
+            }
+            try {
+                backend.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
+            }
+            bufferPool.release(upstream);
+            bufferPool.release(downstream);
+            upstream = null;
+            downstream = null;
+        }
+    }
+}
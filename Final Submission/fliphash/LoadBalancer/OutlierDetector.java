@@ -0,0 +1,408 @@
+package LoadBalancer;
+
+import fliphash.TerminalDisplayManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Passive health detection from the proxied traffic.
+ * <p>
+ * Client handlers report every request to a backend: whether connecting failed, whether the
+ * backend connection failed after connecting (a reset), or how long the request took when it
+ * succeeded. Each backend's reports are counted in a lock-free sliding window of
+ * {@value #WINDOW_SECONDS} one-second buckets, so reporting is a few atomic additions.
+ * </p>
+ * <p>
+ * A backend is ejected from the routing table when:
+ * </p>
+ * <ul>
+ *   <li>{@code lb.outlier.consecutiveFailures} requests in a row failed, checked as each
+ *       failure is reported;</li>
+ *   <li>its failure rate is above {@value #MIN_FAILURE_RATE} and more than
+ *       {@code lb.outlier.stdevFactor} standard deviations above the mean of the other
+ *       backends; or</li>
+ *   <li>its mean latency is more than {@code lb.outlier.latencyFactor} times the median of
+ *       the backends' mean latencies.</li>
+ * </ul>
+ * <p>
+ * The statistical checks run once a second over the backends with at least
+ * {@value #MIN_REQUESTS} requests in the window, and only when there are at least
+ * {@value #MIN_BACKENDS} of them. An ejected backend is readmitted after
+ * {@code lb.outlier.ejectionMs}, doubled for every ejection in a row up to
+ * {@code lb.outlier.maxEjectionMs}; the doubling is undone one step per ejection time the
+ * backend stays in. No more than {@code lb.outlier.maxEjectionPercent} of the backends are
+ * ejected at once, but one backend always may be. See {@link LoadBalancerConfig} for the
+ * settings.
+ * </p>
+ * <p>
+ * With an {@link EpochLog}, ejections and readmissions reach the other load balancers. A
+ * backend ejected by another load balancer stays out until that one readmits it, or for at
+ * most {@code lb.outlier.maxEjectionMs}, in case it stops first.
+ * </p>
+ */
+public final class OutlierDetector implements Runnable {
+
+    /** Length of the sliding window in one-second buckets. */
+    static final int WINDOW_SECONDS = 10;
+
+    /** Requests in the window below which a backend is not judged statistically. */
+    static final int MIN_REQUESTS = 20;
+
+    /** Judged backends needed for the statistical checks. */
+    static final int MIN_BACKENDS = 3;
+
+    /** Failure rate below which a backend is never a failure-rate outlier. */
+    static final double MIN_FAILURE_RATE = 0.05;
+
+    private static final long BUCKET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int consecutiveFailures;
+    private final double stdevFactor;
+    private final double latencyFactor;
+    private final long ejectionNanos;
+    private final long maxEjectionNanos;
+    private final int maxEjectionPercent;
+    private final Map<BackendManager.BackendInfo, Stats> stats = new ConcurrentHashMap<>();
+    // Serializes ejections and readmissions.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor.
+     *
+     * @param config the ejection thresholds and times.
+     */
+    public OutlierDetector(LoadBalancerConfig config) {
+        this.consecutiveFailures = config.getOutlierConsecutiveFailures();
+        this.stdevFactor = config.getOutlierStdevFactor();
+        this.latencyFactor = config.getOutlierLatencyFactor();
+        this.ejectionNanos = config.getOutlierEjectionMillis() * 1_000_000L;
+        this.maxEjectionNanos = config.getOutlierMaxEjectionMillis() * 1_000_000L;
+        this.maxEjectionPercent = config.getOutlierMaxEjectionPercent();
+    }
+
+    /**
+     * Reports that connecting to a backend failed.
+     *
+     * @param backend the backend.
+     */
+    public void connectFailed(BackendManager.BackendInfo backend) {
+        failed(backend, "connect failures");
+    }
+
+    /**
+     * Reports that a backend connection failed after it was established.
+     *
+     * @param backend the backend.
+     */
+    public void requestFailed(BackendManager.BackendInfo backend) {
+        failed(backend, "connection resets");
+    }
+
+    /**
+     * Reports a request that a backend served.
+     *
+     * @param backend the backend.
+     * @param nanos   the time from routing the request until it ended.
+     */
+    public void requestSucceeded(BackendManager.BackendInfo backend, long nanos) {
+        Stats backendStats = stats(backend);
+        backendStats.consecutiveFailures.set(0);
+        backendStats.window.add(System.nanoTime(), false, nanos);
+    }
+
+    private void failed(BackendManager.BackendInfo backend, String reason) {
+        Stats backendStats = stats(backend);
+        backendStats.window.add(System.nanoTime(), true, 0);
+        int failures = backendStats.consecutiveFailures.incrementAndGet();
+        if (failures >= consecutiveFailures) {
+            eject(backend, backendStats, failures + " consecutive " + reason, System.nanoTime());
+        }
+    }
+
+    private Stats stats(BackendManager.BackendInfo backend) {
+        Stats backendStats = stats.get(backend);
+        return backendStats != null ? backendStats : stats.computeIfAbsent(backend, b -> new Stats());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                TerminalDisplayManager.addLog("Outlier detector interrupted: " + e.getMessage());
+                break;
+            }
+            sweep(System.nanoTime());
+        }
+    }
+
+    /**
+     * Readmits the backends whose ejection ended and ejects the statistical outliers.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     */
+    void sweep(long now) {
+        RoutingTable table = BackendManager.getRoutingTable();
+        for (BackendManager.BackendInfo backend : BackendManager.getEjected().keySet()) {
+            stats(backend);
+        }
+        List<BackendManager.BackendInfo> judged = new ArrayList<>();
+        List<long[]> sums = new ArrayList<>();
+        for (Map.Entry<BackendManager.BackendInfo, Stats> entry : stats.entrySet()) {
+            BackendManager.BackendInfo backend = entry.getKey();
+            Stats backendStats = entry.getValue();
+            if (!table.contains(backend) && !BackendManager.isEjected(backend)) {
+                // Removed for good, even while ejected; a new registration starts afresh.
+                forget(backend, backendStats);
+                continue;
+            }
+            if ((backendStats.ejectedUntil != 0) != BackendManager.isEjected(backend)) {
+                follow(backend, backendStats, now);
+            }
+            if (backendStats.ejectedUntil != 0) {
+                if (now - backendStats.ejectedUntil >= 0) {
+                    readmit(backend, backendStats, now);
+                }
+                continue;
+            }
+            if (backendStats.ejections > 0 && now - backendStats.lastChange >= ejectionNanos) {
+                backendStats.ejections--;
+                backendStats.lastChange = now;
+            }
+            long[] sum = backendStats.window.sum(now);
+            if (sum[0] >= MIN_REQUESTS) {
+                judged.add(backend);
+                sums.add(sum);
+            }
+        }
+        if (judged.size() < MIN_BACKENDS) {
+            return;
+        }
+
+        int n = judged.size();
+        double[] failureRates = new double[n];
+        double[] latencies = new double[n];
+        int served = 0;
+        for (int i = 0; i < n; i++) {
+            long[] sum = sums.get(i);
+            failureRates[i] = (double) sum[1] / sum[0];
+            latencies[i] = sum[0] > sum[1] ? (double) sum[2] / (sum[0] - sum[1]) : Double.NaN;
+            if (sum[0] > sum[1]) {
+                served++;
+            }
+        }
+        double rateSum = 0;
+        double rateSquares = 0;
+        for (double rate : failureRates) {
+            rateSum += rate;
+            rateSquares += rate * rate;
+        }
+        double[] sorted = new double[served];
+        int next = 0;
+        for (double latency : latencies) {
+            if (!Double.isNaN(latency)) {
+                sorted[next++] = latency;
+            }
+        }
+        Arrays.sort(sorted);
+        double latencyLimit = served >= MIN_BACKENDS ? latencyFactor * sorted[served / 2] : Double.POSITIVE_INFINITY;
+
+        for (int i = 0; i < n; i++) {
+            BackendManager.BackendInfo backend = judged.get(i);
+            // Compared with the other backends, so one bad backend cannot raise its own limit.
+            double mean = (rateSum - failureRates[i]) / (n - 1);
+            double variance = Math.max(0, (rateSquares - failureRates[i] * failureRates[i]) / (n - 1) - mean * mean);
+            double failureLimit = Math.max(MIN_FAILURE_RATE, mean + stdevFactor * Math.sqrt(variance));
+            if (failureRates[i] > failureLimit) {
+                eject(backend, stats(backend), String.format("failure rate %.0f%%, limit %.0f%%",
+                        failureRates[i] * 100, failureLimit * 100), now);
+            } else if (latencies[i] > latencyLimit) {
+                eject(backend, stats(backend), String.format("mean latency %.1f ms, limit %.1f ms",
+                        latencies[i] / 1e6, latencyLimit / 1e6), now);
+            }
+        }
+    }
+
+    /**
+     * Ejects a backend unless it is already ejected or the ejection limit is reached.
+     */
+    private void eject(BackendManager.BackendInfo backend, Stats backendStats, String reason, long now) {
+        lock.lock();
+        try {
+            if (backendStats.ejectedUntil != 0) {
+                return;
+            }
+            int ejectedCount = 0;
+            for (Stats other : stats.values()) {
+                if (other.ejectedUntil != 0) {
+                    ejectedCount++;
+                }
+            }
+            int total = BackendManager.getRoutingTable().size() + ejectedCount;
+            if (ejectedCount > 0 && (ejectedCount + 1) * 100 > total * maxEjectionPercent) {
+                return;
+            }
+            if (!BackendManager.ejectBackend(backend)) {
+                return;
+            }
+            long duration = Math.min(maxEjectionNanos, ejectionNanos << Math.min(backendStats.ejections, 30));
+            backendStats.ejections++;
+            // Zero means admitted; a deadline of exactly zero is moved by a nanosecond.
+            long until = now + duration;
+            backendStats.ejectedUntil = until == 0 ? 1 : until;
+            backendStats.lastChange = now;
+            TerminalDisplayManager.addLog("Backend " + backend + " ejected for " + duration / 1_000_000
+                    + " ms: " + reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readmit(BackendManager.BackendInfo backend, Stats backendStats, long now) {
+        lock.lock();
+        try {
+            backendStats.ejectedUntil = 0;
+            backendStats.lastChange = now;
+            backendStats.consecutiveFailures.set(0);
+            // Judge the backend by its traffic after readmission only.
+            backendStats.window.clear();
+            BackendManager.readmitBackend(backend);
+            TerminalDisplayManager.addLog("Backend " + backend + " readmitted");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the statistics of a removed backend, so it no longer counts against the ejection
+     * limit. A backend ejected meanwhile keeps them.
+     */
+    private void forget(BackendManager.BackendInfo backend, Stats backendStats) {
+        lock.lock();
+        try {
+            if (!BackendManager.getRoutingTable().contains(backend) && !BackendManager.isEjected(backend)) {
+                stats.remove(backend, backendStats);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Follows an ejection or readmission that another load balancer made. A backend ejected
+     * elsewhere is readmitted here after the longest ejection time.
+     */
+    private void follow(BackendManager.BackendInfo backend, Stats backendStats, long now) {
+        lock.lock();
+        try {
+            boolean ejected = BackendManager.isEjected(backend);
+            if (ejected == (backendStats.ejectedUntil != 0)) {
+                return;
+            }
+            backendStats.lastChange = now;
+            if (ejected) {
+                long until = now + maxEjectionNanos;
+                backendStats.ejectedUntil = until == 0 ? 1 : until;
+            } else {
+                backendStats.ejectedUntil = 0;
+                backendStats.consecutiveFailures.set(0);
+                backendStats.window.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Traffic and ejection state of one backend. The ejection fields are written under the
+     * lock.
+     */
+    private static final class Stats {
+        final SlidingWindow window = new SlidingWindow();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        // Deadline of the current ejection, or 0 while admitted.
+        volatile long ejectedUntil;
+        volatile long lastChange;
+        volatile int ejections;
+    }
+
+    /**
+     * Request, failure and latency counts over the last {@value #WINDOW_SECONDS} seconds.
+     * <p>
+     * Each bucket holds its second's number and three counters. The first report of a new
+     * second claims the bucket with a compare-and-set and clears it; reports racing with the
+     * clearing may be lost, which only makes the window slightly short.
+     * </p>
+     */
+    private static final class SlidingWindow {
+        private static final int FIELDS = 4;
+        private static final int SECOND = 0;
+        private static final int REQUESTS = 1;
+        private static final int FAILURES = 2;
+        private static final int LATENCY = 3;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(WINDOW_SECONDS * FIELDS);
+
+        SlidingWindow() {
+            clear();
+        }
+
+        void add(long now, boolean failure, long nanos) {
+            long second = now / BUCKET_NANOS;
+            int base = (int) Math.floorMod(second, (long) WINDOW_SECONDS) * FIELDS;
+            long claimed = buckets.get(base + SECOND);
+            if (claimed != second) {
+                if (claimed > second) {
+                    // A stalled report for a bucket already reused.
+                    return;
+                }
+                if (buckets.compareAndSet(base + SECOND, claimed, second)) {
+                    buckets.set(base + REQUESTS, 0);
+                    buckets.set(base + FAILURES, 0);
+                    buckets.set(base + LATENCY, 0);
+                }
+            }
+            buckets.incrementAndGet(base + REQUESTS);
+            if (failure) {
+                buckets.incrementAndGet(base + FAILURES);
+            } else {
+                buckets.addAndGet(base + LATENCY, nanos);
+            }
+        }
+
+        /**
+         * Returns the requests, failures and total latency of the successful requests.
+         */
+        long[] sum(long now) {
+            long second = now / BUCKET_NANOS;
+            long[] sum = new long[3];
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                int base = i * FIELDS;
+                long claimed = buckets.get(base + SECOND);
+                if (claimed <= second && claimed > second - WINDOW_SECONDS) {
+                    sum[0] += buckets.get(base + REQUESTS);
+                    sum[1] += buckets.get(base + FAILURES);
+                    sum[2] += buckets.get(base + LATENCY);
+                }
+            }
+            return sum;
+        }
+
+        void clear() {
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                buckets.set(i * FIELDS + SECOND, Long.MIN_VALUE);
+                buckets.set(i * FIELDS + REQUESTS, 0);
+                buckets.set(i * FIELDS + FAILURES, 0);
+                buckets.set(i * FIELDS + LATENCY, 0);
+            }
+        }
+    }
+}
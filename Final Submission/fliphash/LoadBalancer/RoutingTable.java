@@ -0,0 +1,318 @@
+package LoadBalancer;
+
+import fliphash.FlipHashFunction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the registered backends, each in fixed slots.
+ * <p>
+ * {@link BackendManager} publishes a new table whenever membership changes. A request reads
+ * the current table once and makes every routing decision against it, so the slot count it
+ * hashes with and the backend it picks always belong to the same membership, however the
+ * membership changes meanwhile. Reading a table allocates nothing.
+ * </p>
+ * <p>
+ * FlipHash only remaps the minimum number of keys when the last bucket is added or removed,
+ * so backends never change slots: a removed backend leaves a tombstone, and keys that hash to
+ * a tombstone are rehashed until they reach a live slot. Removing a backend therefore moves
+ * only its own keys, spread evenly over the others. A new backend takes the lowest tombstone,
+ * or a new last slot if there is none; either way only keys that move to it are remapped.
+ * Trailing tombstones are dropped once tombstones outnumber live slots, to keep rehashing
+ * short after a large scale-down.
+ * </p>
+ * <p>
+ * Backends are weighted by virtual buckets: a backend with weight {@code w} holds {@code w}
+ * slots, so it receives about {@code w} times the keys of a backend with weight 1, and keys
+ * rehashed off a tombstone are spread in proportion to weight as well. Changing a weight adds
+ * or tombstones only the difference, so only the keys of those slots move.
+ * </p>
+ */
+public final class RoutingTable {
+
+    /** The table without backends. */
+    public static final RoutingTable EMPTY = new RoutingTable(new BackendManager.BackendInfo[0], 0);
+
+    /** Highest backend weight, which bounds the slots one backend can hold. */
+    public static final int MAX_WEIGHT = 64;
+
+    /** Rehash attempts for a key on a tombstone before falling back to the live slot list. */
+    private static final int MAX_REHASH_ATTEMPTS = 32;
+
+    /** Increment of the splitmix64 sequence (the 64-bit golden ratio). */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /** Backends by slot; {@code null} marks a tombstone. */
+    private final BackendManager.BackendInfo[] slots;
+    /** Slots holding a backend, in ascending order. */
+    private final int[] liveSlots;
+    private final long version;
+    private final List<BackendManager.BackendInfo> list;
+    private final Map<BackendManager.BackendInfo, Integer> weights;
+
+    private RoutingTable(BackendManager.BackendInfo[] slots, long version) {
+        this.slots = slots;
+        this.version = version;
+        List<BackendManager.BackendInfo> backends = new ArrayList<>();
+        Map<BackendManager.BackendInfo, Integer> counts = new HashMap<>();
+        int[] liveIndexes = new int[slots.length];
+        int live = 0;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                liveIndexes[live++] = slot;
+                if (counts.merge(slots[slot], 1, Integer::sum) == 1) {
+                    backends.add(slots[slot]);
+                }
+            }
+        }
+        this.liveSlots = Arrays.copyOf(liveIndexes, live);
+        this.list = Collections.unmodifiableList(backends);
+        this.weights = counts;
+    }
+
+    /**
+     * Returns the number of backends.
+     *
+     * @return the backend count.
+     */
+    public int size() {
+        return list.size();
+    }
+
+    /**
+     * Returns whether the table has no backends.
+     *
+     * @return true if there is no backend to route to.
+     */
+    public boolean isEmpty() {
+        return liveSlots.length == 0;
+    }
+
+    /**
+     * Returns the sum of the backend weights, which is the number of live slots.
+     *
+     * @return the total weight.
+     */
+    public int getTotalWeight() {
+        return liveSlots.length;
+    }
+
+    /**
+     * Returns the number of slots, live or tombstoned; keys are hashed over this range.
+     *
+     * @return the slot count.
+     */
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the backend in a slot.
+     *
+     * @param slot the slot in {@code [0, getSlotCount())}.
+     * @return the backend, or {@code null} if the slot is a tombstone.
+     */
+    public BackendManager.BackendInfo getSlot(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * Routes a 64-bit key.
+     *
+     * @param hash the FlipHash variant.
+     * @param key  the key.
+     * @return the backend, or {@code null} if the table is empty.
+     */
+    public BackendManager.BackendInfo route(FlipHashFunction hash, long key) {
+        if (liveSlots.length == 0) {
+            return null;
+        }
+        return resolve(hash, (int) hash.fliphash(key, slots.length), key);
+    }
+
+    /**
+     * Routes a 128-bit key, such as an IPv6 address.
+     *
+     * @param hash the FlipHash variant.
+     * @param hi   the high 64 bits of the key.
+     * @param lo   the low 64 bits of the key.
+     * @return the backend, or {@code null} if the table is empty.
+     */
+    public BackendManager.BackendInfo route(FlipHashFunction hash, long hi, long lo) {
+        if (liveSlots.length == 0) {
+            return null;
+        }
+        return resolve(hash, (int) hash.fliphash(hi, lo, slots.length), hi ^ Long.rotateLeft(lo, 32));
+    }
+
+    /**
+     * Returns the backend of the key's slot, rehashing the key while it lands on tombstones.
+     */
+    private BackendManager.BackendInfo resolve(FlipHashFunction hash, int slot, long key) {
+        BackendManager.BackendInfo backend = slots[slot];
+        for (int attempt = 1; backend == null && attempt <= MAX_REHASH_ATTEMPTS; attempt++) {
+            backend = slots[(int) hash.fliphash(rehash(key, attempt), slots.length)];
+        }
+        if (backend == null) {
+            backend = slots[liveSlots[(int) hash.fliphash(key, liveSlots.length)]];
+        }
+        return backend;
+    }
+
+    /**
+     * Returns the key of a rehash attempt: the splitmix64 output for the key offset by the
+     * attempt. Unlike an additive step, the mix keeps the attempts of one key unrelated to
+     * the keys callers derive by offsetting theirs, such as the probes of
+     * {@link FlipHashSelector#probe(byte[], RoutingTable, int)}.
+     */
+    private static long rehash(long key, int attempt) {
+        long z = key + attempt * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns whether a backend is in the table.
+     *
+     * @param backend the backend.
+     * @return true if it is registered in this snapshot.
+     */
+    public boolean contains(BackendManager.BackendInfo backend) {
+        return weights.containsKey(backend);
+    }
+
+    /**
+     * Returns the weight of a backend, which is the number of slots it holds.
+     *
+     * @param backend the backend.
+     * @return the weight, or 0 if the backend is not in the table.
+     */
+    public int getWeight(BackendManager.BackendInfo backend) {
+        return weights.getOrDefault(backend, 0);
+    }
+
+    /**
+     * Returns the number of membership changes before this table was built; later tables
+     * have higher versions.
+     *
+     * @return the version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the backends as an unmodifiable list.
+     *
+     * @return the backends in the order of their first slot.
+     */
+    public List<BackendManager.BackendInfo> asList() {
+        return list;
+    }
+
+    /**
+     * Returns a table with a backend added with weight 1, in the lowest tombstone or in a new
+     * last slot.
+     *
+     * @param backend the backend to add.
+     * @return the new table, or this table if the backend is already in it.
+     */
+    public RoutingTable withBackend(BackendManager.BackendInfo backend) {
+        return contains(backend) ? this : withWeight(backend, 1);
+    }
+
+    /**
+     * Returns a table without a backend. Its slots become tombstones; the other backends keep
+     * their slots.
+     *
+     * @param backend the backend to remove.
+     * @return the new table, or this table if the backend is not in it.
+     */
+    public RoutingTable withoutBackend(BackendManager.BackendInfo backend) {
+        return withWeight(backend, 0);
+    }
+
+    /**
+     * Returns a table in which a backend has the given weight. Added slots fill the lowest
+     * tombstones, then new last slots; removed slots are the backend's highest and become
+     * tombstones. Other backends keep their slots.
+     *
+     * @param backend the backend, added if it is not in the table.
+     * @param weight  the new weight in {@code [0, MAX_WEIGHT]}; 0 removes the backend.
+     * @return the new table, or this table if the weight is unchanged.
+     * @throws IllegalArgumentException if the weight is out of range.
+     */
+    public RoutingTable withWeight(BackendManager.BackendInfo backend, int weight) {
+        if (weight < 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Invalid weight for " + backend + ": " + weight);
+        }
+        int current = getWeight(backend);
+        if (weight == current) {
+            return this;
+        }
+        int live = liveSlots.length + weight - current;
+        BackendManager.BackendInfo[] updated = Arrays.copyOf(slots, Math.max(slots.length, live));
+        if (weight > current) {
+            int missing = weight - current;
+            for (int slot = 0; missing > 0; slot++) {
+                if (updated[slot] == null) {
+                    updated[slot] = backend;
+                    missing--;
+                }
+            }
+        } else {
+            int extra = current - weight;
+            for (int slot = updated.length - 1; extra > 0; slot--) {
+                if (backend.equals(updated[slot])) {
+                    updated[slot] = null;
+                    extra--;
+                }
+            }
+        }
+        int length = updated.length;
+        if (length - live > live) {
+            while (length > 0 && updated[length - 1] == null) {
+                length--;
+            }
+        }
+        return new RoutingTable(length < updated.length ? Arrays.copyOf(updated, length) : updated, version + 1);
+    }
+
+    /**
+     * Returns this table under another version, with the same slots.
+     *
+     * @param version the version.
+     * @return the renumbered table, or this table if the version is unchanged.
+     */
+    RoutingTable withVersion(long version) {
+        return version == this.version ? this : new RoutingTable(slots, version);
+    }
+
+    /**
+     * Returns a table with the given slots, such as one received from another load balancer.
+     *
+     * @param slots   the backend of each slot, {@code null} for a tombstone; copied.
+     * @param version the version.
+     * @return the table.
+     * @throws IllegalArgumentException if a backend holds more than {@link #MAX_WEIGHT} slots.
+     */
+    static RoutingTable fromSlots(BackendManager.BackendInfo[] slots, long version) {
+        RoutingTable table = new RoutingTable(slots.clone(), version);
+        for (int weight : table.weights.values()) {
+            if (weight > MAX_WEIGHT) {
+                throw new IllegalArgumentException("Invalid weight: " + weight);
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " " + Arrays.toString(slots);
+    }
+}
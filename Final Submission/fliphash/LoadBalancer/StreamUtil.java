@@ -8,10 +8,15 @@ import java.io.OutputStream;
  */
 public class StreamUtil {
 
-    private static final int BUFFER_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     /**
-     * Pipes data from an input stream to an output stream.
+     * Pipes data from an input stream to an output stream, then closes both.
+     * <p>
+     * The output is flushed once at the end rather than after every chunk, so buffered
+     * outputs can batch small reads into larger writes. Prefer {@link ChannelForwarder} when
+     * both ends are channels.
+     * </p>
      *
      * @param in  the input stream.
      * @param out the output stream.
@@ -23,8 +28,8 @@ public class StreamUtil {
         try {
             while ((bytesRead = in.read(buffer)) != -1) {
                 out.write(buffer, 0, bytesRead);
-                out.flush();
             }
+            out.flush();
         } finally {
             try {
                 in.close();
@@ -0,0 +1,48 @@
+package LoadBalancer;
+
+import java.net.InetAddress;
+import java.util.function.ToIntFunction;
+
+/**
+ * Power-of-two-choices routing over two FlipHash candidates.
+ * <p>
+ * The client key is hashed with two independent seeds (the first two probes of
+ * {@link FlipHashSelector#probe(byte[], RoutingTable, int)}), and the request goes to the
+ * candidate with fewer in-flight requests relative to its weight. Ties go to the first
+ * candidate, the client's FlipHash backend. Each client is thus spread over at most two
+ * backends, which suits stateless jobs: affinity is kept while both are equally busy, and
+ * the latency of the less loaded of two choices is gained when they are not.
+ * </p>
+ */
+public final class TwoChoicesSelector implements BackendSelector {
+
+    private final ToIntFunction<BackendManager.BackendInfo> load;
+
+    /**
+     * Constructor.
+     *
+     * @param load the current load of a backend, such as {@link InFlightRequests#get}.
+     */
+    public TwoChoicesSelector(ToIntFunction<BackendManager.BackendInfo> load) {
+        this.load = load;
+    }
+
+    @Override
+    public BackendManager.BackendInfo select(InetAddress client, RoutingTable table) {
+        byte[] address = client.getAddress();
+        BackendManager.BackendInfo first = FlipHashSelector.probe(address, table, 0);
+        BackendManager.BackendInfo second = FlipHashSelector.probe(address, table, 1);
+        if (first.equals(second)) {
+            return first;
+        }
+        // Compare load / weight without dividing.
+        long firstLoad = (long) load.applyAsInt(first) * table.getWeight(second);
+        long secondLoad = (long) load.applyAsInt(second) * table.getWeight(first);
+        return secondLoad < firstLoad ? second : first;
+    }
+
+    @Override
+    public String toString() {
+        return "two choices";
+    }
+}
@@ -0,0 +1,336 @@
+package fliphash;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary format of the performance metrics backends send to the load balancer.
+ * <p>
+ * Metrics travel in frames of fixed-layout samples, one frame per UDP datagram or back to back
+ * on a TCP connection. All numbers are big-endian. A frame starts with a header:
+ * </p>
+ * <pre>
+ * short magic        MAGIC
+ * byte  version      VERSION
+ * byte  count        samples in the frame, 1 to MAX_SAMPLES
+ * short sampleBytes  size of each sample, at least SAMPLE_BYTES
+ * short reserved     0
+ * </pre>
+ * <p>
+ * followed by {@code count} samples of {@code sampleBytes} bytes each:
+ * </p>
+ * <pre>
+ * byte[16] address      backend address; IPv4 as an IPv4-mapped IPv6 address
+ * short    port         backend port, unsigned
+ * short    reserved     0
+ * int      session      random per reporter start
+ * int      sequence     incremented per sample within a session
+ * int      clientCount  requests the backend is serving
+ * int      capacity     available processors, the routing weight
+ * short    cpuLoad      hundredths of a percent, unsigned
+ * short    memoryUsage  hundredths of a percent, unsigned
+ * short    cpuTemp      hundredths of a degree Celsius; NO_TEMPERATURE if unknown
+ * short    reserved     0
+ * </pre>
+ * <p>
+ * A later version may append fields to a sample and raise {@code sampleBytes}; receivers read
+ * the fields they know and skip the rest. The session and sequence let the receiver drop
+ * samples that UDP reordered or duplicated, and tell a restarted reporter from a late one.
+ * A full frame of {@value #MAX_SAMPLES} samples fits in one unfragmented datagram.
+ * </p>
+ */
+public final class MetricsProtocol {
+
+    /** First two bytes of every frame, "FM". */
+    public static final short MAGIC = 0x464D;
+    /** Version of the format described here. */
+    public static final byte VERSION = 1;
+
+    /** Size of the frame header. */
+    public static final int HEADER_BYTES = 8;
+    /** Size of a version 1 sample. */
+    public static final int SAMPLE_BYTES = 44;
+    /** Most samples in one frame. */
+    public static final int MAX_SAMPLES = 32;
+    /** Size of a full version 1 frame. */
+    public static final int MAX_FRAME_BYTES = HEADER_BYTES + MAX_SAMPLES * SAMPLE_BYTES;
+    /** Largest frame a receiver accepts, which leaves room for longer samples of later versions. */
+    public static final int MAX_RECEIVED_FRAME_BYTES = 65507;
+
+    /** The cpuTemp value of a backend that cannot read its temperature. */
+    public static final short NO_TEMPERATURE = Short.MIN_VALUE;
+
+    private MetricsProtocol() {
+    }
+
+    /**
+     * Returns the number of samples in a frame, checking its header.
+     *
+     * @param frame the frame, from its position to its limit; the position is not changed.
+     * @return the sample count, or -1 if the frame is truncated, not a metrics frame or of an
+     *         unknown version.
+     */
+    public static int sampleCount(ByteBuffer frame) {
+        int size = frameBytes(frame);
+        return size < 0 || frame.remaining() < size ? -1 : frame.get(frame.position() + 3) & 0xFF;
+    }
+
+    /**
+     * Returns the size of each sample in a frame whose header {@link #sampleCount} accepted.
+     *
+     * @param frame the frame; the position is not changed.
+     * @return the sample size.
+     */
+    public static int sampleBytes(ByteBuffer frame) {
+        return frame.getShort(frame.position() + 4) & 0xFFFF;
+    }
+
+    /**
+     * Returns the size of a whole frame from its header, so a stream reader knows how much
+     * follows.
+     *
+     * @param header the first {@link #HEADER_BYTES} bytes of the frame, from its position.
+     * @return the frame size, or -1 if the header is not a known metrics header.
+     */
+    public static int frameBytes(ByteBuffer header) {
+        int start = header.position();
+        if (header.remaining() < HEADER_BYTES || header.getShort(start) != MAGIC || header.get(start + 2) != VERSION) {
+            return -1;
+        }
+        int count = header.get(start + 3) & 0xFF;
+        int sampleBytes = header.getShort(start + 4) & 0xFFFF;
+        int size = HEADER_BYTES + count * sampleBytes;
+        return count == 0 || sampleBytes < SAMPLE_BYTES || size > MAX_RECEIVED_FRAME_BYTES ? -1 : size;
+    }
+
+    /**
+     * Writes a frame header.
+     *
+     * @param frame the buffer, written at its position, which advances.
+     * @param count the number of samples that follow, 1 to {@link #MAX_SAMPLES}.
+     * @throws IllegalArgumentException if the count is out of range.
+     */
+    public static void writeHeader(ByteBuffer frame, int count) {
+        if (count < 1 || count > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Invalid sample count: " + count);
+        }
+        frame.putShort(MAGIC).put(VERSION).put((byte) count).putShort((short) SAMPLE_BYTES).putShort((short) 0);
+    }
+
+    /**
+     * One metrics sample, reused for every sample it reads or writes.
+     */
+    public static final class Sample {
+        private long addressHigh;
+        private long addressLow;
+        private int port;
+        private int session;
+        private int sequence;
+        private int clientCount;
+        private int capacity;
+        private int cpuLoad;
+        private int memoryUsage;
+        private short cpuTemp = NO_TEMPERATURE;
+
+        /**
+         * Reads a sample.
+         *
+         * @param frame  the frame.
+         * @param offset the absolute offset of the sample.
+         * @return this sample.
+         */
+        public Sample read(ByteBuffer frame, int offset) {
+            addressHigh = frame.getLong(offset);
+            addressLow = frame.getLong(offset + 8);
+            port = frame.getShort(offset + 16) & 0xFFFF;
+            session = frame.getInt(offset + 20);
+            sequence = frame.getInt(offset + 24);
+            clientCount = frame.getInt(offset + 28);
+            capacity = frame.getInt(offset + 32);
+            cpuLoad = frame.getShort(offset + 36) & 0xFFFF;
+            memoryUsage = frame.getShort(offset + 38) & 0xFFFF;
+            cpuTemp = frame.getShort(offset + 40);
+            return this;
+        }
+
+        /**
+         * Writes this sample.
+         *
+         * @param frame the buffer, written at its position, which advances by
+         *              {@link #SAMPLE_BYTES}.
+         */
+        public void write(ByteBuffer frame) {
+            frame.putLong(addressHigh).putLong(addressLow).putShort((short) port).putShort((short) 0)
+                    .putInt(session).putInt(sequence).putInt(clientCount).putInt(capacity)
+                    .putShort((short) cpuLoad).putShort((short) memoryUsage).putShort(cpuTemp).putShort((short) 0);
+        }
+
+        /**
+         * Sets the backend.
+         *
+         * @param address the backend address.
+         * @param port    the backend port.
+         * @return this sample.
+         */
+        public Sample setBackend(InetAddress address, int port) {
+            byte[] bytes = address.getAddress();
+            if (address instanceof Inet4Address) {
+                addressHigh = 0;
+                addressLow = 0xFFFF00000000L | (readInt(bytes, 0) & 0xFFFFFFFFL);
+            } else {
+                addressHigh = ((long) readInt(bytes, 0) << 32) | (readInt(bytes, 4) & 0xFFFFFFFFL);
+                addressLow = ((long) readInt(bytes, 8) << 32) | (readInt(bytes, 12) & 0xFFFFFFFFL);
+            }
+            this.port = port & 0xFFFF;
+            return this;
+        }
+
+        /**
+         * Sets the session and sequence number.
+         *
+         * @param session  the reporter's session.
+         * @param sequence the sample's number in the session.
+         * @return this sample.
+         */
+        public Sample setSequence(int session, int sequence) {
+            this.session = session;
+            this.sequence = sequence;
+            return this;
+        }
+
+        /**
+         * Sets the measurements. Percentages and temperatures are rounded to hundredths.
+         *
+         * @param cpuLoad     the CPU load in percent.
+         * @param cpuTemp     the CPU temperature in degrees Celsius; 0 or NaN if unknown.
+         * @param memoryUsage the memory usage in percent.
+         * @param clientCount the requests being served.
+         * @param capacity    the available processors.
+         * @return this sample.
+         */
+        public Sample setMetrics(double cpuLoad, double cpuTemp, double memoryUsage, int clientCount, int capacity) {
+            this.cpuLoad = hundredths(cpuLoad, 0, 0xFFFF);
+            this.memoryUsage = hundredths(memoryUsage, 0, 0xFFFF);
+            this.cpuTemp = cpuTemp > 0 ? (short) hundredths(cpuTemp, Short.MIN_VALUE + 1, Short.MAX_VALUE) : NO_TEMPERATURE;
+            this.clientCount = clientCount;
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Returns the high 64 bits of the backend address.
+         *
+         * @return the bits.
+         */
+        public long getAddressHigh() {
+            return addressHigh;
+        }
+
+        /**
+         * Returns the low 64 bits of the backend address.
+         *
+         * @return the bits.
+         */
+        public long getAddressLow() {
+            return addressLow;
+        }
+
+        /**
+         * Returns the backend address as bytes: 4 for an IPv4-mapped address, 16 otherwise.
+         *
+         * @return a new array.
+         */
+        public byte[] getAddressBytes() {
+            if (addressHigh == 0 && (addressLow >>> 32) == 0xFFFF) {
+                return new byte[]{(byte) (addressLow >>> 24), (byte) (addressLow >>> 16),
+                        (byte) (addressLow >>> 8), (byte) addressLow};
+            }
+            return ByteBuffer.allocate(16).putLong(addressHigh).putLong(addressLow).array();
+        }
+
+        /**
+         * Returns the backend port.
+         *
+         * @return the port.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Returns the reporter's session.
+         *
+         * @return the session.
+         */
+        public int getSession() {
+            return session;
+        }
+
+        /**
+         * Returns the sample's number in its session.
+         *
+         * @return the sequence number.
+         */
+        public int getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Returns the number of requests the backend is serving.
+         *
+         * @return the client count.
+         */
+        public int getClientCount() {
+            return clientCount;
+        }
+
+        /**
+         * Returns the backend's capacity.
+         *
+         * @return the number of available processors.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns the CPU load.
+         *
+         * @return the load in percent.
+         */
+        public double getCpuLoad() {
+            return cpuLoad / 100.0;
+        }
+
+        /**
+         * Returns the memory usage.
+         *
+         * @return the usage in percent.
+         */
+        public double getMemoryUsage() {
+            return memoryUsage / 100.0;
+        }
+
+        /**
+         * Returns the CPU temperature.
+         *
+         * @return the temperature in degrees Celsius, or NaN if unknown.
+         */
+        public double getCpuTemp() {
+            return cpuTemp == NO_TEMPERATURE ? Double.NaN : cpuTemp / 100.0;
+        }
+
+        private static int hundredths(double value, int min, int max) {
+            if (Double.isNaN(value)) {
+                return min;
+            }
+            return (int) Math.max(min, Math.min(max, Math.round(value * 100)));
+        }
+
+        private static int readInt(byte[] bytes, int offset) {
+            return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                    | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        }
+    }
+}
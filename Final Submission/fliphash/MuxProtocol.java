@@ -0,0 +1,312 @@
+package fliphash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multiplexed binary protocol between the load balancer and the backends.
+ * <p>
+ * A connection that starts with the {@value #INITIAL_MESSAGE} initial message (written with
+ * {@code writeUTF}, like the other initial messages) carries any number of concurrent jobs,
+ * each in its own stream. Everything after the initial message is a sequence of frames:
+ * </p>
+ * <pre>
+ * int  streamId   chosen by the load balancer, unique per connection
+ * byte type       OPEN, DATA, END, WINDOW or RESET
+ * int  length     payload length, at most MAX_PAYLOAD
+ * byte[length]    payload
+ * </pre>
+ * <p>
+ * A job is an OPEN frame (payload: {@code long} file size, then the file name in UTF-8), the
+ * file in DATA frames and an END frame from the load balancer, answered by the output in DATA
+ * frames and an END frame from the backend. RESET aborts a stream in either direction, with an
+ * optional UTF-8 reason.
+ * </p>
+ * <p>
+ * Flow control is per stream and direction: a sender may have at most {@value #INITIAL_WINDOW}
+ * unacknowledged DATA bytes in flight, and the receiver returns credit with WINDOW frames
+ * (payload: {@code int} increment) as it consumes data. A slow client therefore only stalls
+ * its own stream, not the shared connection.
+ * </p>
+ */
+public final class MuxProtocol {
+
+    /** Initial message that switches a backend connection to this protocol. */
+    public static final String INITIAL_MESSAGE = "mux";
+
+    /** Opens a stream. */
+    public static final byte OPEN = 1;
+    /** Carries stream data. */
+    public static final byte DATA = 2;
+    /** Ends the data of a stream in one direction. */
+    public static final byte END = 3;
+    /** Grants the peer more send credit on a stream. */
+    public static final byte WINDOW = 4;
+    /** Aborts a stream. */
+    public static final byte RESET = 5;
+
+    /** Largest frame payload. */
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    /** Send credit of each stream direction before the first WINDOW frame. */
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private MuxProtocol() {
+    }
+
+    /**
+     * A received frame.
+     */
+    public static final class Frame {
+        public final int streamId;
+        public final byte type;
+        public final byte[] payload;
+
+        Frame(int streamId, byte type, byte[] payload) {
+            this.streamId = streamId;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * Returns the file size of an OPEN frame.
+         *
+         * @return the announced file size.
+         */
+        public long openSize() {
+            return ((long) readInt(payload, 0) << 32) | (readInt(payload, 4) & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Returns the file name of an OPEN frame.
+         *
+         * @return the file name.
+         */
+        public String openName() {
+            return new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the credit of a WINDOW frame.
+         *
+         * @return the window increment.
+         */
+        public int windowIncrement() {
+            return readInt(payload, 0);
+        }
+
+        /**
+         * Returns the reason of a RESET frame.
+         *
+         * @return the reason, possibly empty.
+         */
+        public String resetReason() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @param in the connection input, positioned at a frame boundary.
+     * @return the frame, or {@code null} if the connection ended at a frame boundary.
+     * @throws IOException if the connection fails or a frame is malformed.
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int streamId;
+        try {
+            streamId = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length + " on stream " + streamId);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(streamId, type, payload);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes whole frames to a connection; safe to share between threads.
+     */
+    public static final class FrameWriter {
+        private final DataOutputStream out;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Constructor.
+         *
+         * @param out the connection output.
+         */
+        public FrameWriter(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, MAX_PAYLOAD + 16));
+        }
+
+        /**
+         * Writes one frame and flushes it.
+         *
+         * @param streamId the stream.
+         * @param type     the frame type.
+         * @param payload  the payload array.
+         * @param offset   the first payload byte.
+         * @param length   the payload length, at most {@link #MAX_PAYLOAD}.
+         * @throws IOException if the connection fails.
+         */
+        public void write(int streamId, byte type, byte[] payload, int offset, int length) throws IOException {
+            lock.lock();
+            try {
+                out.writeInt(streamId);
+                out.writeByte(type);
+                out.writeInt(length);
+                out.write(payload, offset, length);
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Writes an OPEN frame.
+         *
+         * @param streamId the new stream.
+         * @param fileName the name of the uploaded file.
+         * @param fileSize the size of the uploaded file.
+         * @throws IOException if the connection fails.
+         */
+        public void writeOpen(int streamId, String fileName, long fileSize) throws IOException {
+            byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = new byte[8 + name.length];
+            writeInt(payload, 0, (int) (fileSize >>> 32));
+            writeInt(payload, 4, (int) fileSize);
+            System.arraycopy(name, 0, payload, 8, name.length);
+            write(streamId, OPEN, payload, 0, payload.length);
+        }
+
+        /**
+         * Writes a WINDOW frame.
+         *
+         * @param streamId  the stream.
+         * @param increment the credit granted.
+         * @throws IOException if the connection fails.
+         */
+        public void writeWindow(int streamId, int increment) throws IOException {
+            byte[] payload = new byte[4];
+            writeInt(payload, 0, increment);
+            write(streamId, WINDOW, payload, 0, 4);
+        }
+
+        /**
+         * Writes an END frame.
+         *
+         * @param streamId the stream.
+         * @throws IOException if the connection fails.
+         */
+        public void writeEnd(int streamId) throws IOException {
+            write(streamId, END, new byte[0], 0, 0);
+        }
+
+        /**
+         * Writes a RESET frame.
+         *
+         * @param streamId the stream.
+         * @param reason   why the stream is aborted.
+         * @throws IOException if the connection fails.
+         */
+        public void writeReset(int streamId, String reason) throws IOException {
+            byte[] payload = reason.getBytes(StandardCharsets.UTF_8);
+            write(streamId, RESET, payload, 0, Math.min(payload.length, MAX_PAYLOAD));
+        }
+
+        private static void writeInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+    }
+
+    /**
+     * Send credit of one stream direction.
+     */
+    public static final class SendWindow {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private long available = INITIAL_WINDOW;
+        private String closedReason;
+
+        /**
+         * Waits for credit and takes up to the wanted amount.
+         *
+         * @param wanted the most bytes the caller wants to send, at least one.
+         * @return the number of bytes that may be sent, between 1 and {@code wanted}.
+         * @throws IOException if the stream was closed while waiting.
+         */
+        public int acquire(int wanted) throws IOException {
+            lock.lock();
+            try {
+                while (available == 0 && closedReason == null) {
+                    changed.await();
+                }
+                if (closedReason != null) {
+                    throw new IOException(closedReason);
+                }
+                int granted = (int) Math.min(wanted, available);
+                available -= granted;
+                return granted;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for stream credit");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds credit received in a WINDOW frame.
+         *
+         * @param increment the credit.
+         */
+        public void grant(int increment) {
+            lock.lock();
+            try {
+                available += increment;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Fails current and future waiters, for example when the stream is reset.
+         *
+         * @param reason the message of the resulting exceptions.
+         */
+        public void close(String reason) {
+            lock.lock();
+            try {
+                if (closedReason == null) {
+                    closedReason = reason;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * TerminalDisplayManager handles logging and live terminal display updates for the Load Balancer.
@@ -20,8 +21,12 @@ public class TerminalDisplayManager {
     /** In-memory buffer to store log messages. */
     private static final List<String> logBuffer = new ArrayList<>();
     
-    /** Lock object for thread-safe log buffer operations. */
-    private static final Object lock = new Object();
+    /**
+     * Lock for thread-safe log buffer operations. A {@link ReentrantLock} rather than a
+     * {@code synchronized} block, so a virtual thread waiting for it or writing the log file
+     * under it does not pin its carrier thread.
+     */
+    private static final ReentrantLock lock = new ReentrantLock();
     
     /** Name of the log file to which logs are flushed. */
     private static final String LOG_FILE_NAME = "LoadBalancerOutputLog.txt";
@@ -52,11 +57,14 @@ public class TerminalDisplayManager {
      * @param log the log message to add.
      */
     public static void addLog(String log) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             logBuffer.add(log);
             if (logBuffer.size() >= MAX_LOG_LINES) {
                 flushBufferToFile();
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -130,7 +138,8 @@ public class TerminalDisplayManager {
      * @param backendMetrics a map of backend IDs to JSON-like metrics strings.
      */
     public static void updateDisplay(Map<String, String> backendMetrics) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             // Clear the alternate screen.
             System.out.print("\033[3J\033[H\033[2J");
             System.out.flush();
@@ -155,6 +164,8 @@ public class TerminalDisplayManager {
             for (String log : logBuffer) {
                 System.out.println(log);
             }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -1,9 +1,16 @@
 package backend;
 
+import fliphash.ConnectionExecutors;
+import fliphash.gossip.Member;
+import fliphash.gossip.MembershipListener;
+import fliphash.gossip.SwimNode;
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -19,14 +26,33 @@ public class BackendServer {
     public static final String LB_HOST = "10.110.230.244";
     public static final int LB_REGISTRATION_PORT = 6001;
     public static final int LB_METRICS_PORT = 6003;
+    public static final int LB_GOSSIP_PORT = 6004;
+    public static final long METRICS_INTERVAL_MS = 10000;
     public static final String SANDBOX_DIR = "sandbox/";
     public static final String POLICY_FILE = "sandbox.policy";
     
-    // Counter for the number of active client connections.
+    // Counter for the number of client requests being received or executed.
     public static final AtomicInteger clientCount = new AtomicInteger(0);
     
     /**
      * Main entry point.
+     * <p>
+     * Proxied connections run on platform or virtual threads, selected with
+     * {@code -Dfliphash.threads}; see {@link ConnectionExecutors}.
+     * </p>
+     * <p>
+     * With {@code -Dfliphash.gossip.port=<udp port>} the backend joins the load balancers'
+     * gossip membership instead of registering over TCP. It joins through
+     * {@code -Dfliphash.gossip.seeds} (comma-separated {@code host:port} pairs, defaulting to
+     * the load balancer's port {@value #LB_GOSSIP_PORT}) and gossips every
+     * {@code -Dfliphash.gossip.periodMs} milliseconds.
+     * </p>
+     * <p>
+     * Metrics are sampled every {@code -Dfliphash.metrics.intervalMs} milliseconds (default
+     * {@value #METRICS_INTERVAL_MS}) and sent every {@code -Dfliphash.metrics.batch} samples
+     * (default 1) to the load balancer's metrics port, over UDP or, with
+     * {@code -Dfliphash.metrics.transport=tcp}, over one kept-open TCP connection.
+     * </p>
      *
      * @param args command line arguments (not used)
      */
@@ -35,29 +61,79 @@ public class BackendServer {
         EnvironmentSetup.ensurePolicyFileExists(POLICY_FILE);
         EnvironmentSetup.createSandboxDirectory(SANDBOX_DIR);
         
-        // Register this backend with the load balancer.
-        RegistrationHandler.registerWithLoadBalancer(LB_HOST, LB_REGISTRATION_PORT, BACKEND_PORT);
+        // Register this backend with the load balancer, or join the gossip membership.
+        String gossipPort = System.getProperty("fliphash.gossip.port");
+        if (gossipPort != null) {
+            joinGossip(Integer.parseInt(gossipPort.trim()));
+        } else {
+            RegistrationHandler.registerWithLoadBalancer(LB_HOST, LB_REGISTRATION_PORT, BACKEND_PORT);
+        }
         
         // Start a background thread to report performance metrics.
-        new Thread(() -> MetricsReporter.reportMetricsPeriodically(LB_HOST, LB_METRICS_PORT, BACKEND_PORT, clientCount)).start();
+        boolean metricsOverTcp = System.getProperty("fliphash.metrics.transport", "udp").trim().equalsIgnoreCase("tcp");
+        long metricsIntervalMillis = Long.getLong("fliphash.metrics.intervalMs", METRICS_INTERVAL_MS);
+        int metricsBatch = Integer.getInteger("fliphash.metrics.batch", 1);
+        new Thread(() -> MetricsReporter.reportMetricsPeriodically(LB_HOST, LB_METRICS_PORT, BACKEND_PORT, clientCount,
+                metricsOverTcp, metricsIntervalMillis, metricsBatch)).start();
         
         // Listen for proxied connections from the load balancer.
-        try (ServerSocket serverSocket = new ServerSocket(BACKEND_PORT)) {
+        ExecutorService executor = ConnectionExecutors.newConnectionExecutor("backend-proxy");
+        // Accepting through a channel gives each socket a channel, which lets the upload be
+        // written to disk with FileChannel.transferFrom.
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(BACKEND_PORT));
             System.out.println("Backend Server listening on port " + BACKEND_PORT);
             while (true) {
-                Socket proxyConn = serverSocket.accept();
-                clientCount.incrementAndGet();
-                // Create a new thread to handle each proxied connection.
-                new Thread(() -> {
-                    try {
-                        ProxyConnectionHandler.handleProxyConnection(proxyConn, SANDBOX_DIR, POLICY_FILE);
-                    } finally {
-                        clientCount.decrementAndGet();
-                    }
-                }).start();
+                Socket proxyConn = serverSocket.accept().socket();
+                // Handle each proxied connection on its own thread. The handler counts active
+                // requests, as a pooled keep-alive connection may sit idle.
+                executor.execute(() ->
+                        ProxyConnectionHandler.handleProxyConnection(proxyConn, SANDBOX_DIR, POLICY_FILE, clientCount));
             }
         } catch (IOException e) {
             System.err.println("Backend Server error: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Starts this backend's gossip node; it announces its departure when the JVM shuts down.
+     *
+     * @param port the UDP port of the gossip node.
+     */
+    private static void joinGossip(int port) {
+        try {
+            SwimNode node = new SwimNode(new InetSocketAddress(InetAddress.getLocalHost(), port), Member.Role.BACKEND,
+                    BACKEND_PORT, SwimNode.parseAddresses(System.getProperty("fliphash.gossip.seeds",
+                            LB_HOST + ":" + LB_GOSSIP_PORT)),
+                    Long.getLong("fliphash.gossip.periodMs", SwimNode.DEFAULT_PERIOD_MILLIS),
+                    new MembershipListener() {
+                        @Override
+                        public void memberUp(Member member) {
+                            if (member.getRole() == Member.Role.LOAD_BALANCER) {
+                                System.out.println("Load balancer joined: " + member);
+                            }
+                        }
+
+                        @Override
+                        public void memberDown(Member member) {
+                            if (member.getRole() == Member.Role.LOAD_BALANCER) {
+                                System.out.println("Load balancer left: " + member);
+                            }
+                        }
+                    });
+            new Thread(node, "gossip").start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    node.leave();
+                } catch (InterruptedException ignored) {
+                    // Ignore cleanup exceptions.
+                }
+            }));
+            System.out.println("Gossip membership on " + node.getSelf().getAddress());
+        } catch (IOException e) {
+            System.err.println("Gossip membership error: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,113 @@
+package backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a response of unknown length on a keep-alive connection as a series of chunks, each an
+ * {@code int} length followed by that many bytes, ended by a zero length.
+ * <p>
+ * Data is buffered until the buffer is full or the stream is flushed, so a flush after every
+ * piece of job output produces one chunk per piece. Each chunk, length included, is passed to
+ * the connection in a single write. Closing the stream ends the response but leaves the
+ * connection open for the next request.
+ * </p>
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    private static final int HEADER_SIZE = 4;
+
+    private final OutputStream out;
+    /** The length of the pending chunk followed by its data, with room for the end marker. */
+    private final byte[] chunk;
+    /** End of the data part of {@link #chunk}. */
+    private final int limit;
+    private int count = HEADER_SIZE;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param out          the connection output
+     * @param maxChunkSize the most data bytes per chunk
+     */
+    ChunkedOutputStream(OutputStream out, int maxChunkSize) {
+        this.out = out;
+        this.limit = HEADER_SIZE + maxChunkSize;
+        this.chunk = new byte[limit + HEADER_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == limit) {
+            writeChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == limit) {
+                writeChunk();
+            }
+            int n = Math.min(length, limit - count);
+            System.arraycopy(bytes, offset, chunk, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * Sends the remaining data and the end marker, without closing the connection.
+     * <p>
+     * The end marker goes out in the same write as the last data, as a separate small write
+     * could wait for the acknowledgement of the previous one.
+     * </p>
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        int length = count - HEADER_SIZE;
+        int end = count;
+        if (length > 0) {
+            writeInt(0, length);
+        } else {
+            end = 0;
+        }
+        // The end marker is an empty chunk.
+        writeInt(end, 0);
+        out.write(chunk, 0, end + HEADER_SIZE);
+        out.flush();
+        count = HEADER_SIZE;
+    }
+
+    private void writeChunk() throws IOException {
+        int length = count - HEADER_SIZE;
+        if (length == 0) {
+            return;
+        }
+        writeInt(0, length);
+        out.write(chunk, 0, count);
+        count = HEADER_SIZE;
+    }
+
+    private void writeInt(int offset, int value) {
+        chunk[offset] = (byte) (value >>> 24);
+        chunk[offset + 1] = (byte) (value >>> 16);
+        chunk[offset + 2] = (byte) (value >>> 8);
+        chunk[offset + 3] = (byte) value;
+    }
+}
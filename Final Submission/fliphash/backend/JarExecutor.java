@@ -1,18 +1,28 @@
 package backend;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Executes a received JAR file in a sandboxed environment.
  * <p>
  * The JAR is run using the specified policy file, and any lines starting with "WARNING:" are filtered out.
+ * The output is streamed to the caller as the process produces it, so memory use does not grow with
+ * the size of the output.
  * </p>
  */
 public class JarExecutor {
 
+    private static final byte[] WARNING_PREFIX = "WARNING:".getBytes(StandardCharsets.US_ASCII);
+
+    // Size of the buffer the process output is read into.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * Executes the provided JAR file under a sandbox security policy.
      *
@@ -21,7 +31,29 @@ public class JarExecutor {
      * @return the execution output from the JAR file, with warnings filtered out
      */
     public static String runJarInSandbox(File jarFile, String policyFile) {
-        StringBuilder outputBuilder = new StringBuilder();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            runJarInSandbox(jarFile, policyFile, output);
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Executes the provided JAR file under a sandbox security policy, writing its output to a
+     * stream as it is produced. The stream is flushed after every read from the process, so a
+     * socket receives each piece of output without waiting for the job to finish.
+     *
+     * @param jarFile    the JAR file to execute
+     * @param policyFile the policy file to apply during execution
+     * @param out        receives the execution output, with warnings filtered out
+     * @return the number of bytes written to {@code out}
+     * @throws IOException if writing to {@code out} fails; the process is then killed
+     */
+    public static long runJarInSandbox(File jarFile, String policyFile, OutputStream out) throws IOException {
+        // The filter writes line by line; buffering turns that into one write per read from the process.
+        WarningFilter filter = new WarningFilter(new BufferedOutputStream(out, BUFFER_SIZE));
         try {
             ProcessBuilder pb = new ProcessBuilder(
                 "java",
@@ -32,25 +64,173 @@ public class JarExecutor {
             );
             pb.redirectErrorStream(true);
             Process process = pb.start();
-            
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!line.startsWith("WARNING:")) {
-                        outputBuilder.append(line).append("\n");
-                    }
+
+            try (InputStream processOutput = process.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = processOutput.read(buffer)) != -1) {
+                    filter.write(buffer, bytesRead);
+                    filter.flush();
                 }
+                filter.finish();
+            } catch (OutputException e) {
+                // The receiver is gone, so nobody is waiting for the rest of the output.
+                process.destroyForcibly();
+                throw e;
             }
-            
+
             // Wait for the process to finish (timeout after 60 seconds).
             boolean finished = process.waitFor(60, java.util.concurrent.TimeUnit.SECONDS);
             if (!finished) {
                 process.destroy();
-                outputBuilder.append("Execution timed out and was terminated.\n");
+                filter.append("Execution timed out and was terminated.\n");
             }
+        } catch (OutputException e) {
+            throw e.getCause();
         } catch (IOException | InterruptedException e) {
-            outputBuilder.append("Error during execution: ").append(e.getMessage());
+            filter.append("Error during execution: " + e.getMessage());
+        }
+        filter.out.flush();
+        return filter.written;
+    }
+
+    /**
+     * Signals that writing to the caller's stream failed, as opposed to reading from the
+     * process.
+     */
+    private static final class OutputException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OutputException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Drops lines starting with {@code WARNING:} from a byte stream. Only the start of the
+     * current line is held back while it may still turn out to be a warning.
+     * <p>
+     * Like the line reader the output used to be collected with, it ends every line with
+     * {@code \n}: {@code \r\n} and a lone {@code \r} are written as {@code \n}, and so is the
+     * missing end of an unterminated last line.
+     * </p>
+     */
+    private static final class WarningFilter {
+        private static final byte[] NEWLINE = {'\n'};
+
+        final OutputStream out;
+        /** Number of prefix bytes matched at the start of the current line, or -1 past the start. */
+        private int matched;
+        private boolean skipping;
+        /** Whether the last line ended with {@code \r}, so a {@code \n} right after it belongs to it. */
+        private boolean afterCarriageReturn;
+        long written;
+
+        WarningFilter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] bytes, int length) throws OutputException {
+            int start = 0;
+            while (start < length) {
+                if (afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    if (bytes[start] == '\n') {
+                        start++;
+                        continue;
+                    }
+                }
+                if (skipping) {
+                    int lineEnd = indexOfLineEnd(bytes, start, length);
+                    if (lineEnd < 0) {
+                        return;
+                    }
+                    skipping = false;
+                    matched = 0;
+                    afterCarriageReturn = bytes[lineEnd] == '\r';
+                    start = lineEnd + 1;
+                } else if (matched >= 0) {
+                    byte b = bytes[start];
+                    if (b == WARNING_PREFIX[matched]) {
+                        start++;
+                        if (++matched == WARNING_PREFIX.length) {
+                            skipping = true;
+                        }
+                    } else {
+                        // Not a warning: release the held-back bytes and copy the rest of the line.
+                        emit(WARNING_PREFIX, 0, matched);
+                        matched = -1;
+                    }
+                } else {
+                    int lineEnd = indexOfLineEnd(bytes, start, length);
+                    if (lineEnd < 0) {
+                        emit(bytes, start, length - start);
+                        return;
+                    }
+                    if (bytes[lineEnd] == '\n') {
+                        emit(bytes, start, lineEnd + 1 - start);
+                    } else {
+                        emit(bytes, start, lineEnd - start);
+                        emit(NEWLINE, 0, 1);
+                        afterCarriageReturn = true;
+                    }
+                    matched = 0;
+                    start = lineEnd + 1;
+                }
+            }
+        }
+
+        void finish() throws OutputException {
+            if (matched != 0 && !skipping) {
+                emit(WARNING_PREFIX, 0, Math.max(0, matched));
+                emit(NEWLINE, 0, 1);
+            }
+            matched = 0;
+            skipping = false;
+            afterCarriageReturn = false;
+        }
+
+        void append(String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            try {
+                emit(bytes, 0, bytes.length);
+            } catch (OutputException e) {
+                throw e.getCause();
+            }
+        }
+
+        void flush() throws OutputException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new OutputException(e);
+            }
+        }
+
+        private void emit(byte[] bytes, int offset, int length) throws OutputException {
+            if (length == 0) {
+                return;
+            }
+            try {
+                out.write(bytes, offset, length);
+            } catch (IOException e) {
+                throw new OutputException(e);
+            }
+            written += length;
+        }
+
+        private static int indexOfLineEnd(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    return i;
+                }
+            }
+            return -1;
         }
-        return outputBuilder.toString();
     }
 }
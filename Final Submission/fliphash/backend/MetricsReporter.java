@@ -6,18 +6,27 @@ import oshi.hardware.Sensors;
 import oshi.software.os.OperatingSystem;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.concurrent.TimeUnit;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import fliphash.MetricsProtocol;
 // Import the Validator class if using it for user input.
 import fliphash.Validator;
 
 /**
  * Gathers and sends performance metrics of the backend server.
  * <p>
- * Metrics include CPU load, CPU temperature, memory usage, and active client count.
+ * Metrics include CPU load, CPU temperature, memory usage, active client count, and capacity
+ * (the number of available processors), which the load balancer uses as the routing weight.
+ * They are sent as {@link MetricsProtocol} samples, several per frame if asked, in UDP
+ * datagrams or over one TCP connection that stays open between reports.
  * </p>
  */
 public class MetricsReporter {
@@ -30,71 +39,154 @@ public class MetricsReporter {
     
     /**
      * Periodically gathers system metrics and sends them to the load balancer.
+     * <p>
+     * A failed send asks whether to keep trying; later sends are then retried quietly until
+     * one succeeds. Samples of a failed frame are not resent, as newer ones follow.
+     * </p>
      *
-     * @param lbHost        the load balancer host
-     * @param lbMetricsPort the load balancer metrics port
-     * @param backendPort   the backend server port
-     * @param clientCount   current active client count
+     * @param lbHost          the load balancer host
+     * @param lbMetricsPort   the load balancer metrics port
+     * @param backendPort     the backend server port
+     * @param clientCount     current active client count
+     * @param overTcp         whether to send over TCP instead of UDP
+     * @param intervalMillis  the time between samples
+     * @param samplesPerFrame the samples sent together, 1 to {@link MetricsProtocol#MAX_SAMPLES}
+     * @throws IllegalArgumentException if the interval or the samples per frame are out of range
      */
-    public static void reportMetricsPeriodically(String lbHost, int lbMetricsPort, int backendPort, AtomicInteger clientCount) {
+    public static void reportMetricsPeriodically(String lbHost, int lbMetricsPort, int backendPort, AtomicInteger clientCount,
+                                                 boolean overTcp, long intervalMillis, int samplesPerFrame) {
+        if (intervalMillis < 1 || samplesPerFrame < 1 || samplesPerFrame > MetricsProtocol.MAX_SAMPLES) {
+            throw new IllegalArgumentException("Invalid metrics interval or batch: " + intervalMillis + ", " + samplesPerFrame);
+        }
+        // A new session tells the load balancer that sequence numbers start over.
+        int session = ThreadLocalRandom.current().nextInt();
+        int sequence = 0;
+        MetricsProtocol.Sample sample = new MetricsProtocol.Sample();
+        ByteBuffer frame = ByteBuffer.allocate(MetricsProtocol.MAX_FRAME_BYTES);
+        frame.position(MetricsProtocol.HEADER_BYTES);
+        int samples = 0;
+        InetAddress backendAddress = null;
+        WritableByteChannel channel = null;
+        boolean retrying = false;
+        
         // Capture the initial CPU ticks.
         long[] prevTicks = hal.getProcessor().getSystemCpuLoadTicks();
-        while (true) {
-            try {
-                // Sleep for 10 seconds between reports.
-                Thread.sleep(10000);
-                
-                // Gather system metrics.
-                long[] ticks = hal.getProcessor().getSystemCpuLoadTicks();
-                double cpuLoad = hal.getProcessor().getSystemCpuLoadBetweenTicks(prevTicks) * 100;
-                prevTicks = ticks;
-                
-                double cpuTemp = sensors.getCpuTemperature();
-                long totalMemory = hal.getMemory().getTotal();
-                long availableMemory = hal.getMemory().getAvailable();
-                double memoryUsage = 100.0 * (totalMemory - availableMemory) / totalMemory;
-                int clients = clientCount.get();
-                
-                // Build the JSON string of metrics.
-                String backendId = java.net.InetAddress.getLocalHost().getHostAddress() + ":" + backendPort;
-                String metricsJson = String.format(
-                    "{\"backendId\":\"%s\", \"cpuLoad\":%.2f, \"cpuTemp\":%.2f, \"memoryUsage\":%.2f, \"clientCount\":%d}",
-                    backendId, cpuLoad, cpuTemp, memoryUsage, clients
-                );
-                
-                // Send metrics to the load balancer.
-                try (Socket metricsSocket = new Socket(lbHost, lbMetricsPort);
-                     PrintWriter out = new PrintWriter(metricsSocket.getOutputStream(), true)) {
-                    out.println(metricsJson);
-                } catch (IOException e) {
-                    System.err.println("Error sending metrics: " + e.getMessage());
-                    if (askRetry("metrics transmission")) {
-                        boolean sent = false;
-                        while (!sent) {
-                            try {
-                                TimeUnit.SECONDS.sleep(10);
-                                try (Socket metricsSocket = new Socket(lbHost, lbMetricsPort);
-                                     PrintWriter out = new PrintWriter(metricsSocket.getOutputStream(), true)) {
-                                    out.println(metricsJson);
-                                    sent = true;
-                                    System.out.println("Reconnected and metrics transmitted successfully.");
-                                }
-                            } catch (IOException | InterruptedException ex) {
-                                System.err.println("Retrying metrics transmission failed: " + ex.getMessage());
+        try {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    
+                    // Gather system metrics.
+                    long[] ticks = hal.getProcessor().getSystemCpuLoadTicks();
+                    double cpuLoad = hal.getProcessor().getSystemCpuLoadBetweenTicks(prevTicks) * 100;
+                    prevTicks = ticks;
+                    
+                    double cpuTemp = sensors.getCpuTemperature();
+                    long totalMemory = hal.getMemory().getTotal();
+                    long availableMemory = hal.getMemory().getAvailable();
+                    double memoryUsage = 100.0 * (totalMemory - availableMemory) / totalMemory;
+                    int clients = clientCount.get();
+                    int capacity = Runtime.getRuntime().availableProcessors();
+                    
+                    // Add the sample to the frame.
+                    if (backendAddress == null) {
+                        backendAddress = InetAddress.getLocalHost();
+                    }
+                    sample.setBackend(backendAddress, backendPort)
+                            .setSequence(session, sequence++)
+                            .setMetrics(cpuLoad, cpuTemp, memoryUsage, clients, capacity)
+                            .write(frame);
+                    if (++samples < samplesPerFrame) {
+                        continue;
+                    }
+                    
+                    // Send the frame to the load balancer.
+                    int end = frame.position();
+                    frame.position(0);
+                    MetricsProtocol.writeHeader(frame, samples);
+                    frame.position(0).limit(end);
+                    samples = 0;
+                    try {
+                        if (channel == null) {
+                            channel = open(lbHost, lbMetricsPort, overTcp);
+                        }
+                        while (frame.hasRemaining()) {
+                            channel.write(frame);
+                        }
+                        if (retrying) {
+                            retrying = false;
+                            System.out.println("Reconnected and metrics transmitted successfully.");
+                        }
+                    } catch (IOException e) {
+                        channel = close(channel);
+                        if (retrying) {
+                            System.err.println("Retrying metrics transmission failed: " + e.getMessage());
+                        } else {
+                            System.err.println("Error sending metrics: " + e.getMessage());
+                            if (!askRetry("metrics transmission")) {
+                                System.out.println("Exiting metrics transmission as per user request.");
+                                System.exit(0);
                             }
+                            retrying = true;
                         }
-                    } else {
-                        System.out.println("Exiting metrics transmission as per user request.");
-                        System.exit(0);
+                    } finally {
+                        frame.clear().position(MetricsProtocol.HEADER_BYTES);
                     }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (IOException ioe) {
+                    System.err.println("Error getting backend ID: " + ioe.getMessage());
                 }
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (IOException ioe) {
-                System.err.println("Error getting backend ID: " + ioe.getMessage());
+            }
+        } finally {
+            close(channel);
+        }
+    }
+    
+    /**
+     * Opens the channel to the load balancer: a TCP connection, or a UDP socket connected to
+     * it so that an unreachable port is reported on later sends.
+     *
+     * @param lbHost        the load balancer host
+     * @param lbMetricsPort the load balancer metrics port
+     * @param overTcp       whether to use TCP
+     * @return the channel
+     * @throws IOException if the host is unknown or the connection fails
+     */
+    private static WritableByteChannel open(String lbHost, int lbMetricsPort, boolean overTcp) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(lbHost, lbMetricsPort);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(lbHost);
+        }
+        if (overTcp) {
+            return SocketChannel.open(address);
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            close(channel);
+            throw e;
+        }
+        return channel;
+    }
+    
+    /**
+     * Closes a channel, if any.
+     *
+     * @param channel the channel, or null
+     * @return null
+     */
+    private static WritableByteChannel close(WritableByteChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
             }
         }
+        return null;
     }
     
     /**
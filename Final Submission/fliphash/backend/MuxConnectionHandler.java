@@ -0,0 +1,273 @@
+package backend;
+
+import fliphash.ConnectionExecutors;
+import fliphash.MuxProtocol;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a load balancer connection that uses {@link MuxProtocol}.
+ * <p>
+ * The connection's thread reads frames and writes each stream's upload to its file as the
+ * DATA frames arrive, returning credit once the data is on disk. When a stream's upload ends,
+ * its JAR runs on a separate thread, so a long job does not hold up the uploads and responses
+ * of the other streams. The output is sent back in DATA frames while the JAR runs, at most
+ * one frame's worth buffered per job, and the load balancer passes it to the client
+ * unchanged.
+ * </p>
+ */
+class MuxConnectionHandler {
+
+    private final Socket connection;
+    private final String sandboxDir;
+    private final String policyFile;
+    private final AtomicInteger activeRequests;
+    private final MuxProtocol.FrameWriter writer;
+    private final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param connection     the socket connection from the load balancer
+     * @param sandboxDir     the directory to store received JAR files
+     * @param policyFile     the security policy file to use when executing JAR files
+     * @param activeRequests counts the requests being received or executed
+     * @throws IOException if the connection's output cannot be opened
+     */
+    MuxConnectionHandler(Socket connection, String sandboxDir, String policyFile, AtomicInteger activeRequests)
+            throws IOException {
+        this.connection = connection;
+        this.sandboxDir = sandboxDir;
+        this.policyFile = policyFile;
+        this.activeRequests = activeRequests;
+        this.writer = new MuxProtocol.FrameWriter(connection.getOutputStream());
+    }
+
+    /**
+     * Reads frames until the load balancer closes the connection.
+     *
+     * @throws IOException if the connection fails or the load balancer breaks the protocol
+     */
+    void serve() throws IOException {
+        ExecutorService executor = ConnectionExecutors.newConnectionExecutor("backend-job");
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream(), MuxProtocol.MAX_PAYLOAD + 16));
+            MuxProtocol.Frame frame;
+            while ((frame = MuxProtocol.readFrame(in)) != null) {
+                if (frame.type == MuxProtocol.OPEN) {
+                    open(frame.streamId, frame.openName(), frame.openSize());
+                    continue;
+                }
+                Job job = jobs.get(frame.streamId);
+                if (job == null) {
+                    // A late frame of a stream that has already been reset.
+                    continue;
+                }
+                switch (frame.type) {
+                    case MuxProtocol.DATA:
+                        job.receive(frame.payload);
+                        break;
+                    case MuxProtocol.END:
+                        job.endUpload(executor);
+                        break;
+                    case MuxProtocol.WINDOW:
+                        job.sendWindow.grant(frame.windowIncrement());
+                        break;
+                    case MuxProtocol.RESET:
+                        job.abort("Load balancer reset the request: " + frame.resetReason());
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + frame.type);
+                }
+            }
+        } finally {
+            for (Job job : jobs.values()) {
+                job.abort("Connection closed");
+            }
+            executor.shutdown();
+        }
+    }
+
+    private void open(int streamId, String fileName, long fileSize) throws IOException {
+        if (jobs.containsKey(streamId)) {
+            throw new IOException("Stream " + streamId + " opened twice");
+        }
+        activeRequests.incrementAndGet();
+        Job job = new Job(streamId, new File(sandboxDir + fileName), fileSize);
+        jobs.put(streamId, job);
+        try {
+            job.out = new FileOutputStream(job.jarFile);
+        } catch (IOException e) {
+            job.reset("Cannot save JAR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One request on the connection.
+     */
+    private final class Job implements Runnable {
+        final int streamId;
+        final File jarFile;
+        final long fileSize;
+        final MuxProtocol.SendWindow sendWindow = new MuxProtocol.SendWindow();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        /** Only used by the connection's thread. */
+        FileOutputStream out;
+        private long received;
+
+        Job(int streamId, File jarFile, long fileSize) {
+            this.streamId = streamId;
+            this.jarFile = jarFile;
+            this.fileSize = fileSize;
+        }
+
+        void receive(byte[] data) throws IOException {
+            received += data.length;
+            if (received > fileSize) {
+                reset("Upload larger than the announced " + fileSize + " bytes");
+                return;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    out.getChannel().write(buffer);
+                }
+            } catch (IOException e) {
+                reset("Cannot save JAR: " + e.getMessage());
+                return;
+            }
+            writer.writeWindow(streamId, data.length);
+        }
+
+        void endUpload(ExecutorService executor) throws IOException {
+            closeFile();
+            if (received != fileSize) {
+                reset("Upload ended after " + received + " of " + fileSize + " bytes");
+                return;
+            }
+            System.out.println("Received and saved JAR: " + jarFile.getAbsolutePath());
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                long outputSize = JarExecutor.runJarInSandbox(jarFile, policyFile, new DataOutput());
+                System.out.println("Executed JAR: " + jarFile.getAbsolutePath() + " (" + outputSize + " bytes of output)");
+                if (finish("Request finished")) {
+                    writer.writeEnd(streamId);
+                }
+            } catch (IOException e) {
+                // Reset by the load balancer or the connection failed; nothing left to send.
+                finish("Request failed");
+            }
+        }
+
+        /**
+         * Aborts the request and tells the load balancer.
+         *
+         * @param reason why the request is aborted
+         */
+        void reset(String reason) {
+            if (!finish(reason)) {
+                return;
+            }
+            System.err.println("Aborting request on stream " + streamId + ": " + reason);
+            try {
+                writer.writeReset(streamId, reason);
+            } catch (IOException ignored) {
+                // The connection is closed, which aborts the request too.
+            }
+        }
+
+        /**
+         * Aborts the request after a reset from the load balancer or a connection failure.
+         *
+         * @param reason why the request is aborted
+         */
+        void abort(String reason) {
+            finish(reason);
+        }
+
+        /**
+         * Ends the request exactly once.
+         *
+         * @param reason the failure reported to a job still waiting for credit
+         * @return true for the call that ended it
+         */
+        private boolean finish(String reason) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            jobs.remove(streamId);
+            sendWindow.close(reason);
+            if (out != null) {
+                closeFile();
+            }
+            activeRequests.decrementAndGet();
+            return true;
+        }
+
+        private void closeFile() {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
+            }
+        }
+
+        /**
+         * Sends the job output in DATA frames, within the stream's credit. Writes are
+         * buffered up to one frame; every flush sends what is buffered.
+         */
+        private final class DataOutput extends OutputStream {
+            private final byte[] buffer = new byte[MuxProtocol.MAX_PAYLOAD];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) {
+                    flush();
+                }
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (count == buffer.length) {
+                        flush();
+                    }
+                    int n = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, n);
+                    count += n;
+                    offset += n;
+                    length -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                int offset = 0;
+                while (offset < count) {
+                    int length = sendWindow.acquire(count - offset);
+                    writer.write(streamId, MuxProtocol.DATA, buffer, offset, length);
+                    offset += length;
+                }
+                count = 0;
+            }
+        }
+    }
+}
@@ -1,27 +1,51 @@
 package backend;
 
+import fliphash.KeepAliveProtocol;
+import fliphash.MuxProtocol;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles incoming proxied connections from the load balancer.
  * <p>
  * A proxied connection is used to transfer a JAR file, which is then executed in a sandbox.
+ * The output is streamed back while the JAR runs, and the end of the connection marks its end.
+ * A connection that starts with the {@value KeepAliveProtocol#INITIAL_MESSAGE} message instead
+ * carries several requests in sequence, each framed like a single request: the file name, the
+ * file size, the file bytes, answered by the output in chunks (see {@link ChunkedOutputStream}).
+ * The load balancer keeps such connections in a pool. A connection that starts with the
+ * {@value MuxProtocol#INITIAL_MESSAGE} message carries many requests at once and is served by
+ * {@link MuxConnectionHandler}.
  * </p>
  */
 public class ProxyConnectionHandler {
 
     // Buffer size for data transfer.
     private static final int BUFFER_SIZE = 4096;
-    
+
+    // Largest chunk of output on a keep-alive connection.
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Time a keep-alive connection may wait for its next request before it is closed. Longer
+     * than the load balancer's default idle timeout, so the load balancer closes first.
+     */
+    private static final int KEEP_ALIVE_IDLE_TIMEOUT_MS = 60_000;
+
     /**
      * Processes a proxied connection.
      *
-     * @param proxyConn the socket connection from the load balancer
-     * @param sandboxDir the directory to store received JAR files
-     * @param policyFile the security policy file to use when executing JAR files
+     * @param proxyConn      the socket connection from the load balancer
+     * @param sandboxDir     the directory to store received JAR files
+     * @param policyFile     the security policy file to use when executing JAR files
+     * @param activeRequests counts the requests being received or executed
      */
-    public static void handleProxyConnection(Socket proxyConn, String sandboxDir, String policyFile) {
+    public static void handleProxyConnection(Socket proxyConn, String sandboxDir, String policyFile,
+                                             AtomicInteger activeRequests) {
         try (DataInputStream dis = new DataInputStream(proxyConn.getInputStream());
              DataOutputStream dos = new DataOutputStream(proxyConn.getOutputStream())) {
             
@@ -33,30 +57,34 @@ public class ProxyConnectionHandler {
                 dos.flush();
                 return;
             }
-            
-            // Otherwise, treat the message as a JAR file name.
-            String fileName = initialMessage;
-            long fileSize = dis.readLong();
-            
-            // Save the received JAR file.
-            File jarFile = new File(sandboxDir + fileName);
-            try (FileOutputStream fos = new FileOutputStream(jarFile)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while (fileSize > 0 && (bytesRead = dis.read(buffer, 0, (int)Math.min(BUFFER_SIZE, fileSize))) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    fileSize -= bytesRead;
+
+            if (MuxProtocol.INITIAL_MESSAGE.equals(initialMessage) || KeepAliveProtocol.INITIAL_MESSAGE.equals(initialMessage)) {
+                // Output is flushed as it is produced; small pieces should not wait for acknowledgements.
+                proxyConn.setTcpNoDelay(true);
+            }
+
+            if (MuxProtocol.INITIAL_MESSAGE.equals(initialMessage)) {
+                new MuxConnectionHandler(proxyConn, sandboxDir, policyFile, activeRequests).serve();
+                return;
+            }
+
+            if (KeepAliveProtocol.INITIAL_MESSAGE.equals(initialMessage)) {
+                while (true) {
+                    String fileName;
+                    proxyConn.setSoTimeout(KEEP_ALIVE_IDLE_TIMEOUT_MS);
+                    try {
+                        fileName = dis.readUTF();
+                    } catch (EOFException | SocketTimeoutException e) {
+                        // The load balancer closed the idle connection, or it stayed idle too long.
+                        return;
+                    }
+                    proxyConn.setSoTimeout(0);
+                    handleRequest(proxyConn, dis, dos, fileName, true, sandboxDir, policyFile, activeRequests);
                 }
             }
-            System.out.println("Received and saved JAR: " + jarFile.getAbsolutePath());
-            
-            // Execute the received JAR file.
-            String jarOutput = JarExecutor.runJarInSandbox(jarFile, policyFile);
-            System.out.println("Execution output: " + jarOutput);
-            
-            // Send the execution output back to the client.
-            dos.writeUTF(jarOutput);
-            dos.flush();
+
+            // Otherwise, treat the message as a JAR file name.
+            handleRequest(proxyConn, dis, dos, initialMessage, false, sandboxDir, policyFile, activeRequests);
         } catch (IOException e) {
             // Check if this is an expected connection closure.
             if (e instanceof EOFException || 
@@ -74,4 +102,75 @@ public class ProxyConnectionHandler {
             }
         }
     }
+
+    /**
+     * Receives one JAR file, executes it and sends back its output.
+     *
+     * @param proxyConn      the socket connection from the load balancer
+     * @param dis            the connection's input, positioned after the file name
+     * @param dos            the connection's output
+     * @param fileName       the name of the JAR file
+     * @param keepAlive      whether the output must be chunked so the connection can be reused
+     * @param sandboxDir     the directory to store received JAR files
+     * @param policyFile     the security policy file to use when executing JAR files
+     * @param activeRequests counts the requests being received or executed
+     * @throws IOException if an I/O error occurs
+     */
+    private static void handleRequest(Socket proxyConn, DataInputStream dis, DataOutputStream dos, String fileName,
+                                      boolean keepAlive, String sandboxDir, String policyFile,
+                                      AtomicInteger activeRequests)
+            throws IOException {
+        activeRequests.incrementAndGet();
+        try {
+            long fileSize = dis.readLong();
+
+            // Save the received JAR file.
+            File jarFile = new File(sandboxDir + fileName);
+            try (FileOutputStream fos = new FileOutputStream(jarFile)) {
+                SocketChannel channel = proxyConn.getChannel();
+                if (channel != null) {
+                    // DataInputStream does not read ahead, so the channel is positioned at the
+                    // first byte of the file.
+                    receiveFile(channel, fos.getChannel(), fileSize);
+                } else {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int bytesRead;
+                    while (fileSize > 0 && (bytesRead = dis.read(buffer, 0, (int)Math.min(BUFFER_SIZE, fileSize))) != -1) {
+                        fos.write(buffer, 0, bytesRead);
+                        fileSize -= bytesRead;
+                    }
+                }
+            }
+            System.out.println("Received and saved JAR: " + jarFile.getAbsolutePath());
+
+            // Execute the received JAR file, sending its output back to the client as it is produced.
+            OutputStream out = keepAlive ? new ChunkedOutputStream(dos, MAX_CHUNK_SIZE) : dos;
+            long outputSize = JarExecutor.runJarInSandbox(jarFile, policyFile, out);
+            // End the response: an end marker on a keep-alive connection, the end of the connection otherwise.
+            out.close();
+            System.out.println("Executed JAR: " + jarFile.getAbsolutePath() + " (" + outputSize + " bytes of output)");
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes an upload straight from the socket to the file with
+     * {@link FileChannel#transferFrom}, without copying it through a heap buffer.
+     *
+     * @param in       the blocking socket channel.
+     * @param out      the file channel.
+     * @param fileSize the number of bytes to receive.
+     * @throws IOException if an I/O error occurs or the upload ends early.
+     */
+    private static void receiveFile(SocketChannel in, FileChannel out, long fileSize) throws IOException {
+        long position = 0;
+        while (position < fileSize) {
+            long transferred = out.transferFrom(in, position, fileSize - position);
+            if (transferred <= 0) {
+                throw new EOFException("Upload ended after " + position + " of " + fileSize + " bytes");
+            }
+            position += transferred;
+        }
+    }
 }
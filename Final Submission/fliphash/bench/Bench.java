@@ -0,0 +1,139 @@
+package fliphash.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal timing harness shared by the benchmark programs in this package.
+ * <p>
+ * Each measurement warms the operation up, then runs it in batches for a fixed wall-clock time
+ * and reports the average cost per operation, the throughput and the number of heap bytes the
+ * calling thread allocated per operation. Durations can be tuned with the
+ * {@code bench.warmupMs} and {@code bench.measureMs} system properties.
+ * </p>
+ */
+final class Bench {
+
+    private static final long WARMUP_MS = Long.getLong("bench.warmupMs", 1000);
+    private static final long MEASURE_MS = Long.getLong("bench.measureMs", 2000);
+    private static final int BATCH = 1 << 12;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Sink that keeps the JIT from discarding benchmark results. */
+    private static volatile long sink;
+
+    /**
+     * A benchmarked operation.
+     */
+    interface Op {
+        /**
+         * Runs one operation.
+         *
+         * @param i the invocation counter, usable as an index into precomputed inputs.
+         * @return a value derived from the result.
+         */
+        long run(int i);
+    }
+
+    /**
+     * Result of a single measurement.
+     */
+    static final class Result {
+        final double nanosPerOp;
+        final double opsPerSecond;
+        final double bytesPerOp;
+
+        Result(double nanosPerOp, double opsPerSecond, double bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private Bench() {
+    }
+
+    /**
+     * Measures an operation and prints one result line.
+     *
+     * @param name the label printed for the measurement.
+     * @param op   the operation to measure.
+     * @return the measured result.
+     */
+    static Result measure(String name, Op op) {
+        return measure(name, 1, op);
+    }
+
+    /**
+     * Measures an operation that processes several items per call and prints one result line.
+     *
+     * @param name        the label printed for the measurement.
+     * @param itemsPerOp  the number of items one call processes; figures are reported per item.
+     * @param op          the operation to measure.
+     * @return the measured result.
+     */
+    static Result measure(String name, int itemsPerOp, Op op) {
+        runFor(WARMUP_MS, op);
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long ops = runFor(MEASURE_MS, op);
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double items = (double) ops * itemsPerOp;
+        Result result = new Result(elapsed / items, items * 1e9 / elapsed, allocated / items);
+        System.out.printf("%-48s %10.2f ns/op %12.0f ops/s %10.2f B/op%n",
+                name, result.nanosPerOp, result.opsPerSecond, result.bytesPerOp);
+        return result;
+    }
+
+    /**
+     * Returns a percentile of sorted samples, using the nearest-rank method.
+     *
+     * @param sorted the samples in ascending order.
+     * @param p      the percentile as a fraction, such as {@code 0.99}.
+     * @return the smallest sample at or above the given fraction of the samples.
+     */
+    static double percentile(long[] sorted, double p) {
+        return sorted[rank(sorted.length, p)];
+    }
+
+    /**
+     * Returns a percentile of sorted samples, using the nearest-rank method.
+     *
+     * @param sorted the samples in ascending order.
+     * @param p      the percentile as a fraction, such as {@code 0.99}.
+     * @return the smallest sample at or above the given fraction of the samples.
+     */
+    static double percentile(double[] sorted, double p) {
+        return sorted[rank(sorted.length, p)];
+    }
+
+    private static int rank(int length, double p) {
+        return Math.max(0, Math.min(length - 1, (int) Math.ceil(p * length) - 1));
+    }
+
+    /**
+     * Runs the operation in batches until the given time has passed.
+     *
+     * @param millis the time to run for.
+     * @param op     the operation.
+     * @return the number of invocations.
+     */
+    private static long runFor(long millis, Op op) {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long ops = 0;
+        long acc = 0;
+        int i = 0;
+        do {
+            for (int j = 0; j < BATCH; j++) {
+                acc += op.run(i++);
+            }
+            ops += BATCH;
+        } while (System.nanoTime() < deadline);
+        sink = acc;
+        return ops;
+    }
+}
@@ -0,0 +1,97 @@
+package fliphash.bench;
+
+import fliphash.BulkAssigner;
+import fliphash.FlipHash;
+import fliphash.FlipHashEngine;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+/**
+ * Measures how {@link BulkAssigner} scales with the number of worker threads.
+ * <p>
+ * For every parallelism from 1 up to the number of available processors (doubling each time)
+ * it plans a change from {@code n} to {@code n'} resources over the keys {@code 0..keys-1}
+ * and prints the wall-clock time, the throughput and the speed-up over one thread. The first
+ * run is checked against the scalar {@link FlipHashEngine#fliphash(long, long)}; the program
+ * exits with status 1 on a mismatch.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.BulkAssignBenchmark [keys] [n] [n']}; the
+ * defaults are 20000000 keys and 100 to 101 resources.
+ * </p>
+ */
+public class BulkAssignBenchmark {
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional key count, current and next resource count.
+     */
+    public static void main(String[] args) {
+        long numKeys = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000L;
+        FlipHash.Resource current = new FlipHash.Resource(args.length > 1 ? Long.parseLong(args[1]) : 100);
+        FlipHash.Resource next = new FlipHash.Resource(args.length > 2 ? Long.parseLong(args[2]) : 101);
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d keys, %d -> %d resources, %d processors%n",
+                numKeys, current.getCount(), next.getCount(), processors);
+
+        if (!verify(Math.min(numKeys, 1_000_000L), current, next)) {
+            System.out.println("Bulk assignment does not match the scalar engine.");
+            System.exit(1);
+        }
+
+        double baseline = 0;
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            BulkAssigner assigner = new BulkAssigner(FlipHashEngine.getDefault(), pool);
+            // Warm-up run so the JIT has compiled the leaf loop before timing.
+            assigner.plan(LongStream.range(0, numKeys).spliterator(), current, next, false);
+            long start = System.nanoTime();
+            BulkAssigner.Plan plan = assigner.plan(
+                    LongStream.range(0, numKeys).spliterator(), current, next, false);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+            if (parallelism == 1) {
+                baseline = seconds;
+            }
+            System.out.printf("%-16s %8.3f s %12.0f keys/s  speed-up %5.2f  moved %d%n",
+                    "threads=" + parallelism, seconds, numKeys / seconds, baseline / seconds,
+                    plan.getMovedCount());
+            if (parallelism == processors) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Checks a bulk assignment against the scalar engine.
+     *
+     * @param numKeys the number of keys to check.
+     * @param current the resources before the change.
+     * @param next    the resources after the change.
+     * @return true if counts and moved keys match.
+     */
+    private static boolean verify(long numKeys, FlipHash.Resource current, FlipHash.Resource next) {
+        FlipHashEngine engine = FlipHashEngine.getDefault();
+        BulkAssigner.Plan plan = new BulkAssigner().plan(
+                LongStream.range(0, numKeys).spliterator(), current, next, true);
+        long[] before = new long[(int) current.getCount()];
+        long[] after = new long[(int) next.getCount()];
+        long[] moved = plan.getMovedKeys();
+        int movedIndex = 0;
+        for (long key = 0; key < numKeys; key++) {
+            long b = engine.fliphash(key, current.getCount());
+            long a = engine.fliphash(key, next.getCount());
+            before[(int) b]++;
+            after[(int) a]++;
+            if (a != b && (movedIndex >= moved.length || moved[movedIndex++] != key)) {
+                return false;
+            }
+        }
+        return movedIndex == moved.length
+                && movedIndex == plan.getMovedCount()
+                && Arrays.equals(before, plan.getCountsBefore())
+                && Arrays.equals(after, plan.getCountsAfter());
+    }
+}
@@ -0,0 +1,233 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.LoadBalancerConfig;
+import LoadBalancer.NioProxyServer;
+import fliphash.ConnectionExecutors;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Load test for the load balancer's client connection handling.
+ * <p>
+ * Starts the client engine selected by {@link LoadBalancerConfig} in-process, together with a
+ * fake backend that holds every request for a fixed time before answering. A set of clients
+ * then connects at once, uploads a small payload and waits for the answer. Clients and backend
+ * run on a single selector thread, so the JVM thread count reflects the load balancer alone.
+ * </p>
+ * <p>
+ * The program prints how many requests completed, the wall-clock time, the most requests the
+ * backend held at the same time (the connection concurrency the load balancer sustained) and
+ * the peak number of live threads. Compare the modes with:
+ * </p>
+ * <pre>
+ * java -cp bin fliphash.bench.ConnectionLoadTest 2000 1000
+ * java -Dfliphash.threads=virtual -cp bin fliphash.bench.ConnectionLoadTest 2000 1000
+ * java -Dlb.engine=nio -cp bin fliphash.bench.ConnectionLoadTest 2000 1000
+ * </pre>
+ * <p>
+ * Load balancer log lines are written to {@code LoadBalancerOutputLog.txt} in the working
+ * directory.
+ * </p>
+ */
+public class ConnectionLoadTest {
+
+    private static final byte[] PAYLOAD = new byte[1024];
+    private static final byte[] RESPONSE = "done\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long TIMEOUT_MS = 120_000;
+
+    /**
+     * Main method for running the load test.
+     *
+     * @param args optional number of clients (default 2000) and backend hold time in
+     *             milliseconds (default 1000).
+     * @throws Exception if the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long holdMs = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        LoadBalancerConfig config = LoadBalancerConfig.fromSystemProperties();
+        ConnectionExecutors.ThreadMode mode = ConnectionExecutors.configuredMode();
+        boolean virtual = mode == ConnectionExecutors.ThreadMode.VIRTUAL
+                && ConnectionExecutors.isVirtualThreadsSupported();
+        System.out.printf("%d clients, hold %d ms, %s, threads=%s%s%n", numClients, holdMs, config,
+                mode.name().toLowerCase(), virtual || mode == ConnectionExecutors.ThreadMode.PLATFORM
+                        ? "" : " (unsupported, using platform)");
+
+        Selector selector = Selector.open();
+        ServerSocketChannel backend = ServerSocketChannel.open();
+        backend.bind(new InetSocketAddress("127.0.0.1", 0), numClients);
+        backend.configureBlocking(false);
+        backend.register(selector, SelectionKey.OP_ACCEPT);
+        BackendManager.addBackend(new BackendManager.BackendInfo("127.0.0.1", backend.socket().getLocalPort()));
+
+        int proxyPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            proxyPort = probe.getLocalPort();
+        }
+        Runnable proxy = config.getEngine() == LoadBalancerConfig.Engine.NIO
+                ? new NioProxyServer(proxyPort, config)
+                : new ClientConnectionHandler(proxyPort, config);
+        Thread proxyThread = new Thread(proxy, "load-test-proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        Thread.sleep(500);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baselineThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        Driver driver = new Driver(selector, holdMs);
+        long start = System.nanoTime();
+        for (int i = 0; i < numClients; i++) {
+            SocketChannel client = SocketChannel.open();
+            client.configureBlocking(false);
+            client.connect(new InetSocketAddress("127.0.0.1", proxyPort));
+            client.register(selector, SelectionKey.OP_CONNECT, new ClientState());
+        }
+        driver.run(numClients);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("completed %d/%d, failed %d, %.2f s%n",
+                driver.completed, numClients, driver.failed, seconds);
+        System.out.printf("peak requests held by backend: %d%n", driver.peakHeld);
+        System.out.printf("peak live threads: %d (%d before the test)%n",
+                threads.getPeakThreadCount(), baselineThreads);
+        System.exit(driver.completed == numClients ? 0 : 1);
+    }
+
+    /**
+     * Progress of one test client.
+     */
+    private static final class ClientState {
+        final ByteBuffer ack = ByteBuffer.allocate(3);
+        final ByteBuffer upload = ByteBuffer.wrap(PAYLOAD);
+        final ByteBuffer response = ByteBuffer.allocate(64);
+    }
+
+    /**
+     * Progress of one request at the fake backend.
+     */
+    private static final class BackendState {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(4096);
+        long respondAt;
+
+        BackendState(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Selector loop that plays both the clients and the fake backend.
+     */
+    private static final class Driver {
+        private final Selector selector;
+        private final long holdNanos;
+        private final ArrayDeque<BackendState> held = new ArrayDeque<>();
+        int completed;
+        int failed;
+        int peakHeld;
+
+        Driver(Selector selector, long holdMs) {
+            this.selector = selector;
+            this.holdNanos = holdMs * 1_000_000L;
+        }
+
+        void run(int numClients) throws IOException {
+            long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+            while (completed + failed < numClients && System.nanoTime() < deadline) {
+                selector.select(5);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof ClientState) {
+                            failed++;
+                        }
+                        key.channel().close();
+                    }
+                }
+                respondDue();
+            }
+            failed = numClients - completed;
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (key.isAcceptable()) {
+                SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new BackendState(channel));
+                }
+                return;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.attachment() instanceof BackendState) {
+                BackendState state = (BackendState) key.attachment();
+                state.input.clear();
+                if (channel.read(state.input) < 0) {
+                    // Upload complete: hold the request, then answer.
+                    key.interestOps(0);
+                    state.respondAt = System.nanoTime() + holdNanos;
+                    held.add(state);
+                    peakHeld = Math.max(peakHeld, held.size());
+                }
+                return;
+            }
+            ClientState state = (ClientState) key.attachment();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (state.ack.hasRemaining()) {
+                if (channel.read(state.ack) < 0) {
+                    throw new IOException("Connection closed before OK");
+                }
+                if (!state.ack.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (state.upload.hasRemaining()) {
+                channel.write(state.upload);
+                if (!state.upload.hasRemaining()) {
+                    channel.shutdownOutput();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (channel.read(state.response) < 0) {
+                channel.close();
+                if (state.response.position() == RESPONSE.length) {
+                    completed++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+
+        private void respondDue() {
+            long now = System.nanoTime();
+            while (!held.isEmpty() && held.peek().respondAt <= now) {
+                BackendState state = held.poll();
+                try {
+                    // The response fits the socket buffer of an idle connection.
+                    state.channel.write(ByteBuffer.wrap(RESPONSE));
+                    state.channel.close();
+                } catch (IOException e) {
+                    // The client side counts the failure.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package fliphash.bench;
+
+import fliphash.FlipHash;
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashEngine;
+import fliphash.FlipHashFunction;
+import fliphash.xxh3Java.hashing.Hasher64;
+import fliphash.xxh3Java.hashing.XXH3_64;
+import java.util.Arrays;
+
+/**
+ * Compares FlipHash lookup paths by latency, throughput and allocation rate.
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.FlipHashBenchmark [numResources]}.
+ * </p>
+ */
+public class FlipHashBenchmark {
+
+    private static final int KEY_COUNT = 1 << 14;
+    private static final int KEY_MASK = KEY_COUNT - 1;
+    private static final int BATCH_SIZE = 1 << 12;
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional resource count (defaults to 1000).
+     */
+    public static void main(String[] args) {
+        long numResources = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        String[] keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "10.0." + (i >>> 8) + "." + (i & 0xFF);
+        }
+        FlipHashEngine engine = FlipHashEngine.getDefault();
+        FlipHash.Resource resource = new FlipHash.Resource(numResources);
+
+        System.out.println("FlipHash lookups over " + numResources + " resources");
+        Bench.measure("reseeding (XXH3_64.create per seed)",
+                i -> reseedingFliphash(keys[i & KEY_MASK], numResources));
+        Bench.measure("FlipHashEngine.fliphash(CharSequence)",
+                i -> engine.fliphash(keys[i & KEY_MASK], numResources));
+        Bench.measure("FlipHash.fliphashGeneral(String, Resource)",
+                i -> FlipHash.fliphashGeneral(keys[i & KEY_MASK], resource));
+
+        // Address-style keys: string "host:port" versus primitive IPv4 and IPv6 keys.
+        long[] ipv4 = new long[KEY_COUNT];
+        long[] ipv6Hi = new long[KEY_COUNT];
+        long[] ipv6Lo = new long[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            ipv4[i] = 0x0A000000L | i;
+            ipv6Hi[i] = 0x20010DB800000000L | i;
+            ipv6Lo[i] = 0x0000FFFF0A000000L | i;
+        }
+        Bench.measure("String host + \":\" + port key",
+                i -> engine.fliphash(keys[i & KEY_MASK] + ":" + (40000 + (i & KEY_MASK)), numResources));
+        Bench.measure("FlipHashEngine.fliphash(long)",
+                i -> engine.fliphash(ipv4[i & KEY_MASK], numResources));
+        Bench.measure("FlipHashEngine.fliphash(long, long)",
+                i -> engine.fliphash(ipv6Hi[i & KEY_MASK], ipv6Lo[i & KEY_MASK], numResources));
+
+        // Batch API against a scalar loop over the same 4096 keys.
+        long[] batchKeys = Arrays.copyOf(ipv4, BATCH_SIZE);
+        long[] batchOut = new long[BATCH_SIZE];
+        int[] batchIntOut = new int[BATCH_SIZE];
+        Bench.measure("scalar loop, " + BATCH_SIZE + " long keys", BATCH_SIZE, i -> {
+            long acc = 0;
+            for (int k = 0; k < BATCH_SIZE; k++) {
+                acc += engine.fliphash(batchKeys[k], numResources);
+            }
+            return acc;
+        });
+        Bench.measure("batch fliphash(long[], long[])", BATCH_SIZE, i -> {
+            engine.fliphash(batchKeys, numResources, batchOut);
+            return batchOut[i & (BATCH_SIZE - 1)];
+        });
+        if (numResources <= Integer.MAX_VALUE) {
+            Bench.measure("batch fliphash(long[], int[])", BATCH_SIZE, i -> {
+                engine.fliphash(batchKeys, (int) numResources, batchIntOut);
+                return batchIntOut[i & (BATCH_SIZE - 1)];
+            });
+        }
+
+        // Hash-once variant on 64-character keys, where rehashing per draw is most expensive.
+        String[] longKeys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            longKeys[i] = String.format("%064d", i);
+        }
+        FlipHashFunction hashOnce = FlipHashAlgorithm.HASH_ONCE.function();
+        Bench.measure("reseeding, 64-char keys",
+                i -> engine.fliphash(longKeys[i & KEY_MASK], numResources));
+        Bench.measure("hash-once, 64-char keys",
+                i -> hashOnce.fliphash(longKeys[i & KEY_MASK], numResources));
+    }
+
+    /**
+     * Reference implementation that creates a new seeded hasher for every draw, as FlipHash did
+     * before the engine existed.
+     *
+     * @param key          the input key.
+     * @param numResources the number of buckets.
+     * @return the bucket index.
+     */
+    private static long reseedingFliphash(String key, long numResources) {
+        int r = 64 - Long.numberOfLeadingZeros(numResources);
+        long d = reseedingPow2(key, r);
+        if (d < numResources) {
+            return d;
+        }
+        for (int i = 1; i <= 64; i++) {
+            Hasher64 xxh3 = XXH3_64.create((r - 1) + (i << 16));
+            long e = xxh3.hashCharsToLong(key) & ((1L << r) - 1);
+            if (e < (1L << (r - 1))) {
+                break;
+            } else if (e < numResources) {
+                return e;
+            }
+        }
+        return reseedingPow2(key, r - 1);
+    }
+
+    private static long reseedingPow2(String key, int twoPower) {
+        long a = XXH3_64.create(0).hashCharsToLong(key) & ((1L << twoPower) - 1);
+        int b = 63 - Long.numberOfLeadingZeros(a | 1);
+        long c = XXH3_64.create(b).hashCharsToLong(key) & ((1L << b) - 1);
+        return a ^ c;
+    }
+}
@@ -0,0 +1,124 @@
+package fliphash.bench;
+
+import fliphash.FlipHash;
+import fliphash.FlipHashDiff;
+import fliphash.FlipHashEngine;
+import java.util.stream.LongStream;
+
+/**
+ * Compares {@link FlipHashDiff} with computing two full assignments to find the moved keys.
+ * <p>
+ * The keys are {@code 0..keys-1}. Three ways of counting the keys that move between {@code n}
+ * and {@code n'} resources are timed once each after a short warm-up:
+ * </p>
+ * <ul>
+ *   <li>two scalar lookups per key, comparing the buckets;</li>
+ *   <li>two batch passes over chunks of keys, comparing the buckets;</li>
+ *   <li>the streaming diff.</li>
+ * </ul>
+ * <p>
+ * Before timing, the diff is checked against two full lookups for growing, shrinking and
+ * unchanged resource counts; the program exits with status 1 on a mismatch. Run with
+ * {@code java -cp bin fliphash.bench.FlipHashDiffBenchmark [keys] [n] [n']}; the defaults are
+ * 100000000 keys and 100 to 110 resources.
+ * </p>
+ */
+public class FlipHashDiffBenchmark {
+
+    private static final int CHUNK_SIZE = 1 << 12;
+    private static final long[][] CHECKED_CHANGES = {
+            {1, 2}, {2, 1}, {7, 8}, {8, 9}, {100, 110}, {110, 100}, {1000, 1000}, {3, 1000}, {1000, 3}
+    };
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional key count, current and next resource count.
+     */
+    public static void main(String[] args) {
+        long numKeys = args.length > 0 ? Long.parseLong(args[0]) : 100_000_000L;
+        long numBefore = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        long numAfter = args.length > 2 ? Long.parseLong(args[2]) : 110;
+        FlipHashEngine engine = FlipHashEngine.getDefault();
+
+        for (long[] change : CHECKED_CHANGES) {
+            if (!verify(engine, change[0], change[1], 200_000)) {
+                System.out.println("Diff does not match full lookups for " + change[0] + " -> " + change[1]);
+                System.exit(1);
+            }
+        }
+        System.out.printf("%d keys, %d -> %d resources%n", numKeys, numBefore, numAfter);
+
+        FlipHashDiff diff = new FlipHashDiff(new FlipHash.Resource(numBefore), new FlipHash.Resource(numAfter));
+        long warmup = Math.min(numKeys, 2_000_000L);
+        countScalar(engine, warmup, numBefore, numAfter);
+        countBatch(engine, warmup, numBefore, numAfter);
+        diff.count(LongStream.range(0, warmup).spliterator());
+
+        long start = System.nanoTime();
+        long moved = countScalar(engine, numKeys, numBefore, numAfter);
+        report("two scalar lookups", start, numKeys, moved);
+        start = System.nanoTime();
+        moved = countBatch(engine, numKeys, numBefore, numAfter);
+        report("two batch passes", start, numKeys, moved);
+        start = System.nanoTime();
+        moved = diff.count(LongStream.range(0, numKeys).spliterator());
+        report("streaming diff", start, numKeys, moved);
+    }
+
+    private static boolean verify(FlipHashEngine engine, long numBefore, long numAfter, long numKeys) {
+        FlipHashDiff diff = new FlipHashDiff(new FlipHash.Resource(numBefore), new FlipHash.Resource(numAfter));
+        long[] expected = {0};
+        boolean[] passed = {true};
+        long moved = diff.diff(LongStream.range(0, numKeys).spliterator(), (key, from, to) -> {
+            while (expected[0] < key) {
+                if (engine.fliphash(expected[0], numBefore) != engine.fliphash(expected[0], numAfter)) {
+                    passed[0] = false;
+                }
+                expected[0]++;
+            }
+            if (from == to || from != engine.fliphash(key, numBefore) || to != engine.fliphash(key, numAfter)) {
+                passed[0] = false;
+            }
+            expected[0] = key + 1;
+        });
+        return passed[0] && moved == countScalar(engine, numKeys, numBefore, numAfter);
+    }
+
+    private static long countScalar(FlipHashEngine engine, long numKeys, long numBefore, long numAfter) {
+        long moved = 0;
+        for (long key = 0; key < numKeys; key++) {
+            if (engine.fliphash(key, numBefore) != engine.fliphash(key, numAfter)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private static long countBatch(FlipHashEngine engine, long numKeys, long numBefore, long numAfter) {
+        long[] keys = new long[CHUNK_SIZE];
+        long[] before = new long[CHUNK_SIZE];
+        long[] after = new long[CHUNK_SIZE];
+        long moved = 0;
+        for (long base = 0; base < numKeys; base += CHUNK_SIZE) {
+            int length = (int) Math.min(CHUNK_SIZE, numKeys - base);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                keys[i] = base + i;
+            }
+            engine.fliphash(keys, numBefore, before);
+            engine.fliphash(keys, numAfter, after);
+            for (int i = 0; i < length; i++) {
+                if (before[i] != after[i]) {
+                    moved++;
+                }
+            }
+        }
+        return moved;
+    }
+
+    private static void report(String name, long start, long numKeys, long moved) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-24s %8.3f s %8.2f ns/key  moved %d%n",
+                name, seconds, seconds * 1e9 / numKeys, moved);
+    }
+}
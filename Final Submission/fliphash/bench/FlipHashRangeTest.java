@@ -0,0 +1,87 @@
+package fliphash.bench;
+
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashEngine;
+import fliphash.FlipHashFunction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Regression check that every FlipHash lookup stays in {@code [0, numResources)}.
+ * <p>
+ * The power-of-two step once returned {@code a + c}, where {@code c} is drawn below the
+ * highest set bit of {@code a}. The sum can carry past that bit, so the fallback to the lower
+ * power of two could return a bucket at or above the resource count, for example bucket 10
+ * for 10 resources. This program looks up string, byte, 64-bit and 128-bit keys, and 64-bit
+ * keys through both batch APIs, for every {@link FlipHashAlgorithm}. It uses every resource
+ * count up to 1100 and a few large ones, including {@code Long.MAX_VALUE}.
+ * </p>
+ * <p>
+ * It prints the number of lookups and out-of-range buckets per algorithm and exits with status
+ * 1 if there is any. Run with {@code java -cp bin fliphash.bench.FlipHashRangeTest [keys]};
+ * the default is 2000 keys per resource count.
+ * </p>
+ */
+public class FlipHashRangeTest {
+
+    private static final int MAX_SMALL_COUNT = 1100;
+    private static final long[] LARGE_COUNTS = {(1L << 31) - 1, 1L << 31, (1L << 40) + 3, (1L << 62) + 1, Long.MAX_VALUE};
+
+    /**
+     * Main method for running the check.
+     *
+     * @param args optional number of keys per resource count.
+     */
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] strings = new String[numKeys];
+        byte[][] bytes = new byte[numKeys][];
+        long[] longs = new long[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            strings[i] = "10.0." + (i >>> 8) + "." + (i & 0xFF);
+            bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            longs[i] = i * 0x9E3779B97F4A7C15L;
+        }
+        long failures = 0;
+        for (FlipHashAlgorithm algorithm : FlipHashAlgorithm.values()) {
+            FlipHashFunction function = algorithm.function();
+            long lookups = 0;
+            long outOfRange = 0;
+            for (long n = 1; n <= MAX_SMALL_COUNT + LARGE_COUNTS.length; n++) {
+                long count = n <= MAX_SMALL_COUNT ? n : LARGE_COUNTS[(int) (n - MAX_SMALL_COUNT - 1)];
+                for (int i = 0; i < numKeys; i++) {
+                    outOfRange += outside(function.fliphash(strings[i], count), count)
+                            + outside(function.fliphash(bytes[i], count), count)
+                            + outside(function.fliphash(longs[i], count), count)
+                            + outside(function.fliphash(longs[i], ~longs[i], count), count);
+                    lookups += 4;
+                }
+                if (function instanceof FlipHashEngine) {
+                    long[] buckets = new long[numKeys];
+                    ((FlipHashEngine) function).fliphash(longs, count, buckets);
+                    for (long bucket : buckets) {
+                        outOfRange += outside(bucket, count);
+                    }
+                    lookups += numKeys;
+                    if (count <= Integer.MAX_VALUE) {
+                        int[] intBuckets = new int[numKeys];
+                        ((FlipHashEngine) function).fliphash(longs, (int) count, intBuckets);
+                        for (int bucket : intBuckets) {
+                            outOfRange += outside(bucket, count);
+                        }
+                        lookups += numKeys;
+                    }
+                }
+            }
+            System.out.printf("%-10s %d lookups, %d out of range%n", algorithm, lookups, outOfRange);
+            failures += outOfRange;
+        }
+        System.out.println(failures == 0 ? "All buckets in range." : "Some buckets out of range: FAILED.");
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int outside(long bucket, long numResources) {
+        return bucket >= 0 && bucket < numResources ? 0 : 1;
+    }
+}
@@ -0,0 +1,98 @@
+package fliphash.bench;
+
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+
+/**
+ * Statistical check of the FlipHash guarantees for every {@link FlipHashAlgorithm}.
+ * <p>
+ * For a range of resource counts it verifies that
+ * </p>
+ * <ul>
+ *   <li>keys are spread uniformly, using a chi-square statistic against the uniform
+ *       distribution;</li>
+ *   <li>growing from {@code n} to {@code n + 1} resources only moves keys into the new bucket;</li>
+ *   <li>the fraction of moved keys is close to the optimal {@code 1 / (n + 1)}.</li>
+ * </ul>
+ * <p>
+ * The program prints one line per algorithm and resource count and exits with status 1 if any
+ * check fails. Run with {@code java -cp bin fliphash.bench.FlipHashStatistics [keys]}.
+ * </p>
+ */
+public class FlipHashStatistics {
+
+    private static final long[] RESOURCE_COUNTS = {2, 3, 7, 10, 31, 100, 257, 1000};
+
+    /** Allowed chi-square excess over its mean, in standard deviations. */
+    private static final double CHI_SQUARE_SIGMAS = 5.0;
+
+    /** Allowed deviation of the moved fraction from optimal, in standard deviations. */
+    private static final double MOVED_SIGMAS = 5.0;
+
+    /**
+     * Main method for running the checks.
+     *
+     * @param args optional number of keys per check (defaults to 200000).
+     */
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        boolean passed = true;
+        for (FlipHashAlgorithm algorithm : FlipHashAlgorithm.values()) {
+            passed &= check(algorithm, algorithm.function(), numKeys);
+        }
+        System.out.println(passed ? "All checks passed." : "Some checks FAILED.");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the uniformity and disruption checks for one algorithm.
+     *
+     * @param algorithm the algorithm name.
+     * @param function  the FlipHash function.
+     * @param numKeys   the number of keys per check.
+     * @return true if all checks passed.
+     */
+    private static boolean check(FlipHashAlgorithm algorithm, FlipHashFunction function, int numKeys) {
+        boolean passed = true;
+        for (long n : RESOURCE_COUNTS) {
+            long[] counts = new long[(int) n];
+            long moved = 0;
+            long misplaced = 0;
+            for (int i = 0; i < numKeys; i++) {
+                String key = "key-" + i;
+                int bucket = (int) function.fliphash(key, n);
+                counts[bucket]++;
+                long grown = function.fliphash(key, n + 1);
+                if (grown != bucket) {
+                    moved++;
+                    if (grown != n) {
+                        misplaced++;
+                    }
+                }
+            }
+
+            double expected = (double) numKeys / n;
+            double chiSquare = 0;
+            for (long count : counts) {
+                double diff = count - expected;
+                chiSquare += diff * diff / expected;
+            }
+            long df = n - 1;
+            double chiSquareLimit = df + CHI_SQUARE_SIGMAS * Math.sqrt(2.0 * df);
+
+            double p = 1.0 / (n + 1);
+            double movedFraction = (double) moved / numKeys;
+            double movedLimit = MOVED_SIGMAS * Math.sqrt(p * (1 - p) / numKeys);
+
+            boolean ok = chiSquare <= chiSquareLimit
+                    && misplaced == 0
+                    && Math.abs(movedFraction - p) <= movedLimit;
+            passed &= ok;
+            System.out.printf("%-10s n=%-5d chi2=%10.2f (limit %9.2f) moved=%.5f (optimal %.5f) misplaced=%d %s%n",
+                    algorithm, n, chiSquare, chiSquareLimit, movedFraction, p, misplaced, ok ? "ok" : "FAIL");
+        }
+        return passed;
+    }
+}
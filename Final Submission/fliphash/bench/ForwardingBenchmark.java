@@ -0,0 +1,181 @@
+package fliphash.bench;
+
+import LoadBalancer.ChannelForwarder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Loopback throughput of the ways the load balancer and backend can copy an upload.
+ * <p>
+ * A producer thread sends a fixed number of bytes to a relay thread, which copies them either
+ * to a consumer socket (the load balancer's job) or to a file (the backend's job). Each
+ * variant is run several times and the best run is reported, together with the CPU time the
+ * relay thread spent per gigabyte.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.ForwardingBenchmark [megabytes] [runs]}; the
+ * defaults are 256 MB and 5 runs.
+ * </p>
+ */
+public class ForwardingBenchmark {
+
+    private static final int OLD_BUFFER_SIZE = 4096;
+
+    /**
+     * A way of copying from a socket to a socket or a file.
+     */
+    private interface Relay {
+        /**
+         * Copies the upload.
+         *
+         * @param in   the upload, read until end of stream.
+         * @param out  the target socket, or null when copying to a file.
+         * @param file the target file, or null when copying to a socket.
+         * @param size the number of bytes in the upload.
+         * @throws IOException if an I/O error occurs.
+         */
+        void copy(SocketChannel in, SocketChannel out, File file, long size) throws IOException;
+    }
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional upload size in megabytes and number of runs.
+     * @throws Exception if a run fails.
+     */
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.printf("%d MB over loopback, best of %d runs%n", size >> 20, runs);
+
+        measure("socket, byte[4096] + flush per chunk", size, runs, false, (in, out, file, n) -> {
+            pipeOld(in.socket().getInputStream(), out.socket().getOutputStream(), true);
+        });
+        measure("socket, byte[4096]", size, runs, false, (in, out, file, n) -> {
+            pipeOld(in.socket().getInputStream(), out.socket().getOutputStream(), false);
+        });
+        measure("socket, ChannelForwarder", size, runs, false, (in, out, file, n) -> {
+            ChannelForwarder.forward(in, out);
+        });
+        measure("file, byte[4096]", size, runs, true, (in, out, file, n) -> {
+            try (OutputStream fos = new FileOutputStream(file)) {
+                pipeOld(in.socket().getInputStream(), fos, false);
+            }
+        });
+        measure("file, transferFrom", size, runs, true, (in, out, file, n) -> {
+            try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+                ChannelForwarder.forward(in, channel, n);
+            }
+        });
+    }
+
+    private static void pipeOld(InputStream in, OutputStream out, boolean flushEachChunk) throws IOException {
+        byte[] buffer = new byte[OLD_BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            if (flushEachChunk) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    private static void measure(String name, long size, int runs, boolean toFile, Relay relay) throws Exception {
+        double bestSeconds = Double.MAX_VALUE;
+        double bestCpuMsPerGb = Double.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            double[] result = runOnce(size, toFile, relay);
+            bestSeconds = Math.min(bestSeconds, result[0]);
+            bestCpuMsPerGb = Math.min(bestCpuMsPerGb, result[1]);
+        }
+        System.out.printf("%-40s %9.1f MB/s %9.1f relay CPU ms/GB%n",
+                name, size / bestSeconds / (1 << 20), bestCpuMsPerGb);
+    }
+
+    /**
+     * Runs one transfer.
+     *
+     * @return the elapsed seconds and the relay thread's CPU milliseconds per gigabyte.
+     */
+    private static double[] runOnce(long size, boolean toFile, Relay relay) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        File file = toFile ? File.createTempFile("forwarding", ".bin") : null;
+        try (ServerSocketChannel relayServer = ServerSocketChannel.open();
+             ServerSocketChannel sinkServer = ServerSocketChannel.open()) {
+            relayServer.bind(new InetSocketAddress("127.0.0.1", 0));
+            sinkServer.bind(new InetSocketAddress("127.0.0.1", 0));
+            long[] received = new long[1];
+            long[] relayCpu = new long[1];
+            Exception[] failure = new Exception[1];
+
+            Thread sink = new Thread(() -> {
+                if (toFile) {
+                    return;
+                }
+                try (SocketChannel channel = sinkServer.accept()) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                    int n;
+                    while ((n = channel.read(buffer)) != -1) {
+                        received[0] += n;
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            Thread relayThread = new Thread(() -> {
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                try (SocketChannel in = relayServer.accept();
+                     SocketChannel out = toFile ? null : SocketChannel.open(sinkServer.getLocalAddress())) {
+                    relay.copy(in, out, file, size);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                relayCpu[0] = threads.getCurrentThreadCpuTime() - cpuStart;
+            });
+            sink.start();
+            relayThread.start();
+
+            long start = System.nanoTime();
+            try (SocketChannel producer = SocketChannel.open(relayServer.getLocalAddress())) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                long remaining = size;
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+                    while (buffer.hasRemaining()) {
+                        remaining -= producer.write(buffer);
+                    }
+                }
+            }
+            relayThread.join();
+            sink.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            long copied = toFile ? file.length() : received[0];
+            if (copied != size) {
+                throw new IllegalStateException("Copied " + copied + " of " + size + " bytes");
+            }
+            return new double[]{seconds, relayCpu[0] / 1e6 / (size / (double) (1L << 30))};
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
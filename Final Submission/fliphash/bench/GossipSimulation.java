@@ -0,0 +1,188 @@
+package fliphash.bench;
+
+import fliphash.gossip.Member;
+import fliphash.gossip.MembershipListener;
+import fliphash.gossip.SwimNode;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Convergence and failure detection of the SWIM gossip membership on localhost.
+ * <p>
+ * For each cluster size, that many {@link SwimNode}s are started on the loopback address,
+ * each on its own thread, all joining through the first. The program measures, in protocol
+ * periods:
+ * </p>
+ * <ul>
+ *   <li>join: until every node sees every other node;</li>
+ *   <li>detect: from crashing a few nodes (closing them without notice) until the first
+ *       survivor declares each one dead, averaged;</li>
+ *   <li>spread: until every survivor has declared all crashed nodes dead;</li>
+ *   <li>leave: from one node leaving until every other node has removed it.</li>
+ * </ul>
+ * <p>
+ * It also prints log<sub>2</sub>(N) for comparison, the datagrams each node sent per period
+ * in steady state, and the number of live nodes that any node wrongly declared dead. Run with
+ * {@code java -cp bin fliphash.bench.GossipSimulation [sizes] [crashes] [periodMs]}; the
+ * defaults are sizes 16,32,64,128,256, 3 crashes and the default 200 ms period.
+ * </p>
+ */
+public class GossipSimulation {
+
+    private static final long LIMIT_PERIODS = 600;
+
+    /**
+     * Main method for running the simulation.
+     *
+     * @param args optional comma-separated cluster sizes, crashed nodes per run and protocol
+     *             period in milliseconds.
+     * @throws Exception if the nodes cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "16,32,64,128,256";
+        int crashes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        long periodMs = args.length > 2 ? Long.parseLong(args[2]) : SwimNode.DEFAULT_PERIOD_MILLIS;
+
+        System.out.printf("%d crashes per run, %d ms period; times in periods%n", crashes, periodMs);
+        System.out.printf("%6s %8s %8s %8s %8s %8s %12s %14s%n",
+                "nodes", "log2(N)", "join", "detect", "spread", "leave", "msgs/period", "false deaths");
+        for (String size : sizes.split(",")) {
+            run(Integer.parseInt(size.trim()), crashes, periodMs);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int n, int crashes, long periodMs) throws Exception {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        Set<InetSocketAddress> crashed = ConcurrentHashMap.newKeySet();
+        Set<InetSocketAddress> leaving = ConcurrentHashMap.newKeySet();
+        ConcurrentHashMap<InetSocketAddress, Long> firstDeath = new ConcurrentHashMap<>();
+        Set<InetSocketAddress> falselyDead = ConcurrentHashMap.newKeySet();
+        MembershipListener listener = new MembershipListener() {
+            @Override
+            public void memberUp(Member member) {
+            }
+
+            @Override
+            public void memberDown(Member member) {
+                if (crashed.contains(member.getAddress())) {
+                    firstDeath.putIfAbsent(member.getAddress(), System.nanoTime());
+                } else if (!leaving.contains(member.getAddress())) {
+                    falselyDead.add(member.getAddress());
+                }
+            }
+        };
+
+        List<SwimNode> nodes = new ArrayList<>();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            List<InetSocketAddress> seeds = i == 0 ? List.of() : List.of(nodes.get(0).getSelf().getAddress());
+            SwimNode node = new SwimNode(new InetSocketAddress(loopback, 0), Member.Role.BACKEND, 6002, seeds,
+                    periodMs, listener);
+            nodes.add(node);
+            Thread thread = new Thread(node, "gossip-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        double join = waitUntil(start, periodNanos, () -> {
+            for (SwimNode node : nodes) {
+                if (node.getMembers().size() < n - 1) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        // Steady state: measure the message rate.
+        long sentBefore = totalSent(nodes);
+        TimeUnit.MILLISECONDS.sleep(20 * periodMs);
+        double perPeriod = (totalSent(nodes) - sentBefore) / (double) n / 20;
+
+        List<SwimNode> shuffled = new ArrayList<>(nodes.subList(1, n));
+        Collections.shuffle(shuffled);
+        List<SwimNode> victims = shuffled.subList(0, crashes);
+        List<SwimNode> survivors = new ArrayList<>(nodes);
+        survivors.removeAll(victims);
+        long crashTime = System.nanoTime();
+        for (SwimNode victim : victims) {
+            crashed.add(victim.getSelf().getAddress());
+            victim.close();
+        }
+        double spread = waitUntil(crashTime, periodNanos, () -> {
+            for (SwimNode survivor : survivors) {
+                for (Member member : survivor.getMembers()) {
+                    if (crashed.contains(member.getAddress())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        });
+        double detect = 0;
+        for (SwimNode victim : victims) {
+            Long time = firstDeath.get(victim.getSelf().getAddress());
+            detect += time == null ? LIMIT_PERIODS : (double) (time - crashTime) / periodNanos;
+        }
+        detect /= crashes;
+
+        SwimNode leaver = survivors.get(survivors.size() - 1);
+        InetSocketAddress leaverAddress = leaver.getSelf().getAddress();
+        leaving.add(leaverAddress);
+        survivors.remove(leaver);
+        long leaveTime = System.nanoTime();
+        leaver.leave();
+        double leave = waitUntil(leaveTime, periodNanos, () -> {
+            for (SwimNode survivor : survivors) {
+                for (Member member : survivor.getMembers()) {
+                    if (member.getAddress().equals(leaverAddress)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        });
+
+        System.out.printf("%6d %8.1f %8.1f %8.1f %8.1f %8.1f %12.2f %14d%n", n, Math.log(n) / Math.log(2), join,
+                detect, spread, leave, perPeriod, falselyDead.size());
+        for (SwimNode node : nodes) {
+            node.close();
+        }
+        TimeUnit.MILLISECONDS.sleep(5 * periodMs);
+    }
+
+    /**
+     * Polls a condition and returns the periods it took to hold, or the limit if it never did.
+     */
+    private static double waitUntil(long start, long periodNanos, Condition condition) throws InterruptedException {
+        long limit = start + LIMIT_PERIODS * periodNanos;
+        while (!condition.holds()) {
+            if (System.nanoTime() - limit >= 0) {
+                return LIMIT_PERIODS;
+            }
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        return (double) (System.nanoTime() - start) / periodNanos;
+    }
+
+    private static long totalSent(List<SwimNode> nodes) {
+        long total = 0;
+        for (SwimNode node : nodes) {
+            total += node.getMessagesSent();
+        }
+        return total;
+    }
+
+    /**
+     * A condition polled by {@link #waitUntil}.
+     */
+    private interface Condition {
+        boolean holds();
+    }
+}
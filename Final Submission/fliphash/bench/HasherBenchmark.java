@@ -0,0 +1,84 @@
+package fliphash.bench;
+
+import fliphash.FlipHashEngine;
+import fliphash.HashBackend;
+
+/**
+ * Compares FlipHash lookup throughput and bucket bias for every bundled {@link HashBackend}
+ * across key lengths of 8, 16, 64 and 256 bytes.
+ * <p>
+ * Bias is reported as the chi-square statistic of the bucket counts divided by its degrees of
+ * freedom; values close to 1.0 mean the keys are spread uniformly. Keys are consecutive
+ * counters padded to the key length, which is a worst case for weak mixing.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.HasherBenchmark [numResources]}.
+ * </p>
+ */
+public class HasherBenchmark {
+
+    private static final int[] KEY_LENGTHS = {8, 16, 64, 256};
+    private static final int KEY_COUNT = 1 << 12;
+    private static final int KEY_MASK = KEY_COUNT - 1;
+    private static final int BIAS_KEYS = 1 << 18;
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional resource count (defaults to 1000).
+     */
+    public static void main(String[] args) {
+        long numResources = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        System.out.println("FlipHash lookups over " + numResources + " resources per hash backend");
+        for (HashBackend backend : HashBackend.values()) {
+            FlipHashEngine engine = new FlipHashEngine(backend);
+            for (int keyLength : KEY_LENGTHS) {
+                byte[][] keys = new byte[KEY_COUNT][];
+                for (int i = 0; i < KEY_COUNT; i++) {
+                    keys[i] = counterKey(i, keyLength);
+                }
+                String name = String.format("%-16s %4dB  chi2/df %.3f",
+                        backend, keyLength, bias(engine, keyLength, numResources));
+                Bench.measure(name, i -> engine.fliphash(keys[i & KEY_MASK], numResources));
+            }
+        }
+    }
+
+    /**
+     * Computes the normalized chi-square statistic of the bucket counts for counter keys.
+     *
+     * @param engine       the engine to test.
+     * @param keyLength    the key length in bytes.
+     * @param numResources the number of buckets.
+     * @return chi-square divided by its degrees of freedom.
+     */
+    private static double bias(FlipHashEngine engine, int keyLength, long numResources) {
+        int buckets = (int) numResources;
+        long[] counts = new long[buckets];
+        for (int i = 0; i < BIAS_KEYS; i++) {
+            counts[(int) engine.fliphash(counterKey(i, keyLength), numResources)]++;
+        }
+        double expected = (double) BIAS_KEYS / buckets;
+        double chiSquare = 0;
+        for (long count : counts) {
+            double diff = count - expected;
+            chiSquare += diff * diff / expected;
+        }
+        return chiSquare / (buckets - 1);
+    }
+
+    /**
+     * Builds a key of the given length whose first eight bytes hold a little-endian counter.
+     *
+     * @param counter   the counter value.
+     * @param keyLength the key length in bytes, at least 8.
+     * @return the key.
+     */
+    private static byte[] counterKey(long counter, int keyLength) {
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < 8; i++) {
+            key[i] = (byte) (counter >>> (8 * i));
+        }
+        return key;
+    }
+}
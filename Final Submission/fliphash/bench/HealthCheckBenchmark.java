@@ -0,0 +1,245 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendHealthChecker;
+import LoadBalancer.BackendManager;
+import LoadBalancer.LoadBalancerConfig;
+import LoadBalancer.RoutingTable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Failure detection time of the sequential health check loop and of the
+ * {@link BackendHealthChecker}.
+ * <p>
+ * Many fake backends answering health checks are registered on localhost. After a warm-up,
+ * some of them fail: half hang, keeping their port open but never accepting (their accept
+ * queue is full, so connects time out), and half die, closing their port (connects are
+ * refused). The program records when each failed backend leaves the routing table and prints
+ * the mean and longest detection time, and how many healthy backends were removed by mistake.
+ * The sequential loop, the checker this project used before, sleeps 3 seconds and then
+ * connects to one backend after another with a 1 second timeout, so every hung backend adds a
+ * second to the sweep.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.HealthCheckBenchmark [backends] [failing]}; the
+ * defaults are 200 backends of which 16 fail. The checker runs with its default settings.
+ * </p>
+ */
+public class HealthCheckBenchmark {
+
+    private static final long WARMUP_MS = 5_000;
+    private static final long DETECTION_LIMIT_MS = 30_000;
+    /** Length of the {@code writeUTF("health check")} request. */
+    private static final int REQUEST_LENGTH = 14;
+    private static final byte[] RESPONSE = {0, 2, 'O', 'K'};
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional number of backends and of failing backends.
+     * @throws Exception if the benchmark cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        int numBackends = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int numFailing = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        BackendHealthChecker checker = new BackendHealthChecker(new LoadBalancerConfig(new Properties()));
+        System.out.printf("%d backends, %d fail (%d hang, %d die); checker bound %d ms%n",
+                numBackends, numFailing, numFailing / 2, numFailing - numFailing / 2, checker.getDetectionBoundMillis());
+        System.out.printf("%-12s %12s %12s %16s%n", "checker", "mean detect", "max detect", "false removals");
+        run("sequential", numBackends, numFailing, HealthCheckBenchmark::checkSequentially);
+        run("nio", numBackends, numFailing, checker);
+    }
+
+    private static void run(String name, int numBackends, int numFailing, Runnable checker) throws Exception {
+        FakeBackends backends = new FakeBackends(numBackends, numFailing);
+        for (BackendManager.BackendInfo backend : backends.infos) {
+            BackendManager.addBackend(backend);
+        }
+        Thread thread = new Thread(checker, name + "-checker");
+        thread.setDaemon(true);
+        thread.start();
+        TimeUnit.MILLISECONDS.sleep(WARMUP_MS);
+
+        long start = System.nanoTime();
+        backends.fail();
+        long[] detected = new long[numFailing];
+        Arrays.fill(detected, -1);
+        int remaining = numFailing;
+        while (remaining > 0 && System.nanoTime() - start < DETECTION_LIMIT_MS * 1_000_000L) {
+            RoutingTable table = BackendManager.getRoutingTable();
+            for (int i = 0; i < numFailing; i++) {
+                if (detected[i] < 0 && !table.contains(backends.infos.get(i))) {
+                    detected[i] = System.nanoTime() - start;
+                    remaining--;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        thread.interrupt();
+
+        RoutingTable table = BackendManager.getRoutingTable();
+        int falseRemovals = 0;
+        for (int i = numFailing; i < numBackends; i++) {
+            if (!table.contains(backends.infos.get(i))) {
+                falseRemovals++;
+            }
+        }
+        long sum = 0;
+        long max = 0;
+        for (long nanos : detected) {
+            long value = nanos < 0 ? DETECTION_LIMIT_MS * 1_000_000L : nanos;
+            sum += value;
+            max = Math.max(max, value);
+        }
+        System.out.printf("%-12s %9.0f ms %9.0f ms %16d%s%n", name, sum / 1e6 / numFailing, max / 1e6,
+                falseRemovals, remaining > 0 ? "  (" + remaining + " not detected)" : "");
+
+        thread.join(5_000);
+        for (BackendManager.BackendInfo backend : backends.infos) {
+            BackendManager.removeBackend(backend);
+        }
+        backends.close();
+    }
+
+    /**
+     * The health check loop this project used before {@link BackendHealthChecker}.
+     */
+    private static void checkSequentially() {
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(3);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (BackendManager.BackendInfo backend : BackendManager.getBackends()) {
+                if (!BackendManager.isBackendActive(backend)) {
+                    BackendManager.removeBackend(backend);
+                }
+            }
+        }
+    }
+
+    /**
+     * Backends on localhost served by one selector thread. The first {@code failing} of them
+     * fail on request.
+     */
+    private static final class FakeBackends implements Runnable {
+        final List<BackendManager.BackendInfo> infos = new ArrayList<>();
+        private final List<ServerSocketChannel> listeners = new ArrayList<>();
+        private final List<SocketChannel> fillers = new ArrayList<>();
+        private final Selector selector;
+        private final int failing;
+        private final Thread thread;
+
+        FakeBackends(int count, int failing) throws IOException {
+            this.failing = failing;
+            this.selector = Selector.open();
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                // A hung backend's accept queue must fill with a few connections.
+                listener.bind(new InetSocketAddress(loopback, 0), i < failing / 2 ? 1 : 128);
+                listener.configureBlocking(false);
+                listener.register(selector, SelectionKey.OP_ACCEPT);
+                listeners.add(listener);
+                infos.add(new BackendManager.BackendInfo(loopback.getHostAddress(), listener.socket().getLocalPort()));
+            }
+            thread = new Thread(this, "fake-backends");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Makes the failing backends hang or die.
+         */
+        void fail() throws IOException {
+            for (int i = 0; i < failing; i++) {
+                ServerSocketChannel listener = listeners.get(i);
+                if (i < failing / 2) {
+                    listener.keyFor(selector).cancel();
+                    for (int c = 0; c < 4; c++) {
+                        SocketChannel filler = SocketChannel.open();
+                        filler.configureBlocking(false);
+                        filler.connect(listener.getLocalAddress());
+                        fillers.add(filler);
+                    }
+                } else {
+                    listener.close();
+                }
+            }
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ignored) {
+                // The backends were closed.
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isAcceptable()) {
+                    SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+                    if (client != null) {
+                        client.configureBlocking(false);
+                        client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(REQUEST_LENGTH));
+                    }
+                    return;
+                }
+                SocketChannel client = (SocketChannel) key.channel();
+                ByteBuffer request = (ByteBuffer) key.attachment();
+                int read = client.read(request);
+                if (read < 0 || !request.hasRemaining()) {
+                    if (read >= 0) {
+                        client.write(ByteBuffer.wrap(RESPONSE));
+                    }
+                    client.close();
+                }
+            } catch (IOException e) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                    // Ignore cleanup exceptions.
+                }
+            }
+        }
+
+        void close() throws IOException {
+            selector.close();
+            for (SocketChannel filler : fillers) {
+                filler.close();
+            }
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.BackendSelector;
+import LoadBalancer.FlipHashSelector;
+import LoadBalancer.HotKeyDetector;
+import LoadBalancer.HotKeySelector;
+import LoadBalancer.RoutingTable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Backend load balance of hot key replication on a Zipf workload.
+ * <p>
+ * Requests come from a large set of client addresses whose popularity follows a Zipf
+ * distribution, so a few addresses (think NAT gateways) send a large share of the traffic and
+ * plain FlipHash puts all of it on their backends. The run has two phases with different
+ * popular addresses, to show that the detector forgets the old hot keys. For each selector and
+ * phase the program prints the busiest backend's requests relative to the mean (peak to mean),
+ * the share of requests that reached the client's FlipHash backend (affinity) and the number
+ * of hot keys at the end of the phase. It then measures the cost of one selection.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.HotKeyBenchmark [requestsPerPhase] [zipfExponent]};
+ * the defaults are 2000000 requests and an exponent of 1.1. The detector decays every
+ * 100 ms here, as a phase only lasts about a second.
+ * </p>
+ */
+public class HotKeyBenchmark {
+
+    private static final int BACKENDS = 16;
+    private static final int CLIENTS = 100_000;
+    private static final double THRESHOLD = 0.02;
+    private static final long DECAY_MS = 100;
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional number of requests per phase and Zipf exponent.
+     * @throws UnknownHostException never, as addresses are built from raw bytes.
+     */
+    public static void main(String[] args) throws UnknownHostException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        double exponent = args.length > 1 ? Double.parseDouble(args[1]) : 1.1;
+
+        RoutingTable table = RoutingTable.EMPTY;
+        Map<BackendManager.BackendInfo, Integer> indexes = new HashMap<>();
+        for (int b = 0; b < BACKENDS; b++) {
+            BackendManager.BackendInfo backend = new BackendManager.BackendInfo("10.4.0." + b, 6002);
+            table = table.withBackend(backend);
+            indexes.put(backend, b);
+        }
+        SplittableRandom random = new SplittableRandom(17);
+        InetAddress[] clients = new InetAddress[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            int ip = random.nextInt();
+            clients[c] = InetAddress.getByAddress(new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+        }
+        double[] cumulative = new double[CLIENTS];
+        double sum = 0;
+        for (int c = 0; c < CLIENTS; c++) {
+            sum += 1 / Math.pow(c + 1, exponent);
+            cumulative[c] = sum;
+        }
+        for (int c = 0; c < CLIENTS; c++) {
+            cumulative[c] /= sum;
+        }
+        // The same request sequence for every selector; phase 2 shifts popularity to other clients.
+        int[][] phases = new int[2][requests];
+        for (int phase = 0; phase < 2; phase++) {
+            for (int r = 0; r < requests; r++) {
+                int rank = pick(cumulative, random.nextDouble());
+                phases[phase][r] = phase == 0 ? rank : CLIENTS - 1 - rank;
+            }
+        }
+
+        System.out.printf("%d backends, %,d clients, Zipf(%.1f): top client sends %.1f%% of requests; "
+                        + "hot above %.0f%%%n", BACKENDS, CLIENTS, exponent, 100 * cumulative[0], 100 * THRESHOLD);
+        System.out.printf("%-28s %6s %12s %11s %10s%n", "selector", "phase", "peak/mean", "affinity", "hot keys");
+        run("fliphash", FlipHashSelector.INSTANCE, null, table, indexes, clients, phases);
+        for (int replicas : new int[]{2, 4, 8}) {
+            HotKeyDetector detector = new HotKeyDetector(THRESHOLD, DECAY_MS);
+            run("hot keys, " + replicas + " replicas",
+                    new HotKeySelector(FlipHashSelector.INSTANCE, detector, replicas), detector,
+                    table, indexes, clients, phases);
+        }
+
+        System.out.println();
+        RoutingTable routing = table;
+        int[] sequence = phases[0];
+        Bench.measure("select: fliphash",
+                i -> FlipHashSelector.INSTANCE.select(clients[sequence[i % requests]], routing).port);
+        BackendSelector hotKeys = new HotKeySelector(FlipHashSelector.INSTANCE,
+                new HotKeyDetector(THRESHOLD, DECAY_MS), 4);
+        Bench.measure("select: hot keys, 4 replicas",
+                i -> hotKeys.select(clients[sequence[i % requests]], routing).port);
+    }
+
+    private static void run(String name, BackendSelector selector, HotKeyDetector detector, RoutingTable table,
+                            Map<BackendManager.BackendInfo, Integer> indexes, InetAddress[] clients, int[][] phases) {
+        for (int phase = 0; phase < phases.length; phase++) {
+            long[] counts = new long[BACKENDS];
+            long affine = 0;
+            for (int client : phases[phase]) {
+                BackendManager.BackendInfo backend = selector.select(clients[client], table);
+                counts[indexes.get(backend)]++;
+                if (backend == FlipHashSelector.INSTANCE.select(clients[client], table)) {
+                    affine++;
+                }
+            }
+            int requests = phases[phase].length;
+            long peak = 0;
+            for (long count : counts) {
+                peak = Math.max(peak, count);
+            }
+            System.out.printf("%-28s %6d %11.2fx %10.1f%% %10s%n", name, phase + 1,
+                    peak / (requests / (double) BACKENDS), 100.0 * affine / requests,
+                    detector == null ? "-" : Integer.toString(detector.getHotKeys().length));
+        }
+    }
+
+    private static int pick(double[] cumulative, double u) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,204 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.RoutingTable;
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Fraction of client keys that change backend per membership change, for three ways of
+ * mapping FlipHash buckets to backends.
+ * <p>
+ * The same random sequence of removals (of a random backend) and additions (of a new backend)
+ * is applied to each membership layer, and after every change all keys are routed again:
+ * </p>
+ * <ul>
+ *   <li>{@code shift} - a list that closes the gap on removal, which moves every later
+ *       backend down one bucket (the previous behaviour);</li>
+ *   <li>{@code swap-last} - the last backend moves into the freed bucket;</li>
+ *   <li>{@code tombstone} - {@link RoutingTable}, which leaves the freed slot as a tombstone
+ *       and rehashes the keys that land on it.</li>
+ * </ul>
+ * <p>
+ * For each layer the program prints the mean fraction of keys remapped by removals and by
+ * additions, next to the minimum any layer must move: the removed backend's share, or the
+ * share the new backend receives. It also prints the most loaded backend relative to a fair
+ * share, averaged over all steps, to show that rehashing does not skew load.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.MembershipRemapSimulation [keys] [backends] [steps]};
+ * the defaults are 200000 keys, 32 initial backends and 200 changes.
+ * </p>
+ */
+public class MembershipRemapSimulation {
+
+    private static final FlipHashFunction HASH = FlipHashAlgorithm.fromName("reseeding").function();
+
+    /**
+     * A way of assigning backends to FlipHash buckets.
+     */
+    private interface Membership {
+        void add(BackendManager.BackendInfo backend);
+
+        void remove(BackendManager.BackendInfo backend);
+
+        BackendManager.BackendInfo route(long key);
+    }
+
+    /**
+     * The previous layer: a list whose later backends shift down on removal.
+     */
+    private static class ShiftingList implements Membership {
+        final List<BackendManager.BackendInfo> backends = new ArrayList<>();
+
+        @Override
+        public void add(BackendManager.BackendInfo backend) {
+            backends.add(backend);
+        }
+
+        @Override
+        public void remove(BackendManager.BackendInfo backend) {
+            backends.remove(backend);
+        }
+
+        @Override
+        public BackendManager.BackendInfo route(long key) {
+            return backends.get((int) HASH.fliphash(key, backends.size()));
+        }
+    }
+
+    /**
+     * Moves the last backend into the freed bucket, so the bucket count shrinks from the end.
+     */
+    private static class SwapLast extends ShiftingList {
+        @Override
+        public void remove(BackendManager.BackendInfo backend) {
+            int index = backends.indexOf(backend);
+            BackendManager.BackendInfo last = backends.remove(backends.size() - 1);
+            if (index < backends.size()) {
+                backends.set(index, last);
+            }
+        }
+    }
+
+    /**
+     * The routing table with tombstoned slots.
+     */
+    private static class Tombstones implements Membership {
+        RoutingTable table = RoutingTable.EMPTY;
+
+        @Override
+        public void add(BackendManager.BackendInfo backend) {
+            table = table.withBackend(backend);
+        }
+
+        @Override
+        public void remove(BackendManager.BackendInfo backend) {
+            table = table.withoutBackend(backend);
+        }
+
+        @Override
+        public BackendManager.BackendInfo route(long key) {
+            return table.route(HASH, key);
+        }
+    }
+
+    /**
+     * Main method for running the simulation.
+     *
+     * @param args optional number of keys, initial backends and membership changes.
+     */
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int initialBackends = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        long[] keys = new SplittableRandom(1).longs(numKeys).toArray();
+        System.out.printf("%,d keys, %d initial backends, %d random additions and removals%n",
+                numKeys, initialBackends, steps);
+        System.out.printf("%-10s %16s %16s %16s %16s %12s%n", "layer", "remove: moved", "remove: minimum",
+                "add: moved", "add: minimum", "max load");
+        simulate("shift", new ShiftingList(), keys, initialBackends, steps);
+        simulate("swap-last", new SwapLast(), keys, initialBackends, steps);
+        simulate("tombstone", new Tombstones(), keys, initialBackends, steps);
+    }
+
+    private static void simulate(String name, Membership membership, long[] keys, int initialBackends, int steps) {
+        // The same change sequence for every layer.
+        SplittableRandom random = new SplittableRandom(2);
+        List<BackendManager.BackendInfo> live = new ArrayList<>();
+        int nextId = 0;
+        for (; nextId < initialBackends; nextId++) {
+            BackendManager.BackendInfo backend = backend(nextId);
+            live.add(backend);
+            membership.add(backend);
+        }
+        BackendManager.BackendInfo[] routes = routeAll(membership, keys);
+
+        double removeMoved = 0;
+        double removeMinimum = 0;
+        double addMoved = 0;
+        double addMinimum = 0;
+        double maxLoad = 0;
+        int removals = 0;
+        for (int step = 0; step < steps; step++) {
+            boolean remove = live.size() > 2 && (live.size() >= 2 * initialBackends || random.nextBoolean());
+            BackendManager.BackendInfo changed;
+            if (remove) {
+                changed = live.remove(random.nextInt(live.size()));
+                membership.remove(changed);
+            } else {
+                changed = backend(nextId++);
+                live.add(changed);
+                membership.add(changed);
+            }
+            BackendManager.BackendInfo[] next = routeAll(membership, keys);
+            int moved = 0;
+            // The keys that had to move: those of the removed backend, or those the new one took.
+            int required = 0;
+            Map<BackendManager.BackendInfo, Integer> load = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (next[i] != routes[i]) {
+                    moved++;
+                }
+                if (changed.equals(remove ? routes[i] : next[i])) {
+                    required++;
+                }
+                load.merge(next[i], 1, Integer::sum);
+            }
+            double fair = keys.length / (double) live.size();
+            maxLoad += load.values().stream().mapToInt(Integer::intValue).max().orElse(0) / fair;
+            if (remove) {
+                removeMoved += moved / (double) keys.length;
+                removeMinimum += required / (double) keys.length;
+                removals++;
+            } else {
+                addMoved += moved / (double) keys.length;
+                addMinimum += required / (double) keys.length;
+            }
+            routes = next;
+        }
+        int additions = steps - removals;
+        System.out.printf("%-10s %15.2f%% %15.2f%% %15.2f%% %15.2f%% %11.2fx%n", name,
+                100 * removeMoved / Math.max(removals, 1), 100 * removeMinimum / Math.max(removals, 1),
+                100 * addMoved / Math.max(additions, 1), 100 * addMinimum / Math.max(additions, 1),
+                maxLoad / steps);
+    }
+
+    private static BackendManager.BackendInfo[] routeAll(Membership membership, long[] keys) {
+        BackendManager.BackendInfo[] routes = new BackendManager.BackendInfo[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            routes[i] = membership.route(keys[i]);
+        }
+        return routes;
+    }
+
+    private static BackendManager.BackendInfo backend(int id) {
+        return new BackendManager.BackendInfo("10.1." + (id >> 8) + "." + (id & 0xFF), 6002);
+    }
+}
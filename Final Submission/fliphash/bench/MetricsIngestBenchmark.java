@@ -0,0 +1,215 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.MetricsReceiver;
+import fliphash.MetricsProtocol;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of encoding and ingesting backend metrics: JSON lines against {@link MetricsProtocol}
+ * frames.
+ * <p>
+ * Many backends report once each. The JSON figures repeat what the reporter and receiver did
+ * before the binary format: a {@code String.format} line per sample, and per line a
+ * {@code Pattern.compile} for the backend id, two more matches, a map update and a
+ * registration and capacity report to {@link BackendManager}. They leave out the TCP
+ * connection and thread each report used to get. The binary figures encode into a reused
+ * buffer and ingest frames of 1 and of {@value MetricsProtocol#MAX_SAMPLES} samples through
+ * {@link MetricsReceiver#ingest}, bumping the sequence numbers in place so no sample is
+ * stale. All figures are per sample, including the bytes allocated on the calling thread.
+ * </p>
+ * <p>
+ * Last, a {@link MetricsReceiver} listens on a UDP port, every backend reports in full
+ * frames for several rounds as fast as one sender can go, and the program prints the samples
+ * per second and how many backends ended with their last value.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.MetricsIngestBenchmark [backends] [rounds]};
+ * the defaults are 5000 backends and 20 rounds.
+ * </p>
+ */
+public class MetricsIngestBenchmark {
+
+    private static final int BACKEND_PORT = 6002;
+    private static final Pattern CAPACITY = Pattern.compile("\"capacity\"\\s*:\\s*(\\d+)");
+    private static final Pattern CLIENT_COUNT = Pattern.compile("\"clientCount\"\\s*:\\s*(\\d+)");
+    private static final Map<String, String> jsonMetrics = new ConcurrentHashMap<>();
+    private static final Map<BackendManager.BackendInfo, Integer> jsonClientCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional number of backends and of UDP rounds.
+     * @throws Exception if the benchmark cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        int numBackends = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        InetAddress[] addresses = new InetAddress[numBackends];
+        String[] lines = new String[numBackends];
+        long jsonBytes = 0;
+        for (int i = 0; i < numBackends; i++) {
+            addresses[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i});
+            lines[i] = json(addresses[i], i, 4);
+            jsonBytes += lines[i].length() + 1;
+        }
+        System.out.printf("%d backends; wire bytes per sample: JSON %.1f, binary %.1f (1 per frame), %.1f (%d per frame)%n",
+                numBackends, (double) jsonBytes / numBackends,
+                (double) MetricsProtocol.HEADER_BYTES + MetricsProtocol.SAMPLE_BYTES,
+                MetricsProtocol.SAMPLE_BYTES + (double) MetricsProtocol.HEADER_BYTES / MetricsProtocol.MAX_SAMPLES,
+                MetricsProtocol.MAX_SAMPLES);
+
+        // Encoding.
+        MetricsProtocol.Sample sample = new MetricsProtocol.Sample();
+        ByteBuffer buffer = ByteBuffer.allocate(MetricsProtocol.MAX_FRAME_BYTES);
+        Bench.measure("encode JSON line", i -> json(addresses[i % numBackends], i, 4).length());
+        Bench.measure("encode binary sample", i -> {
+            buffer.clear();
+            sample.setBackend(addresses[i % numBackends], BACKEND_PORT).setSequence(1, i)
+                    .setMetrics(37.5, 55.25, 61.0, i & 1023, 4).write(buffer);
+            return buffer.position();
+        });
+
+        // Ingestion; the first pass registers every backend.
+        ByteBuffer[] single = frames(addresses, 1);
+        ByteBuffer[] full = frames(addresses, MetricsProtocol.MAX_SAMPLES);
+        for (ByteBuffer frame : single) {
+            MetricsReceiver.ingest(frame);
+        }
+        Bench.measure("ingest JSON line (per-line compile)", i -> ingestJson(lines[i % numBackends]));
+        int[] sequence = {1};
+        Bench.measure("ingest binary, 1 sample per frame", i -> {
+            ByteBuffer frame = single[i % single.length];
+            if (i % single.length == 0) {
+                sequence[0]++;
+            }
+            frame.putInt(MetricsProtocol.HEADER_BYTES + 24, sequence[0]);
+            return MetricsReceiver.ingest(frame);
+        });
+        Bench.measure("ingest binary, " + MetricsProtocol.MAX_SAMPLES + " samples per frame",
+                MetricsProtocol.MAX_SAMPLES, i -> {
+                    ByteBuffer frame = full[i % full.length];
+                    if (i % full.length == 0) {
+                        sequence[0]++;
+                    }
+                    int count = MetricsProtocol.sampleCount(frame);
+                    for (int s = 0; s < count; s++) {
+                        frame.putInt(MetricsProtocol.HEADER_BYTES + s * MetricsProtocol.SAMPLE_BYTES + 24, sequence[0]);
+                    }
+                    return MetricsReceiver.ingest(frame);
+                });
+
+        udpRounds(addresses, rounds, sequence[0] + 1);
+        System.exit(0);
+    }
+
+    /**
+     * Sends every backend's sample in full frames for several rounds, each with the round as
+     * the client count, and waits until the receiver holds the last round.
+     */
+    private static void udpRounds(InetAddress[] addresses, int rounds, int firstSequence) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread receiver = new Thread(new MetricsReceiver(port), "metrics-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+        MetricsProtocol.Sample sample = new MetricsProtocol.Sample();
+        ByteBuffer frame = ByteBuffer.allocate(MetricsProtocol.MAX_FRAME_BYTES);
+        long start = System.nanoTime();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            for (int round = 1; round <= rounds; round++) {
+                for (int first = 0; first < addresses.length; first += MetricsProtocol.MAX_SAMPLES) {
+                    int count = Math.min(MetricsProtocol.MAX_SAMPLES, addresses.length - first);
+                    frame.clear();
+                    MetricsProtocol.writeHeader(frame, count);
+                    for (int i = first; i < first + count; i++) {
+                        sample.setBackend(addresses[i], BACKEND_PORT).setSequence(1, firstSequence + round)
+                                .setMetrics(37.5, 55.25, 61.0, round, 4).write(frame);
+                    }
+                    channel.write(frame.flip());
+                }
+            }
+        }
+        long sent = System.nanoTime() - start;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        int current;
+        do {
+            current = 0;
+            for (InetAddress address : addresses) {
+                if (MetricsReceiver.getReportedClientCount(
+                        new BackendManager.BackendInfo(address.getHostAddress(), BACKEND_PORT)) == rounds) {
+                    current++;
+                }
+            }
+        } while (current < addresses.length && System.nanoTime() < deadline && sleep());
+        long samples = (long) rounds * addresses.length;
+        System.out.printf("UDP: %d samples in %d ms (%.0f samples/s sent), %d of %d backends current, %d stale%n",
+                samples, sent / 1_000_000, samples * 1e9 / sent, current, addresses.length,
+                MetricsReceiver.getStaleSamples());
+    }
+
+    private static boolean sleep() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(10);
+        return true;
+    }
+
+    private static ByteBuffer[] frames(InetAddress[] addresses, int perFrame) {
+        MetricsProtocol.Sample sample = new MetricsProtocol.Sample();
+        ByteBuffer[] frames = new ByteBuffer[(addresses.length + perFrame - 1) / perFrame];
+        for (int f = 0; f < frames.length; f++) {
+            int first = f * perFrame;
+            int count = Math.min(perFrame, addresses.length - first);
+            ByteBuffer frame = ByteBuffer.allocate(MetricsProtocol.HEADER_BYTES + count * MetricsProtocol.SAMPLE_BYTES);
+            MetricsProtocol.writeHeader(frame, count);
+            for (int i = first; i < first + count; i++) {
+                sample.setBackend(addresses[i], BACKEND_PORT).setSequence(1, 1).setMetrics(37.5, 55.25, 61.0, i & 1023, 4)
+                        .write(frame);
+            }
+            frames[f] = frame.flip();
+        }
+        return frames;
+    }
+
+    private static String json(InetAddress address, int clients, int capacity) {
+        return String.format(
+                "{\"backendId\":\"%s\", \"cpuLoad\":%.2f, \"cpuTemp\":%.2f, \"memoryUsage\":%.2f, \"clientCount\":%d, \"capacity\":%d}",
+                address.getHostAddress() + ":" + BACKEND_PORT, 37.5, 55.25, 61.0, clients & 1023, capacity);
+    }
+
+    /**
+     * Handles one JSON line as the receiver did before the binary format.
+     */
+    private static long ingestJson(String line) {
+        Matcher id = Pattern.compile("\"backendId\"\\s*:\\s*\"([^\"]+)\"").matcher(line);
+        if (!id.find()) {
+            return 0;
+        }
+        String backendId = id.group(1);
+        jsonMetrics.put(backendId, line);
+        String[] parts = backendId.split(":");
+        BackendManager.BackendInfo backend = new BackendManager.BackendInfo(parts[0], Integer.parseInt(parts[1]));
+        BackendManager.addBackend(backend);
+        Matcher capacity = CAPACITY.matcher(line);
+        if (capacity.find()) {
+            BackendManager.reportCapacity(backend, Integer.parseInt(capacity.group(1)));
+        }
+        Matcher clients = CLIENT_COUNT.matcher(line);
+        if (clients.find()) {
+            jsonClientCounts.put(backend, Integer.parseInt(clients.group(1)));
+        }
+        return line.length();
+    }
+}
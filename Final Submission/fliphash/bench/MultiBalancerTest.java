@@ -0,0 +1,443 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendHealthChecker;
+import LoadBalancer.BackendManager;
+import LoadBalancer.BackendRegistrationHandler;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.EpochLog;
+import LoadBalancer.LoadBalancerConfig;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several load balancer processes routing the same clients alike.
+ * <p>
+ * Starts load balancers as separate JVMs on localhost, each with its own client, registration
+ * and epoch log ports and a health checker, and fake backends in this process that answer
+ * every request with their number. Clients from many loopback addresses (127.1.x.y) send one
+ * request to every load balancer, and a client agrees when all load balancers send it to the
+ * same backend. The run has three steps:
+ * </p>
+ * <ol>
+ *   <li>backends register, each with a different load balancer, at the same time;</li>
+ *   <li>backend 0 dies, and the health checkers remove it, while two new backends register
+ *       with different load balancers;</li>
+ *   <li>load balancer 0 is killed, a backend registers while it is down, and it restarts
+ *       with no state.</li>
+ * </ol>
+ * <p>
+ * After each step the program waits until every client agrees and every live backend gets
+ * clients, and prints how long that took, the share of clients that agree, how many clients
+ * changed backends at load balancer 0, and how many requests failed in the last round. The
+ * steps run twice: first without the epoch log, with every backend registering with every
+ * load balancer in its own order, and then with the epoch log.
+ * Run with {@code java -cp bin fliphash.bench.MultiBalancerTest [balancers] [backends] [clients]};
+ * the defaults are 3 load balancers, 8 backends and 300 clients. {@code lb.*} system
+ * properties are passed on to the load balancers, whose logs are kept in a temporary
+ * directory printed at the end.
+ * </p>
+ */
+public class MultiBalancerTest {
+
+    private static final long CONVERGENCE_TIMEOUT_MS = 15_000;
+    private static final String REQUEST = "route";
+
+    /**
+     * Main method for running the test, or one load balancer when the first argument is
+     * {@code balancer}.
+     *
+     * @param args optional numbers of load balancers, backends and clients.
+     * @throws Exception if the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("balancer")) {
+            runBalancer(args);
+            return;
+        }
+        int balancers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int backends = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        if (balancers < 2) {
+            throw new IllegalArgumentException("At least 2 load balancers are needed: " + balancers);
+        }
+        Path logs = Files.createTempDirectory("multi-balancer");
+        List<InetAddress> clientAddresses = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            clientAddresses.add(InetAddress.getByName("127.1." + i / 250 + "." + (1 + i % 250)));
+        }
+        System.out.printf("%d load balancers, %d backends, %d clients%n", balancers, backends, clients);
+        run(false, balancers, backends, clientAddresses, logs.resolve("without-log"));
+        run(true, balancers, backends, clientAddresses, logs.resolve("with-log"));
+        System.out.println("Load balancer logs in " + logs);
+        System.exit(0);
+    }
+
+    private static void run(boolean withLog, int balancerCount, int backendCount, List<InetAddress> clients,
+                            Path logs) throws Exception {
+        System.out.println(withLog ? "With the epoch log:" : "Without the epoch log:");
+        List<FakeBackend> backends = new ArrayList<>();
+        List<Balancer> balancers = new ArrayList<>();
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < balancerCount; i++) {
+            Balancer balancer = new Balancer(logs.resolve("lb" + i), withLog);
+            balancers.add(balancer);
+            peers.add("127.0.0.1:" + balancer.peerPort);
+        }
+        for (Balancer balancer : balancers) {
+            balancer.start(String.join(",", peers));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            // 1. Backends register at the same time, each with one load balancer.
+            List<FakeBackend> added = new ArrayList<>();
+            for (int i = 0; i < backendCount; i++) {
+                added.add(new FakeBackend(backends.size()));
+                backends.add(added.get(i));
+            }
+            register(pool, withLog, balancers, added);
+            int[] routes = converge(pool, "register " + backendCount + " backends", balancers, backends, clients, null);
+
+            // 2. Backend 0 dies while two new backends register.
+            backends.get(0).close();
+            added = List.of(new FakeBackend(backends.size()), new FakeBackend(backends.size() + 1));
+            backends.addAll(added);
+            register(pool, withLog, balancers, added);
+            routes = converge(pool, "backend 0 dies, 2 register", balancers, backends, clients, routes);
+
+            // 3. Load balancer 0 restarts with no state, missing a registration meanwhile.
+            balancers.get(0).stop();
+            FakeBackend late = new FakeBackend(backends.size());
+            backends.add(late);
+            register(pool, withLog, balancers.subList(1, balancers.size()), List.of(late));
+            balancers.get(0).start(String.join(",", peers));
+            if (!withLog) {
+                // Without a shared log, the restarted load balancer has to hear from every backend again.
+                List<FakeBackend> live = new ArrayList<>();
+                for (FakeBackend backend : backends) {
+                    if (!backend.closed) {
+                        live.add(backend);
+                    }
+                }
+                register(pool, false, balancers.subList(0, 1), live);
+            }
+            converge(pool, "load balancer 0 restarts", balancers, backends, clients, routes);
+        } finally {
+            pool.shutdownNow();
+            for (Balancer balancer : balancers) {
+                balancer.stop();
+            }
+            for (FakeBackend backend : backends) {
+                backend.close();
+            }
+        }
+    }
+
+    /**
+     * Registers backends at the same time: with the epoch log, each with one load balancer in
+     * turn; without it, each with every load balancer, in a different order per load balancer.
+     */
+    private static void register(ExecutorService pool, boolean withLog, List<Balancer> balancers,
+                                 List<FakeBackend> backends) throws Exception {
+        List<Future<?>> done = new ArrayList<>();
+        if (withLog) {
+            for (int i = 0; i < backends.size(); i++) {
+                Balancer balancer = balancers.get((backends.get(i).number) % balancers.size());
+                FakeBackend backend = backends.get(i);
+                done.add(pool.submit(() -> {
+                    balancer.register(backend);
+                    return null;
+                }));
+            }
+        } else {
+            for (Balancer balancer : balancers) {
+                List<FakeBackend> order = new ArrayList<>(backends);
+                Collections.shuffle(order);
+                done.add(pool.submit(() -> {
+                    for (FakeBackend backend : order) {
+                        balancer.register(backend);
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+    }
+
+    /**
+     * Waits until every client agrees and every live backend gets clients, then prints the
+     * step's results.
+     *
+     * @return the backends of the clients at the first load balancer.
+     */
+    private static int[] converge(ExecutorService pool, String step, List<Balancer> balancers,
+                                  List<FakeBackend> backends, List<InetAddress> clients, int[] before)
+            throws Exception {
+        Set<Integer> live = new HashSet<>();
+        for (FakeBackend backend : backends) {
+            if (!backend.closed) {
+                live.add(backend.number);
+            }
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(CONVERGENCE_TIMEOUT_MS);
+        int[][] routes;
+        int agreeing;
+        int failed;
+        boolean converged;
+        do {
+            routes = routes(pool, balancers, clients);
+            agreeing = 0;
+            failed = 0;
+            Set<Integer> used = new HashSet<>();
+            for (int client = 0; client < clients.size(); client++) {
+                boolean agrees = routes[0][client] >= 0;
+                for (int[] balancerRoutes : routes) {
+                    agrees &= balancerRoutes[client] == routes[0][client];
+                    if (balancerRoutes[client] < 0) {
+                        failed++;
+                    } else {
+                        used.add(balancerRoutes[client]);
+                    }
+                }
+                if (agrees) {
+                    agreeing++;
+                }
+            }
+            converged = agreeing == clients.size() && used.equals(live);
+        } while (!converged && System.nanoTime() < deadline);
+        int moved = 0;
+        if (before != null) {
+            for (int client = 0; client < clients.size(); client++) {
+                if (routes[0][client] != before[client]) {
+                    moved++;
+                }
+            }
+        }
+        System.out.printf("  %-30s %s %6d ms, %5.1f%% of clients agree, %d moved, %d requests failed%n", step,
+                converged ? "converged in" : "not converged,", (System.nanoTime() - start) / 1_000_000,
+                100.0 * agreeing / clients.size(), moved, failed);
+        return routes[0];
+    }
+
+    /**
+     * Sends one request per client to every load balancer.
+     *
+     * @return the backend number for each load balancer and client, -1 where a request failed.
+     */
+    private static int[][] routes(ExecutorService pool, List<Balancer> balancers, List<InetAddress> clients)
+            throws Exception {
+        int[][] routes = new int[balancers.size()][clients.size()];
+        List<Future<?>> done = new ArrayList<>();
+        for (int b = 0; b < balancers.size(); b++) {
+            for (int c = 0; c < clients.size(); c++) {
+                int balancer = b;
+                int client = c;
+                done.add(pool.submit(() -> {
+                    routes[balancer][client] = request(balancers.get(balancer).clientPort, clients.get(client));
+                }));
+            }
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        return routes;
+    }
+
+    private static int request(int port, InetAddress client) {
+        try (Socket socket = new Socket()) {
+            socket.bind(new InetSocketAddress(client, 0));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+            socket.setSoTimeout(3000);
+            InputStream in = socket.getInputStream();
+            // The acknowledgement "OK\n".
+            if (in.readNBytes(3).length < 3) {
+                return -1;
+            }
+            new DataOutputStream(socket.getOutputStream()).writeUTF(REQUEST);
+            socket.shutdownOutput();
+            String response = new String(in.readAllBytes(), StandardCharsets.US_ASCII).trim();
+            return response.startsWith("b") ? Integer.parseInt(response.substring(1)) : -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Runs one load balancer until its standard input closes: client handler, registration
+     * port, health checker and, if a peer port is given, the epoch log.
+     */
+    private static void runBalancer(String[] args) throws IOException {
+        int clientPort = Integer.parseInt(args[1]);
+        int registrationPort = Integer.parseInt(args[2]);
+        int peerPort = Integer.parseInt(args[3]);
+        Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        if (peerPort > 0) {
+            properties.setProperty("lb.peer.port", Integer.toString(peerPort));
+            properties.setProperty("lb.peer.addresses", args[4]);
+        }
+        LoadBalancerConfig config = new LoadBalancerConfig(properties);
+        if (config.getPeerPort() > 0) {
+            EpochLog log = new EpochLog(config.getPeerPort(), config.getPeerAddresses(), config.getPeerSyncMillis());
+            BackendManager.setEpochLog(log);
+            new Thread(log, "epoch-log").start();
+        }
+        new Thread(new BackendRegistrationHandler(registrationPort)).start();
+        new Thread(new ClientConnectionHandler(clientPort, config)).start();
+        new Thread(new BackendHealthChecker(config)).start();
+        System.out.println("ready");
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            // Wait for the test to end.
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A load balancer process with fixed ports, so it restarts on the same ones.
+     */
+    private static final class Balancer {
+        final int clientPort;
+        final int registrationPort;
+        final int peerPort;
+        private final Path directory;
+        private final boolean withLog;
+        private Process process;
+
+        Balancer(Path directory, boolean withLog) throws IOException {
+            this.clientPort = freePort();
+            this.registrationPort = freePort();
+            this.peerPort = freePort();
+            this.directory = Files.createDirectories(directory);
+            this.withLog = withLog;
+        }
+
+        void start(String peers) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("lb.") || name.startsWith("fliphash.")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            // The load balancer runs in its own directory, so the class path must be absolute.
+            List<String> classPath = new ArrayList<>();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                classPath.add(new File(entry).getAbsolutePath());
+            }
+            command.addAll(List.of("-cp", String.join(File.pathSeparator, classPath),
+                    MultiBalancerTest.class.getName(), "balancer", Integer.toString(clientPort),
+                    Integer.toString(registrationPort), Integer.toString(withLog ? peerPort : 0), peers));
+            process = new ProcessBuilder(command).directory(directory.toFile())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            if (!"ready".equals(output.readLine())) {
+                throw new IOException("Load balancer did not start");
+            }
+        }
+
+        void register(FakeBackend backend) throws IOException {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), registrationPort)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("127.0.0.1:" + backend.port + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        }
+
+        void stop() throws InterruptedException {
+            if (process != null) {
+                process.destroyForcibly();
+                process.waitFor();
+                process = null;
+            }
+        }
+    }
+
+    /**
+     * Backend that answers health checks with {@code OK} and requests with its number.
+     */
+    private static final class FakeBackend implements Runnable {
+        final int number;
+        final int port;
+        private final ServerSocket server;
+        volatile boolean closed;
+
+        FakeBackend(int number) throws IOException {
+            this.number = number;
+            this.server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+            this.port = server.getLocalPort();
+            Thread thread = new Thread(this, "fake-backend-" + number);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                server.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed: the backend died.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                String message = new DataInputStream(socket.getInputStream()).readUTF();
+                OutputStream out = socket.getOutputStream();
+                if ("health check".equals(message)) {
+                    new DataOutputStream(out).writeUTF("OK");
+                } else {
+                    out.write(("b" + number + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // The client went away.
+            }
+        }
+    }
+}
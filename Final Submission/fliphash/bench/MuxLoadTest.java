@@ -0,0 +1,231 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.LoadBalancerConfig;
+import fliphash.MuxProtocol;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many concurrent jobs through the blocking load balancer, with one backend connection per
+ * request or all requests multiplexed over one connection.
+ * <p>
+ * A fake backend speaks both protocols of {@code backend.ProxyConnectionHandler}, but instead
+ * of running the JAR it answers a fixed time after the upload ends. While one client uploads a
+ * large file, many clients send small jobs at once; the program prints the latency of the
+ * small jobs and the number of backend connections each variant opened. With multiplexing the
+ * small jobs share the connection with the large upload, and their frames are interleaved with
+ * its frames rather than queued behind it.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.MuxLoadTest [clients] [holdMs] [bulkMegabytes]};
+ * the defaults are 200 clients, 100 ms per job and a 64 MB upload.
+ * </p>
+ */
+public class MuxLoadTest {
+
+    private static final byte[] PAYLOAD = new byte[16 * 1024];
+    private static final String OUTPUT = "Execution output\n";
+
+    /**
+     * Main method for running the load test.
+     *
+     * @param args optional number of clients, job time and size of the large upload.
+     * @throws Exception if the test cannot be set up or a request fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int holdMillis = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long bulkSize = (args.length > 2 ? Long.parseLong(args[2]) : 64) << 20;
+
+        AtomicInteger backendConnections = new AtomicInteger();
+        ServerSocket backend = new ServerSocket(0, 1024);
+        Thread backendThread = new Thread(() -> serveBackend(backend, backendConnections, holdMillis), "fake-backend");
+        backendThread.setDaemon(true);
+        backendThread.start();
+        BackendManager.addBackend(new BackendManager.BackendInfo("127.0.0.1", backend.getLocalPort()));
+
+        System.out.printf("%d jobs of %d KB holding %d ms, next to a %d MB upload%n",
+                numClients, PAYLOAD.length >> 10, holdMillis, bulkSize >> 20);
+        for (boolean mux : new boolean[]{false, true}) {
+            Properties properties = new Properties();
+            properties.setProperty("lb.mux", Boolean.toString(mux));
+            int port = startLoadBalancer(new LoadBalancerConfig(properties));
+            request(port, new byte[PAYLOAD.length], PAYLOAD.length);
+            int connectionsBefore = backendConnections.get();
+
+            long[] bulkMillis = new long[1];
+            Thread bulk = new Thread(() -> {
+                long start = System.nanoTime();
+                try {
+                    request(port, new byte[1 << 20], bulkSize);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Large upload failed", e);
+                }
+                bulkMillis[0] = (System.nanoTime() - start) / 1_000_000;
+            });
+            bulk.start();
+            long[] latencies = run(port, numClients);
+            bulk.join();
+            Arrays.sort(latencies);
+            System.out.printf("%-6s jobs p50 %6.1f ms  p99 %6.1f ms  upload %5d ms  backend connections opened %d%n",
+                    mux ? "mux" : "legacy", Bench.percentile(latencies, 0.50) / 1e6, Bench.percentile(latencies, 0.99) / 1e6,
+                    bulkMillis[0], backendConnections.get() - connectionsBefore);
+        }
+        System.exit(0);
+    }
+
+    private static int startLoadBalancer(LoadBalancerConfig config) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread thread = new Thread(new ClientConnectionHandler(port, config), "load-balancer-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(300);
+        return port;
+    }
+
+    /**
+     * Sends one small job from each client thread, all at once.
+     *
+     * @return the latency of every job in nanoseconds.
+     */
+    private static long[] run(int port, int numClients) throws InterruptedException {
+        long[] latencies = new long[numClients];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] clients = new Thread[numClients];
+        for (int c = 0; c < numClients; c++) {
+            int i = c;
+            clients[c] = new Thread(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    request(port, PAYLOAD, PAYLOAD.length);
+                    latencies[i] = System.nanoTime() - begin;
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException("Request failed", e);
+                }
+            });
+            clients[c].start();
+        }
+        start.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Sends one job the way {@code client.FlipHashClient} does and checks the response.
+     */
+    private static void request(int port, byte[] chunk, long size) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            InputStream in = socket.getInputStream();
+            if (in.read() != 'O' || in.read() != 'K' || in.read() != '\n') {
+                throw new IOException("Missing OK");
+            }
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF("bench.jar");
+            dos.writeLong(size);
+            for (long sent = 0; sent < size; sent += chunk.length) {
+                dos.write(chunk, 0, (int) Math.min(chunk.length, size - sent));
+            }
+            dos.flush();
+            socket.shutdownOutput();
+            String response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            if (!OUTPUT.equals(response)) {
+                throw new IOException("Unexpected response " + response);
+            }
+        }
+    }
+
+    /**
+     * Fake backend: the single-request and multiplexed protocols of
+     * {@code backend.ProxyConnectionHandler}, answering a fixed time after each upload.
+     */
+    private static void serveBackend(ServerSocket server, AtomicInteger connections, int holdMillis) {
+        ScheduledExecutorService jobs = Executors.newScheduledThreadPool(4);
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread handler = new Thread(() -> {
+                    try (Socket s = socket) {
+                        DataInputStream dis = new DataInputStream(
+                                new BufferedInputStream(s.getInputStream(), MuxProtocol.MAX_PAYLOAD + 16));
+                        String first = dis.readUTF();
+                        if (MuxProtocol.INITIAL_MESSAGE.equals(first)) {
+                            serveMux(dis, new MuxProtocol.FrameWriter(s.getOutputStream()), jobs, holdMillis);
+                            return;
+                        }
+                        dis.skipNBytes(dis.readLong());
+                        Thread.sleep(holdMillis);
+                        s.getOutputStream().write(OUTPUT.getBytes(StandardCharsets.UTF_8));
+                    } catch (EOFException e) {
+                        // Connection closed by the load balancer.
+                    } catch (IOException | InterruptedException e) {
+                        System.err.println("Fake backend error: " + e.getMessage());
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void serveMux(DataInputStream in, MuxProtocol.FrameWriter writer, ScheduledExecutorService jobs,
+                                 int holdMillis) throws IOException {
+        byte[] response = OUTPUT.getBytes(StandardCharsets.UTF_8);
+        Map<Integer, long[]> remaining = new ConcurrentHashMap<>();
+        MuxProtocol.Frame frame;
+        while ((frame = MuxProtocol.readFrame(in)) != null) {
+            int streamId = frame.streamId;
+            switch (frame.type) {
+                case MuxProtocol.OPEN:
+                    remaining.put(streamId, new long[]{frame.openSize()});
+                    break;
+                case MuxProtocol.DATA:
+                    remaining.get(streamId)[0] -= frame.payload.length;
+                    writer.writeWindow(streamId, frame.payload.length);
+                    break;
+                case MuxProtocol.END:
+                    if (remaining.remove(streamId)[0] != 0) {
+                        throw new IOException("Wrong upload size on stream " + streamId);
+                    }
+                    // The response is far smaller than the initial window.
+                    jobs.schedule(() -> {
+                        try {
+                            writer.write(streamId, MuxProtocol.DATA, response, 0, response.length);
+                            writer.writeEnd(streamId);
+                        } catch (IOException e) {
+                            System.err.println("Fake backend error: " + e.getMessage());
+                        }
+                    }, holdMillis, TimeUnit.MILLISECONDS);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
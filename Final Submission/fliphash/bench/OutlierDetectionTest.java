@@ -0,0 +1,235 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.LoadBalancerConfig;
+import LoadBalancer.NioProxyServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passive outlier ejection under live traffic.
+ * <p>
+ * Starts the client engine selected by {@link LoadBalancerConfig} in-process with eight fake
+ * backends, and client threads that send requests from many loopback addresses (127.0.0.x),
+ * so FlipHash spreads them over all backends. The run has four phases:
+ * </p>
+ * <ol>
+ *   <li>all backends healthy;</li>
+ *   <li>backend 0 dies: its port is closed and connects are refused;</li>
+ *   <li>backend 0 is back on the same port, backend 1 resets 30% of its connections and
+ *       backend 2 answers 20 times slower than the others;</li>
+ *   <li>all backends healthy again.</li>
+ * </ol>
+ * <p>
+ * The program prints every ejection and readmission as it happens, and for each phase the
+ * requests sent and the share that failed at the client. Run with
+ * {@code java -cp bin fliphash.bench.OutlierDetectionTest [phaseSeconds] [clientThreads]};
+ * the defaults are 8 seconds and 4 threads. Add {@code -Dlb.engine=nio} for the NIO proxy.
+ * Load balancer log lines are written to {@code LoadBalancerOutputLog.txt} in the working
+ * directory.
+ * </p>
+ */
+public class OutlierDetectionTest {
+
+    private static final int BACKENDS = 8;
+    private static final int CLIENT_ADDRESSES = 200;
+    private static final long FAST_MS = 2;
+    private static final long SLOW_MS = 40;
+    private static final double RESET_RATE = 0.3;
+    private static final byte[] PAYLOAD = new byte[512];
+    private static final byte[] RESPONSE = "done\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Behaviour of a fake backend.
+     */
+    private enum Mode {
+        HEALTHY, DEAD, RESETTING, SLOW
+    }
+
+    /**
+     * Main method for running the test.
+     *
+     * @param args optional phase length in seconds and number of client threads.
+     * @throws Exception if the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        long phaseSeconds = args.length > 0 ? Long.parseLong(args[0]) : 8;
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        LoadBalancerConfig config = LoadBalancerConfig.fromSystemProperties();
+
+        FakeBackend[] backends = new FakeBackend[BACKENDS];
+        for (int i = 0; i < BACKENDS; i++) {
+            backends[i] = new FakeBackend(new ServerSocket(0, 128, InetAddress.getLoopbackAddress()));
+            BackendManager.addBackend(backends[i].info);
+        }
+        int proxyPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            proxyPort = probe.getLocalPort();
+        }
+        Runnable proxy = config.getEngine() == LoadBalancerConfig.Engine.NIO
+                ? new NioProxyServer(proxyPort, config)
+                : new ClientConnectionHandler(proxyPort, config);
+        Thread proxyThread = new Thread(proxy, "outlier-test-proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        Thread.sleep(500);
+
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (int t = 0; t < numThreads; t++) {
+            Thread client = new Thread(() -> sendRequests(proxyPort, sent, failed), "outlier-test-client-" + t);
+            client.setDaemon(true);
+            client.start();
+        }
+
+        System.out.printf("%d backends, %d client threads, %d s phases, %s%n", BACKENDS, numThreads, phaseSeconds, config);
+        long start = System.nanoTime();
+        String[] phases = {"healthy", "0 dead", "0 back, 1 resets, 2 slow", "healthy"};
+        int[] sentByPhase = new int[phases.length];
+        int[] failedByPhase = new int[phases.length];
+        boolean[] ejected = new boolean[BACKENDS];
+        for (int phase = 0; phase < phases.length; phase++) {
+            if (phase == 1) {
+                backends[0].setMode(Mode.DEAD);
+            } else if (phase == 2) {
+                backends[0].setMode(Mode.HEALTHY);
+                backends[1].setMode(Mode.RESETTING);
+                backends[2].setMode(Mode.SLOW);
+            } else if (phase == 3) {
+                backends[1].setMode(Mode.HEALTHY);
+                backends[2].setMode(Mode.HEALTHY);
+            }
+            System.out.printf("%6.1f s  phase %d: %s%n", (System.nanoTime() - start) / 1e9, phase + 1, phases[phase]);
+            int sentBefore = sent.get();
+            int failedBefore = failed.get();
+            long phaseEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(phaseSeconds);
+            while (System.nanoTime() < phaseEnd) {
+                for (int i = 0; i < BACKENDS; i++) {
+                    boolean now = BackendManager.isEjected(backends[i].info);
+                    if (now != ejected[i]) {
+                        ejected[i] = now;
+                        System.out.printf("%6.1f s  backend %d %s%n", (System.nanoTime() - start) / 1e9, i,
+                                now ? "ejected" : "readmitted");
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(20);
+            }
+            sentByPhase[phase] = sent.get() - sentBefore;
+            failedByPhase[phase] = failed.get() - failedBefore;
+        }
+
+        System.out.printf("%-28s %10s %10s%n", "phase", "requests", "failed");
+        for (int phase = 0; phase < phases.length; phase++) {
+            System.out.printf("%-28s %10d %9.2f%%%n", (phase + 1) + ". " + phases[phase], sentByPhase[phase],
+                    100.0 * failedByPhase[phase] / Math.max(1, sentByPhase[phase]));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends requests from random loopback addresses until the program ends.
+     */
+    private static void sendRequests(int proxyPort, AtomicInteger sent, AtomicInteger failed) {
+        byte[] response = new byte[64];
+        while (true) {
+            int address = 1 + ThreadLocalRandom.current().nextInt(CLIENT_ADDRESSES);
+            sent.incrementAndGet();
+            try (Socket socket = new Socket()) {
+                socket.bind(new InetSocketAddress("127.0.0." + address, 0));
+                socket.connect(new InetSocketAddress("127.0.0.1", proxyPort), 1000);
+                socket.setSoTimeout(5000);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                // The acknowledgement "OK\n".
+                if (in.readNBytes(response, 0, 3) < 3) {
+                    throw new IOException("No acknowledgement");
+                }
+                out.write(PAYLOAD);
+                socket.shutdownOutput();
+                if (in.readNBytes(response, 0, response.length) != RESPONSE.length) {
+                    throw new IOException("Incomplete response");
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Backend that reads a request to its end and answers it on a thread per connection.
+     */
+    private static final class FakeBackend implements Runnable {
+        final BackendManager.BackendInfo info;
+        private final int port;
+        private volatile Mode mode = Mode.HEALTHY;
+        private volatile ServerSocket server;
+
+        FakeBackend(ServerSocket server) {
+            this.server = server;
+            this.port = server.getLocalPort();
+            this.info = new BackendManager.BackendInfo("127.0.0.1", port);
+            startAccepting();
+        }
+
+        private void startAccepting() {
+            Thread thread = new Thread(this, "fake-backend-" + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void setMode(Mode mode) throws IOException {
+            Mode previous = this.mode;
+            this.mode = mode;
+            if (mode == Mode.DEAD) {
+                server.close();
+            } else if (previous == Mode.DEAD) {
+                ServerSocket reopened = new ServerSocket();
+                reopened.setReuseAddress(true);
+                reopened.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+                server = reopened;
+                startAccepting();
+            }
+        }
+
+        @Override
+        public void run() {
+            ServerSocket listener = server;
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed: the backend died.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                socket.getInputStream().readAllBytes();
+                Mode current = mode;
+                if (current == Mode.RESETTING && ThreadLocalRandom.current().nextDouble() < RESET_RATE) {
+                    // Closing with a zero linger time sends a reset.
+                    socket.setSoLinger(true, 0);
+                    return;
+                }
+                TimeUnit.MILLISECONDS.sleep(current == Mode.SLOW ? SLOW_MS : FAST_MS);
+                socket.getOutputStream().write(RESPONSE);
+            } catch (IOException | InterruptedException e) {
+                // The request is lost; the client counts the failure.
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.LoadBalancerConfig;
+import fliphash.KeepAliveProtocol;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client latency through the blocking load balancer with and without backend connection
+ * pooling.
+ * <p>
+ * A fake backend that speaks the same protocol as {@code backend.ProxyConnectionHandler}, but
+ * answers immediately instead of running the JAR, is registered with two in-process load
+ * balancers: one opening a backend connection per request and one using
+ * {@link LoadBalancer.BackendConnectionPool}. A few client threads send requests in a loop and
+ * record the time from starting to connect until the first byte of the response. The program
+ * prints p50, p99 and the number of backend connections each variant opened.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.PoolLatencyBenchmark [requests] [clients]}; the
+ * defaults are 5000 requests from 4 clients.
+ * </p>
+ */
+public class PoolLatencyBenchmark {
+
+    private static final byte[] PAYLOAD = new byte[16 * 1024];
+    private static final int WARMUP_REQUESTS = 500;
+    private static final byte[] OUTPUT = "Execution output\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional number of requests and of concurrent clients.
+     * @throws Exception if the benchmark cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        int numRequests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        AtomicInteger backendConnections = new AtomicInteger();
+        ServerSocket backend = new ServerSocket(0, 1024);
+        Thread backendThread = new Thread(() -> serveBackend(backend, backendConnections), "fake-backend");
+        backendThread.setDaemon(true);
+        backendThread.start();
+        BackendManager.addBackend(new BackendManager.BackendInfo("127.0.0.1", backend.getLocalPort()));
+
+        System.out.printf("%d requests of %d KB from %d clients%n", numRequests, PAYLOAD.length >> 10, numClients);
+        for (boolean pooled : new boolean[]{false, true}) {
+            Properties properties = new Properties();
+            properties.setProperty("lb.pool", Boolean.toString(pooled));
+            int port = startLoadBalancer(new LoadBalancerConfig(properties));
+            run(port, WARMUP_REQUESTS, numClients);
+            int connectionsBefore = backendConnections.get();
+            long[] latencies = run(port, numRequests, numClients);
+            Arrays.sort(latencies);
+            System.out.printf("%-10s p50 %7.1f us  p99 %7.1f us  backend connections opened %d%n",
+                    pooled ? "pooled" : "unpooled", Bench.percentile(latencies, 0.50) / 1e3,
+                    Bench.percentile(latencies, 0.99) / 1e3, backendConnections.get() - connectionsBefore);
+        }
+        System.exit(0);
+    }
+
+    private static int startLoadBalancer(LoadBalancerConfig config) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread thread = new Thread(new ClientConnectionHandler(port, config), "load-balancer-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(300);
+        return port;
+    }
+
+    /**
+     * Sends requests from several client threads.
+     *
+     * @return the latency of every request in nanoseconds.
+     */
+    private static long[] run(int port, int numRequests, int numClients) throws InterruptedException {
+        long[] latencies = new long[numRequests];
+        AtomicInteger next = new AtomicInteger();
+        Thread[] clients = new Thread[numClients];
+        for (int c = 0; c < numClients; c++) {
+            clients[c] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < numRequests) {
+                    try {
+                        latencies[i] = request(port);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Request failed", e);
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Sends one request the way {@code client.FlipHashClient} does.
+     *
+     * @return the time from starting to connect until the first response byte, in nanoseconds.
+     */
+    private static long request(int port) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            InputStream in = socket.getInputStream();
+            if (in.read() != 'O' || in.read() != 'K' || in.read() != '\n') {
+                throw new IOException("Missing OK");
+            }
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF("bench.jar");
+            dos.writeLong(PAYLOAD.length);
+            dos.write(PAYLOAD);
+            dos.flush();
+            socket.shutdownOutput();
+            if (in.read() < 0) {
+                throw new IOException("No response");
+            }
+            long latency = System.nanoTime() - start;
+            in.readAllBytes();
+            return latency;
+        }
+    }
+
+    /**
+     * Fake backend: the protocol of {@code backend.ProxyConnectionHandler} with an empty run.
+     */
+    private static void serveBackend(ServerSocket server, AtomicInteger connections) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread handler = new Thread(() -> {
+                    try (Socket s = socket;
+                         DataInputStream dis = new DataInputStream(s.getInputStream());
+                         DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+                        String first = dis.readUTF();
+                        if (!KeepAliveProtocol.INITIAL_MESSAGE.equals(first)) {
+                            answer(dis, dos, false);
+                            return;
+                        }
+                        while (true) {
+                            dis.readUTF();
+                            answer(dis, dos, true);
+                        }
+                    } catch (EOFException e) {
+                        // Connection closed by the load balancer.
+                    } catch (IOException e) {
+                        System.err.println("Fake backend error: " + e.getMessage());
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void answer(DataInputStream dis, DataOutputStream dos, boolean keepAlive) throws IOException {
+        long size = dis.readLong();
+        dis.skipNBytes(size);
+        if (keepAlive) {
+            // One chunk, then the end marker.
+            dos.writeInt(OUTPUT.length);
+            dos.write(OUTPUT);
+            dos.writeInt(0);
+        } else {
+            dos.write(OUTPUT);
+        }
+        dos.flush();
+    }
+}
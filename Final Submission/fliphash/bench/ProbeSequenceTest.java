@@ -0,0 +1,120 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.BackendSelector;
+import LoadBalancer.FlipHashSelector;
+import LoadBalancer.RoutingTable;
+import LoadBalancer.TwoChoicesSelector;
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that the probe sequences of {@link FlipHashSelector} stay independent on a routing
+ * table with tombstones.
+ * <p>
+ * A table of 32 backends loses 8 of them, leaving tombstones. Clients whose first probe lands
+ * on a tombstone are rehashed by {@link RoutingTable}; if that rehash and the derivation of
+ * later probes step the key the same way, the rehashed first probe reaches the key of the
+ * second probe, and two choices, bounded loads and hot key replicas all collapse onto one
+ * backend for those clients. For clients on live slots and on tombstones separately, the
+ * program counts how often the first two probes pick the same backend, which should be about
+ * one in the number of live backends, and the mean number of distinct backends among the
+ * first four probes. It also checks that two choices only ever sends a client to one of its
+ * first two probes.
+ * </p>
+ * <p>
+ * It exits with status 1 if the tombstoned clients collide more than twice as often as
+ * independent probes would. Run with
+ * {@code java -cp bin fliphash.bench.ProbeSequenceTest [clients]}; the default is 200000 IPv4
+ * clients, plus a tenth as many IPv6 clients.
+ * </p>
+ */
+public class ProbeSequenceTest {
+
+    private static final int BACKENDS = 32;
+    private static final int REMOVED = 8;
+    private static final int PROBES = 4;
+
+    /**
+     * Main method for running the check.
+     *
+     * @param args optional number of IPv4 clients.
+     * @throws UnknownHostException never, as addresses are built from raw bytes.
+     */
+    public static void main(String[] args) throws UnknownHostException {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        RoutingTable table = RoutingTable.EMPTY;
+        for (int b = 0; b < BACKENDS; b++) {
+            table = table.withBackend(new BackendManager.BackendInfo("10.4.0." + b, 6002));
+        }
+        SplittableRandom random = new SplittableRandom(17);
+        for (int r = 0; r < REMOVED; r++) {
+            table = table.withoutBackend(table.asList().get(random.nextInt(table.size())));
+        }
+        int live = table.size();
+        System.out.printf("%d backends, %d removed: %d slots, %d live%n", BACKENDS, REMOVED, table.getSlotCount(), live);
+
+        FlipHashFunction hash = FlipHashAlgorithm.fromName(System.getProperty("fliphash.algorithm", "reseeding")).function();
+        BackendSelector twoChoices = new TwoChoicesSelector(backend -> backend.port);
+        // Counters per class: 0 for clients on a live slot, 1 for clients on a tombstone.
+        long[] clients = new long[2];
+        long[] collisions = new long[2];
+        long[] distinct = new long[2];
+        long strays = 0;
+        for (int c = 0; c < numClients + numClients / 10; c++) {
+            byte[] address = new byte[c < numClients ? 4 : 16];
+            for (int i = 0; i < address.length; i++) {
+                address[i] = (byte) random.nextInt();
+            }
+            InetAddress client = InetAddress.getByAddress(address);
+            int slot = (int) (address.length == 4
+                    ? hash.fliphash(readLong(address, 0, 4), table.getSlotCount())
+                    : hash.fliphash(readLong(address, 0, 8), readLong(address, 8, 8), table.getSlotCount()));
+            int kind = table.getSlot(slot) == null ? 1 : 0;
+            Set<BackendManager.BackendInfo> candidates = new HashSet<>();
+            BackendManager.BackendInfo[] first = new BackendManager.BackendInfo[2];
+            for (int p = 0; p < PROBES; p++) {
+                BackendManager.BackendInfo candidate = FlipHashSelector.probe(address, table, p);
+                candidates.add(candidate);
+                if (p < 2) {
+                    first[p] = candidate;
+                }
+            }
+            BackendManager.BackendInfo chosen = twoChoices.select(client, table);
+            if (!chosen.equals(first[0]) && !chosen.equals(first[1])) {
+                strays++;
+            }
+            clients[kind]++;
+            collisions[kind] += first[0].equals(first[1]) ? 1 : 0;
+            distinct[kind] += candidates.size();
+        }
+
+        double expected = 1.0 / live;
+        System.out.printf("%-10s %9s %18s %22s%n", "clients", "count", "probe 0 = probe 1", "distinct of " + PROBES + " probes");
+        String[] names = {"live", "tombstone"};
+        for (int kind = 0; kind < 2; kind++) {
+            System.out.printf("%-10s %9d %17.2f%% %22.2f%n", names[kind], clients[kind],
+                    100.0 * collisions[kind] / Math.max(1, clients[kind]), (double) distinct[kind] / Math.max(1, clients[kind]));
+        }
+        System.out.printf("independent probes: %.2f%% equal, %.2f distinct%n",
+                100 * expected, live * (1 - Math.pow(1 - expected, PROBES)));
+        boolean passed = strays == 0 && collisions[1] <= 2 * expected * clients[1];
+        System.out.println(passed ? "Probes independent." : "Probes collapse on tombstones (or two choices strayed): FAILED.");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,196 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.BackendSelector;
+import LoadBalancer.BoundedLoadSelector;
+import LoadBalancer.FlipHashSelector;
+import LoadBalancer.InFlightRequests;
+import LoadBalancer.RoutingTable;
+import LoadBalancer.TwoChoicesSelector;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Queueing simulation of the routing modes under a hot spot.
+ * <p>
+ * Requests arrive at random from a fixed set of client addresses whose popularity follows a
+ * Zipf distribution, so the backend of the most popular clients receives far more than its
+ * share. Each backend runs a fixed number of jobs at once and queues the rest; job times are
+ * exponential with a mean of one time unit. Routing uses the real selectors over a real
+ * {@link RoutingTable}. Bounded loads are simulated with the exact current load of each
+ * backend, and with loads refreshed only every few time units, like the client counts the
+ * backends report with their metrics. Two choices uses the exact loads, like the in-flight
+ * counts of {@link InFlightRequests}.
+ * </p>
+ * <p>
+ * For each variant the program prints latency percentiles in mean job times, the fraction of
+ * requests that reached their FlipHash backend (affinity) and the busiest backend's share of
+ * requests. It then measures the cost of one selection with each selector, reading the
+ * in-flight counts.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.RoutingSimulation [requests] [utilization]};
+ * the defaults are 300000 requests and a utilization of 0.75.
+ * </p>
+ */
+public class RoutingSimulation {
+
+    private static final int BACKENDS = 8;
+    private static final int WORKERS_PER_BACKEND = 4;
+    private static final int CLIENTS = 1000;
+    private static final double ZIPF_EXPONENT = 1.0;
+    /** Time between load refreshes for the stale variant, in mean job times. */
+    private static final double STALE_REFRESH = 10;
+
+    /**
+     * Main method for running the simulation.
+     *
+     * @param args optional number of requests and utilization.
+     * @throws UnknownHostException never, as addresses are built from raw bytes.
+     */
+    public static void main(String[] args) throws UnknownHostException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+        double utilization = args.length > 1 ? Double.parseDouble(args[1]) : 0.75;
+
+        RoutingTable table = RoutingTable.EMPTY;
+        Map<BackendManager.BackendInfo, Integer> indexes = new HashMap<>();
+        for (int b = 0; b < BACKENDS; b++) {
+            BackendManager.BackendInfo backend = new BackendManager.BackendInfo("10.3.0." + b, 6002);
+            table = table.withBackend(backend);
+            indexes.put(backend, b);
+        }
+        SplittableRandom random = new SplittableRandom(11);
+        InetAddress[] clients = new InetAddress[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            int ip = random.nextInt();
+            clients[c] = InetAddress.getByAddress(new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+        }
+        double[] popularity = new double[CLIENTS];
+        double sum = 0;
+        for (int c = 0; c < CLIENTS; c++) {
+            sum += 1 / Math.pow(c + 1, ZIPF_EXPONENT);
+            popularity[c] = sum;
+        }
+        for (int c = 0; c < CLIENTS; c++) {
+            popularity[c] /= sum;
+        }
+
+        System.out.printf("%d backends x %d workers, %,d requests from %d Zipf(%.1f) clients, utilization %.2f%n",
+                BACKENDS, WORKERS_PER_BACKEND, requests, CLIENTS, ZIPF_EXPONENT, utilization);
+        System.out.printf("%-26s %8s %8s %8s %9s %9s%n", "routing", "p50", "p99", "p99.9", "affinity", "busiest");
+        simulate("fliphash", table, indexes, clients, popularity, requests, utilization,
+                loads -> FlipHashSelector.INSTANCE, 0);
+        for (double factor : new double[]{1.25, 2.0}) {
+            simulate("bounded " + factor + ", live loads", table, indexes, clients, popularity, requests, utilization,
+                    loads -> new BoundedLoadSelector(factor, backend -> loads[indexes.get(backend)]), 0);
+        }
+        for (double factor : new double[]{1.25, 2.0}) {
+            simulate("bounded " + factor + ", stale loads", table, indexes, clients, popularity, requests, utilization,
+                    loads -> new BoundedLoadSelector(factor, backend -> loads[indexes.get(backend)]), STALE_REFRESH);
+        }
+        simulate("two choices, live loads", table, indexes, clients, popularity, requests, utilization,
+                loads -> new TwoChoicesSelector(backend -> loads[indexes.get(backend)]), 0);
+
+        System.out.println();
+        for (BackendManager.BackendInfo backend : table.asList()) {
+            InFlightRequests.started(backend);
+        }
+        RoutingTable routing = table;
+        Bench.measure("select: fliphash",
+                i -> FlipHashSelector.INSTANCE.select(clients[i % CLIENTS], routing).port);
+        BackendSelector bounded = new BoundedLoadSelector(1.25, InFlightRequests::get);
+        Bench.measure("select: bounded 1.25, in-flight counts",
+                i -> bounded.select(clients[i % CLIENTS], routing).port);
+        BackendSelector twoChoices = new TwoChoicesSelector(InFlightRequests::get);
+        Bench.measure("select: two choices, in-flight counts",
+                i -> twoChoices.select(clients[i % CLIENTS], routing).port);
+    }
+
+    /**
+     * Creates a selector reading the given load array.
+     */
+    private interface SelectorFactory {
+        BackendSelector create(int[] loads);
+    }
+
+    private static void simulate(String name, RoutingTable table, Map<BackendManager.BackendInfo, Integer> indexes,
+                                 InetAddress[] clients, double[] popularity, int requests, double utilization,
+                                 SelectorFactory factory, double refresh) {
+        SplittableRandom random = new SplittableRandom(13);
+        double arrivalRate = utilization * BACKENDS * WORKERS_PER_BACKEND;
+        int[] inFlight = new int[BACKENDS];
+        // The loads the selector sees: the live counts, or a copy refreshed periodically.
+        int[] visible = refresh > 0 ? new int[BACKENDS] : inFlight;
+        BackendSelector selector = factory.create(visible);
+        int[] busy = new int[BACKENDS];
+        // Arrival times of the queued jobs of each backend.
+        List<ArrayDeque<Double>> queues = new ArrayList<>();
+        for (int b = 0; b < BACKENDS; b++) {
+            queues.add(new ArrayDeque<>());
+        }
+        // Running jobs as {completion time, backend, arrival time}.
+        PriorityQueue<double[]> running = new PriorityQueue<>((x, y) -> Double.compare(x[0], y[0]));
+        double[] latencies = new double[requests];
+        int finished = 0;
+        int[] routed = new int[BACKENDS];
+        int affine = 0;
+        double now = exponential(random, arrivalRate);
+        double nextRefresh = refresh;
+        for (int r = 0; r < requests || !running.isEmpty(); ) {
+            if (!running.isEmpty() && (r == requests || running.peek()[0] <= now)) {
+                double[] job = running.poll();
+                int b = (int) job[1];
+                latencies[finished++] = job[0] - job[2];
+                inFlight[b]--;
+                Double queued = queues.get(b).poll();
+                if (queued == null) {
+                    busy[b]--;
+                } else {
+                    running.add(new double[]{job[0] + exponential(random, 1), b, queued});
+                }
+                continue;
+            }
+            if (refresh > 0 && now >= nextRefresh) {
+                System.arraycopy(inFlight, 0, visible, 0, BACKENDS);
+                nextRefresh = now + refresh;
+            }
+            InetAddress client = clients[pick(popularity, random.nextDouble())];
+            BackendManager.BackendInfo backend = selector.select(client, table);
+            if (backend.equals(FlipHashSelector.INSTANCE.select(client, table))) {
+                affine++;
+            }
+            int b = indexes.get(backend);
+            routed[b]++;
+            inFlight[b]++;
+            if (busy[b] < WORKERS_PER_BACKEND) {
+                busy[b]++;
+                running.add(new double[]{now + exponential(random, 1), b, now});
+            } else {
+                queues.get(b).add(now);
+            }
+            now += exponential(random, arrivalRate);
+            r++;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-26s %8.2f %8.2f %8.2f %8.1f%% %8.1f%%%n", name,
+                Bench.percentile(latencies, 0.50), Bench.percentile(latencies, 0.99), Bench.percentile(latencies, 0.999),
+                100.0 * affine / requests, 100.0 * Arrays.stream(routed).max().orElse(0) / requests);
+    }
+
+    private static int pick(double[] cumulative, double u) {
+        int index = Arrays.binarySearch(cumulative, u);
+        return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    private static double exponential(SplittableRandom random, double rate) {
+        return -Math.log(1 - random.nextDouble()) / rate;
+    }
+}
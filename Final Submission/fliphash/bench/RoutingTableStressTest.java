@@ -0,0 +1,208 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.RoutingTable;
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Concurrency stress test for routing while backends are constantly added and removed.
+ * <p>
+ * Churn threads add and remove backends through {@link BackendManager}, each owning a disjoint
+ * set of backends and remembering which of them it registered. Router threads meanwhile route
+ * random keys the way the load balancer does: one {@link RoutingTable} read, then routing
+ * with that table alone. Every route is checked (a backend is returned, snapshots
+ * never go back in version, no backend appears twice) and, at the end, the published table
+ * must hold exactly the backends the churn threads registered, so no update was lost.
+ * </p>
+ * <p>
+ * For comparison the same load runs against the previous pattern, a
+ * {@link CopyOnWriteArrayList} read once for {@code isEmpty}, once for {@code size} and once
+ * for {@code get}; the program counts the requests that failed or were routed with a count
+ * from a different membership than the backend they got.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.RoutingTableStressTest [seconds] [routers]}; the
+ * defaults are 5 seconds and 4 router threads. Membership changes are logged to
+ * {@code LoadBalancerOutputLog.txt} in the working directory.
+ * </p>
+ */
+public class RoutingTableStressTest {
+
+    private static final int CHURN_THREADS = 2;
+    private static final int BACKENDS_PER_CHURN_THREAD = 16;
+    /** Pause between membership changes, so the log keeps up. */
+    private static final long CHURN_PAUSE_NANOS = 20_000;
+
+    private static final FlipHashFunction HASH = FlipHashAlgorithm.fromName("reseeding").function();
+
+    /**
+     * Main method for running the stress test.
+     *
+     * @param args optional duration in seconds and number of router threads.
+     * @throws Exception if a thread fails.
+     */
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        int routers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        System.out.printf("%d s, %d churn threads over %d backends, %d routers%n",
+                seconds, CHURN_THREADS, CHURN_THREADS * BACKENDS_PER_CHURN_THREAD, routers);
+        runSnapshot(seconds, routers);
+        runCopyOnWriteList(seconds, routers);
+    }
+
+    private static void runSnapshot(long seconds, int routers) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong routes = new AtomicLong();
+        AtomicLong empty = new AtomicLong();
+        AtomicLong violations = new AtomicLong();
+        AtomicLong changes = new AtomicLong();
+        List<Set<BackendManager.BackendInfo>> registered = new ArrayList<>();
+
+        Thread[] churners = new Thread[CHURN_THREADS];
+        for (int t = 0; t < CHURN_THREADS; t++) {
+            int owner = t;
+            registered.add(new HashSet<>());
+            churners[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(owner);
+                while (!stop.get()) {
+                    BackendManager.BackendInfo backend = backend(owner, random.nextInt(BACKENDS_PER_CHURN_THREAD));
+                    if (registered.get(owner).remove(backend)) {
+                        BackendManager.removeBackend(backend);
+                    } else {
+                        registered.get(owner).add(backend);
+                        BackendManager.addBackend(backend);
+                    }
+                    changes.incrementAndGet();
+                    LockSupport.parkNanos(CHURN_PAUSE_NANOS);
+                }
+            }, "churn-" + t);
+        }
+        Thread[] routerThreads = new Thread[routers];
+        for (int r = 0; r < routers; r++) {
+            int seed = r;
+            routerThreads[r] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(1000 + seed);
+                long lastVersion = -1;
+                long count = 0;
+                while (!stop.get()) {
+                    RoutingTable table = BackendManager.getRoutingTable();
+                    if (table.getVersion() < lastVersion) {
+                        violations.incrementAndGet();
+                    }
+                    lastVersion = table.getVersion();
+                    if (table.isEmpty()) {
+                        empty.incrementAndGet();
+                        continue;
+                    }
+                    BackendManager.BackendInfo backend = table.route(HASH, random.nextLong());
+                    if (backend == null) {
+                        violations.incrementAndGet();
+                    }
+                    if ((++count & 0xFFF) == 0 && (new HashSet<>(table.asList()).size() != table.size()
+                            || table.size() > table.getSlotCount())) {
+                        violations.incrementAndGet();
+                    }
+                }
+                routes.addAndGet(count);
+            }, "router-" + r);
+        }
+        run(seconds, stop, churners, routerThreads);
+
+        Set<BackendManager.BackendInfo> expected = new HashSet<>();
+        for (Set<BackendManager.BackendInfo> owned : registered) {
+            expected.addAll(owned);
+        }
+        RoutingTable finalTable = BackendManager.getRoutingTable();
+        boolean consistent = expected.equals(new HashSet<>(finalTable.asList())) && expected.size() == finalTable.size();
+        System.out.printf("%-22s %,12d routes (%,.0f/s)  %,d empty  %,d membership changes  %d violations  final table %s%n",
+                "snapshot", routes.get(), routes.get() / (double) seconds, empty.get(), changes.get(),
+                violations.get(), consistent ? "consistent" : "INCONSISTENT");
+        for (BackendManager.BackendInfo backend : finalTable.asList()) {
+            BackendManager.removeBackend(backend);
+        }
+    }
+
+    private static void runCopyOnWriteList(long seconds, int routers) throws InterruptedException {
+        List<BackendManager.BackendInfo> backends = new CopyOnWriteArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong routes = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong torn = new AtomicLong();
+
+        Thread[] churners = new Thread[CHURN_THREADS];
+        for (int t = 0; t < CHURN_THREADS; t++) {
+            int owner = t;
+            churners[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(owner);
+                while (!stop.get()) {
+                    BackendManager.BackendInfo backend = backend(owner, random.nextInt(BACKENDS_PER_CHURN_THREAD));
+                    if (!backends.remove(backend)) {
+                        backends.add(backend);
+                    }
+                    LockSupport.parkNanos(CHURN_PAUSE_NANOS);
+                }
+            }, "churn-" + t);
+        }
+        Thread[] routerThreads = new Thread[routers];
+        for (int r = 0; r < routers; r++) {
+            int seed = r;
+            routerThreads[r] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(1000 + seed);
+                long count = 0;
+                while (!stop.get()) {
+                    if (backends.isEmpty()) {
+                        continue;
+                    }
+                    count++;
+                    int size = backends.size();
+                    try {
+                        backends.get((int) HASH.fliphash(random.nextLong(), size));
+                        if (backends.size() != size) {
+                            torn.incrementAndGet();
+                        }
+                    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                        // IllegalArgumentException: the list emptied after isEmpty, so size was 0.
+                        failed.incrementAndGet();
+                    }
+                }
+                routes.addAndGet(count);
+            }, "router-" + r);
+        }
+        run(seconds, stop, churners, routerThreads);
+        System.out.printf("%-22s %,12d routes (%,.0f/s)  %,d failed  %,d routed across a membership change%n",
+                "copy-on-write list", routes.get(), routes.get() / (double) seconds, failed.get(), torn.get());
+    }
+
+    private static void run(long seconds, AtomicBoolean stop, Thread[] churners, Thread[] routers)
+            throws InterruptedException {
+        for (Thread thread : churners) {
+            thread.start();
+        }
+        for (Thread thread : routers) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000);
+        stop.set(true);
+        for (Thread thread : churners) {
+            thread.join();
+        }
+        for (Thread thread : routers) {
+            thread.join();
+        }
+    }
+
+    private static BackendManager.BackendInfo backend(int owner, int index) {
+        return new BackendManager.BackendInfo("10.0." + owner + "." + index, 6002);
+    }
+}
@@ -0,0 +1,219 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.ClientConnectionHandler;
+import LoadBalancer.LoadBalancerConfig;
+import backend.ProxyConnectionHandler;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Time to first byte and memory use for a job with a large output, through the real backend
+ * and each backend protocol of the blocking load balancer.
+ * <p>
+ * The job is a JAR built from {@link Producer}, which prints a first line, waits, and then
+ * prints the requested amount of output. The backend handler, the load balancer and the client
+ * run in this process, so the peak heap use covers all three. The output is streamed end to
+ * end, so the first line arrives long before the job ends and the heap does not grow with the
+ * output size.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.StreamingOutputTest [megabytes]}; the default is
+ * 256 MB of output.
+ * </p>
+ */
+public class StreamingOutputTest {
+
+    /** Time the job waits after its first line. */
+    private static final long PRODUCER_PAUSE_MS = 1000;
+
+    /** First line printed by the job. */
+    private static final String FIRST_LINE = "started\n";
+
+    /** Line the job repeats. */
+    private static final String LINE = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcde\n";
+
+    /** JAR entry holding the output size in megabytes. */
+    private static final String SIZE_ENTRY = "megabytes";
+
+    /**
+     * The job: prints a line, pauses, then prints the number of megabytes stored in its JAR.
+     */
+    public static class Producer {
+        /**
+         * Main method of the job.
+         *
+         * @param args not used.
+         * @throws IOException if the size cannot be read.
+         * @throws InterruptedException if interrupted while pausing.
+         */
+        public static void main(String[] args) throws IOException, InterruptedException {
+            long megabytes;
+            try (InputStream in = Producer.class.getResourceAsStream("/" + SIZE_ENTRY)) {
+                megabytes = Long.parseLong(new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+            System.out.print(FIRST_LINE);
+            System.out.flush();
+            Thread.sleep(PRODUCER_PAUSE_MS);
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+            long lines = (megabytes << 20) / LINE.length();
+            for (long i = 0; i < lines; i++) {
+                out.print(LINE);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Main method for running the test.
+     *
+     * @param args optional output size in megabytes.
+     * @throws Exception if the test cannot be set up or a request fails.
+     */
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 256;
+        File dir = Files.createTempDirectory("streaming").toFile();
+        File jar = buildProducerJar(new File(dir, "producer.jar"), megabytes);
+        File policy = new File(dir, "empty.policy");
+        Files.writeString(policy.toPath(), "grant {\n};\n");
+        String sandbox = dir.getAbsolutePath() + File.separator;
+
+        ServerSocketChannel backend = ServerSocketChannel.open();
+        backend.bind(new InetSocketAddress("127.0.0.1", 0));
+        AtomicInteger active = new AtomicInteger();
+        Thread backendThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = backend.accept().socket();
+                    Thread handler = new Thread(() ->
+                            ProxyConnectionHandler.handleProxyConnection(socket, sandbox, policy.getPath(), active));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "backend");
+        backendThread.setDaemon(true);
+        backendThread.start();
+        BackendManager.addBackend(new BackendManager.BackendInfo("127.0.0.1",
+                ((InetSocketAddress) backend.getLocalAddress()).getPort()));
+
+        System.out.printf("Job prints a line, pauses %d ms, then prints %d MB%n", PRODUCER_PAUSE_MS, megabytes);
+        for (String protocol : new String[]{"legacy", "pool", "mux"}) {
+            Properties properties = new Properties();
+            properties.setProperty("lb.pool", Boolean.toString(protocol.equals("pool")));
+            properties.setProperty("lb.mux", Boolean.toString(protocol.equals("mux")));
+            int port = startLoadBalancer(new LoadBalancerConfig(properties));
+            runJob(protocol, port, jar, (megabytes << 20) / LINE.length() * LINE.length() + FIRST_LINE.length());
+        }
+        System.exit(0);
+    }
+
+    private static void runJob(String protocol, int port, File jar, long expectedBytes) throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peakHeap = new AtomicLong(heapBefore);
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long start = System.nanoTime();
+        long firstByte = -1;
+        long received = 0;
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            InputStream in = socket.getInputStream();
+            if (in.read() != 'O' || in.read() != 'K' || in.read() != '\n') {
+                throw new IOException("Missing OK");
+            }
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            byte[] bytes = Files.readAllBytes(jar.toPath());
+            dos.writeUTF(protocol + "-" + jar.getName());
+            dos.writeLong(bytes.length);
+            dos.write(bytes);
+            dos.flush();
+            socket.shutdownOutput();
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (firstByte < 0) {
+                    firstByte = System.nanoTime() - start;
+                }
+                received += n;
+            }
+        }
+        long total = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        String status = received == expectedBytes ? "ok" : "UNEXPECTED SIZE";
+        System.out.printf("%-7s first byte %7.1f ms  total %7.1f ms  %8.1f MB  peak heap growth %6.1f MB  %s%n",
+                protocol, firstByte / 1e6, total / 1e6, received / 1048576.0,
+                (peakHeap.get() - heapBefore) / 1048576.0, status);
+    }
+
+    private static int startLoadBalancer(LoadBalancerConfig config) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread thread = new Thread(new ClientConnectionHandler(port, config), "load-balancer-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(300);
+        return port;
+    }
+
+    /**
+     * Packs {@link Producer} into a runnable JAR that prints the given amount of output.
+     */
+    private static File buildProducerJar(File jar, long megabytes) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, Producer.class.getName());
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+            // Producer only uses constants of the outer class, which are compiled into it.
+            String entry = Producer.class.getName().replace('.', '/') + ".class";
+            out.putNextEntry(new JarEntry(entry));
+            try (InputStream in = Producer.class.getClassLoader().getResourceAsStream(entry)) {
+                in.transferTo(out);
+            }
+            out.closeEntry();
+            // The size is passed as a resource, as the backend runs the JAR without arguments.
+            out.putNextEntry(new JarEntry(SIZE_ENTRY));
+            out.write(Long.toString(megabytes).getBytes(StandardCharsets.US_ASCII));
+            out.closeEntry();
+        }
+        return jar;
+    }
+}
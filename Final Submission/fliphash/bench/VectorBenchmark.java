@@ -0,0 +1,62 @@
+package fliphash.bench;
+
+import fliphash.FlipHashEngine;
+import java.util.SplittableRandom;
+
+/**
+ * Compares the long-key batch API with a scalar loop, with and without the Vector API kernel.
+ * <p>
+ * Run once with the kernel and once without, and compare the batch rows:
+ * </p>
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp bin fliphash.bench.VectorBenchmark
+ * java -cp bin fliphash.bench.VectorBenchmark
+ * </pre>
+ * <p>
+ * Before measuring, every batch result is checked against the scalar
+ * {@link FlipHashEngine#fliphash(long, long)}; the program exits with status 1 on a mismatch.
+ * </p>
+ */
+public class VectorBenchmark {
+
+    private static final int BATCH_SIZE = 1 << 12;
+    private static final long[] RESOURCE_COUNTS = {10, 1000, 1_000_003, 1L << 40};
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        FlipHashEngine engine = FlipHashEngine.getDefault();
+        System.out.println("Vector kernel enabled: " + FlipHashEngine.isVectorKernelEnabled());
+
+        long[] keys = new long[BATCH_SIZE];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            keys[i] = random.nextLong();
+        }
+        long[] buckets = new long[BATCH_SIZE];
+
+        for (long numResources : RESOURCE_COUNTS) {
+            engine.fliphash(keys, numResources, buckets);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                if (buckets[i] != engine.fliphash(keys[i], numResources)) {
+                    System.out.println("Mismatch for key " + keys[i] + " and n=" + numResources);
+                    System.exit(1);
+                }
+            }
+            Bench.measure("scalar loop, n=" + numResources, BATCH_SIZE, i -> {
+                long acc = 0;
+                for (int k = 0; k < BATCH_SIZE; k++) {
+                    acc += engine.fliphash(keys[k], numResources);
+                }
+                return acc;
+            });
+            Bench.measure("batch, n=" + numResources, BATCH_SIZE, i -> {
+                engine.fliphash(keys, numResources, buckets);
+                return buckets[i & (BATCH_SIZE - 1)];
+            });
+        }
+    }
+}
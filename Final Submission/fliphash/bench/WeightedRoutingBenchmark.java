@@ -0,0 +1,176 @@
+package fliphash.bench;
+
+import LoadBalancer.BackendManager;
+import LoadBalancer.RoutingTable;
+import fliphash.FlipHashAlgorithm;
+import fliphash.FlipHashFunction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Lookup cost and distribution error of weighted FlipHash routing for several weight skews.
+ * <p>
+ * Two ways of weighting are compared:
+ * </p>
+ * <ul>
+ *   <li>{@code virtual buckets} - {@link RoutingTable}, where a backend with weight {@code w}
+ *       holds {@code w} slots;</li>
+ *   <li>{@code rejection} - FlipHash over one bucket per backend, accepting the bucket with
+ *       probability {@code w / maxWeight} and otherwise rehashing the key.</li>
+ * </ul>
+ * <p>
+ * For each skew the program prints the time per lookup and, over a fixed set of random keys,
+ * the largest and the root-mean-square relative difference between a backend's share of keys
+ * and its weighted share.
+ * </p>
+ * <p>
+ * Run with {@code java -cp bin fliphash.bench.WeightedRoutingBenchmark [keys]}; the default is
+ * 1000000 keys.
+ * </p>
+ */
+public class WeightedRoutingBenchmark {
+
+    private static final int KEY_COUNT = 1 << 14;
+    private static final int KEY_MASK = KEY_COUNT - 1;
+    private static final int BACKENDS = 16;
+    private static final long ATTEMPT_STEP = 0x9E3779B97F4A7C15L;
+
+    private static final FlipHashFunction HASH = FlipHashAlgorithm.fromName("reseeding").function();
+
+    /**
+     * A weighted routing scheme.
+     */
+    private interface Router {
+        /**
+         * Routes a key, the operation that is timed.
+         *
+         * @param key the key.
+         * @return the chosen backend.
+         */
+        Object route(long key);
+
+        /**
+         * Returns the index of a backend returned by {@link #route(long)}.
+         *
+         * @param backend the backend.
+         * @return its index in the weight array.
+         */
+        int indexOf(Object backend);
+    }
+
+    /**
+     * Main method for running the benchmark.
+     *
+     * @param args optional number of keys for the distribution error.
+     */
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        SplittableRandom random = new SplittableRandom(7);
+        int[] twoTiers = new int[BACKENDS];
+        int[] oneHeavy = new int[BACKENDS];
+        int[] spread = new int[BACKENDS];
+        for (int b = 0; b < BACKENDS; b++) {
+            twoTiers[b] = b < BACKENDS / 2 ? 1 : 4;
+            oneHeavy[b] = b == 0 ? 16 : 1;
+            spread[b] = 1 + random.nextInt(RoutingTable.MAX_WEIGHT);
+        }
+        Map<String, int[]> skews = new LinkedHashMap<>();
+        skews.put("uniform", filled(1));
+        skews.put("half 1, half 4", twoTiers);
+        skews.put("one 16, rest 1", oneHeavy);
+        skews.put("random 1-64", spread);
+
+        long[] keys = random.longs(Math.max(numKeys, KEY_COUNT)).toArray();
+        System.out.printf("%d backends, distribution over %,d keys%n", BACKENDS, numKeys);
+        for (Map.Entry<String, int[]> skew : skews.entrySet()) {
+            int[] weights = skew.getValue();
+            System.out.println();
+            System.out.println(skew.getKey() + " " + Arrays.toString(weights));
+            run("virtual buckets", virtualBuckets(weights), weights, keys, numKeys);
+            run("rejection", rejection(weights), weights, keys, numKeys);
+        }
+    }
+
+    private static void run(String name, Router router, int[] weights, long[] keys, int numKeys) {
+        Bench.measure("  " + name, i -> System.identityHashCode(router.route(keys[i & KEY_MASK])));
+        long[] counts = new long[weights.length];
+        for (int i = 0; i < numKeys; i++) {
+            counts[router.indexOf(router.route(keys[i]))]++;
+        }
+        long totalWeight = Arrays.stream(weights).sum();
+        double maxError = 0;
+        double squares = 0;
+        for (int b = 0; b < weights.length; b++) {
+            double expected = numKeys * (double) weights[b] / totalWeight;
+            double error = counts[b] / expected - 1;
+            maxError = Math.max(maxError, Math.abs(error));
+            squares += error * error;
+        }
+        System.out.printf("  %-46s max error %6.2f%%  rms error %6.2f%%%n",
+                "", 100 * maxError, 100 * Math.sqrt(squares / weights.length));
+    }
+
+    private static Router virtualBuckets(int[] weights) {
+        RoutingTable initial = RoutingTable.EMPTY;
+        Map<BackendManager.BackendInfo, Integer> indexes = new HashMap<>();
+        for (int b = 0; b < weights.length; b++) {
+            BackendManager.BackendInfo backend = new BackendManager.BackendInfo("10.2.0." + b, 6002);
+            initial = initial.withWeight(backend, weights[b]);
+            indexes.put(backend, b);
+        }
+        RoutingTable table = initial;
+        return new Router() {
+            @Override
+            public Object route(long key) {
+                return table.route(HASH, key);
+            }
+
+            @Override
+            public int indexOf(Object backend) {
+                return indexes.get(backend);
+            }
+        };
+    }
+
+    private static Router rejection(int[] weights) {
+        int maxWeight = Arrays.stream(weights).max().orElse(1);
+        Integer[] backends = new Integer[weights.length];
+        for (int b = 0; b < weights.length; b++) {
+            backends[b] = b;
+        }
+        return new Router() {
+            @Override
+            public Object route(long key) {
+                int bucket = (int) HASH.fliphash(key, weights.length);
+                for (long attempt = 1; Long.remainderUnsigned(mix(key + attempt * ATTEMPT_STEP), maxWeight)
+                        >= weights[bucket]; attempt++) {
+                    bucket = (int) HASH.fliphash(key + attempt * ATTEMPT_STEP, weights.length);
+                }
+                return backends[bucket];
+            }
+
+            @Override
+            public int indexOf(Object backend) {
+                return (Integer) backend;
+            }
+        };
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3, used for the acceptance draws.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static int[] filled(int weight) {
+        int[] weights = new int[BACKENDS];
+        Arrays.fill(weights, weight);
+        return weights;
+    }
+}
@@ -0,0 +1,162 @@
+package fliphash.gossip;
+
+import java.net.InetSocketAddress;
+import java.util.Objects;
+
+/**
+ * One node as the gossip membership knows it.
+ * <p>
+ * A member is identified by its gossip address. Its incarnation number is raised only by the
+ * member itself, to refute a suspicion; between two views of a member, the one with the higher
+ * incarnation wins, and at the same incarnation {@link State#DEAD} overrides
+ * {@link State#SUSPECT}, which overrides {@link State#ALIVE}. Instances are immutable.
+ * </p>
+ */
+public final class Member {
+
+    /**
+     * What a member does in the cluster.
+     */
+    public enum Role {
+        /** A backend server that runs jobs; its service port takes proxied connections. */
+        BACKEND,
+        /** A load balancer; its service port takes client connections. */
+        LOAD_BALANCER
+    }
+
+    /**
+     * Liveness of a member, in increasing precedence.
+     */
+    public enum State {
+        /** Answering probes. */
+        ALIVE,
+        /** Missed a probe; declared dead unless it refutes in time. */
+        SUSPECT,
+        /** Failed or left the cluster. */
+        DEAD
+    }
+
+    private final InetSocketAddress address;
+    private final Role role;
+    private final int servicePort;
+    private final int incarnation;
+    private final State state;
+
+    /**
+     * Constructor.
+     *
+     * @param address     the member's gossip address.
+     * @param role        what the member does.
+     * @param servicePort the port of the member's service, on the gossip address's host.
+     * @param incarnation the member's incarnation number.
+     * @param state       the member's liveness.
+     */
+    public Member(InetSocketAddress address, Role role, int servicePort, int incarnation, State state) {
+        this.address = address;
+        this.role = role;
+        this.servicePort = servicePort;
+        this.incarnation = incarnation;
+        this.state = state;
+    }
+
+    /**
+     * Returns the member's gossip address, which identifies it.
+     *
+     * @return the address.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns what the member does.
+     *
+     * @return the role.
+     */
+    public Role getRole() {
+        return role;
+    }
+
+    /**
+     * Returns the host of the member's service.
+     *
+     * @return the host address in text form.
+     */
+    public String getHost() {
+        return address.getAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the port of the member's service.
+     *
+     * @return the service port.
+     */
+    public int getServicePort() {
+        return servicePort;
+    }
+
+    /**
+     * Returns the member's incarnation number.
+     *
+     * @return the incarnation.
+     */
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * Returns the member's liveness.
+     *
+     * @return the state.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns this member with another incarnation and state.
+     *
+     * @param incarnation the incarnation number.
+     * @param state       the liveness.
+     * @return the updated member.
+     */
+    public Member with(int incarnation, State state) {
+        return new Member(address, role, servicePort, incarnation, state);
+    }
+
+    /**
+     * Returns whether this view of the member should replace another one.
+     *
+     * @param other the current view, or null if the member is unknown.
+     * @return true if this view is newer.
+     */
+    public boolean overrides(Member other) {
+        if (other == null) {
+            return true;
+        }
+        if (incarnation != other.incarnation) {
+            return incarnation > other.incarnation;
+        }
+        return state.compareTo(other.state) > 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        Member that = (Member) obj;
+        return servicePort == that.servicePort && incarnation == that.incarnation
+                && address.equals(that.address) && role == that.role && state == that.state;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(address, role, servicePort, incarnation, state);
+    }
+
+    @Override
+    public String toString() {
+        return role.name().toLowerCase() + " " + getHost() + ":" + address.getPort()
+                + " (service " + servicePort + ", " + state.name().toLowerCase() + ", incarnation " + incarnation + ")";
+    }
+}
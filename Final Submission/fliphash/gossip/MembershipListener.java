@@ -0,0 +1,24 @@
+package fliphash.gossip;
+
+/**
+ * Receives membership changes from a {@link SwimNode}.
+ * <p>
+ * Methods are called on the node's thread, one at a time, and should return quickly.
+ * </p>
+ */
+public interface MembershipListener {
+
+    /**
+     * Called when a member joins, or comes back after being declared dead.
+     *
+     * @param member the member, alive.
+     */
+    void memberUp(Member member);
+
+    /**
+     * Called when a member is declared dead or leaves.
+     *
+     * @param member the member, dead.
+     */
+    void memberDown(Member member);
+}
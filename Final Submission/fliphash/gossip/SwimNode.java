@@ -0,0 +1,692 @@
+package fliphash.gossip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A member of a SWIM gossip cluster over UDP.
+ * <p>
+ * Every protocol period the node pings one other member, taking them in a shuffled
+ * round-robin order so each member is probed at least once per pass. If no acknowledgement
+ * arrives within {@value #PING_TIMEOUT_PERCENT}% of the period, {@value #INDIRECT_PROBES}
+ * random members are asked to ping the target for it; if the period ends without an
+ * acknowledgement, the target becomes suspect. A suspect that does not refute within
+ * {@value #SUSPICION_MULTIPLIER} &times; log<sub>2</sub>(N + 1) periods is declared dead. A
+ * member refutes a suspicion by raising its incarnation number and announcing itself alive
+ * again.
+ * </p>
+ * <p>
+ * Membership changes are not sent separately: the newest changes ride on the pings and
+ * acknowledgements, each {@value #RETRANSMIT_MULTIPLIER} &times; log<sub>2</sub>(N + 1) times,
+ * least sent first. A change therefore reaches all N members in O(log N) periods, and a
+ * failure is first probed in a constant expected number of periods and declared after the
+ * O(log N) suspicion timeout. A joining node sends a join to its seeds every period until one
+ * answers with the full member list; a node that leaves announces its own death first. Every
+ * {@value #SYNC_PERIODS} periods a node also pushes its full member list to a random member,
+ * which repairs changes that gossip or a lost datagram missed.
+ * </p>
+ * <p>
+ * Each node runs on one thread with one non-blocking {@link DatagramChannel}. Datagrams are at
+ * most {@value #MAX_DATAGRAM} bytes; a full member list is split over as many as it needs.
+ * </p>
+ */
+public final class SwimNode implements Runnable, Closeable {
+
+    /** Default protocol period. */
+    public static final long DEFAULT_PERIOD_MILLIS = 200;
+
+    /** Largest datagram sent, below common MTUs. */
+    static final int MAX_DATAGRAM = 1400;
+
+    /** Members asked to ping a target that did not answer directly. */
+    static final int INDIRECT_PROBES = 3;
+
+    /** Part of the period to wait for a direct acknowledgement, in percent. */
+    static final int PING_TIMEOUT_PERCENT = 40;
+
+    /** Transmissions of each change, in multiples of log2(N + 1). */
+    static final int RETRANSMIT_MULTIPLIER = 2;
+
+    /** Suspicion timeout, in multiples of log2(N + 1) periods. */
+    static final int SUSPICION_MULTIPLIER = 3;
+
+    /** Periods a dead member is remembered, so late gossip about it cannot revive it. */
+    static final int DEAD_RETENTION_PERIODS = 150;
+
+    /** Periods between full-state pushes to a random member, which repair what gossip missed. */
+    static final int SYNC_PERIODS = 50;
+
+    private static final byte PING = 1;
+    private static final byte ACK = 2;
+    private static final byte PING_REQ = 3;
+    private static final byte JOIN = 4;
+    private static final byte SYNC = 5;
+
+    /** Largest encoded member: state, role, incarnation, IPv6 address, two ports. */
+    private static final int MAX_MEMBER_SIZE = 1 + 1 + 4 + 1 + 16 + 2 + 2;
+
+    private final DatagramChannel channel;
+    private final long periodNanos;
+    private final List<InetSocketAddress> seeds;
+    private final MembershipListener listener;
+    private final ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final SplittableRandom random = new SplittableRandom();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Other members by address, dead ones included until they are reaped.
+    private final Map<InetSocketAddress, Member> members = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Long> suspicionDeadlines = new HashMap<>();
+    private final Map<InetSocketAddress, Long> deathTimes = new HashMap<>();
+    // The newest change of each member still being gossiped, and all of them by transmissions.
+    private final Map<InetSocketAddress, Broadcast> broadcasts = new HashMap<>();
+    private final TreeSet<Broadcast> broadcastQueue = new TreeSet<>(Broadcast.LEAST_SENT_FIRST);
+    private long nextBroadcastId;
+    // Indirect pings sent for other members: our sequence number to the requester's.
+    private final Map<Integer, Relay> relays = new HashMap<>();
+    private final List<InetSocketAddress> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    // Sequence 0 is left to joins and full-state messages.
+    private int nextSequence = 1;
+    private volatile Member self;
+    private volatile Selector selector;
+    private volatile boolean closed;
+    private volatile boolean leaving;
+    private boolean joined;
+    private int periodsToSync;
+
+    // The probe of the current period.
+    private InetSocketAddress probeTarget;
+    private int probeSequence;
+    private long probeStart;
+    private boolean probeAcknowledged;
+    private boolean indirectSent;
+
+    /**
+     * Constructor; binds the gossip socket. Call {@link #run()} on a thread of its own to
+     * take part in the cluster.
+     *
+     * @param address      the address to bind and advertise; port 0 picks a free port.
+     * @param role         what this node does.
+     * @param servicePort  the port of this node's service.
+     * @param seeds        members to join through; empty to start a new cluster.
+     * @param periodMillis the protocol period.
+     * @param listener     receives membership changes.
+     * @throws IOException if the socket cannot be bound.
+     */
+    public SwimNode(InetSocketAddress address, Member.Role role, int servicePort, List<InetSocketAddress> seeds,
+                    long periodMillis, MembershipListener listener) throws IOException {
+        this.channel = DatagramChannel.open();
+        channel.bind(address);
+        channel.configureBlocking(false);
+        InetSocketAddress bound = (InetSocketAddress) channel.getLocalAddress();
+        this.self = new Member(new InetSocketAddress(address.getAddress(), bound.getPort()), role, servicePort, 0,
+                Member.State.ALIVE);
+        this.seeds = new ArrayList<>(seeds);
+        this.seeds.remove(self.getAddress());
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        this.listener = listener;
+        this.joined = this.seeds.isEmpty();
+        this.periodsToSync = 1 + random.nextInt(SYNC_PERIODS);
+        broadcast(self);
+    }
+
+    /**
+     * Returns this node as the cluster sees it.
+     *
+     * @return this node's member.
+     */
+    public Member getSelf() {
+        return self;
+    }
+
+    /**
+     * Returns the other members that are not dead.
+     *
+     * @return a snapshot of the alive and suspect members.
+     */
+    public List<Member> getMembers() {
+        List<Member> live = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.getState() != Member.State.DEAD) {
+                live.add(member);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Returns the number of datagrams this node has sent.
+     *
+     * @return the message count.
+     */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    @Override
+    public void run() {
+        try (Selector opened = Selector.open()) {
+            selector = opened;
+            channel.register(opened, SelectionKey.OP_READ);
+            long nextPeriod = System.nanoTime();
+            while (!closed) {
+                long now = System.nanoTime();
+                if (leaving) {
+                    announceLeave();
+                    break;
+                }
+                if (now - nextPeriod >= 0) {
+                    finishProbe();
+                    expire(now);
+                    if (!joined) {
+                        for (InetSocketAddress seed : seeds) {
+                            send(JOIN, 0, null, seed);
+                        }
+                    } else if (--periodsToSync == 0) {
+                        periodsToSync = SYNC_PERIODS;
+                        pushState();
+                    }
+                    startProbe(now);
+                    nextPeriod = Math.max(nextPeriod + periodNanos, now);
+                }
+                long pingDeadline = probeStart + periodNanos * PING_TIMEOUT_PERCENT / 100;
+                boolean awaitingAck = probeTarget != null && !probeAcknowledged && !indirectSent;
+                if (awaitingAck && now - pingDeadline >= 0) {
+                    sendIndirectProbes();
+                    awaitingAck = false;
+                }
+                long wait = nextPeriod - now;
+                if (awaitingAck) {
+                    wait = Math.min(wait, pingDeadline - now);
+                }
+                opened.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                opened.selectedKeys().clear();
+                receiveAll(System.nanoTime());
+            }
+        } catch (ClosedChannelException e) {
+            // Closed by close().
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Gossip node " + self.getAddress() + " failed: " + e.getMessage());
+            }
+        } finally {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore cleanup exceptions.
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Announces that this node leaves the cluster, then stops it. Waits up to one protocol
+     * period for the announcement to be sent.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void leave() throws InterruptedException {
+        leaving = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+        stopped.await(Math.max(1, TimeUnit.NANOSECONDS.toMillis(periodNanos)), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the node at once, without telling the cluster; the others detect it as failed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore cleanup exceptions.
+        }
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * Suspects the target of the last period if neither it nor a helper acknowledged it.
+     */
+    private void finishProbe() {
+        if (probeTarget != null && !probeAcknowledged) {
+            Member member = members.get(probeTarget);
+            if (member != null && member.getState() == Member.State.ALIVE) {
+                apply(member.with(member.getIncarnation(), Member.State.SUSPECT), System.nanoTime());
+            }
+        }
+        probeTarget = null;
+    }
+
+    /**
+     * Pings the next member in the round-robin order, reshuffling after each pass.
+     */
+    private void startProbe(long now) throws IOException {
+        InetSocketAddress target = null;
+        for (int attempts = 0; target == null && attempts <= probeOrder.size(); attempts++) {
+            if (probeIndex >= probeOrder.size()) {
+                probeOrder.clear();
+                for (Member member : members.values()) {
+                    if (member.getState() != Member.State.DEAD) {
+                        probeOrder.add(member.getAddress());
+                    }
+                }
+                shuffle(probeOrder);
+                probeIndex = 0;
+                if (probeOrder.isEmpty()) {
+                    return;
+                }
+            }
+            InetSocketAddress candidate = probeOrder.get(probeIndex++);
+            Member member = members.get(candidate);
+            if (member != null && member.getState() != Member.State.DEAD) {
+                target = candidate;
+            }
+        }
+        if (target == null) {
+            return;
+        }
+        probeTarget = target;
+        probeSequence = nextSequence++;
+        probeStart = now;
+        probeAcknowledged = false;
+        indirectSent = false;
+        send(PING, probeSequence, null, target);
+    }
+
+    /**
+     * Asks random members to ping the probe target on this node's behalf.
+     */
+    private void sendIndirectProbes() throws IOException {
+        indirectSent = true;
+        List<InetSocketAddress> helpers = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.getState() == Member.State.ALIVE && !member.getAddress().equals(probeTarget)) {
+                helpers.add(member.getAddress());
+            }
+        }
+        shuffle(helpers);
+        for (int i = 0; i < Math.min(INDIRECT_PROBES, helpers.size()); i++) {
+            send(PING_REQ, probeSequence, probeTarget, helpers.get(i));
+        }
+    }
+
+    /**
+     * Declares expired suspects dead, and forgets long-dead members and stale relays.
+     */
+    private void expire(long now) {
+        List<InetSocketAddress> expired = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, Long> entry : suspicionDeadlines.entrySet()) {
+            if (now - entry.getValue() >= 0) {
+                expired.add(entry.getKey());
+            }
+        }
+        for (InetSocketAddress address : expired) {
+            Member member = members.get(address);
+            if (member != null && member.getState() == Member.State.SUSPECT) {
+                apply(member.with(member.getIncarnation(), Member.State.DEAD), now);
+            }
+        }
+        Iterator<Map.Entry<InetSocketAddress, Long>> deaths = deathTimes.entrySet().iterator();
+        while (deaths.hasNext()) {
+            Map.Entry<InetSocketAddress, Long> entry = deaths.next();
+            if (now - entry.getValue() >= DEAD_RETENTION_PERIODS * periodNanos) {
+                members.remove(entry.getKey());
+                Broadcast pending = broadcasts.remove(entry.getKey());
+                if (pending != null) {
+                    broadcastQueue.remove(pending);
+                }
+                deaths.remove();
+            }
+        }
+        relays.values().removeIf(relay -> now - relay.deadline >= 0);
+    }
+
+    /**
+     * Sends this node's own death to a few members, so it spreads without waiting for a
+     * suspicion to expire.
+     */
+    private void announceLeave() throws IOException {
+        self = self.with(self.getIncarnation(), Member.State.DEAD);
+        List<InetSocketAddress> targets = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.getState() != Member.State.DEAD) {
+                targets.add(member.getAddress());
+            }
+        }
+        shuffle(targets);
+        for (int i = 0; i < Math.min(retransmitLimit(), targets.size()); i++) {
+            sendMembers(Collections.singletonList(self), targets.get(i));
+        }
+    }
+
+    private void receiveAll(long now) throws IOException {
+        while (true) {
+            in.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(in);
+            if (from == null) {
+                return;
+            }
+            in.flip();
+            try {
+                handle(from, now);
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                     | NegativeArraySizeException e) {
+                // A truncated or foreign datagram; ignore it.
+            }
+        }
+    }
+
+    private void handle(InetSocketAddress from, long now) throws IOException {
+        byte type = in.get();
+        int sequence = in.getInt();
+        InetSocketAddress target = type == PING_REQ ? readAddress(in) : null;
+        int count = in.get() & 0xFF;
+        for (int i = 0; i < count; i++) {
+            apply(readMember(in), now);
+        }
+        switch (type) {
+            case PING:
+                send(ACK, sequence, null, from);
+                break;
+            case JOIN:
+                send(ACK, sequence, null, from);
+                sendFullState(from);
+                break;
+            case PING_REQ:
+                int relaySequence = nextSequence++;
+                relays.put(relaySequence, new Relay(from, sequence, now + periodNanos));
+                send(PING, relaySequence, null, target);
+                break;
+            case ACK:
+                if (probeTarget != null && sequence == probeSequence) {
+                    probeAcknowledged = true;
+                } else {
+                    Relay relay = relays.remove(sequence);
+                    if (relay != null) {
+                        send(ACK, relay.sequence, null, relay.requester);
+                    }
+                }
+                break;
+            case SYNC:
+                joined = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Merges a view of a member into the local membership; newer views are gossiped on and
+     * reported to the listener.
+     */
+    private void apply(Member update, long now) {
+        InetSocketAddress address = update.getAddress();
+        if (address.equals(self.getAddress())) {
+            if (update.getState() != Member.State.ALIVE && update.getIncarnation() >= self.getIncarnation() && !leaving) {
+                // Refute: we are alive, at a newer incarnation than the rumour.
+                self = self.with(update.getIncarnation() + 1, Member.State.ALIVE);
+                broadcast(self);
+            }
+            return;
+        }
+        Member current = members.get(address);
+        if (!update.overrides(current)) {
+            return;
+        }
+        members.put(address, update);
+        if (update.getState() == Member.State.SUSPECT) {
+            suspicionDeadlines.put(address, now + suspicionTimeout());
+        } else {
+            suspicionDeadlines.remove(address);
+        }
+        if (update.getState() == Member.State.DEAD) {
+            deathTimes.put(address, now);
+        } else {
+            deathTimes.remove(address);
+        }
+        broadcast(update);
+        boolean wasUp = current != null && current.getState() != Member.State.DEAD;
+        boolean up = update.getState() != Member.State.DEAD;
+        if (up && !wasUp) {
+            listener.memberUp(update);
+        } else if (!up && wasUp) {
+            listener.memberDown(update);
+        }
+    }
+
+    private void broadcast(Member member) {
+        Broadcast replaced = broadcasts.remove(member.getAddress());
+        if (replaced != null) {
+            broadcastQueue.remove(replaced);
+        }
+        Broadcast added = new Broadcast(member, nextBroadcastId++);
+        broadcasts.put(member.getAddress(), added);
+        broadcastQueue.add(added);
+    }
+
+    /**
+     * Sends a message with as many pending changes as fit, least transmitted first.
+     */
+    private void send(byte type, int sequence, InetSocketAddress target, InetSocketAddress to) throws IOException {
+        out.clear();
+        out.put(type);
+        out.putInt(sequence);
+        if (target != null) {
+            writeAddress(out, target);
+        }
+        int countPosition = out.position();
+        out.put((byte) 0);
+        int limit = retransmitLimit();
+        int count = 0;
+        List<Broadcast> resend = new ArrayList<>();
+        while (count < 255 && out.remaining() >= MAX_MEMBER_SIZE && !broadcastQueue.isEmpty()) {
+            Broadcast next = broadcastQueue.pollFirst();
+            writeMember(out, next.member);
+            count++;
+            if (++next.transmissions < limit) {
+                resend.add(next);
+            } else {
+                broadcasts.remove(next.member.getAddress());
+            }
+        }
+        broadcastQueue.addAll(resend);
+        out.put(countPosition, (byte) count);
+        out.flip();
+        channel.send(out, to);
+        messagesSent.incrementAndGet();
+    }
+
+    /**
+     * Sends the full member list to one random live member.
+     */
+    private void pushState() throws IOException {
+        List<InetSocketAddress> live = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.getState() == Member.State.ALIVE) {
+                live.add(member.getAddress());
+            }
+        }
+        if (!live.isEmpty()) {
+            sendFullState(live.get(random.nextInt(live.size())));
+        }
+    }
+
+    /**
+     * Sends every known member, this node included, to a joining node or for
+     * {@link #pushState()}.
+     */
+    private void sendFullState(InetSocketAddress to) throws IOException {
+        List<Member> all = new ArrayList<>(members.values());
+        all.add(self);
+        sendMembers(all, to);
+    }
+
+    private void sendMembers(List<Member> list, InetSocketAddress to) throws IOException {
+        int next = 0;
+        while (next < list.size()) {
+            out.clear();
+            out.put(SYNC);
+            out.putInt(0);
+            int countPosition = out.position();
+            out.put((byte) 0);
+            int count = 0;
+            while (next < list.size() && count < 255 && out.remaining() >= MAX_MEMBER_SIZE) {
+                writeMember(out, list.get(next++));
+                count++;
+            }
+            out.put(countPosition, (byte) count);
+            out.flip();
+            channel.send(out, to);
+            messagesSent.incrementAndGet();
+        }
+    }
+
+    private int retransmitLimit() {
+        return RETRANSMIT_MULTIPLIER * log2(members.size() + 2);
+    }
+
+    private long suspicionTimeout() {
+        return SUSPICION_MULTIPLIER * log2(members.size() + 2) * periodNanos;
+    }
+
+    /**
+     * Returns log2 of a count, rounded up.
+     */
+    private static int log2(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    private void shuffle(List<InetSocketAddress> list) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            Collections.swap(list, i, random.nextInt(i + 1));
+        }
+    }
+
+    private static void writeMember(ByteBuffer buffer, Member member) {
+        buffer.put((byte) member.getState().ordinal());
+        buffer.put((byte) member.getRole().ordinal());
+        buffer.putInt(member.getIncarnation());
+        writeAddress(buffer, member.getAddress());
+        buffer.putShort((short) member.getServicePort());
+    }
+
+    private static Member readMember(ByteBuffer buffer) {
+        Member.State state = Member.State.values()[buffer.get()];
+        Member.Role role = Member.Role.values()[buffer.get()];
+        int incarnation = buffer.getInt();
+        InetSocketAddress address = readAddress(buffer);
+        int servicePort = buffer.getShort() & 0xFFFF;
+        return new Member(address, role, servicePort, incarnation, state);
+    }
+
+    private static void writeAddress(ByteBuffer buffer, InetSocketAddress address) {
+        byte[] bytes = address.getAddress().getAddress();
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+        buffer.putShort((short) address.getPort());
+    }
+
+    private static InetSocketAddress readAddress(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.get()];
+        buffer.get(bytes);
+        int port = buffer.getShort() & 0xFFFF;
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address length: " + bytes.length);
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of {@code host:port} addresses.
+     *
+     * @param value the list; blank entries are skipped.
+     * @return the addresses.
+     * @throws IllegalArgumentException if an entry is not a valid address.
+     */
+    public static List<InetSocketAddress> parseAddresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            try {
+                if (colon <= 0) {
+                    throw new NumberFormatException();
+                }
+                addresses.add(new InetSocketAddress(entry.substring(0, colon).trim(),
+                        Integer.parseInt(entry.substring(colon + 1).trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid address: " + entry.trim());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * A change being gossiped, with the number of times it was sent.
+     */
+    private static final class Broadcast {
+        // Fewest transmissions first, then the newest change.
+        static final Comparator<Broadcast> LEAST_SENT_FIRST = Comparator
+                .comparingInt((Broadcast broadcast) -> broadcast.transmissions)
+                .thenComparingLong(broadcast -> -broadcast.id);
+
+        final Member member;
+        final long id;
+        int transmissions;
+
+        Broadcast(Member member, long id) {
+            this.member = member;
+            this.id = id;
+        }
+    }
+
+    /**
+     * An indirect ping sent for another member.
+     */
+    private static final class Relay {
+        final InetSocketAddress requester;
+        final int sequence;
+        final long deadline;
+
+        Relay(InetSocketAddress requester, int sequence, long deadline) {
+            this.requester = requester;
+            this.sequence = sequence;
+            this.deadline = deadline;
+        }
+    }
+}
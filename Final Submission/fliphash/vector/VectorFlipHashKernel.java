@@ -0,0 +1,106 @@
+package fliphash.vector;
+
+import fliphash.FlipHashPow2Kernel;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the XXH3-64 FlipHash power-of-two step for 64-bit keys.
+ * <p>
+ * An eight-byte key takes XXH3's 4-8 byte path, {@code rrmxmx(rotl(key, 32) ^ bitflip)}, which
+ * only needs 64-bit shifts, xors and multiplications and therefore maps directly onto vector
+ * lanes. The per-lane seed of the second draw only enters XXH3 through its bitflip constant, so
+ * it is computed lane-wise instead of being gathered.
+ * </p>
+ * <p>
+ * This class needs the {@code jdk.incubator.vector} module. It is compiled separately and
+ * loaded reflectively by {@link fliphash.FlipHashEngine} only when that module is present.
+ * </p>
+ */
+public final class VectorFlipHashKernel implements FlipHashPow2Kernel {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /** XXH3 default secret words 1 and 2, which form the 4-8 byte bitflip. */
+    private static final long SECRET_01 = 0x1cad21f72c81017cL;
+    private static final long SECRET_02 = 0xdb979083e96dd4deL;
+    private static final long BITFLIP12_BASE = SECRET_01 ^ SECRET_02;
+
+    private static final long RRMXMX_MULTIPLIER = 0x9FB21C651E98DF25L;
+    private static final long DOUBLE_EXPONENT_BIAS = 1023;
+    private static final int DOUBLE_MANTISSA_BITS = 52;
+
+    @Override
+    public void fliphashPow2(long[] keys, int length, int twoPower, long[] buckets) {
+        long mask = (1L << twoPower) - 1;
+        int upperBound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            LongVector rotated = LongVector.fromArray(SPECIES, keys, i).lanewise(VectorOperators.ROL, 32);
+            LongVector a = rrmxmx(rotated.lanewise(VectorOperators.XOR, BITFLIP12_BASE))
+                    .lanewise(VectorOperators.AND, mask);
+
+            // floor(log2(max(a, 1))) read from the exponent of (double) a, exact since a < 2^53.
+            LongVector b = a.lanewise(VectorOperators.OR, 1)
+                    .convert(VectorOperators.L2D, 0)
+                    .reinterpretAsLongs()
+                    .lanewise(VectorOperators.LSHR, DOUBLE_MANTISSA_BITS)
+                    .sub(DOUBLE_EXPONENT_BIAS);
+
+            // XXH3 bitflip12 for seed b: BASE - (b ^ reverseBytes(b)), and reverseBytes(b) == b << 56.
+            LongVector bitflip = b.lanewise(VectorOperators.XOR, b.lanewise(VectorOperators.LSHL, 56))
+                    .neg()
+                    .add(BITFLIP12_BASE);
+            LongVector lowMask = LongVector.broadcast(SPECIES, 1L)
+                    .lanewise(VectorOperators.LSHL, b)
+                    .sub(1L);
+            LongVector c = rrmxmx(rotated.lanewise(VectorOperators.XOR, bitflip))
+                    .lanewise(VectorOperators.AND, lowMask);
+
+            a.lanewise(VectorOperators.XOR, c).intoArray(buckets, i);
+        }
+        for (; i < length; i++) {
+            buckets[i] = fliphashPow2(keys[i], twoPower);
+        }
+    }
+
+    /**
+     * Lane-wise XXH3 {@code rrmxmx} finalizer for an input length of eight bytes.
+     *
+     * @param h the keyed input.
+     * @return the hash values.
+     */
+    private static LongVector rrmxmx(LongVector h) {
+        h = h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.ROL, 49)
+                .lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.ROL, 24)));
+        h = h.mul(RRMXMX_MULTIPLIER);
+        h = h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.LSHR, 35).add(8L));
+        h = h.mul(RRMXMX_MULTIPLIER);
+        return h.lanewise(VectorOperators.XOR, h.lanewise(VectorOperators.LSHR, 28));
+    }
+
+    /**
+     * Scalar version of the power-of-two step for the keys after the last full vector.
+     *
+     * @param key      the input key.
+     * @param twoPower the power to which 2 is raised.
+     * @return the bucket index.
+     */
+    private static long fliphashPow2(long key, int twoPower) {
+        long rotated = Long.rotateLeft(key, 32);
+        long a = rrmxmx(rotated ^ BITFLIP12_BASE) & ((1L << twoPower) - 1);
+        long b = 63 - Long.numberOfLeadingZeros(a | 1);
+        long bitflip = BITFLIP12_BASE - (b ^ (b << 56));
+        long c = rrmxmx(rotated ^ bitflip) & ((1L << b) - 1);
+        return a ^ c;
+    }
+
+    private static long rrmxmx(long h) {
+        h ^= Long.rotateLeft(h, 49) ^ Long.rotateLeft(h, 24);
+        h *= RRMXMX_MULTIPLIER;
+        h ^= (h >>> 35) + 8;
+        h *= RRMXMX_MULTIPLIER;
+        return h ^ (h >>> 28);
+    }
+}
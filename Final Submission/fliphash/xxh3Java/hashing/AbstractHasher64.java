@@ -42,6 +42,11 @@ interface AbstractHasher64 extends AbstractHasher32, Hasher64 {
     return 64;
   }
 
+  @Override
+  default long hashLongToLong(long v) {
+    return hashStream().putLong(v).getAsLong();
+  }
+
   @Override
   default long hashLongLongToLong(long v1, long v2) {
     return hashStream().putLong(v1).putLong(v2).getAsLong();
@@ -73,6 +73,16 @@ public interface Hasher64 extends Hasher32 {
    */
   long hashCharsToLong(CharSequence input);
 
+  /**
+   * Hashes a 64-bit {@code long} value to a 64-bit {@code long} value.
+   *
+   * <p>Equivalent to {@code hashStream().putLong(v).getAsLong();}
+   *
+   * @param v the value
+   * @return the hash value
+   */
+  long hashLongToLong(long v);
+
   /**
    * Hashes/Mixes two 64-bit {@code long} values into a 64-bit {@code long} value.
    *
@@ -599,6 +599,11 @@ public class XXH3_64 extends XXH3Base {
     return finalizeHash((long) len << 1, acc0, acc1, acc2, acc3, acc4, acc5, acc6, acc7);
   }
 
+  @Override
+  public long hashLongToLong(long v) {
+    return rrmxmx(Long.rotateLeft(v, 32) ^ bitflip12, 8);
+  }
+
   @Override
   public long hashLongLongToLong(long v1, long v2) {
     long lo = v1 ^ bitflip34;